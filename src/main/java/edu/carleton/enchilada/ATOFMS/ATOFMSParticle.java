@@ -131,8 +131,8 @@ public class ATOFMSParticle {
 		if (currCalInfo.autocal)
 		{
 			double returnVals[] = new double[2];
-			returnVals = AutoCalibrator.autoCalibrate(digitRate, 
-					AutoCalibrator.POS, posSpectrum);
+			returnVals = currCalInfo.getAutoCalibrator().autoCalibrate(
+					digitRate, AutoCalibrator.POS, posSpectrum);
 			if (returnVals != null)
 			{
 				autoPosSlope = returnVals[0];
@@ -143,8 +143,8 @@ public class ATOFMSParticle {
 				autoPosSlope = currCalInfo.posSlope;
 				autoPosIntercept = currCalInfo.posIntercept;
 			}
-			returnVals = AutoCalibrator.autoCalibrate(digitRate, 
-					AutoCalibrator.NEG, negSpectrum);
+			returnVals = currCalInfo.getAutoCalibrator().autoCalibrate(
+					digitRate, AutoCalibrator.NEG, negSpectrum);
 			if (returnVals != null)
 			{
 				autoNegSlope = returnVals[0];
@@ -169,8 +169,11 @@ public class ATOFMSParticle {
 		
 		int baselines[] = findBaseLines();
 		
-		getPosPeaks(baselines[0]);
-		getNegPeaks(baselines[1]);
+		PeakBuffers buffers = peakBuffers.get();
+		// peaks are at least one bin wide, with a bin between them
+		buffers.ensureCapacity((MAX_BIN_NUMBER + 1) / 2);
+		addPeaks(buffers, findPeaks(posSpectrum, baselines[0], buffers), true);
+		addPeaks(buffers, findPeaks(negSpectrum, baselines[1], buffers), false);
 		
 		return peakList;
 	}
@@ -198,183 +201,119 @@ public class ATOFMSParticle {
 	}
 	
 	/**
-	 * get positive peaks and put them into a sparse peak list.
-	 * @param baseline
-	 * @return true if successful
+	 * Where peaks are collected while they're being found, so that only the
+	 * ones that pass the area filters become ATOFMSPeaks.  Entry k of each
+	 * array belongs to the same peak.  Each thread has its own, since
+	 * particles are read on several threads at once.
 	 */
-	private boolean getPosPeaks(int baseline)
+	private static class PeakBuffers
 	{
-		int i = 0;
-		int startLoc = 0;
-		int endLoc = 0;
-		int centerIndex = 0;
-		int peakHeight;
-		int peakArea;
-		int temp = 0;
-		int totalArea = 0;
-		boolean foundPeak = false;
-		while (i < MAX_BIN_NUMBER)
-		{
-			startLoc = i;
-			
-			//Set peakHeight and peakArea to zero.
-			peakHeight = 0;
-			peakArea = 0;
-			
-			// if the index is above the baseline find where it 
-			// goes back below, this range (startLoc-endLoc) is 
-			// the peak's key
-			while (i < MAX_BIN_NUMBER && posSpectrum[i] > baseline + currPeakParams.minHeight)
-			{
-				foundPeak = true;
-				endLoc = i;
-				temp = posSpectrum[i] - baseline;
-				if (temp > peakHeight)
-					peakHeight = temp;
-				i++;
-			}// while (posSpectrum[i] > baseline)
-			// We found a peak and its range, now let's find out
-			// about it.
-			if (foundPeak == true)
-			{ 
-				// This is how MS-Analyze calculates peak centers,
-				// the main effect of the -1 is that peaks centered
-				// on even bins get pushed up a bin instead of back one
-				// from the *.5 value.
-				centerIndex = startLoc + (endLoc-(startLoc-1))/2;
-				
-				for (int j = startLoc; j <= endLoc; j++)
-				{
-					peakArea = peakArea + posSpectrum[j];
-				}
-				peakArea = peakArea - baseline*(endLoc-startLoc+1);
-				totalArea += peakArea;
-				double peakLocation = getPosMZ(centerIndex);
-				peakList.add(new ATOFMSPeak(peakHeight, peakArea, peakLocation));
-				
-				foundPeak = false;
-			} // if (foundPeak == true)
-			else
-				i++;
-		} // while (i < MAX_BIN_NUMBER)
-		int k = 0;
+		int[] heights = new int[0];
+		int[] areas = new int[0];
+		int[] centers = new int[0];
+		float[] relAreas = new float[0];
 		
-		
-		while (k < peakList.size())
+		void ensureCapacity(int peaks)
 		{
-			Peak peak = peakList.get(k);
-			((ATOFMSPeak)peak).relArea = (float) ((ATOFMSPeak)peak).area/totalArea;
-			if(((ATOFMSPeak)peak).relArea <= currPeakParams.minRelArea ||
-					((ATOFMSPeak)peak).area <= currPeakParams.minArea)
-			{
-				peakList.remove(k);
+			if (heights.length < peaks) {
+				heights = new int[peaks];
+				areas = new int[peaks];
+				centers = new int[peaks];
+				relAreas = new float[peaks];
 			}
-			else
-				k++;
 		}
-
-		return true;
 	}
 	
-	private double getRoundedMZ(double rawMZ) {
-		double roundedMZ = Math.round(rawMZ);
-		double error = rawMZ-roundedMZ;
-		if(error <= currPeakParams.maxPeakError || (-1 * error) < currPeakParams.maxPeakError){
-			return roundedMZ;
-		}
-		return -1;
-	}
-
+	private static final ThreadLocal<PeakBuffers> peakBuffers =
+		ThreadLocal.withInitial(PeakBuffers::new);
+	
 	/**
-	 * Gets neg peaks and puts them into a sparse peaklist.
-	 * @param baseline
-	 * @return true on success.
+	 * Finds the peaks in one spectrum: runs of bins more than minHeight
+	 * above the baseline.  Then keeps the ones whose area is more than
+	 * minArea and whose share of the spectrum's total peak area is more
+	 * than minRelArea, packed at the front of the buffers.
+	 * @return the number of peaks kept
 	 */
-	private boolean getNegPeaks(int baseline)
+	private int findPeaks(int[] spectrum, int baseline, PeakBuffers buffers)
 	{
-		int startingListSize = peakList.size();
-		int i = 0;
-		int startLoc = 0;
-		int endLoc = 0;
-		int centerIndex = 0;
-		int peakHeight = 0;
-		int peakArea = 0;
-		int temp = 0;
+		int threshold = baseline + currPeakParams.minHeight;
+		int[] heights = buffers.heights;
+		int[] areas = buffers.areas;
+		int[] centers = buffers.centers;
+		int found = 0;
 		int totalArea = 0;
-		boolean foundPeak = false;
+		int i = 0;
 		while (i < MAX_BIN_NUMBER)
 		{
-			peakHeight = 0;
-			peakArea = 0;
-			startLoc = i;
-			// if the index is above the baseline find where it 
-			// goes back below, this range (startLoc-endLoc) is 
-			// the peak's key
-			//if (negSpectrum[i] < 0)
-			//	System.out.println(negSpectrum[i]);
-			while (i < MAX_BIN_NUMBER && negSpectrum[i] > (baseline
-	               + currPeakParams.minHeight))
+			if (spectrum[i] <= threshold)
 			{
-				foundPeak = true;
-				endLoc = i;
-				temp = negSpectrum[i] - baseline;
-				if (temp > peakHeight)
-					peakHeight = temp;
 				i++;
-			}// while (negSpectrum[i] > baseline)
-			// We found a peak and it's range, now let's find out
-			// about it.  
-			if (foundPeak == true)
+				continue;
+			}
+			// this range (startLoc-endLoc) is the peak's key
+			int startLoc = i;
+			int peakHeight = 0;
+			int peakArea = 0;
+			do
 			{
-				centerIndex = startLoc + (endLoc-(startLoc-1))/2;
-				
-				peakArea = 0;
-				for (int j = startLoc; j <= endLoc; j++)
-				{
-					peakArea = peakArea + negSpectrum[j];
-				}
-				peakArea = peakArea - baseline*(endLoc-startLoc+1);
-				totalArea += peakArea;
-				
-				// lets see if we can pre cut a peak from the list
-				// In an effor to match the MSAnalyze results, I'm 
-				// reducing total value by the value of the peak as we 
-				// cut it.  Nevermind.
-
-				double peakLocation = getNegMZ(centerIndex);
-				peakList.add(new ATOFMSPeak(peakHeight, peakArea, peakLocation));
-				
-				peakHeight = 0;
-				foundPeak = false;
-			} // if (foundPeak == true)
-			else
+				int temp = spectrum[i] - baseline;
+				if (temp > peakHeight)
+					peakHeight = temp;
+				peakArea += spectrum[i];
 				i++;
-		} // while (i < MAX_BIN_NUMBER)
-		
+			} while (i < MAX_BIN_NUMBER && spectrum[i] > threshold);
+			int endLoc = i - 1;
+			peakArea = peakArea - baseline*(endLoc-startLoc+1);
+			totalArea += peakArea;
+			
+			heights[found] = peakHeight;
+			areas[found] = peakArea;
+			// This is how MS-Analyze calculates peak centers,
+			// the main effect of the -1 is that peaks centered
+			// on even bins get pushed up a bin instead of back one
+			// from the *.5 value.
+			centers[found] = startLoc + (endLoc-(startLoc-1))/2;
+			found++;
+		}
 		
-		int k = startingListSize;
-
-		while (k < peakList.size())
+		float[] relAreas = buffers.relAreas;
+		int kept = 0;
+		for (int k = 0; k < found; k++)
 		{
-			Peak peak = peakList.get(k);
-			((ATOFMSPeak)peak).relArea = (float) ((ATOFMSPeak)peak).area/totalArea;
-			if(((ATOFMSPeak)peak).relArea <= currPeakParams.minRelArea ||
-					((ATOFMSPeak)peak).area <= currPeakParams.minArea)
-			{
-				peakList.remove(k);
-			}
-			else
-				k++;
+			float relArea = (float) areas[k]/totalArea;
+			if (relArea <= currPeakParams.minRelArea ||
+					areas[k] <= currPeakParams.minArea)
+				continue;
+			heights[kept] = heights[k];
+			areas[kept] = areas[k];
+			centers[kept] = centers[k];
+			relAreas[kept] = relArea;
+			kept++;
 		}
-		
-		// Calculate the relative areas.
-		for (int l = startingListSize; l < peakList.size(); l++)
+		return kept;
+	}
+	
+	/**
+	 * Adds the first count peaks in the buffers to the peak list.
+	 */
+	private void addPeaks(PeakBuffers buffers, int count, boolean positive)
+	{
+		for (int k = 0; k < count; k++)
 		{
-			Peak peak = peakList.get(l);
-			((ATOFMSPeak)peak).relArea = (float)((ATOFMSPeak)peak).area/totalArea;
-			peakList.set(l, peak);
+			int center = buffers.centers[k];
+			double peakLocation = positive ? getPosMZ(center) : getNegMZ(center);
+			peakList.add(new ATOFMSPeak(buffers.heights[k], buffers.areas[k],
+					buffers.relAreas[k], peakLocation));
+		}
+	}
+	
+	private double getRoundedMZ(double rawMZ) {
+		double roundedMZ = Math.round(rawMZ);
+		double error = rawMZ-roundedMZ;
+		if(error <= currPeakParams.maxPeakError || (-1 * error) < currPeakParams.maxPeakError){
+			return roundedMZ;
 		}
-		return true;
+		return -1;
 	}
 
 	/**
@@ -50,9 +50,22 @@
  */
 package edu.carleton.enchilada.ATOFMS;
 
+
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
+ * Fits a calibration to each spectrum, starting from the approximate one in
+ * a CalInfo.  Nothing in a calibrator changes once it's made except its
+ * cache, so one can be shared by all the threads reading spectra;
+ * CalInfo.getAutoCalibrator() gives the one for that calibration.
+ * <p>
+ * What a spectrum gets scored against depends only on the digit rate and
+ * the charge, so it's worked out the first time each pair comes up and
+ * kept: the flight-time window of every m/z at every trial voltage, and the
+ * calibration each voltage leads to.  Calibrating a spectrum is then just
+ * adding up its windows, however the digit rates of the files interleave.
+ * 
  * @author andersbe
- *
  */
 public class AutoCalibrator {
 
@@ -63,40 +76,72 @@ public class AutoCalibrator {
 	private static final int MAX_AMS_SPECTRUM_POINTS = 30000;
 	private static final int FLIGHT_TUBE_LENGTH = 1;
 	
+	private static final int MIN_MASS = 1;
+	private static final int MAX_MASS = 100;
+	private static final int MASSES = MAX_MASS - MIN_MASS + 1;
+	private static final double WINDOW = 0.1;
+	// the trial voltages go from -2% to +2% of the parameter voltage in .01% steps
+	private static final int VOLTAGE_STEPS = 200;
 	
-	private static int posZeroPoint;
-	private static double posVoltage;
-	private static int negZeroPoint;
-	private static double negVoltage;
+	private final double posSlope, posIntercept, negSlope, negIntercept;
+	private final ConcurrentHashMap<Long, Table> tables =
+		new ConcurrentHashMap<Long, Table>();
 	
-	private static float oldDigitRate = -1;
+	/**
+	 * Everything about scoring spectra of one digit rate and charge.  Trial
+	 * voltage v's window for each m/z is at [v * MASSES, (v + 1) * MASSES)
+	 * in the flight time arrays.  The arrays are null if the parameter
+	 * voltage didn't come out positive, and so nothing can be calibrated.
+	 */
+	private static final class Table {
+		final int[] minFlightTimes;
+		final int[] maxFlightTimes;
+		final double[][] calibrations;
+		
+		Table(int[] minFlightTimes, int[] maxFlightTimes, double[][] calibrations) {
+			this.minFlightTimes = minFlightTimes;
+			this.maxFlightTimes = maxFlightTimes;
+			this.calibrations = calibrations;
+		}
+	}
+	
+	/**
+	 * @param calInfo the approximate mass calibration; its slopes and
+	 * intercepts are copied, so later changes to it aren't seen
+	 */
+	public AutoCalibrator(CalInfo calInfo) {
+		posSlope = calInfo.posSlope;
+		posIntercept = calInfo.posIntercept;
+		negSlope = calInfo.negSlope;
+		negIntercept = calInfo.negIntercept;
+	}
 
-	private static double timeTranslateReverse(double mass,
+	private double timeTranslateReverse(double mass,
 											   int spectrumType)
 	{
 		// CalibSlope and CalibIntercept are the A and B values from mass.cal
 		if (spectrumType == POS)
 				if (mass >= 0) {
-					return ((Math.sqrt(Math.abs(mass)) - ATOFMSParticle.currCalInfo.posSlope) / 
-							ATOFMSParticle.currCalInfo.posIntercept);
+					return ((Math.sqrt(Math.abs(mass)) - posSlope) / 
+							posIntercept);
 				}
 				else 
-					return ((-2 * (ATOFMSParticle.currCalInfo.posSlope / 
-							ATOFMSParticle.currCalInfo.posIntercept)) - 
-							((Math.abs(mass) * Math.abs(mass)) - ATOFMSParticle.currCalInfo.posSlope) / 
-							ATOFMSParticle.currCalInfo.posIntercept);
+					return ((-2 * (posSlope / 
+							posIntercept)) - 
+							((Math.abs(mass) * Math.abs(mass)) - posSlope) / 
+							posIntercept);
 
 		else
 				if (mass >= 0) {
 					
-					return ((Math.sqrt(Math.abs(mass)) - ATOFMSParticle.currCalInfo.negSlope) / 
-							ATOFMSParticle.currCalInfo.negIntercept);
+					return ((Math.sqrt(Math.abs(mass)) - negSlope) / 
+							negIntercept);
 				}
 				else {
-					return ((-2 * (ATOFMSParticle.currCalInfo.negSlope / 
-							ATOFMSParticle.currCalInfo.negIntercept)) - 
-							(Math.sqrt(Math.abs(mass)) - ATOFMSParticle.currCalInfo.negSlope) / 
-							ATOFMSParticle.currCalInfo.negIntercept);
+					return ((-2 * (negSlope / 
+							negIntercept)) - 
+							(Math.sqrt(Math.abs(mass)) - negSlope) / 
+							negIntercept);
 				}
 	}
 	
@@ -161,147 +206,106 @@ public class AutoCalibrator {
 	//Contributed by: MS Analyze folks (TSI Inc?), appears to be adapted from
 	//Davio.bas from TASware.
 	///////////////////////////////////////////////////////////////////////////////
-	
-	public static double[] autoCalibrate(float digitRate,
+	public double[] autoCalibrate(float digitRate,
 										 int charge,
 										 int data[])
 			//int& TOF1, double& MZ1,
 			//int& TOF2, double& MZ2)
 	{
-		// Figure out how often we actually need to do this,
-		// It looks like it only needs to be calculated everytime
-		// digit rate changes.
-		// 12/05/04: Removed todo from above comment, Autocal 
-		// seems to work so I think this is correct.  
-		if (digitRate != oldDigitRate)
-			getZeroPointAndVoltage(digitRate);
-		
-		long i, ThisMass;
-		int k;
-		double TempMinFlightTime, TempMaxFlightTime;
-		int MinFlightTime,	MaxFlightTime;
-		int MaxIntegral;
-		double EnergyInJoules;
-		double EnergyInDaltonsPerMSquaredPerSSquared;
-		double VelocityInMetersPerSecond;
-		double AccelerationVoltage;
-		int Integral;
-		double CalculatedAccelerationVoltage;
-		
-		
-		final int MIN_MASS = 1;
-		final int MAX_MASS = 100;
-		final double WINDOW	= 0.1;
+		Table table = getTable(digitRate, charge == POS ? POS : NEG);
+		if (table.calibrations == null)
+			return null;
 		
-		double Voltage = 0;
-		int ZeroPoint = 0;
-		if (charge == POS)
+		int MaxIntegral = 0;
+		int best = -1;
+		int window = 0;
+		for (int v = 0; v < table.calibrations.length; v++)
 		{
-			Voltage = posVoltage;
-			ZeroPoint = posZeroPoint;
-		}
-		else
-		{
-			Voltage = negVoltage;
-			ZeroPoint = negZeroPoint;
+			int Integral = 0;
+			for (int mass = 0; mass < MASSES; mass++, window++)
+			{
+				int MaxFlightTime = table.maxFlightTimes[window];
+				for (int k = table.minFlightTimes[window]; k <= MaxFlightTime; ++k)
+				{
+					if (k > 0)
+						Integral += data[k];
+					else
+						Integral = -10000000;
+				}
+			}
+			// If this integral is the largest we've found so far, it implies
+			// that the voltage we're currently considering produces the best 
+			// fit, so record this.
+			if (Integral > MaxIntegral)
+			{
+				best = v;
+				MaxIntegral = Integral;
+			}
 		}
+		if (best < 0 || table.calibrations[best] == null)
+			return null;
+		return table.calibrations[best].clone();
+	}
+	
+	private Table getTable(float digitRate, int charge)
+	{
+		long key = ((long) Float.floatToIntBits(digitRate) << 1) | charge;
+		return tables.computeIfAbsent(key, k -> makeTable(digitRate, charge));
+	}
+	
+	/**
+	 * Works out the flight time windows and calibrations for one digit rate
+	 * and charge.
+	 */
+	private Table makeTable(float digitRate, int charge)
+	{
+		int ZeroPoint = getZeroPoint(charge);
+		double Voltage = getVoltage(digitRate, charge, ZeroPoint);
+		if (!(Voltage > 0))
+			return new Table(null, null, null);
 		
-		//System.out.println("Voltage: " + Voltage);
-		//System.out.println("ZeroPoint: " + ZeroPoint);
-		//System.out.println(ATOFMSParticle.currCalInfo.posSlope);
-		//System.out.println(ATOFMSParticle.currCalInfo.negSlope);
+		int voltages = 2 * VOLTAGE_STEPS + 1;
+		int[] minFlightTimes = new int[voltages * MASSES];
+		int[] maxFlightTimes = new int[voltages * MASSES];
+		double[][] calibrations = new double[voltages][];
+		double EnergyInJoules;
+		double EnergyInDaltonsPerMSquaredPerSSquared;
+		double VelocityInMetersPerSecond;
+		double TempMinFlightTime, TempMaxFlightTime;
+		int window = 0;
 		
-		if (Voltage > 0)
+		for (int i = -VOLTAGE_STEPS; i <= VOLTAGE_STEPS; ++i)
 		{
-			MaxIntegral = 0;
-			CalculatedAccelerationVoltage = 0;
-
-			////////////////////////////////////////////////////////////////////////
-			// 1. Search within plus or minus 2% of the voltage for the best fit.
-			////////////////////////////////////////////////////////////////////////
-			for (i = -200;i <= 200;++i)
+			/////////////////////////////////////////////////////////////////////
+			// 1a. Determine the energy that would be produced by this voltage
+			/////////////////////////////////////////////////////////////////////
+			double AccelerationVoltage = Voltage * (1.0 + ((double)i / 10000));
+			
+			EnergyInJoules = 1.602E-19 * AccelerationVoltage;
+			EnergyInDaltonsPerMSquaredPerSSquared = EnergyInJoules 
+			* 6.02E+23 * 1000;
+			
+			/////////////////////////////////////////////////////////////////
+			// 1c. Calculate a range of TOF values that correspond to each 
+			// mass and the current voltage value.
+			/////////////////////////////////////////////////////////////////
+			for (long ThisMass = MIN_MASS; ThisMass <= MAX_MASS; ++ThisMass, ++window)
 			{
-				Integral = 0;
-				
-				/////////////////////////////////////////////////////////////////////
-				// 1a. Determine the energy that would be produced by this voltage
-				/////////////////////////////////////////////////////////////////////
-				AccelerationVoltage = Voltage * (1.0 + ((double)i / 10000));
-				
-				EnergyInJoules = 1.602E-19 * AccelerationVoltage;
-				EnergyInDaltonsPerMSquaredPerSSquared = EnergyInJoules 
-				* 6.02E+23 * 1000;
-				
-				/////////////////////////////////////////////////////////////////////
-				// 1b. Find the integral mass value that has the biggest peak in the
-				// value described by this voltage value.
-				/////////////////////////////////////////////////////////////////////
-				for (ThisMass = MIN_MASS;ThisMass <= MAX_MASS;++ThisMass)
-				{
-					/////////////////////////////////////////////////////////////////
-					// 1c. Calculate a range of TOF values that correspond to this 
-					// mass and the current voltage value.
-					/////////////////////////////////////////////////////////////////
-					VelocityInMetersPerSecond = 
-						Math.sqrt(2 * EnergyInDaltonsPerMSquaredPerSSquared / 
-								((double)ThisMass - WINDOW));
-					TempMinFlightTime = (FLIGHT_TUBE_LENGTH /	
-							VelocityInMetersPerSecond) * 1000000 * 500;
-					VelocityInMetersPerSecond = 
-						Math.sqrt(2 * EnergyInDaltonsPerMSquaredPerSSquared / 
-								((double)ThisMass + WINDOW));
-					TempMaxFlightTime = (FLIGHT_TUBE_LENGTH /	
-							VelocityInMetersPerSecond) * 1000000 * 500;
-					MinFlightTime = (int)((TempMinFlightTime + 0.5) + ZeroPoint);
-					MaxFlightTime = (int)(TempMaxFlightTime + 0.5) + ZeroPoint;
-					//if(MaxIntegral == 0)
-					//{
-						//System.out.println("MinFlightTime value: " + 
-								//data[MinFlightTime]);
-						//System.out.println("MaxFlightTime value: " + 
-								//data[MaxFlightTime]);
-						//System.out.println("Charge: " + charge);
-					//}
-					
-					/////////////////////////////////////////////////////////////////
-					// 1d. Find the size of the peak in this range.
-					/////////////////////////////////////////////////////////////////
-					for (k = MinFlightTime;k <= MaxFlightTime;++k)
-					{
-						//System.out.println("k: " + k);
-						if (k > 0)
-						{
-							//System.out.println("In the loop");
-							//System.out.println(data[k]);
-							Integral += data[k];
-						}
-						else
-							Integral = -10000000;
-					}
-				}
-				/////////////////////////////////////////////////////////////////////
-				// 1e. If this integral is the largest we've found so far, it implies
-				// that the voltage we're currently considering produces the best 
-				// fit, so record this.
-				/////////////////////////////////////////////////////////////////////
-				//System.out.println("Integral: " + Integral);
-				if (Integral > MaxIntegral)
-				{
-					CalculatedAccelerationVoltage = AccelerationVoltage;
-					MaxIntegral = Integral;
-				}
+				VelocityInMetersPerSecond = 
+					Math.sqrt(2 * EnergyInDaltonsPerMSquaredPerSSquared / 
+							((double)ThisMass - WINDOW));
+				TempMinFlightTime = (FLIGHT_TUBE_LENGTH /	
+						VelocityInMetersPerSecond) * 1000000 * 500;
+				VelocityInMetersPerSecond = 
+					Math.sqrt(2 * EnergyInDaltonsPerMSquaredPerSSquared / 
+							((double)ThisMass + WINDOW));
+				TempMaxFlightTime = (FLIGHT_TUBE_LENGTH /	
+						VelocityInMetersPerSecond) * 1000000 * 500;
+				minFlightTimes[window] = (int)((TempMinFlightTime + 0.5) + ZeroPoint);
+				maxFlightTimes[window] = (int)(TempMaxFlightTime + 0.5) + ZeroPoint;
 			}
 			
-			////////////////////////////////////////////////////////////////////////
-			// 2. Now we have the voltage that produces the best fit.  Use this
-			// voltage to calculate the energy produced by this voltage.
-			////////////////////////////////////////////////////////////////////////
-			//System.out.println("Before loop");
-			//System.out.println("Voltage: " + Voltage);
-			//System.out.println("Calculated Acceleration Voltage: " + CalculatedAccelerationVoltage);
-			//System.out.println("ZeroPoint: " + ZeroPoint);
-
-			if ((CalculatedAccelerationVoltage > 0) &&
+			if ((AccelerationVoltage > 0) &&
 					(ZeroPoint >= 0)) 
 			{
 				/////////////////////////////////////////////////////////////////////
@@ -309,7 +313,7 @@ public class AutoCalibrator {
 				// These value will be returned to the caller, and will be used to 
 				// create a unique calibration function for this spectrum.
 				/////////////////////////////////////////////////////////////////////
-				EnergyInJoules = 1.602E-19 * CalculatedAccelerationVoltage;
+				EnergyInJoules = 1.602E-19 * AccelerationVoltage;
 				EnergyInDaltonsPerMSquaredPerSSquared = EnergyInJoules * 6.02E+23 
 				* 1000;
 				
@@ -324,15 +328,10 @@ public class AutoCalibrator {
 				int TOF2 = (int)((FLIGHT_TUBE_LENGTH / VelocityInMetersPerSecond) 
 						* 1000000 * 500) + ZeroPoint;
 				float MZ2 = 100;
-				//System.out.println("About to cal from two points");
-				return calFromTwoPoints(TOF1, MZ1, TOF2, MZ2);
+				calibrations[i + VOLTAGE_STEPS] = calFromTwoPoints(TOF1, MZ1, TOF2, MZ2);
 			}
-			else
-				return null;
 		}
-		else
-			return null;
-		
+		return new Table(minFlightTimes, maxFlightTimes, calibrations);
 	}
 	
 	
@@ -367,56 +366,24 @@ public class AutoCalibrator {
 	//
 	// Contributed by TSI inc, again seems to be from Tasware
 	///////////////////////////////////////////////////////////////////////////////
-	private static boolean getZeroPointAndVoltage(float digitRate)
+	private int getZeroPoint(int charge)
 	{
-		double TimeOfFlight, Time, VelocityInMetersPerSecond;
-		double EnergyInDaltonsPerMSquaredPerSSquared, Joules;
-		
-		
-		final int PARTICLE_MASS = 100;
-		
-		
-		// calculate the zero points
 		// The zero value is calculated by finding the channel number of a peak
 		// at mass 0.0000000001 or so. You'd get a divide by zero error for 
 		// obvious reasons if you tried to find the mass at zero by the 
 		// following procedure:
-		posZeroPoint = (int) MZ2TOF(1E-44, POS);
-		negZeroPoint = (int) MZ2TOF(1E-44, NEG);
-		//cout << "debug: negZeroPoint = " << negZeroPoint << endl;
-		
-		
-		///////////////////////////////////////////////////////////////////////
-		// calculate the positive voltage
-		///////////////////////////////////////////////////////////////////////
-		
-		// Calculate the transit time of a positive ion.
-		TimeOfFlight = MZ2TOF(PARTICLE_MASS, POS) - posZeroPoint; 
-		// now it's in TOF units 
-		
-		// Put it in seconds
-		Time = TimeOfFlight / digitRate;
-		
-		// Now convert it to velocity
-		VelocityInMetersPerSecond = FLIGHT_TUBE_LENGTH / Time;
-		
-		// Put it in terms of energy in AMU * (M/SH)^2
-		EnergyInDaltonsPerMSquaredPerSSquared = 0.5 * PARTICLE_MASS * 
-		Math.pow(VelocityInMetersPerSecond, 2);
-		
-		// Put in terms of Joules
-		Joules = EnergyInDaltonsPerMSquaredPerSSquared / (6.02E+23 * 1000);
-		
-		// Put in terms of ev
-		posVoltage = Joules / 1.602E-19;
-		
+		return MZ2TOF(1E-44, charge);
+	}
+	
+	private double getVoltage(float digitRate, int charge, int zeroPoint)
+	{
+		double TimeOfFlight, Time, VelocityInMetersPerSecond;
+		double EnergyInDaltonsPerMSquaredPerSSquared, Joules;
 		
-		///////////////////////////////////////////////////////////////////////
-		// calculate the negative voltage
-		///////////////////////////////////////////////////////////////////////
+		final int PARTICLE_MASS = 100;
 		
-		// Calculate the transit time of a positive ion.
-		TimeOfFlight = MZ2TOF(PARTICLE_MASS, NEG) - negZeroPoint; 
+		// Calculate the transit time of an ion.
+		TimeOfFlight = MZ2TOF(PARTICLE_MASS, charge) - zeroPoint; 
 		// now it's in TOF units 
 		
 		// Put it in seconds
@@ -433,29 +400,26 @@ public class AutoCalibrator {
 		Joules = EnergyInDaltonsPerMSquaredPerSSquared / (6.02E+23 * 1000);
 		
 		// Put in terms of ev
-		negVoltage = Joules / 1.602E-19;
-		
-		
-		return true;
+		return Joules / 1.602E-19;
 	}
 
 	//from mass calibration formula
 	//note:  In TASWare the results of this calculation were rounded, in 
 	//MS-Analyze they are simply truncated. -Ben
-	private static int MZ2TOF(double mass, int charge)
+	private int MZ2TOF(double mass, int charge)
 	{
 		if (charge == POS)
 		{
 			return (int) (((Math.sqrt(Math.abs(mass)) - 
-					ATOFMSParticle.currCalInfo.posIntercept) / 
-					ATOFMSParticle.currCalInfo.posSlope) 
+					posIntercept) / 
+					posSlope) 
 					/*+ 0.5*/);
 		}
 		else if (charge == NEG)
 		{
 			return (int)(((Math.sqrt(Math.abs(mass)) - 
-					ATOFMSParticle.currCalInfo.negIntercept) / 
-					ATOFMSParticle.currCalInfo.negSlope) 
+					negIntercept) / 
+					negSlope) 
 					/*+ 0.5*/);
 		}
 		else
@@ -52,6 +52,7 @@ public class CalInfo {
 	public double negSlope, posSlope, negIntercept, posIntercept;
 	public float c1,c2,c3,c4;
 	public boolean sizecal, autocal;
+	private AutoCalibrator autoCalibrator;
 	
 	public CalInfo()
 	{
@@ -191,4 +192,14 @@ public class CalInfo {
 	public double getPosSlope() {
 		return posSlope;
 	}
+	/**
+	 * @return the calibrator that fits each spectrum starting from this
+	 * calibration, made the first time it's asked for.  It's safe to share
+	 * between threads.
+	 */
+	public synchronized AutoCalibrator getAutoCalibrator() {
+		if (autoCalibrator == null)
+			autoCalibrator = new AutoCalibrator(this);
+		return autoCalibrator;
+	}
 }
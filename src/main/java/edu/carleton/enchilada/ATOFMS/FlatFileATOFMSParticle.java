@@ -254,10 +254,13 @@ public class FlatFileATOFMSParticle{
 		laserPower + ", " + size + ", " + scatDelay + ", '" + filename + "'";
 	}
 	
-	public ArrayList<String> particleInfoSparseString() {
-		ArrayList<String> peaks = new ArrayList<String>();
+	/**
+	 * @return the peaks, with the ones that round to the same m/z added
+	 * together, keyed by that m/z
+	 */
+	public Map<Integer, ATOFMSPeak> getSparsePeakMap() {
 		getPeakList();
-		Map<Integer, Peak> map = new LinkedHashMap<Integer, Peak>();
+		Map<Integer, ATOFMSPeak> map = new LinkedHashMap<Integer, ATOFMSPeak>();
 		
 
 		for (Peak p : peakList) {
@@ -272,7 +275,7 @@ public class FlatFileATOFMSParticle{
 			//new Peak(int height, int area, double masstocharge)
 			if (map.containsKey(mzInt))
 			{
-				ATOFMSPeak soFar = (ATOFMSPeak)map.get(mzInt);
+				ATOFMSPeak soFar = map.get(mzInt);
 				map.put(mzInt, 
 						new ATOFMSPeak(soFar.height + ((ATOFMSPeak)p).height,
 								soFar.area + ((ATOFMSPeak)p).area,
@@ -282,10 +285,15 @@ public class FlatFileATOFMSParticle{
 				map.put(mzInt, new ATOFMSPeak(((ATOFMSPeak)p).height, ((ATOFMSPeak)p).area, ((ATOFMSPeak)p).relArea, mzInt));
 			}
 		}
-		for(Peak peak : map.values()){
-			peaks.add(((ATOFMSPeak)peak).massToCharge + ", "
-					+ ((ATOFMSPeak)peak).area + ", " + ((ATOFMSPeak)peak).relArea
-					+ ", " + ((ATOFMSPeak)peak).height);
+		return map;
+	}
+	
+	public ArrayList<String> particleInfoSparseString() {
+		ArrayList<String> peaks = new ArrayList<String>();
+		for(ATOFMSPeak peak : getSparsePeakMap().values()){
+			peaks.add(peak.massToCharge + ", "
+					+ peak.area + ", " + peak.relArea
+					+ ", " + peak.height);
 		}
 		
 		/*for(Peak peak : peakList){
@@ -48,34 +48,20 @@ package edu.carleton.enchilada.ATOFMS;
 import java.io.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.zip.*;
-import java.nio.*;
 
 /**
+ * Reads a spectrum file into a particle.  The reading itself is done by
+ * this thread's SpectrumReader; the particle gets its own copy of the
+ * spectra, since the reader reuses its arrays.
+ * 
  * @author ritza
- * TODO:  Needs a lot of work to reformat the data.  See the todo
- * below - the new data is larger than the old one.  Probably need 
- * to read the first 4 bytes, then pass it on to
- * the respective method.
  */
 public class ReadSpec {
-	private static final DateFormat dFormat = 
-		new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	// yay, consistent date formatting.
-	
-	private  byte[] byteArray;
-	private ByteBuffer byteBuff;
 	private ATOFMSParticle particle;
 	
-	private  final int MAX_PEAKS = 16; 
-	
-	private int[] posdata;
-	private int[] negdata;
-	private int version;
-	private short iontype;
-
-	
 	/**
 	 * Constructor.
 	 * Checks to see if the file is zipped(.amz) or unzipped(.ams) and
@@ -83,345 +69,18 @@ public class ReadSpec {
 	 * @param file - filename of particle.
 	 */
 	public ReadSpec(String file, Date d)  throws IOException, ZipException {
-		int index = file.length() - 4;
-		String fileType = file.substring(index);
-		if (fileType.equals(".amz"))
-			readZipped(file, d);
-		else if (fileType.equals(".ams"))
-			readUnzipped(file, d);
-	}
-	
-	/**
-	 * Takes a zipped file and reads it without having to unzip.
-	 * @param filename - file name of particle.
-	 * @return - the particle created from the file information. 
-	 */
-	public void readZipped(String filename, Date d) throws IOException, ZipException {		
-		// Reads the file using ZipInputStream.
-		FileInputStream in = new FileInputStream(filename);
-		ZipInputStream zipInput = 
-			new ZipInputStream(new BufferedInputStream(in));
-		ZipEntry ze = zipInput.getNextEntry();
-		
-		int size = (int) ze.getSize();
-//		Wraps the byte array in the byte buffer.
-		byteArray = new byte[size];
-		byteBuff = ByteBuffer.wrap(byteArray);
-		byteBuff.order(ByteOrder.LITTLE_ENDIAN); // Reverses byte order.
-
-		
-		DataInputStream dataStream = new DataInputStream(zipInput);
-		
-		version = dataStream.readByte();
-		if (version < 0)
-			version = version + 256;
-		int topHalf = dataStream.readByte();
-		if (topHalf < 0)
-			topHalf = topHalf + 256;
-		version = version + topHalf * 256;
-		//System.out.println("Version = " + version);
-
-
-		//TODO:  Switch when dealing with later files.
-		dataStream.readFully(byteArray,0,size-2);
-		
-		
-		// Close all streams
-		in.close();
-		zipInput.close();
-		dataStream.close();
-		
-		//read file:
-		readFromFile(filename, d);
-	}
-	
-	/**
-	 * Reads an unzipped file.
-	 * @param filename - filename of particle.
-	 * @return - the particle created from the file information.
-	 */
-	public void readUnzipped(String filename, Date d) throws IOException {
-		
-		
-		File f = new File(filename);
-		int size = (int) f.length();
-//		Wraps the byte array in the byte buffer.
-		byteArray = new byte[size];
-		byteBuff = ByteBuffer.wrap(byteArray);
-		byteBuff.order(ByteOrder.LITTLE_ENDIAN); // Reverses byte order.
-		
-		
-		FileInputStream in = new FileInputStream(filename);
-		DataInputStream dataStream = new DataInputStream(in);
-		version = dataStream.readByte();
-		if (version < 0)
-			version = version + 256;
-		int topHalf = dataStream.readByte();
-		if (topHalf < 0)
-			topHalf = topHalf + 256;
-		version = version + topHalf * 256;
-
-//		 Using the readFully method gets an EOFException.
-		dataStream.read(byteArray,0,size-2);
-		
-		
-		//Close all streams.
-		in.close();
-		dataStream.close();
-		
-		//read file:
-		readFromFile(filename, d);
-	}
-	
-	public void readFromFile(String name, Date d) {
-		byteBuff.clear(); // Clears the byte array.
-		// Read information from the byte array.
-		//version = byteBuff.getShort();
-		switch(version) {
-			case 201: case 202: {
-				readFromOldFile(name, d);
-				break;
-			}
-			case 770: case 768: {
-				readFromNewFile(name, d);
-				break;
-			}
-			default: readFromNewFile(name, d);
-		}
-	}
-	/**
-	 * Reads the information from the file.  Variables that are not needed
-	 * are commented out; uncomment to use them.
-	 *@return - the particle created from the file information.
-	 */
-	public void readFromOldFile(String name, Date d) {
-		//Instantiate arrays that will contain the data.
-
-		// Read information from the byte array.
-		int numpoints = 
-			byteBuff.getInt();
-		assert (numpoints == 30000) : 
-			"Version 201 and 202 ATOFMS files should have 30000 spectrum points";
-		
-		posdata = new int[numpoints];
-		negdata = new int[numpoints];
-		//int counter = 
-			byteBuff.getInt();
-		int scatdelay = 
-			byteBuff.getInt();
-		//float speed = 
-			byteBuff.getFloat();
-		float particlesize = byteBuff.getFloat();
-		//String serialnum = 
-			getByteString(byteBuff,20);
-		//int notused = 
-			byteBuff.getInt();
-		iontype = 
-			byteBuff.getShort();
-		//long timestamp = 
-			byteBuff.getInt();
-		//String timetext = 
-			getByteString(byteBuff,20);
-		float laserpow = byteBuff.getFloat();
-		//int posarea = 
-		byteBuff.getInt();
-		//int posbase = 
-		byteBuff.getInt();
-		//short calibrate = 
-		byteBuff.getShort();
-		//double posslope = 
-		byteBuff.getDouble();
-		//double posintercept = 
-		byteBuff.getDouble();
-		skipBytes(byteBuff, 8*2*MAX_PEAKS);
-		//double negslope = 
-		byteBuff.getDouble();
-		//double negintercept = 
-		byteBuff.getDouble();
-		skipBytes(byteBuff, 8*2*MAX_PEAKS);	
-		//short databits = 
-		byteBuff.getShort();
-		float digitrate = byteBuff.getFloat();
-		//int negarea = 
-		byteBuff.getInt();
-		//int negbase = 
-		byteBuff.getInt();
-		//String reserved = 
-		getByteString(byteBuff,248);
-		// Reads the data into the int arrays.
-		// Version 201 uses chars, version 202 uses unsigned shorts.
-		short shrt = 0;
-		if (version == 201) {
-			for (int i=0; i < numpoints; i++)
-			{
-				int temp = byteBuff.get();
-				if (temp < 0)
-					posdata[i] = temp + 256;
-				else	
-					posdata[i] = temp;
-			}
-			for (int i=0; i < numpoints; i++) 
-			{
-				int temp = byteBuff.get();
-				if (temp < 0)
-					negdata[i] = temp + 256;
-				else
-					negdata[i] = temp;
-			}
-		}
-		else { 
-			for (int i=0; i < numpoints; i++) {
-				posdata[i] = byteBuff.getChar();
-			}
-			for (int i=0; i < numpoints; i++) {
-				negdata[i] = byteBuff.getChar();
-			}
-		}
-		// Create the ATOFMS particle.
-
-		particle = createParticle(name, d, laserpow, 
-				digitrate, scatdelay, posdata, negdata);
-
-	}
-	
-	/**
-	 * Reads the information from the file.  Variables that are not needed
-	 * are commented out; uncomment to use them.
-	 *@return - the particle created from the file information.
-	 */
-	public void readFromNewFile(String name, Date d) {
-		//Instantiate arrays that will contain the data.
-		
-		
-		// Read information from the byte array.
-		int numPoints = 
-			byteBuff.getInt();
-		posdata = new int[numPoints];
-		negdata = new int[numPoints];
-		//int counter = 
-			byteBuff.getInt();
-		int scatdelay = 
-			byteBuff.getInt();
-		//float speed = 
-			byteBuff.getFloat();
-		//float particlesize = 
-			byteBuff.getFloat();
-		//String serialnum = 
-			getByteString(byteBuff,20);
-		//TODO:  Make sure reading 
-			// particles with only positive
-			// or negative spectra works
-		iontype = byteBuff.getShort();
-		//long timestamp = 
-			byteBuff.getInt();
-		//This is the other part of timestamp.  Either they 
-		//reversed the byte order but not the bit order for this 
-		//value, or, what I think is more likely, they used a 32-bit
-		// time value in the first 4 bytes and then didn't use the
-		// next 4.
-		float laserpow = 
-			byteBuff.getFloat();
-		//int posarea = 
-			byteBuff.getInt();
-		//int posbase = 
-			byteBuff.getInt();
-		//int negarea = 
-			byteBuff.getInt();
-		//int negbase = 
-			byteBuff.getInt();
-		//boolean calibrate = 
-			byteBuff.getInt();
-		//double posslope = 
-			byteBuff.getDouble();
-		//double posintercept = 
-			byteBuff.getDouble();
-		//PosCalibData below:
-			skipBytes(byteBuff, 256);
-		//double negslope = 
-			byteBuff.getDouble();
-		//double negintercept = 
-			byteBuff.getDouble();
-		//NegCalibData below
-			skipBytes(byteBuff, 256);	
-		//short mode = 
-			byteBuff.getShort();
-		float digitrate = 
-			byteBuff.getFloat();
-		//String reserved = 
-			getByteString(byteBuff,64);
-		//Short inletType = 
-			byteBuff.getShort();
-		//boolean bUseClassifier =
-			byteBuff.getInt();
-		//int DMA = 
-			byteBuff.getInt();
-		//int particleSize =
-			byteBuff.getInt();
-		//int sheathFlow = 
-			byteBuff.getInt();
-		//int sampleFlow = 
-			byteBuff.getInt();
-		//boolean bRunSettings =
-			byteBuff.getInt();
-		//int intervalLength =
-			byteBuff.getInt();
-		//int numIntervals = 
-			byteBuff.getInt();
-		//short incrementMode =
-			byteBuff.getShort();
-		//int endParticleSize =
-			byteBuff.getInt();
-		//unkown bytes below:
-			byteBuff.getShort();
-			//skipBytes(byteBuff, 6);
-		// Reads the data into the int arrays.
-		// EDR chars, non-EDR uses unsigned shorts.
-		if (version == 768) {
-			for (int i=0; i < numPoints; i++)
-			{
-				int temp = byteBuff.get();
-				if (temp < 0)
-					posdata[i] = temp + 256;
-				else	
-					posdata[i] = temp;
-			}
-			for (int i=0; i < numPoints; i++) 
-			{
-				int temp = byteBuff.get();
-				if (temp < 0)
-					negdata[i] = temp + 256;
-				else
-					negdata[i] = temp;
-			}
-		}
-		else { 
-			for (int i=0; i < numPoints; i++) {
-				posdata[i] = byteBuff.getChar();
-				//System.out.println("PosData "+i+": "+posdata[i]);
-			}
-			for (int i=0; i < numPoints; i++) {
-				negdata[i] = byteBuff.getChar();
-			}
+		SpectrumReader reader = SpectrumReader.forThread();
+		if (reader.read(file)) {
+			int[] posdata = reader.getPosSpectrum();
+			int[] negdata = reader.getNegSpectrum();
+			particle = createParticle(file, d, reader.getLaserPower(),
+					reader.getDigitRate(), reader.getScatDelay(),
+					Arrays.copyOf(posdata, posdata.length),
+					Arrays.copyOf(negdata, negdata.length));
 		}
-		// Create the ATOFMS particle.
-		//String timetext = (dFormat.format(new Date(timestamp*1000)));
-		//System.out.println(timestamp);
-		//System.out.println(new Date().getTime());
-		//System.out.println(timetext);
-		//System.out.println(name);
-		//System.out.println("Laser Power: " +laserpow);
-		//System.out.println(particlesize);
-		//System.out.println("digit rate: " + digitrate);
-		//System.out.println(scatdelay);
-		//for (int i = 5285; i < 5295; i++)
-		//	System.out.println(posdata[i]);
-		
-		particle = createParticle(name, d, laserpow, 
-				digitrate, scatdelay, posdata, negdata);
-
 	}
 	
-	// This code was taken out of the above methods to be overridden in the
+	// This code was taken out of the constructor to be overridden in the
 	// ReadExpSpec class for experimental purposes.
 	public ATOFMSParticle createParticle(String name,
 			Date time,
@@ -441,21 +100,6 @@ public class ReadSpec {
 	}
 	
 	
-	// Reads a String from the byte array.
-	public String getByteString (ByteBuffer byteBuffer, int num) {
-		byte[] b = new byte[num];
-		byteBuffer.get(b,0,num);
-		StringBuffer s = new StringBuffer(num);
-		for(int i = 0; i < num; i++)
-			s.append((char)b[i]);
-		return s.toString();
-	}
-	
-	// Skips num bytes - designed to skip the calibration data.
-	public void skipBytes(ByteBuffer byteBuffer, int num) {
-		byteBuffer.position(num + byteBuffer.position());
-	}
-	
 	// Returns the particle.
 	public ATOFMSParticle getParticle() {
 		return particle;
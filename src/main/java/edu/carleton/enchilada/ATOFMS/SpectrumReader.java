@@ -0,0 +1,294 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's SpectrumReader class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.ATOFMS;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads ATOFMS spectrum files (.ams, or .amz, which is an .ams in a zip
+ * file) one after another without making garbage for each one.  The file,
+ * the inflated spectrum and the decoded positive and negative spectra all
+ * go into buffers that are kept from one file to the next, and the
+ * Inflater is reused.  The spectra returned are those buffers, so they're
+ * only good until the next read; ReadSpec copies them for particles that
+ * stick around.
+ * <p>
+ * Spectrum files bigger than MAP_BYTES are memory-mapped.  The usual
+ * 30-60k spectra are read into the buffer instead: a mapping is only
+ * released when its buffer is garbage collected, and with no garbage being
+ * made a long import would pile up thousands of them.
+ * <p>
+ * A reader can only be used by one thread at a time; forThread() gives
+ * each thread its own.
+ */
+public class SpectrumReader {
+	public static final int MAP_BYTES = 1 << 20;
+
+	private static final int MAX_PEAKS = 16;
+	private static final int LOCAL_FILE_HEADER = 0x04034b50;
+
+	private static final ThreadLocal<SpectrumReader> readers =
+		ThreadLocal.withInitial(SpectrumReader::new);
+
+	private final Inflater inflater = new Inflater(true);
+	private byte[] fileBytes = new byte[0];
+	private byte[] spectrumBytes = new byte[0];
+	private int[] posSpectrum = new int[0];
+	private int[] negSpectrum = new int[0];
+
+	private int version;
+	private short ionType;
+	private int scatDelay;
+	private float laserPower;
+	private float digitRate;
+
+	/**
+	 * @return this thread's reader
+	 */
+	public static SpectrumReader forThread() {
+		return readers.get();
+	}
+
+	/**
+	 * Reads a spectrum file.  Files that aren't .ams or .amz are ignored.
+	 * 
+	 * @param fileName the name of an .ams or .amz file
+	 * @return whether the file was read
+	 */
+	public boolean read(String fileName) throws IOException {
+		boolean zipped = fileName.endsWith(".amz");
+		if (!zipped && !fileName.endsWith(".ams"))
+			return false;
+		ByteBuffer file;
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAP_BYTES) {
+				file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				if (fileBytes.length < size)
+					fileBytes = new byte[(int) size];
+				file = ByteBuffer.wrap(fileBytes, 0, (int) size);
+				while (file.hasRemaining() && channel.read(file) >= 0)
+					;
+				file.flip();
+			}
+		} catch (NoSuchFileException e) {
+			// what FileInputStream throws, which the importers look for
+			throw new FileNotFoundException(fileName + " (No such file or directory)");
+		}
+		file.order(ByteOrder.LITTLE_ENDIAN);
+		if (zipped)
+			file = unzip(fileName, file);
+		decode(file);
+		return true;
+	}
+
+	/**
+	 * Inflates the first entry of a zip file.
+	 */
+	private ByteBuffer unzip(String fileName, ByteBuffer zip) throws IOException {
+		if (zip.remaining() < 30 || zip.getInt(0) != LOCAL_FILE_HEADER)
+			throw new ZipException(fileName + " is not a zip file.");
+		int flags = zip.getShort(6);
+		int method = zip.getShort(8);
+		int size = zip.getInt(22);
+		int start = 30 + (zip.getShort(26) & 0xffff) + (zip.getShort(28) & 0xffff);
+		if ((flags & 1) != 0)
+			throw new ZipException(fileName + " is encrypted.");
+		if (method == 0) {
+			zip.position(start);
+			return zip.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (method != 8)
+			throw new ZipException(fileName + " uses unsupported compression method " + method);
+
+		// the size is 0 if it comes after the data instead, so be ready to grow
+		if (spectrumBytes.length < size)
+			spectrumBytes = new byte[size];
+		inflater.reset();
+		zip.position(start);
+		inflater.setInput(zip);
+		int length = 0;
+		try {
+			while (!inflater.finished()) {
+				if (length == spectrumBytes.length) {
+					byte[] bigger = new byte[Math.max(2 * length, 1 << 16)];
+					System.arraycopy(spectrumBytes, 0, bigger, 0, length);
+					spectrumBytes = bigger;
+				}
+				int n = inflater.inflate(spectrumBytes, length, spectrumBytes.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new ZipException(fileName + " is truncated.");
+				length += n;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(fileName + ": " + e.getMessage());
+		}
+		return ByteBuffer.wrap(spectrumBytes, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void decode(ByteBuffer buf) {
+		version = buf.getShort() & 0xffff;
+		switch (version) {
+			case 201: case 202:
+				decodeOld(buf);
+				break;
+			default:
+				decodeNew(buf);
+		}
+	}
+
+	/**
+	 * Versions 201 and 202.  Only the fields the particles need are kept;
+	 * the rest are skipped.
+	 */
+	private void decodeOld(ByteBuffer buf) {
+		int numPoints = buf.getInt();
+		assert (numPoints == 30000) : 
+			"Version 201 and 202 ATOFMS files should have 30000 spectrum points";
+		skip(buf, 4);				// counter
+		scatDelay = buf.getInt();
+		skip(buf, 4 + 4 + 20 + 4);	// speed, particle size, serial number, not used
+		ionType = buf.getShort();
+		skip(buf, 4 + 20);			// timestamp, time text
+		laserPower = buf.getFloat();
+		skip(buf, 4 + 4 + 2);		// pos area and base, calibrate
+		skip(buf, 8 + 8 + 8 * 2 * MAX_PEAKS);	// pos slope, intercept, calibration data
+		skip(buf, 8 + 8 + 8 * 2 * MAX_PEAKS);	// neg slope, intercept, calibration data
+		skip(buf, 2);				// data bits
+		digitRate = buf.getFloat();
+		skip(buf, 4 + 4 + 248);		// neg area and base, reserved
+		// Version 201 uses chars, version 202 uses unsigned shorts.
+		readSpectra(buf, numPoints, version == 201);
+	}
+
+	/**
+	 * Versions 768 and 770, and anything newer.
+	 */
+	private void decodeNew(ByteBuffer buf) {
+		int numPoints = buf.getInt();
+		skip(buf, 4);				// counter
+		scatDelay = buf.getInt();
+		skip(buf, 4 + 4 + 20);		// speed, particle size, serial number
+		ionType = buf.getShort();
+		// a 32-bit timestamp; the 4 bytes after it that ought to be the
+		// rest of it don't seem to be used
+		skip(buf, 4);
+		laserPower = buf.getFloat();
+		skip(buf, 4 * 4 + 4);		// pos and neg area and base, calibrate
+		skip(buf, 8 + 8 + 256);		// pos slope, intercept, calibration data
+		skip(buf, 8 + 8 + 256);		// neg slope, intercept, calibration data
+		skip(buf, 2);				// mode
+		digitRate = buf.getFloat();
+		skip(buf, 64 + 2);			// reserved, inlet type
+		skip(buf, 8 * 4 + 2 + 4);	// classifier and run settings
+		skip(buf, 2);				// unknown
+		// EDR uses chars, non-EDR uses unsigned shorts.
+		readSpectra(buf, numPoints, version == 768);
+	}
+
+	private void readSpectra(ByteBuffer buf, int numPoints, boolean bytes) {
+		// particles take the spectrum's length as the number of bins, so
+		// the arrays have to be exactly that long
+		if (posSpectrum.length != numPoints) {
+			posSpectrum = new int[numPoints];
+			negSpectrum = new int[numPoints];
+		}
+		if (bytes) {
+			for (int i = 0; i < numPoints; i++)
+				posSpectrum[i] = buf.get() & 0xff;
+			for (int i = 0; i < numPoints; i++)
+				negSpectrum[i] = buf.get() & 0xff;
+		} else {
+			for (int i = 0; i < numPoints; i++)
+				posSpectrum[i] = buf.getChar();
+			for (int i = 0; i < numPoints; i++)
+				negSpectrum[i] = buf.getChar();
+		}
+	}
+
+	private static void skip(ByteBuffer buf, int bytes) {
+		buf.position(buf.position() + bytes);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public short getIonType() {
+		return ionType;
+	}
+
+	public int getScatDelay() {
+		return scatDelay;
+	}
+
+	public float getLaserPower() {
+		return laserPower;
+	}
+
+	public float getDigitRate() {
+		return digitRate;
+	}
+
+	/**
+	 * @return the positive spectrum, which is overwritten by the next read
+	 */
+	public int[] getPosSpectrum() {
+		return posSpectrum;
+	}
+
+	/**
+	 * @return the negative spectrum, which is overwritten by the next read
+	 */
+	public int[] getNegSpectrum() {
+		return negSpectrum;
+	}
+}
@@ -41,6 +41,7 @@ package edu.carleton.enchilada.analysis;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author andersbe
@@ -58,8 +59,9 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	protected SortedMap<Integer, Float> peaks;
 
 	private Normalizable normalizable;
-	public static long distTime = 0;
-	public static long dist2Time = 0;
+	// the distance methods run on several threads at once when clustering
+	public static final AtomicLong distTime = new AtomicLong();
+	public static final AtomicLong dist2Time = new AtomicLong();
 	private boolean isTransformed;
 
 	/**
@@ -68,7 +70,7 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 */
 	public BinnedPeakList(Normalizable norm)
 	{
-		peaks = new TreeMap<Integer, Float>();
+		peaks = newPeakMap();
 		normalizable = norm;
 	}
 
@@ -78,7 +80,7 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 */
 	public BinnedPeakList(Normalizable norm, Map<Integer,Float> m)
 	{
-		peaks = new TreeMap<Integer, Float>(m);
+		peaks = newPeakMap(m);
 		normalizable = norm;
 	}
 
@@ -86,9 +88,30 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 * Creates a BinnedPeakList with a new Normalizer
 	 */
 	public BinnedPeakList() {
-		peaks = new TreeMap<Integer, Float>();
+		peaks = newPeakMap();
 		normalizable = new Normalizer();
 	}
+
+	/**
+	 * Makes an empty peak list that keeps its peaks in a TreeMap of boxed
+	 * Integers and Floats instead of a PeakArrayMap, which every other
+	 * constructor uses.  It goes through the general SortedMap code rather
+	 * than the array code, so the two can be checked against each other;
+	 * see PeakListBackingExperiment.
+	 */
+	public static BinnedPeakList treeBacked(Normalizable norm) {
+		BinnedPeakList list = new BinnedPeakList(norm);
+		list.peaks = new TreeMap<Integer, Float>();
+		return list;
+	}
+
+	private static SortedMap<Integer, Float> newPeakMap() {
+		return new PeakArrayMap();
+	}
+
+	private static SortedMap<Integer, Float> newPeakMap(Map<Integer, Float> m) {
+		return new PeakArrayMap(m);
+	}
 	
 	public Normalizable getNormalizable(){
 		return normalizable;
@@ -102,8 +125,9 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	public void copyBinnedPeakList(BinnedPeakList original) {
 		// Note that the TreeMap copy-constructor is likely a shallow copy;
 		// it does not copy the keys and values. But this contains Integer and
-		// Float immutable objects, so this doesn't matter.
-		peaks = new TreeMap<Integer,Float>(original.peaks);
+		// Float immutable objects, so this doesn't matter.  A PeakArrayMap
+		// copies its arrays.
+		peaks = newPeakMap(original.peaks);
 		normalizable = original.getNormalizable();
 	}
 	
@@ -196,6 +220,11 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	{
 		float magnitude = 0;
 		
+		if (peaks instanceof PeakArrayMap) {
+			PeakArrayMap p = (PeakArrayMap) peaks;
+			return getMagnitude4Array(p.values, p.size, dMetric);
+		}
+		
 		Iterator<Map.Entry<Integer, Float>> i = peaks.entrySet().iterator();
 		if (dMetric == DistanceMetric.CITY_BLOCK)
 			while (i.hasNext())
@@ -229,11 +258,20 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 * @param dMetric - the distance metric to be used in the calculation.
 	 */
 	public static float getMagnitude4Array(float[] peakarray, DistanceMetric dMetric)
+	{
+		return getMagnitude4Array(peakarray, peakarray.length, dMetric);
+	}
+	
+	/**
+	 * Returns the magnitude of the first length entries of an array.
+	 */
+	private static float getMagnitude4Array(float[] peakarray, int length,
+			DistanceMetric dMetric)
 	{
 		float magnitude = 0;
 
 		if (dMetric == DistanceMetric.CITY_BLOCK)
-			for (int i = 0; i < peakarray.length; i++)
+			for (int i = 0; i < length; i++)
 			{
 				magnitude += peakarray[i];
 			}
@@ -241,7 +279,7 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 		         dMetric == DistanceMetric.DOT_PRODUCT)
 		{
 			float currentArea;
-			for (int i = 0; i < peakarray.length; i++)
+			for (int i = 0; i < length; i++)
 			{
 				currentArea = peakarray[i];
 				magnitude += currentArea*currentArea;
@@ -324,6 +362,13 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 */
 	public float getDistance(BinnedPeakList other, DistanceMetric metric) {
 		long beginTime = System.currentTimeMillis();
+		if (peaks instanceof PeakArrayMap && other.peaks instanceof PeakArrayMap) {
+			float distance = arrayDistance((PeakArrayMap) peaks,
+					(PeakArrayMap) other.peaks, metric);
+			float rndDist = normalizable.roundDistance(this, other, metric, distance);
+			distTime.addAndGet(System.currentTimeMillis()-beginTime);
+			return rndDist;
+		}
 		/*
 		 * The following distance calculation algorithm is very similar to the
 		 * merge part of merge sort, where you riffle through both lists looking
@@ -402,10 +447,47 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 		// so we take 1- it to find "distance".
 
 		float rndDist = normalizable.roundDistance(this, other, metric, distance);
-		distTime += (System.currentTimeMillis()-beginTime);
+		distTime.addAndGet(System.currentTimeMillis()-beginTime);
 		return rndDist;
 	}
 	
+	/**
+	 * The same merge as getDistance(BinnedPeakList, DistanceMetric), run
+	 * directly over the arrays of two array-backed lists.  The distances are
+	 * accumulated in the same order, so the result is identical.
+	 */
+	private static float arrayDistance(PeakArrayMap a, PeakArrayMap b,
+			DistanceMetric metric) {
+		int[] aKeys = a.keys, bKeys = b.keys;
+		float[] aValues = a.values, bValues = b.values;
+		int aSize = a.size, bSize = b.size;
+		int i = 0, j = 0;
+		float distance = 0;
+		while (i < aSize && j < bSize) {
+			if (aKeys[i] == bKeys[j]) {
+				distance += DistanceMetric.getDistance(aValues[i], bValues[j], metric);
+				i++;
+				j++;
+			}
+			else if (aKeys[i] < bKeys[j]) {
+				distance += DistanceMetric.getDistance(0, aValues[i], metric);
+				i++;
+			}
+			else {
+				distance += DistanceMetric.getDistance(0, bValues[j], metric);
+				j++;
+			}
+		}
+		for (; i < aSize; i++)
+			distance += DistanceMetric.getDistance(0, aValues[i], metric);
+		for (; j < bSize; j++)
+			distance += DistanceMetric.getDistance(0, bValues[j], metric);
+		
+		if (metric == DistanceMetric.DOT_PRODUCT)
+		    distance = 1-distance;
+		return distance;
+	}
+	
 	
 	/**
 	 * Retrieve the value of the peaklist at a given key
@@ -415,6 +497,8 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 */
 	public float getAreaAt(int location)
 	{
+		if (peaks instanceof PeakArrayMap)
+			return ((PeakArrayMap) peaks).getArea(location);
 		Float area = peaks.get(location);
 		if (area == null) {
 			return 0;
@@ -449,6 +533,33 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 		
 		float distance = magnitude;
 		
+		if (peaks instanceof PeakArrayMap && other.peaks instanceof PeakArrayMap) {
+			PeakArrayMap p = (PeakArrayMap) peaks;
+			PeakArrayMap o = (PeakArrayMap) other.peaks;
+			// both lists are sorted, so find the matches by merging
+			int j = 0;
+			for (int i = 0; i < p.size; i++) {
+				int iKey = p.keys[i];
+				float iValue = p.values[i];
+				while (j < o.size && o.keys[j] < iKey)
+					j++;
+				if (j < o.size && o.keys[j] == iKey) {
+					float otherValue = o.values[j];
+					distance = distance +
+						(DistanceMetric.getDistance(iValue,otherValue,metric) -
+						DistanceMetric.getDistance(0,otherValue,metric));
+				}
+				else {
+					distance += DistanceMetric.getDistance(0, iValue, metric);
+				}
+			}
+			
+			if (metric == DistanceMetric.DOT_PRODUCT)
+			    distance = 1-distance; 
+			dist2Time.addAndGet(System.currentTimeMillis() - temptime);
+			return normalizable.roundDistance(this, other, metric, distance);
+		}
+		
 		// loop over this peak list, accumulating magnitude as you go,
 		// but calculating distance if match with other (and subtracting off
 		// that portion from magnitude with other)
@@ -471,7 +582,7 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 		// dot product actually comes up with similarity, rather than distance,
 		// so we take 1- it to find "distance".
 		
-		dist2Time += System.currentTimeMillis() - temptime;
+		dist2Time.addAndGet(System.currentTimeMillis() - temptime);
 		
 		return normalizable.roundDistance(this, other, metric, distance);
 	}
@@ -500,6 +611,30 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 		
 		float distance = magnitude;
 		
+		if (peaks instanceof PeakArrayMap) {
+			PeakArrayMap p = (PeakArrayMap) peaks;
+			for (int i = 0; i < p.size; i++) {
+				int iKey = p.keys[i];
+				if (iKey >= -zeroOffset && iKey <= zeroOffset) {
+					float iValue = p.values[i];
+					float otherValue = other[iKey + zeroOffset];
+					if (otherValue != 0) {
+						distance = distance + 
+							(DistanceMetric.getDistance(iValue,otherValue,metric) - 
+									DistanceMetric.getDistance(0,otherValue,metric));
+					}
+					else {
+						distance += DistanceMetric.getDistance(0,iValue,metric);
+					}
+				}
+			}
+			
+			if (metric == DistanceMetric.DOT_PRODUCT)
+			    distance = 1-distance; 
+			dist2Time.addAndGet(System.currentTimeMillis() - temptime);
+			return normalizable.roundDistance(this, other, metric, distance);
+		}
+		
 		// loop over this peak list, accumulating magnitude as you go,
 		// but calculating distance if match with other (and subtracting off
 		// that portion from magnitude with other)
@@ -524,7 +659,7 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 		// dot product actually comes up with similarity, rather than distance,
 		// so we take 1- it to find "distance".
 		
-		dist2Time += System.currentTimeMillis() - temptime;
+		dist2Time.addAndGet(System.currentTimeMillis() - temptime);
 		
 		return normalizable.roundDistance(this, other, metric, distance);
 	}
@@ -580,6 +715,10 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 * @param area
 	 */
 	public void add(int location, float area) {
+		if (peaks instanceof PeakArrayMap) {
+			((PeakArrayMap) peaks).addTo(location, area);
+			return;
+		}
 		assert !(peaks.containsKey(location)== true && peaks.get(location)== null) : "null peak is present in list";
 		Float tempArea = peaks.get(location);
 		if (tempArea != null)
@@ -622,7 +761,10 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	 */
 	public void addNoChecks(int location, float area)
 	{
-		peaks.put(location, area);
+		if (peaks instanceof PeakArrayMap)
+			((PeakArrayMap) peaks).put(location, area);
+		else
+			peaks.put(location, area);
 	}
 	
 	/**
@@ -782,7 +924,7 @@ public class BinnedPeakList implements Iterable<BinnedPeak> {
 	}
 	public void addWeightedParticle3 (BinnedPeakList other, int factor) {	
 		
-		SortedMap<Integer, Float> newPeaks = new TreeMap<Integer, Float>();
+		SortedMap<Integer, Float> newPeaks = newPeakMap();
 		
 		Map.Entry<Integer, Float> i = null, j = null;
 		Iterator<Map.Entry<Integer, Float>> thisIter = peaks.entrySet().iterator(),
@@ -0,0 +1,444 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's PeakArrayMap class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.analysis;
+
+import java.util.*;
+
+/**
+ * A sorted map from peak location to peak area that keeps its data in two
+ * parallel primitive arrays, sorted by location, instead of a tree of boxed
+ * Integer/Float entries.  A spectrum with a few dozen peaks costs a few
+ * hundred bytes this way rather than a few kilobytes, and walking the peaks
+ * in order is a scan over contiguous memory.
+ *
+ * Lookups are binary searches.  Inserting a location larger than any already
+ * present (which is how peaks come out of the database) is an append;
+ * inserting in the middle shifts the arrays, which is cheap for spectra of
+ * the size we deal with.
+ *
+ * Entries handed out by entrySet() write through to the arrays when
+ * setValue() is called, as the Normalizers rely on.  The sub-map views
+ * (headMap, tailMap, subMap) are views over the same arrays, just like
+ * TreeMap's, so changes go both ways.
+ */
+public class PeakArrayMap extends AbstractMap<Integer, Float>
+		implements SortedMap<Integer, Float> {
+	private static final int DEFAULT_CAPACITY = 16;
+
+	int[] keys;
+	float[] values;
+	int size;
+
+	public PeakArrayMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PeakArrayMap(int capacity) {
+		keys = new int[capacity];
+		values = new float[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Copies the contents of another map.  Copying another PeakArrayMap is
+	 * just two array copies.
+	 */
+	public PeakArrayMap(Map<Integer, Float> m) {
+		if (m instanceof PeakArrayMap) {
+			PeakArrayMap other = (PeakArrayMap) m;
+			keys = Arrays.copyOf(other.keys, Math.max(other.size, 1));
+			values = Arrays.copyOf(other.values, Math.max(other.size, 1));
+			size = other.size;
+		} else {
+			keys = new int[Math.max(m.size(), 1)];
+			values = new float[Math.max(m.size(), 1)];
+			size = 0;
+			for (Map.Entry<Integer, Float> e : m.entrySet())
+				put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * @return the index of the key, or (-(insertion point) - 1) if it
+	 * isn't present, just like Arrays.binarySearch.
+	 */
+	private int indexOf(int key) {
+		// fast path for appending in order
+		if (size == 0 || key > keys[size - 1])
+			return -size - 1;
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	/**
+	 * Sets the area at a location, adding the location if it isn't present.
+	 */
+	public void put(int key, float value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			values[index] = value;
+			return;
+		}
+		index = -index - 1;
+		if (size == keys.length) {
+			int capacity = Math.max(keys.length * 2, DEFAULT_CAPACITY);
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		if (index < size) {
+			System.arraycopy(keys, index, keys, index + 1, size - index);
+			System.arraycopy(values, index, values, index + 1, size - index);
+		}
+		keys[index] = key;
+		values[index] = value;
+		size++;
+	}
+
+	/**
+	 * Adds an area to a location, adding the location if it isn't present.
+	 */
+	public void addTo(int key, float value) {
+		int index = indexOf(key);
+		if (index >= 0)
+			values[index] += value;
+		else
+			put(key, value);
+	}
+
+	/**
+	 * @return the area at a location, or 0 if there is no peak there.
+	 */
+	public float getArea(int key) {
+		int index = indexOf(key);
+		return index >= 0 ? values[index] : 0;
+	}
+
+	/**
+	 * @return the index of the first location at or above the key, or size
+	 * if there isn't one.
+	 */
+	private int ceiling(int key) {
+		int index = indexOf(key);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	private void removeAt(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(values, index + 1, values, index, size - index - 1);
+		size--;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return key instanceof Integer && indexOf((Integer) key) >= 0;
+	}
+
+	public Float get(Object key) {
+		if (!(key instanceof Integer))
+			return null;
+		int index = indexOf((Integer) key);
+		return index >= 0 ? values[index] : null;
+	}
+
+	public Float put(Integer key, Float value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			float old = values[index];
+			values[index] = value;
+			return old;
+		}
+		put(key.intValue(), value.floatValue());
+		return null;
+	}
+
+	public Float remove(Object key) {
+		if (!(key instanceof Integer))
+			return null;
+		int index = indexOf((Integer) key);
+		if (index < 0)
+			return null;
+		float old = values[index];
+		removeAt(index);
+		return old;
+	}
+
+	public Comparator<? super Integer> comparator() {
+		return null;
+	}
+
+	public Integer firstKey() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		return keys[0];
+	}
+
+	public Integer lastKey() {
+		if (size == 0)
+			throw new NoSuchElementException();
+		return keys[size - 1];
+	}
+
+	public SortedMap<Integer, Float> subMap(Integer fromKey, Integer toKey) {
+		if (fromKey > toKey)
+			throw new IllegalArgumentException("fromKey > toKey");
+		return new SubMap(fromKey, toKey);
+	}
+
+	public SortedMap<Integer, Float> headMap(Integer toKey) {
+		return new SubMap(null, toKey.intValue());
+	}
+
+	public SortedMap<Integer, Float> tailMap(Integer fromKey) {
+		return new SubMap(fromKey.intValue(), null);
+	}
+
+	public Set<Map.Entry<Integer, Float>> entrySet() {
+		return new AbstractSet<Map.Entry<Integer, Float>>() {
+			public Iterator<Map.Entry<Integer, Float>> iterator() {
+				return new EntryIterator(null, null);
+			}
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * An entry that reads and writes through to a position in the arrays.
+	 */
+	private class ArrayEntry implements Map.Entry<Integer, Float> {
+		private final int index;
+
+		ArrayEntry(int index) {
+			this.index = index;
+		}
+
+		public Integer getKey() {
+			return keys[index];
+		}
+
+		public Float getValue() {
+			return values[index];
+		}
+
+		public Float setValue(Float value) {
+			float old = values[index];
+			values[index] = value;
+			return old;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+		}
+
+		public int hashCode() {
+			return keys[index] ^ Float.floatToIntBits(values[index]);
+		}
+
+		public String toString() {
+			return keys[index] + "=" + values[index];
+		}
+	}
+
+	/**
+	 * Walks the entries from a location (inclusive) up to another one
+	 * (exclusive); a null bound is the end of the map.  The end is looked up
+	 * again every time, so removing through the iterator is fine.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<Integer, Float>> {
+		private final Integer hi;
+		private int next;
+		private int last = -1;
+
+		EntryIterator(Integer lo, Integer hi) {
+			this.hi = hi;
+			next = lo == null ? 0 : ceiling(lo);
+		}
+
+		private int end() {
+			return hi == null ? size : ceiling(hi);
+		}
+
+		public boolean hasNext() {
+			return next < end();
+		}
+
+		public Map.Entry<Integer, Float> next() {
+			if (next >= end())
+				throw new NoSuchElementException();
+			last = next++;
+			return new ArrayEntry(last);
+		}
+
+		public void remove() {
+			if (last < 0)
+				throw new IllegalStateException();
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+
+	/**
+	 * The locations from lo (inclusive) up to hi (exclusive) of the map this
+	 * came from; a null bound is unbounded.  The range of indexes is worked
+	 * out from the arrays on every call, so the view always sees the map's
+	 * current contents.
+	 */
+	private class SubMap extends AbstractMap<Integer, Float>
+			implements SortedMap<Integer, Float> {
+		private final Integer lo, hi;
+
+		SubMap(Integer lo, Integer hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		private int from() {
+			return lo == null ? 0 : ceiling(lo);
+		}
+
+		private int to() {
+			return hi == null ? size : ceiling(hi);
+		}
+
+		private boolean inRange(Object key) {
+			if (!(key instanceof Integer))
+				return false;
+			int k = (Integer) key;
+			return (lo == null || k >= lo) && (hi == null || k < hi);
+		}
+
+		/**
+		 * A new view's bounds have to lie within this one's; the upper
+		 * bound is exclusive, so it may equal hi.
+		 */
+		private SubMap narrow(Integer newLo, Integer newHi) {
+			if (newLo != null && !inRange(newLo))
+				throw new IllegalArgumentException("fromKey out of range");
+			if (newHi != null && !inRange(newHi) && !newHi.equals(hi))
+				throw new IllegalArgumentException("toKey out of range");
+			return new SubMap(newLo == null ? lo : newLo, newHi == null ? hi : newHi);
+		}
+
+		public int size() {
+			return Math.max(to() - from(), 0);
+		}
+
+		public boolean containsKey(Object key) {
+			return inRange(key) && PeakArrayMap.this.containsKey(key);
+		}
+
+		public Float get(Object key) {
+			return inRange(key) ? PeakArrayMap.this.get(key) : null;
+		}
+
+		public Float put(Integer key, Float value) {
+			if (!inRange(key))
+				throw new IllegalArgumentException("key out of range");
+			return PeakArrayMap.this.put(key, value);
+		}
+
+		public Float remove(Object key) {
+			return inRange(key) ? PeakArrayMap.this.remove(key) : null;
+		}
+
+		public void clear() {
+			int from = from(), to = to();
+			if (from >= to)
+				return;
+			System.arraycopy(keys, to, keys, from, size - to);
+			System.arraycopy(values, to, values, from, size - to);
+			size -= to - from;
+		}
+
+		public Comparator<? super Integer> comparator() {
+			return null;
+		}
+
+		public Integer firstKey() {
+			int from = from();
+			if (from >= to())
+				throw new NoSuchElementException();
+			return keys[from];
+		}
+
+		public Integer lastKey() {
+			int to = to();
+			if (from() >= to)
+				throw new NoSuchElementException();
+			return keys[to - 1];
+		}
+
+		public SortedMap<Integer, Float> subMap(Integer fromKey, Integer toKey) {
+			if (fromKey > toKey)
+				throw new IllegalArgumentException("fromKey > toKey");
+			return narrow(fromKey, toKey);
+		}
+
+		public SortedMap<Integer, Float> headMap(Integer toKey) {
+			return narrow(null, toKey.intValue());
+		}
+
+		public SortedMap<Integer, Float> tailMap(Integer fromKey) {
+			return narrow(fromKey.intValue(), null);
+		}
+
+		public Set<Map.Entry<Integer, Float>> entrySet() {
+			return new AbstractSet<Map.Entry<Integer, Float>>() {
+				public Iterator<Map.Entry<Integer, Float>> iterator() {
+					return new EntryIterator(lo, hi);
+				}
+				public int size() {
+					return SubMap.this.size();
+				}
+			};
+		}
+	}
+}
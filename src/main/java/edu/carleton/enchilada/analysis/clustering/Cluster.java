@@ -847,6 +847,30 @@ public abstract class Cluster extends CollectionDivider {
 		posNegNorm = pnNorm;
 	}
 	
+	/**
+	 * Prints the number of clustering passes and the distance after each
+	 * one to the cluster description.
+	 * @param out - the description being written
+	 * @param particleCount - number of particles clustered
+	 */
+	protected void printPassDistances(PrintWriter out, int particleCount)
+	{
+		out.println("Total number of passes = " + totalDistancePerPass.size());
+		if (this instanceof ClusterHierarchical) 
+			out.println("Distance between the merged clusters at each iteration: ");
+		else
+			out.println("Average distance of all points from their centers " +
+				"at each iteration:");
+		
+		for (int distanceIndex = 0; distanceIndex < totalDistancePerPass.size(); 
+		distanceIndex++)
+		{
+			out.println(
+					totalDistancePerPass.get(
+							distanceIndex).doubleValue()/particleCount);
+		}
+	}
+	
 	/**
 	 * prints the relevant info to the database
 	 * @param particleCount
@@ -884,20 +908,7 @@ public abstract class Cluster extends CollectionDivider {
 		out.println("Total clustering passes during sampling = " + sampleIters);
 		out.println("Total number of centroid clustering passes = " +
 		        clusterCentroidIters);
-		out.println("Total number of passes = " + totalDistancePerPass.size());
-		if (this instanceof ClusterHierarchical) 
-			out.println("Distance between the merged clusters at each iteration: ");
-		else
-			out.println("Average distance of all points from their centers " +
-				"at each iteration:");
-		
-		for (int distanceIndex = 0; distanceIndex < totalDistancePerPass.size(); 
-		distanceIndex++)
-		{
-			out.println(
-					totalDistancePerPass.get(
-							distanceIndex).doubleValue()/particleCount);
-		}
+		printPassDistances(out, particleCount);
 
 		if (!(this instanceof ClusterHierarchical)) {
 			out.println("Average distance of all points from their centers " +
@@ -152,31 +152,16 @@ public class ClusterHierarchical extends Cluster {
 
 	private void processPart(boolean interactive)
 	{
-		ArrayList<ClusterPair> clusterPairs = new ArrayList<ClusterPair>((numInitialClusters * numInitialClusters) / 2);
-		HashMap<Integer, ClusterContents> clusterContentsMap = new HashMap<Integer, ClusterContents>((numInitialClusters * 4) / 2);
+		ArrayList<ClusterContents> clusters = new ArrayList<ClusterContents>();
 		sampleIters = 0; // this is the number of passes
 		clusterCentroidIters = 0; // also the number of passes
 
-		if (interactive) {
-			progressBar.setText("Building distance matrix");
-			progressBar.setMaximum((numInitialClusters * numInitialClusters)/2);
-			progressBar.setIndeterminate(false);
-		}
-
-		// set up distance matrix
+		// set up a ClusterContents for each initial cluster
 		if (preClustered) {
 			// set up a ClusterContents for each collection
 			ArrayList<Integer> subCollectionIDs = db.getImmediateSubCollections(collection);
 			for (int subCollectionID : subCollectionIDs) {
-				ClusterContents currentCluster = new ClusterContents(subCollectionID);
-				for (ClusterContents otherCluster : clusterContentsMap.values()) {
-					float distance = currentCluster.getDistance(otherCluster, distanceMetric);
-					clusterPairs.add(new ClusterPair(currentCluster.clusterCollectionID, otherCluster.clusterCollectionID, distance));
-					if (interactive) {
-						progressBar.increment("Building Distance Matrix");
-					}
-				}
-				clusterContentsMap.put(currentCluster.clusterCollectionID, currentCluster);
+				clusters.add(new ClusterContents(subCollectionID));
 			}
 		}
 		else {
@@ -185,96 +170,74 @@ public class ClusterHierarchical extends Cluster {
 			while (curs.next()) {
 				ParticleInfo info = curs.getCurrent();
 				info.getBinnedList().posNegNormalize(distanceMetric);
-				ClusterContents currentCluster = new ClusterContents(info);
-				// after we've constructed our cluster object, get the distances
-				// to all other cluster objects
-				for (ClusterContents otherCluster : clusterContentsMap.values()) {
-					float distance = currentCluster.getDistance(otherCluster, distanceMetric);
-					clusterPairs.add(new ClusterPair(currentCluster.clusterCollectionID, otherCluster.clusterCollectionID, distance));
-					if (interactive) {
-						progressBar.increment("Building Distance Matrix");
-					}
-				}
-				// this next bit is silly, but by waiting 1/10 of a second, we give the garbage collector time to run
-				// the whole process runs faster by waiting because we don't take up so much memory.
-				// in an ideal future, we could the next two lines out -- jtbigwoo
-//				Runtime.getRuntime().gc();
-//				try {Thread.sleep(100);} catch (Exception e) {}
-//				System.out.println(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
-				clusterContentsMap.put(currentCluster.clusterCollectionID, currentCluster);
+				clusters.add(new ClusterContents(info));
+			}
+		}
+		int numClusters = clusters.size();
+
+		if (interactive) {
+			progressBar.setText("Building distance matrix");
+			progressBar.setMaximum((int) (((long) numClusters * (numClusters - 1)) / 2));
+			progressBar.setIndeterminate(false);
+		}
+
+		// set up distance matrix
+		// (filled a row at a time, the order the condensed matrix is laid out in)
+		NearestNeighborChain chain = new NearestNeighborChain(numClusters);
+		long pairsDone = 0;
+		for (int i = 0; i < numClusters; i++) {
+			ClusterContents currentCluster = clusters.get(i);
+			chain.setSize(i, currentCluster.getAtomIDList().size());
+			for (int j = i + 1; j < numClusters; j++) {
+				chain.setDistance(i, j, currentCluster.getDistance(clusters.get(j), distanceMetric));
+			}
+			pairsDone += numClusters - i - 1;
+			if (interactive) {
+				progressBar.setValue((int) pairsDone);
 			}
 		}
 		
 		if (interactive) {
 			System.err.println("done!");
-			progressBar.setMaximum(clusterContentsMap.size());
+			progressBar.setMaximum(numClusters);
 			progressBar.reset();
-			progressBar.setText("Number of Clusters Remaining: " + clusterContentsMap.size());
+			progressBar.setText("Number of Clusters Remaining: " + numClusters);
 		}
-		while (clusterContentsMap.size() > 1)
+		
+		// Replay the merges, closest first.  Each merge names two of the
+		// initial clusters; find the clusters they've since been merged into.
+		// Cluster B will be merged into Cluster A and removed.
+		// Sorry, cluster B.
+		// As with the old list of pairs, the cluster made most recently
+		// (the later particle, or the latest merge) is the one that takes
+		// the other in, so the atoms come out in the same order.
+		int[] mergedInto = new int[numClusters];
+		int[] madeAt = new int[numClusters];
+		for (int i = 0; i < numClusters; i++) {
+			mergedInto[i] = i;
+			madeAt[i] = i;
+		}
+		int clustersRemaining = numClusters;
+		for (NearestNeighborChain.Merge merge : chain.getMerges())
 		{
-			// the first pair element in the sorted list has the smallest distance, merge them
-			// name the clusters A and B.  Cluster B will be merged into Cluster A and removed.
-			// Sorry, cluster B.
-			Collections.sort(clusterPairs);
-			int clusterAID = clusterPairs.get(0).getFirstClusterID();
-			int clusterBID = clusterPairs.get(0).getSecondClusterID();
-			totalDistancePerPass.add(new Double(clusterPairs.get(0).getDistance()));
-			float aToBDistance = clusterPairs.get(0).getDistance();
-			int clusterASize = clusterContentsMap.get(clusterAID).getAtomIDList().size();
-			int clusterBSize = clusterContentsMap.get(clusterBID).getAtomIDList().size();
-			clusterPairs.remove(0);
-			clusterContentsMap.get(clusterAID).merge(clusterContentsMap.get(clusterBID));
-			clusterContentsMap.remove(clusterBID);
-
-			// set the size to try to avoid rehashes
-			HashMap<Integer, ClusterPair> removedPairs = new HashMap<Integer, ClusterPair>((clusterContentsMap.size() * 4) / 3);
-			// because we're going to be removing elements, 
-			// it's easier to go backwards through the list
-			for (int i = clusterPairs.size() - 1; i >= 0; i--) {
-				// We're trying to get the distance from the new cluster to each 
-				// existing cluster.  We'll call the existing clusters Cluster Q.
-				int clusterQID = -1;
-				ClusterPair currentPair = clusterPairs.get(i);
-				if (clusterAID == currentPair.getFirstClusterID() || clusterBID == currentPair.getFirstClusterID()) {
-					clusterQID = currentPair.getSecondClusterID();
-				}
-				else if (clusterAID == currentPair.getSecondClusterID() || clusterBID == currentPair.getSecondClusterID()) {
-					clusterQID = currentPair.getFirstClusterID();
-				}
-				if (clusterQID != -1) {
-					if (removedPairs.get(clusterQID) == null) {
-						// if this is the first time we've encountered Cluster Q, delete the pair
-						// from the list, but save it for calculations below.
-						removedPairs.put(clusterQID, currentPair);
-						clusterPairs.remove(i);
-					}
-					else {
-						// if this is the second time we've encountered Cluster Q, recalculate
-						// distance and put a new pair in the list.
-						ClusterPair removedPair = removedPairs.get(clusterQID);
-						int clusterQSize = clusterContentsMap.get(clusterQID).getAtomIDList().size();
-						float aToQDistance, bToQDistance, newDistance;
-						if (clusterAID == removedPair.getFirstClusterID() || clusterAID == removedPair.getSecondClusterID()) {
-							aToQDistance = removedPair.getDistance();
-							bToQDistance = currentPair.getDistance();
-						}
-						else
-						{
-							bToQDistance = removedPair.getDistance();
-							aToQDistance = currentPair.getDistance();
-						}
-						float distance = ((clusterASize + clusterQSize) * aToQDistance) / (clusterASize + clusterBSize + clusterQSize) + 
-							((clusterBSize + clusterQSize) * bToQDistance) / (clusterASize + clusterBSize + clusterQSize) - 
-							((clusterQSize) * aToBDistance) / (clusterASize + clusterBSize + clusterQSize);
-						clusterPairs.set(i, new ClusterPair(clusterAID, clusterQID, distance));
-					}
-				}
+			int clusterA = findCluster(mergedInto, merge.getFirst());
+			int clusterB = findCluster(mergedInto, merge.getSecond());
+			if (madeAt[clusterB] > madeAt[clusterA]) {
+				int swap = clusterA;
+				clusterA = clusterB;
+				clusterB = swap;
 			}
+			totalDistancePerPass.add(new Double(merge.getDistance()));
+			clusters.get(clusterA).merge(clusters.get(clusterB));
+			clusters.set(clusterB, null);
+			mergedInto[clusterB] = clusterA;
+			madeAt[clusterA] = numClusters + sampleIters;
+			clustersRemaining--;
+
 			sampleIters++;
 			clusterCentroidIters++;
 			if (interactive) {
-				progressBar.increment("Number of Clusters Remaining: " + clusterContentsMap.size());
+				progressBar.increment("Number of Clusters Remaining: " + clustersRemaining);
 			}
 
 		}
@@ -288,6 +251,22 @@ public class ClusterHierarchical extends Cluster {
 		return;
 	}
 
+	/**
+	 * Follows the chain of merges from one of the initial clusters to the
+	 * cluster that now contains it, shortening the chain as it goes.
+	 */
+	private static int findCluster(int[] mergedInto, int cluster) {
+		int root = cluster;
+		while (mergedInto[root] != root)
+			root = mergedInto[root];
+		while (mergedInto[cluster] != root) {
+			int next = mergedInto[cluster];
+			mergedInto[cluster] = root;
+			cluster = next;
+		}
+		return root;
+	}
+
 	/**
 	 * For hierarchical clustering we build the clusters as we go, so this is
 	 * pretty easy.
@@ -333,46 +312,6 @@ public class ClusterHierarchical extends Cluster {
 //		printDescriptionToDB(particleCount, centroidList);
 //	}
 
-	/**
-	 * Holds the id's for a pair of clusters and the distance between them.
-	 */
-	class ClusterPair implements Comparable<ClusterPair> {
-		
-		int firstClusterID;
-		int secondClusterID;
-		float distance;
-		
-		public ClusterPair(int firstID, int secondID, float dist) {
-			firstClusterID = firstID;
-			secondClusterID = secondID;
-			distance = dist;
-		}
-
-		public int getFirstClusterID() {
-			return firstClusterID;
-		}
-		
-		public int getSecondClusterID() {
-			return secondClusterID;
-		}
-		
-		public float getDistance() {
-			return distance;
-		}
-
-		public int compareTo(ClusterPair otherOne) {
-			if (otherOne.distance > this.distance) {
-				return -1;
-			}
-			else if (otherOne.distance < this.distance) {
-				return 1;
-			}
-			else {
-				return 0;
-			}
-		}
-	}
-
 	/**
 	 * Holds the atom id's in a cluster and the average peaklist
 	 */
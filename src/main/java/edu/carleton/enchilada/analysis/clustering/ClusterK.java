@@ -47,6 +47,8 @@ package edu.carleton.enchilada.analysis.clustering;
 import java.io.File;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.swing.JDialog;
 import javax.swing.JFrame;
@@ -56,6 +58,8 @@ import javax.swing.SwingUtilities;
 import edu.carleton.enchilada.ATOFMS.ParticleInfo;
 import edu.carleton.enchilada.analysis.BinnedPeakList;
 import edu.carleton.enchilada.analysis.CollectionDivider;
+import edu.carleton.enchilada.analysis.DistanceMetric;
+import edu.carleton.enchilada.analysis.Normalizer;
 import edu.carleton.enchilada.analysis.PeakTransform;
 import edu.carleton.enchilada.analysis.SubSampleCursor;
 import edu.carleton.enchilada.database.CollectionCursor;
@@ -104,6 +108,42 @@ public abstract class ClusterK extends Cluster {
 	private static float error = 0.01f;
 	private static int numSamples = 50;
 	private static int randomNumber = DEFAULT_RANDOM;
+	private static int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	// number of particles read from the cursor at a time during processPart
+	private static final int CHUNK_SIZE = 4096;
+	// chunks of a chunk smaller than this are done without forking further
+	private static final int TASK_SIZE = 256;
+	
+	private static boolean trianglePruning = true;
+	// Distances come out of getDistance in single precision, so the bounds
+	// are loosened by this fraction of the distance's scale before they are
+	// trusted to rule a centroid out.  The rounding grows with the size of
+	// the spectra, so a fixed slack would only be safe for normalized ones.
+	private static final double BOUND_SLACK = 1e-3;
+	
+	/*
+	 * Triangle inequality state for processPart, after Hamerly: for each
+	 * particle, in cursor order, its ID, the centroid it went to last pass,
+	 * and a lower bound on its (unsquared) distance to every other centroid.
+	 */
+	private int[] boundIDs;
+	private int[] boundCentroids;
+	private double[] lowerBounds;
+	
+	/*
+	 * Per-pass quantities the bounds need, set by prepareBounds before the
+	 * particles are assigned.  getDistance(float[], ...) starts from the
+	 * stored centroid magnitude rather than the centroid's squared length,
+	 * so each centroid's distances are offset by a constant, kept here.
+	 */
+	private boolean pruneThisPass;
+	private boolean boundsFromLastPass;
+	private ArrayList<float[]> previousCentroids;
+	private double[] centroidOffsets;
+	private double minCentroidOffset;
+	private double[] centroidSeparation;
+	private double[] otherCentroidDrift;
 	protected NonZeroCursor curs;
 	private int returnThis;
 	private JFrame parentContainer;
@@ -187,7 +227,7 @@ public abstract class ClusterK extends Cluster {
 //			System.out.println(centroidList);
 //		} else {
 //		}
-		centroidList = processPart(centroidList, curs);
+		centroidList = findCentroids(centroidList, curs);
 
 		returnThis =
 			assignAtomsToNearestCentroid(centroidList, curs, createCentroids);
@@ -321,6 +361,293 @@ public abstract class ClusterK extends Cluster {
 		}
 	}
 
+	/**
+	 * Normalizes a range of the particles in a chunk and finds the nearest
+	 * centroid to each one, splitting the range across the pool.  Each
+	 * particle's results go in its own slot of the output arrays.
+	 */
+	private class AssignTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ParticleInfo[] chunk;
+		private final BinnedPeakList[] lists;
+		private final int[] nearestCentroids;
+		private final double[] nearestDistances;
+		private final ArrayList<float[]> centroids;
+		private final float[] centroidMags;
+		private final int base;
+		private final int from, to;
+		
+		public AssignTask(ParticleInfo[] chunk, BinnedPeakList[] lists,
+				int[] nearestCentroids, double[] nearestDistances,
+				ArrayList<float[]> centroids, float[] centroidMags,
+				int base, int from, int to) {
+			this.chunk = chunk;
+			this.lists = lists;
+			this.nearestCentroids = nearestCentroids;
+			this.nearestDistances = nearestDistances;
+			this.centroids = centroids;
+			this.centroidMags = centroidMags;
+			this.base = base;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from > TASK_SIZE && getPool() != null) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new AssignTask(chunk, lists, nearestCentroids,
+							nearestDistances, centroids, centroidMags, base, from, mid),
+						new AssignTask(chunk, lists, nearestCentroids,
+							nearestDistances, centroids, centroidMags, base, mid, to));
+				return;
+			}
+			BinnedPeakList thisBinnedPeakList;
+			for (int n = from; n < to; n++) {
+				ParticleInfo p = chunk[n];
+				// safe to use original if not transforming
+				if (peakTransform != PeakTransform.NONE) {
+					thisBinnedPeakList = p.getBinnedList().copyOf();
+					thisBinnedPeakList.transformAreas(peakTransform);
+				} else {
+					thisBinnedPeakList = p.getBinnedList();
+				}
+				thisBinnedPeakList.normalize(distanceMetric,posNegNorm);
+				lists[n] = thisBinnedPeakList;
+				if (pruneThisPass &&
+						assignWithBounds(thisBinnedPeakList, p.getID(), base + n,
+						centroids, centroidMags, nearestCentroids, nearestDistances, n))
+					continue;
+				
+				double nearestDistance = Double.MAX_VALUE;
+				int nearestCentroid = -1;
+				double[] distances = pruneThisPass ? new double[k] : null;
+				for (int curCent = 0; curCent < k; curCent++)
+				{// for each centroid
+					
+					//first parameter was centroidList.get(curCent).peaks
+					//change it back in order to use the original data structure
+					//(instead of float arrays)
+					//also, don't pass 4th argument (arrayoffset)
+					// - benzaids
+					double distance = thisBinnedPeakList.getDistance(
+							centroids.get(curCent),centroidMags[curCent],
+							distanceMetric, Cluster.ARRAYOFFSET);
+					if (distances != null)
+						distances[curCent] = distance;
+					//If nearestDistance hasn't been set or is larger 
+					//than found distance, set the nearestCentroid index.
+					if (distance < nearestDistance){
+						nearestCentroid = curCent;
+						nearestDistance = distance;
+					}
+				}// end for each centroid
+				nearestCentroids[n] = nearestCentroid;
+				nearestDistances[n] = nearestDistance;
+				if (distances != null)
+					saveBounds(base + n, p.getID(), nearestCentroid, distances,
+							centroidMags);
+			}
+		}
+	}
+	
+	/**
+	 * Sets up the centroid quantities the triangle inequality bounds need for
+	 * this pass: each centroid's distance offset, the distance from each
+	 * centroid to its nearest neighbour, and how far every other centroid
+	 * has moved since the last pass.
+	 * 
+	 * The bounds are only used with Euclidean squared distance, where the
+	 * square root of getDistance is (up to the offset) a true metric.
+	 * DOT_PRODUCT is a similarity and obeys no triangle inequality, and the
+	 * bookkeeping here is in unsquared Euclidean terms, so for CITY_BLOCK
+	 * and DOT_PRODUCT every distance is computed, exactly as before.
+	 */
+	private void prepareBounds(ArrayList<float[]> centroids, float[] centroidMags) {
+		pruneThisPass = canPrune() && boundIDs != null;
+		if (!pruneThisPass) {
+			previousCentroids = null;
+			boundsFromLastPass = false;
+			return;
+		}
+		
+		centroidOffsets = new double[k];
+		minCentroidOffset = Double.MAX_VALUE;
+		for (int c = 0; c < k; c++) {
+			double squaredLength = 0;
+			for (float f : centroids.get(c))
+				squaredLength += (double) f * f;
+			centroidOffsets[c] = centroidMags[c] - squaredLength;
+			minCentroidOffset = Math.min(minCentroidOffset, centroidOffsets[c]);
+		}
+		
+		centroidSeparation = new double[k];
+		Arrays.fill(centroidSeparation, Double.MAX_VALUE);
+		for (int a = 0; a < k; a++) {
+			for (int c = a + 1; c < k; c++) {
+				double separation = arrayDistance(centroids.get(a), centroids.get(c));
+				centroidSeparation[a] = Math.min(centroidSeparation[a], separation);
+				centroidSeparation[c] = Math.min(centroidSeparation[c], separation);
+			}
+		}
+		
+		boundsFromLastPass = previousCentroids != null;
+		if (boundsFromLastPass) {
+			// the largest drift of any centroid other than c is the largest
+			// overall, unless c is the one that moved the most
+			double[] drift = new double[k];
+			int farthest = 0;
+			for (int c = 0; c < k; c++) {
+				drift[c] = arrayDistance(previousCentroids.get(c), centroids.get(c));
+				if (drift[c] > drift[farthest])
+					farthest = c;
+			}
+			double secondFarthest = 0;
+			for (int c = 0; c < k; c++)
+				if (c != farthest)
+					secondFarthest = Math.max(secondFarthest, drift[c]);
+			otherCentroidDrift = new double[k];
+			for (int c = 0; c < k; c++)
+				otherCentroidDrift[c] = (c == farthest) ? secondFarthest : drift[farthest];
+		}
+		previousCentroids = centroids;
+	}
+	
+	private boolean canPrune() {
+		return trianglePruning &&
+			distanceMetric == DistanceMetric.EUCLIDEAN_SQUARED && k > 1;
+	}
+	
+	/**
+	 * How far a distance from getDistance may be off.  The rounding is
+	 * relative to |p|^2 + |c|^2 for the particle p and centroid c, which is
+	 * at most 2 * distance + 3 * |c|^2.
+	 */
+	private static double boundSlack(double distance, float centroidMag) {
+		return BOUND_SLACK * (1 + 2 * Math.abs(distance) + 3 * Math.abs(centroidMag));
+	}
+	
+	private static double arrayDistance(float[] a, float[] b) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			double diff = (double) a[i] - b[i];
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum);
+	}
+	
+	/**
+	 * Tries to assign a particle using its bounds from the last pass.  Only
+	 * the distance to the centroid it was assigned to last time is computed;
+	 * if the bounds show every other centroid is strictly farther away, that
+	 * centroid is the one the full search would have picked.
+	 * @return true if the particle was assigned, false if all k distances
+	 * need to be computed.
+	 */
+	private boolean assignWithBounds(BinnedPeakList peakList, int atomID,
+			int ordinal, ArrayList<float[]> centroids, float[] centroidMags,
+			int[] nearestCentroids, double[] nearestDistances, int n) {
+		if (!boundsFromLastPass || ordinal >= boundIDs.length ||
+				boundIDs[ordinal] != atomID)
+			return false;
+		int assigned = boundCentroids[ordinal];
+		
+		double distance = peakList.getDistance(centroids.get(assigned),
+				centroidMags[assigned], distanceMetric, Cluster.ARRAYOFFSET);
+		// The Normalizer rounds distances down to 2, so above that the
+		// others could tie with this one.
+		if (peakList.getNormalizable() instanceof Normalizer && !(distance < 2))
+			return false;
+		
+		double slack = boundSlack(distance, centroidMags[assigned]);
+		double upper = Math.sqrt(Math.max(
+				distance - centroidOffsets[assigned] + slack, 0));
+		double lower = Math.max(
+				lowerBounds[ordinal] - otherCentroidDrift[assigned],
+				centroidSeparation[assigned] - upper);
+		lowerBounds[ordinal] = lower;
+		if (lower > 0 &&
+				lower * lower + minCentroidOffset - slack > distance) {
+			nearestCentroids[n] = assigned;
+			nearestDistances[n] = distance;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Records a particle's bounds after all k distances have been computed.
+	 */
+	private void saveBounds(int ordinal, int atomID, int nearest, double[] distances,
+			float[] centroidMags) {
+		if (ordinal >= boundIDs.length)
+			return;
+		if (nearest == -1) {
+			boundIDs[ordinal] = -1;
+			return;
+		}
+		double lower = Double.MAX_VALUE;
+		for (int c = 0; c < k; c++)
+			if (c != nearest)
+				lower = Math.min(lower, Math.sqrt(Math.max(distances[c] -
+						centroidOffsets[c] - boundSlack(distances[c], centroidMags[c]), 0)));
+		boundIDs[ordinal] = atomID;
+		boundCentroids[ordinal] = nearest;
+		lowerBounds[ordinal] = lower;
+	}
+	
+	/**
+	 * Adds the particles in a chunk to the running sums for a range of
+	 * centroids.  Splitting by centroid rather than by particle means no two
+	 * tasks ever touch the same sum.
+	 */
+	private static class SumTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final BinnedPeakList[] sums;
+		private final BinnedPeakList[] lists;
+		private final int[] nearestCentroids;
+		private final int chunkSize;
+		private final int from, to;
+		
+		public SumTask(BinnedPeakList[] sums, BinnedPeakList[] lists,
+				int[] nearestCentroids, int chunkSize, int from, int to) {
+			this.sums = sums;
+			this.lists = lists;
+			this.nearestCentroids = nearestCentroids;
+			this.chunkSize = chunkSize;
+			this.from = from;
+			this.to = to;
+		}
+		
+		protected void compute() {
+			if (to - from > 1 && getPool() != null) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SumTask(sums, lists, nearestCentroids, chunkSize, from, mid),
+						new SumTask(sums, lists, nearestCentroids, chunkSize, mid, to));
+				return;
+			}
+			for (int n = 0; n < chunkSize; n++) {
+				int nearest = nearestCentroids[n];
+				if (nearest >= from && nearest < to)
+					sums[nearest].addAnotherParticle(lists[n]);
+			}
+		}
+	}
+
+	/**
+	 * Turns the initial centroids into the final ones, before every particle
+	 * is assigned to its nearest centroid.  K-Means and K-Medians do this
+	 * with full passes through the cursor in processPart; subclasses that
+	 * find their centroids some other way override it.
+	 * 
+	 * @param centroidList - the initial centroids; may be empty.
+	 * @param curs - cursor to loop through the particles in the db.
+	 * @return the final list of centroids.
+	 */
+	protected ArrayList<Centroid> findCentroids(ArrayList<Centroid> centroidList,
+			NonZeroCursor curs) {
+		return processPart(centroidList, curs);
+	}
+
 	/**
 	 * ProcessPart is the method that does the actual clustering.  For K-Means and
 	 * K-Medians, this is the exact same method.
@@ -402,163 +729,197 @@ public abstract class ClusterK extends Cluster {
 		double accumDistance = 0.0;
 		curs.reset();
 
-		// Get centroid magnitudes for efficiency
-		float[] centroidMags = new float[k];
-		for (int i=0; i < k; i++) {
-			centroidMags[i] = centroidList.get(i).peaks.getMagnitude(distanceMetric);
-			//centroidList.get(i).peaks.printPeakList();
-		}
-		while (!isStable) {
-			for (ArrayList<Integer> array : particlesInCentroids){
-				array.clear();
+		// The pool used for the assignment phase; null means do it all on
+		// this thread.
+		ForkJoinPool pool = null;
+		if (numThreads > 1)
+			pool = new ForkJoinPool(numThreads);
+		
+		try {
+			// Start the triangle inequality bounds from scratch; processPart is
+			// also run on subsamples when refining centroids.
+			previousCentroids = null;
+			if (canPrune()) {
+				boundIDs = new int[numParticles];
+				Arrays.fill(boundIDs, -1);
+				boundCentroids = new int[numParticles];
+				lowerBounds = new double[numParticles];
 			}
+		
+			// Get centroid magnitudes for efficiency
+			float[] centroidMags = new float[k];
+			for (int i=0; i < k; i++) {
+				centroidMags[i] = centroidList.get(i).peaks.getMagnitude(distanceMetric);
+				//centroidList.get(i).peaks.printPeakList();
+			}
+			while (!isStable) {
+				for (ArrayList<Integer> array : particlesInCentroids){
+					array.clear();
+				}
 
-			outliers.clear();
-			for (int i=0; i < k; i++)
-				outliers.add(new OutlierData(null,i*Double.MIN_VALUE));
-			double smallestOutlierDistance = Double.MIN_VALUE;
-			// Make array to store sum of all the cluster centroids
-			BinnedPeakList[] cumulativeCentroids = new BinnedPeakList[k];
-			for (int i=0; i < k; i++)
-				cumulativeCentroids[i] = new BinnedPeakList();
+				outliers.clear();
+				for (int i=0; i < k; i++)
+					outliers.add(new OutlierData(null,i*Double.MIN_VALUE));
+				double smallestOutlierDistance = Double.MIN_VALUE;
+				// Make array to store sum of all the cluster centroids
+				BinnedPeakList[] cumulativeCentroids = new BinnedPeakList[k];
+				for (int i=0; i < k; i++)
+					cumulativeCentroids[i] = new BinnedPeakList();
 			
-			ArrayList<float[]> tempCentroidList =
-				Cluster.generateCentroidArrays(centroidList,Cluster.ARRAYOFFSET);
+				ArrayList<float[]> tempCentroidList =
+					Cluster.generateCentroidArrays(centroidList,Cluster.ARRAYOFFSET);
+				prepareBounds(tempCentroidList, centroidMags);
 			
-			int particleNumber = 0;
-			BinnedPeakList thisBinnedPeakList;
-			while(curs.next())
-			{ // while there are particles remaining
-				particleNumber++;
-				if (particleNumber % 10000 == 0)
-					System.out.println("Particle number = " + particleNumber);
-				ParticleInfo p = curs.getCurrent();
-				// safe to use original if not transforming
-				if (peakTransform != PeakTransform.NONE) {
-					thisBinnedPeakList = p.getBinnedList().copyOf();
-					thisBinnedPeakList.transformAreas(peakTransform);
-				} else {
-					thisBinnedPeakList = p.getBinnedList();
-				}
-				thisBinnedPeakList.normalize(distanceMetric,posNegNorm);
-				double nearestDistance = Double.MAX_VALUE;
-				int nearestCentroid = -1;
-				for (int curCent = 0; curCent < k; curCent++)
-				{// for each centroid
-					
-					//first parameter was centroidList.get(curCent).peaks
-					//change it back in order to use the original data structure
-					//(instead of float arrays)
-					//also, don't pass 4th argument (arrayoffset)
-					// - benzaids
-					double distance = thisBinnedPeakList.getDistance(
-							tempCentroidList.get(curCent),centroidMags[curCent],
-							distanceMetric, Cluster.ARRAYOFFSET);
-					//If nearestDistance hasn't been set or is larger 
-					//than found distance, set the nearestCentroid index.
-					if (distance < nearestDistance){
-						nearestCentroid = curCent;
-						nearestDistance = distance;
+				int particleNumber = 0;
+				ParticleInfo[] chunk = new ParticleInfo[CHUNK_SIZE];
+				BinnedPeakList[] chunkLists = new BinnedPeakList[CHUNK_SIZE];
+				int[] nearestCentroids = new int[CHUNK_SIZE];
+				double[] nearestDistances = new double[CHUNK_SIZE];
+				boolean moreParticles = true;
+				while (moreParticles)
+				{ // while there are particles remaining
+					// The cursor isn't thread-safe, so read a chunk of particles
+					// here and hand only the distance computations to the pool.
+					int chunkStart = particleNumber;
+					int chunkSize = 0;
+					while (chunkSize < CHUNK_SIZE && (moreParticles = curs.next())) {
+						particleNumber++;
+						if (particleNumber % 10000 == 0)
+							System.out.println("Particle number = " + particleNumber);
+						chunk[chunkSize++] = curs.getCurrent();
 					}
-				}// end for each centroid
 				
-				// catch bad particles. think these are means of other solutions...? -- MM 2014
-				if (nearestCentroid == -1) {
-					//System.out.println("Bad AtomID: "+p.getID());
-					//zeroPeakListParticleCount++;
-					continue;
-				}
+					AssignTask assign = new AssignTask(chunk, chunkLists,
+							nearestCentroids, nearestDistances, tempCentroidList,
+							centroidMags, chunkStart, 0, chunkSize);
+					if (pool == null)
+						assign.compute();
+					else
+						pool.invoke(assign);
 				
-				// TreeSets do not allow duplicates. Therefore, we make small
-				// distinctions in the distances for the outliers that we add (if necessary).
-				// Making the distance smaller here (not bigger) is crucial. This ensures that
-				// if a whole series of atoms have the same distance, they do not keep bouncing
-				// each other out.
-				if (nearestDistance > smallestOutlierDistance) {
-					OutlierData outlier = new OutlierData(thisBinnedPeakList,nearestDistance);
-					while (outlier.distance > smallestOutlierDistance && outliers.contains(outlier))
-						outlier.distance -= 1e-5;
-
-					//	If distance is still an outlier, add it to the outlier array.
-					if (nearestDistance > smallestOutlierDistance) {
-						outliers.add(outlier);			
-						if (outliers.size() > k)
-							outliers.remove(outliers.first());						
-						smallestOutlierDistance = outliers.first().distance;
+					for (int n = 0; n < chunkSize; n++) {
+						BinnedPeakList thisBinnedPeakList = chunkLists[n];
+						int nearestCentroid = nearestCentroids[n];
+						double nearestDistance = nearestDistances[n];
+					
+						// catch bad particles. think these are means of other solutions...? -- MM 2014
+						if (nearestCentroid == -1) {
+							//System.out.println("Bad AtomID: "+p.getID());
+							//zeroPeakListParticleCount++;
+							continue;
+						}
+					
+						// TreeSets do not allow duplicates. Therefore, we make small
+						// distinctions in the distances for the outliers that we add (if necessary).
+						// Making the distance smaller here (not bigger) is crucial. This ensures that
+						// if a whole series of atoms have the same distance, they do not keep bouncing
+						// each other out.
+						if (nearestDistance > smallestOutlierDistance) {
+							OutlierData outlier = new OutlierData(thisBinnedPeakList,nearestDistance);
+							while (outlier.distance > smallestOutlierDistance && outliers.contains(outlier))
+								outlier.distance -= 1e-5;
+	
+							//	If distance is still an outlier, add it to the outlier array.
+							if (nearestDistance > smallestOutlierDistance) {
+								outliers.add(outlier);			
+								if (outliers.size() > k)
+									outliers.remove(outliers.first());						
+								smallestOutlierDistance = outliers.first().distance;
+							}
+						}					
+					
+						// Put atomID assigned to curCent in particlesInCentroids array, and increment
+						// appropriately.  
+						particlesInCentroids.get(nearestCentroid).add(new Integer(
+								chunk[n].getID()));
+						centroidList.get(nearestCentroid).numMembers++;
+						accumDistance += nearestDistance;
 					}
-				}					
 				
-				// Put atomID assigned to curCent in particlesInCentroids array, and increment
-				// appropriately.  
-				particlesInCentroids.get(nearestCentroid).add(new Integer(
-						p.getID()));
-				centroidList.get(nearestCentroid).numMembers++;
-				accumDistance += nearestDistance;
-				cumulativeCentroids[nearestCentroid].addAnotherParticle(thisBinnedPeakList);
-
-			}// end while there are particles remaining
-			// IMPORTANT TO FIX: ZERO ISSUE
-			zeroPeakListParticleCount = 0; //curs.getZeroCount();
-			totalDistancePerPass.add(new Double(accumDistance));
-
-			// reset centroid list.  The averageCluster method is overwritten
-			// in K-Means and K-Medians.
-			for (int i = 0; i < k; i++) {
-				Centroid newCent;
-				if (this instanceof KMeans) {
-					// we have the sums - divide by the particle number to get mean.
-					cumulativeCentroids[i].divideAreasBy(centroidList.get(i).numMembers);
-					//Create and return a centroid with the new list and 0 members.
-					// don't want to do pos/neg normalization here, we've already done
-					// pos/neg normalization on the peaks for the particles
-					cumulativeCentroids[i].normalize(distanceMetric);
-					newCent = new Centroid(cumulativeCentroids[i],0);
-				}
-				else if (this instanceof KMedians) {
-					newCent = averageCluster(centroidList.get(i),
-							particlesInCentroids.get(i));
+					// Each centroid's sum is only touched by one task, and each
+					// task adds its particles in cursor order, so the sums come
+					// out exactly as they would serially.
+					SumTask sum = new SumTask(cumulativeCentroids, chunkLists,
+							nearestCentroids, chunkSize, 0, k);
+					if (pool == null)
+						sum.compute();
+					else
+						pool.invoke(sum);
+					Arrays.fill(chunk, null);
+				}// end while there are particles remaining
+				// IMPORTANT TO FIX: ZERO ISSUE
+				zeroPeakListParticleCount = 0; //curs.getZeroCount();
+				totalDistancePerPass.add(new Double(accumDistance));
+
+				// reset centroid list.  The averageCluster method is overwritten
+				// in K-Means and K-Medians.
+				for (int i = 0; i < k; i++) {
+					Centroid newCent;
+					if (this instanceof KMeans) {
+						// we have the sums - divide by the particle number to get mean.
+						cumulativeCentroids[i].divideAreasBy(centroidList.get(i).numMembers);
+						//Create and return a centroid with the new list and 0 members.
+						// don't want to do pos/neg normalization here, we've already done
+						// pos/neg normalization on the peaks for the particles
+						cumulativeCentroids[i].normalize(distanceMetric);
+						newCent = new Centroid(cumulativeCentroids[i],0);
+					}
+					else if (this instanceof KMedians) {
+						newCent = averageCluster(centroidList.get(i),
+								particlesInCentroids.get(i));
+					}
+					else
+						throw new UnsupportedOperationException("Undefined clustering type.");
+					centroidList.set(i, newCent);
 				}
-				else
-					throw new UnsupportedOperationException("Undefined clustering type.");
-				centroidList.set(i, newCent);
-			}
-			//accumDistance:
-			accumDistance = 0.0;
-			// cursor:
-			curs.reset();
+				//accumDistance:
+				accumDistance = 0.0;
+				// cursor:
+				curs.reset();
 			
 
-			if (outliers.last().distance < 1E-4) {
-				System.out.println("Particles are perfectly clustered!");
-				return centroidList;
-			}
+				if (outliers.last().distance < 1E-4) {
+					System.out.println("Particles are perfectly clustered!");
+					return centroidList;
+				}
 
-			// If there is one (or more) empty centroids, replace them 
-			ArrayList<Integer> emptyCentIndex = new ArrayList<Integer>();
-			isStable = stableCentroids(totalDistancePerPass);
-			for (int i = 0; i < k; i++) {
-				if (particlesInCentroids.get(i).size() == 0) {
-					OutlierData outlier = outliers.last();
-					centroidList.set(i,new Centroid(outlier.peakList,0));
-					outliers.remove(outlier);
-					isStable = false;
+				// If there is one (or more) empty centroids, replace them 
+				ArrayList<Integer> emptyCentIndex = new ArrayList<Integer>();
+				isStable = stableCentroids(totalDistancePerPass);
+				for (int i = 0; i < k; i++) {
+					if (particlesInCentroids.get(i).size() == 0) {
+						OutlierData outlier = outliers.last();
+						centroidList.set(i,new Centroid(outlier.peakList,0));
+						outliers.remove(outlier);
+						isStable = false;
+					}
 				}
-			}
-		} // end while loop
+			} // end while loop
 			
-		// Remove the last pass in the total distance array,
-		// since these are duplicates.
-		//totalDistancePerPass.remove(totalDistancePerPass.size()-1);
-		//totalDistancePerPass.remove(totalDistancePerPass.size()-1);
+			// Remove the last pass in the total distance array,
+			// since these are duplicates.
+			//totalDistancePerPass.remove(totalDistancePerPass.size()-1);
+			//totalDistancePerPass.remove(totalDistancePerPass.size()-1);
 		
 
-		// IMPORTANT: FIX ZERO COUNT
-		//System.out.println("Zero count = " + curs.getZeroCount());
+			// IMPORTANT: FIX ZERO COUNT
+			//System.out.println("Zero count = " + curs.getZeroCount());
+		} finally {
+			// shut the pool down whichever way this leaves, or its worker
+			// threads are left behind
+			if (pool != null)
+				pool.shutdown();
+			boundIDs = null;
+			boundCentroids = null;
+			lowerBounds = null;
+			previousCentroids = null;
+		}
 		
 		//Timing stuff
-        System.out.println("Time taken for getDistance (ms): " + BinnedPeakList.distTime);
-        System.out.println("Time taken for other getDistance (ms): " + BinnedPeakList.dist2Time);
-        System.out.println("Total time taken for getDistance methods (ms): " + (BinnedPeakList.dist2Time + BinnedPeakList.distTime));
+        long distTime = BinnedPeakList.distTime.get(), dist2Time = BinnedPeakList.dist2Time.get();
+        System.out.println("Time taken for getDistance (ms): " + distTime);
+        System.out.println("Time taken for other getDistance (ms): " + dist2Time);
+        System.out.println("Total time taken for getDistance methods (ms): " + (dist2Time + distTime));
 		
         timeTaken += System.currentTimeMillis() - beginning;
 		System.out.println("Time taken for processPart (clustering): " + timeTaken);
@@ -799,7 +1160,7 @@ public abstract class ClusterK extends Cluster {
 	 * centroids we'll generate is k.
 	 * @return
 	 */
-	private ArrayList<Centroid> chooseFarthestDistanceCentroids()
+	protected ArrayList<Centroid> chooseFarthestDistanceCentroids()
 	{
 		ArrayList<Centroid> centroidList = new ArrayList<Centroid>(k);
 		ArrayList<Double> distances = new ArrayList<Double>(numParticles);
@@ -958,6 +1319,32 @@ public abstract class ClusterK extends Cluster {
 		numSamples = num;
 	}
 	
+	/**
+	 * The number of threads used to assign particles to centroids.  With one
+	 * thread, everything is done on the clustering thread itself.  The
+	 * results are the same regardless.
+	 */
+	public static int getNumThreads() {
+		return numThreads;
+	}
+	
+	public static void setNumThreads(int threads) {
+		numThreads = Math.max(1, threads);
+	}
+	
+	/**
+	 * Whether processPart uses the triangle inequality to skip distance
+	 * computations.  Only has an effect with Euclidean squared distance,
+	 * and never changes which centroid a particle is assigned to.
+	 */
+	public static boolean getTrianglePruning() {
+		return trianglePruning;
+	}
+	
+	public static void setTrianglePruning(boolean pruning) {
+		trianglePruning = pruning;
+	}
+	
 	/**
 	 * Set this to false if you want to cluster without creating centroids 
 	 * in the database.  Useful if you're only interested in 
@@ -978,6 +1365,18 @@ public abstract class ClusterK extends Cluster {
 		randomNumber = randomSeed;
 	}
 	
+	public static int getRandomSeed() {
+		return randomNumber;
+	}
+	
+	/**
+	 * @return the number of particles in the collection being clustered,
+	 * once clustering has started.
+	 */
+	protected int getNumParticles() {
+		return numParticles;
+	}
+	
 //	public static void setStationary(boolean stn) {
 //		stationary = stn;
 //	}
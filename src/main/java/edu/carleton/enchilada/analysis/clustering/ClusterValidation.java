@@ -34,6 +34,7 @@ import edu.carleton.enchilada.analysis.BinnedPeakList;
 import edu.carleton.enchilada.analysis.DistanceMetric;
 import edu.carleton.enchilada.database.CollectionCursor;
 import edu.carleton.enchilada.database.Database.ArrayCursor;
+import edu.carleton.enchilada.database.NonZeroCursor;
 import edu.carleton.enchilada.errorframework.ErrorLogger;
 
 public class ClusterValidation {
@@ -178,7 +179,11 @@ public class ClusterValidation {
 									}
 									preCurs.close();
 								} else if (sampleType == SampleType.FULL){
-									preCurs = db.getBPLOnlyCursor(db.getCollection(cid));
+									// read through the collection's spectrum cache
+									// file, so validating it again doesn't go back
+									// to the database for the peaks
+									preCurs = new NonZeroCursor(
+											db.getSpectrumCacheCursor(db.getCollection(cid)));
 									while (preCurs.next()) {
 										if (interruptFlag) {
 											return null;
@@ -219,7 +224,8 @@ public class ClusterValidation {
 									System.out.print((c+1)+" ");
 									subsets = new ArrayList<TreeSet<IntFloatPair>>();
 									collectionId = childrenIds.get(c);
-									preCurs = db.getBPLOnlyCursor(db.getCollection(collectionId));
+									preCurs = new NonZeroCursor(
+											db.getSpectrumCacheCursor(db.getCollection(collectionId)));
 									
 									for (int d = 0; d < numClusters; d++) {
 										subsets.add(new TreeSet<IntFloatPair>(new IntFloatComparator()));
@@ -266,7 +272,8 @@ public class ClusterValidation {
 								minInterDist = Float.MAX_VALUE;
 								for (int c = 0; c < numClusters; c++) {
 									collectionId = childrenIds.get(c);
-									preCurs = db.getBPLOnlyCursor(db.getCollection(collectionId));
+									preCurs = new NonZeroCursor(
+											db.getSpectrumCacheCursor(db.getCollection(collectionId)));
 									
 									// go through all points in cluster, compare to centroid
 									while (preCurs.next()) {
@@ -0,0 +1,328 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's MiniBatchKMeans class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.analysis.clustering;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.swing.SwingUtilities;
+
+import edu.carleton.enchilada.ATOFMS.ParticleInfo;
+import edu.carleton.enchilada.analysis.BinnedPeakList;
+import edu.carleton.enchilada.analysis.PeakTransform;
+import edu.carleton.enchilada.database.Database;
+import edu.carleton.enchilada.database.NonZeroCursor;
+import edu.carleton.enchilada.errorframework.ErrorLogger;
+
+/**
+ * Mini-batch K-Means, after Sculley, "Web-Scale K-Means Clustering" (2010).
+ * Instead of a full pass through the collection for every iteration, each
+ * iteration draws a small random batch of particles, assigns them to their
+ * nearest centroids, and moves each centroid towards its new members with a
+ * learning rate of 1 / (number of particles the centroid has been given so
+ * far).  With that rate every centroid is simply the mean of all the batch
+ * particles ever assigned to it, so it is kept as a running sum and count.
+ * 
+ * Batches are drawn from a shuffle of the collection's AtomIDs, reshuffled
+ * each time it's used up, and read through a clustering cursor limited to
+ * those atoms, so they're in the same feature space as the final pass.  Iteration stops when a smoothed average of the batch
+ * distances has not improved for a while, or after the maximum number of
+ * batches; then every particle is assigned to its nearest centroid in one
+ * full pass, just as for KMeans.  The average distance of each batch is
+ * reported in the cluster description as the convergence curve.
+ */
+public class MiniBatchKMeans extends ClusterK
+{
+	private static int batchSize = 1000;
+	private static int maxBatches = 300;
+	
+	// stop once the smoothed batch distance hasn't improved for this many batches
+	private static final int MAX_NO_IMPROVEMENT = 10;
+	
+	// average distance from each batch's particles to their nearest centroid
+	private ArrayList<Double> batchDistances = new ArrayList<Double>();
+	private double currentDistance;
+	
+	/**
+	 * Constructor.  Calls the constructor for ClusterK.
+	 * @param cID - collection ID
+	 * @param database - database interface
+	 * @param k - number of centroids desired
+	 * @param name - collection name
+	 * @param comment -comment to enter
+	 * @param initialCentroids - how to pick the initial centroids
+	 */
+	public MiniBatchKMeans(int cID, Database database, int k,
+			String name, String comment, ClusterK.CentroidsApproach initialCentroids, ClusterInformation c)
+	{
+		super(cID, database, k,
+				name.concat("MiniBatchKMeans"), comment, initialCentroids, c);
+	}
+
+	/** 
+	 * method necessary to extend from ClusterK.  Begins the clustering
+	 * process.
+	 * @param - interactive or testing mode
+	 * @return - new collection int.
+	 */
+	public int cluster(boolean interactive) {
+		if(interactive)
+			return divide();
+		else
+			return innerDivide(interactive);
+	}
+
+	/**
+	 * Centroids are accumulated as batches go by, never averaged from a
+	 * list of members.
+	 */
+	public Centroid averageCluster(
+			Centroid thisCentroid,
+			ArrayList<Integer> particlesInCentroid) {
+		throw new UnsupportedOperationException("Averaging a k-means cluster is inefficient.");
+	}
+
+	/**
+	 * Runs mini-batch iterations from the initial centroids.  The cursor is
+	 * only read here if the initial centroids still have to be picked, or
+	 * if there are no more particles than centroids.
+	 */
+	protected ArrayList<Centroid> findCentroids(ArrayList<Centroid> centroidList,
+			NonZeroCursor curs) {
+		int numParticles = getNumParticles();
+		if (numParticles <= k || (centroidList.size() > 0 && centroidList.size() != k))
+			return super.findCentroids(centroidList, curs);
+		if (centroidList.size() == 0) {
+			centroidList = chooseFarthestDistanceCentroids();
+			curs.reset();
+		}
+		
+		long beginning = System.currentTimeMillis();
+		totalDistancePerPass.clear();
+		batchDistances.clear();
+		
+		BinnedPeakList[] sums = new BinnedPeakList[k];
+		int[] counts = new int[k];
+		for (int i = 0; i < k; i++)
+			sums[i] = new BinnedPeakList();
+		
+		// the order the atoms are drawn in, reshuffled when it runs out
+		ArrayList<Integer> atoms = db.getAllDescendedAtoms(db.getCollection(collectionID));
+		int[] shuffled = new int[atoms.size()];
+		for (int i = 0; i < shuffled.length; i++)
+			shuffled[i] = atoms.get(i);
+		Random random = new Random(getRandomSeed());
+		shuffle(shuffled, random);
+		int drawn = 0;
+		// a batch is never bigger than the collection
+		int thisBatchSize = Math.min(batchSize, numParticles);
+		int[] batchIDs = new int[thisBatchSize];
+		BinnedPeakList[] batch = new BinnedPeakList[thisBatchSize];
+		int[] nearestCentroids = new int[thisBatchSize];
+		
+		// smoothed batch distance, which is what decides convergence
+		double alpha = Math.min(1.0, 2.0 * thisBatchSize / (numParticles + 1.0));
+		double smoothedDistance = Double.MAX_VALUE;
+		double bestDistance = Double.MAX_VALUE;
+		int batchesWithoutImprovement = 0;
+		
+		for (int iteration = 0; iteration < maxBatches; iteration++) {
+			// Draw the next batch, starting a new shuffle of the collection
+			// when this one runs out, and read it.
+			for (int n = 0; n < thisBatchSize; n++) {
+				if (drawn == shuffled.length) {
+					shuffle(shuffled, random);
+					drawn = 0;
+				}
+				batchIDs[n] = shuffled[drawn++];
+			}
+			NonZeroCursor sample = new NonZeroCursor(db.getClusteringCursor(
+					db.getCollection(collectionID), clusterInfo, batchIDs));
+			int batchCount = 0;
+			while (batchCount < thisBatchSize && sample.next()) {
+				ParticleInfo p = sample.getCurrent();
+				BinnedPeakList thisBinnedPeakList;
+				// safe to use original if not transforming
+				if (peakTransform != PeakTransform.NONE) {
+					thisBinnedPeakList = p.getBinnedList().copyOf();
+					thisBinnedPeakList.transformAreas(peakTransform);
+				} else {
+					thisBinnedPeakList = p.getBinnedList();
+				}
+				thisBinnedPeakList.normalize(distanceMetric,posNegNorm);
+				batch[batchCount++] = thisBinnedPeakList;
+			}
+			sample.close();
+			if (batchCount == 0)
+				break;
+			
+			// Assign the whole batch against the same centroids...
+			ArrayList<float[]> centroidArrays =
+				Cluster.generateCentroidArrays(centroidList, Cluster.ARRAYOFFSET);
+			float[] centroidMags = new float[k];
+			for (int i = 0; i < k; i++)
+				centroidMags[i] = centroidList.get(i).peaks.getMagnitude(distanceMetric);
+			double batchDistance = 0;
+			for (int n = 0; n < batchCount; n++) {
+				double nearestDistance = Double.MAX_VALUE;
+				int nearestCentroid = 0;
+				for (int curCent = 0; curCent < k; curCent++) {
+					double distance = batch[n].getDistance(
+							centroidArrays.get(curCent), centroidMags[curCent],
+							distanceMetric, Cluster.ARRAYOFFSET);
+					if (distance < nearestDistance) {
+						nearestCentroid = curCent;
+						nearestDistance = distance;
+					}
+				}
+				nearestCentroids[n] = nearestCentroid;
+				batchDistance += nearestDistance;
+			}
+			
+			// ...then move each centroid to the mean of everything it has
+			// been given, i.e. a step of 1/count towards each new member.
+			boolean[] changed = new boolean[k];
+			for (int n = 0; n < batchCount; n++) {
+				int c = nearestCentroids[n];
+				sums[c].addAnotherParticle(batch[n]);
+				counts[c]++;
+				changed[c] = true;
+				batch[n] = null;
+			}
+			for (int i = 0; i < k; i++) {
+				if (!changed[i])
+					continue;
+				BinnedPeakList mean = sums[i].copyOf();
+				mean.divideAreasBy(counts[i]);
+				mean.normalize(distanceMetric);
+				centroidList.set(i, new Centroid(mean, 0));
+			}
+			
+			currentDistance = batchDistance / batchCount;
+			batchDistances.add(currentDistance);
+			if (smoothedDistance == Double.MAX_VALUE)
+				smoothedDistance = currentDistance;
+			else
+				smoothedDistance = (1 - alpha) * smoothedDistance + alpha * currentDistance;
+			System.out.println("Mini-batch " + (iteration + 1) + ": average distance = " +
+					currentDistance + ", smoothed = " + smoothedDistance);
+			if ((iteration + 1) % 10 == 0) {
+				try {
+					SwingUtilities.invokeAndWait(new Runnable() {
+						public void run() {
+							updateErrorDialog("Mini-batch " + batchDistances.size() + 
+									": average distance = " + currentDistance);
+						}
+					});
+				} catch (InterruptedException e) {
+					// stop with the centroids found so far
+					Thread.currentThread().interrupt();
+					break;
+				} catch (InvocationTargetException e) {
+					// only the progress display failed; keep clustering
+					e.getCause().printStackTrace();
+					ErrorLogger.writeExceptionToLog("Clustering",
+							"Error updating the mini-batch progress: " + e.getCause());
+				}
+			}
+			
+			if (smoothedDistance < bestDistance) {
+				bestDistance = smoothedDistance;
+				batchesWithoutImprovement = 0;
+			}
+			else if (++batchesWithoutImprovement >= MAX_NO_IMPROVEMENT) {
+				System.out.println("Converged after " + (iteration + 1) + " mini-batches.");
+				break;
+			}
+		}
+		timeTaken += System.currentTimeMillis() - beginning;
+		System.out.println("Time taken for mini-batches (clustering): " + timeTaken);
+		return centroidList;
+	}
+	
+	/**
+	 * Fisher-Yates shuffle.
+	 */
+	private static void shuffle(int[] atomIDs, Random random) {
+		for (int i = atomIDs.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = atomIDs[i];
+			atomIDs[i] = atomIDs[j];
+			atomIDs[j] = swap;
+		}
+	}
+	
+	/**
+	 * Reports the average distance of each mini-batch rather than of each
+	 * full pass.
+	 */
+	protected void printPassDistances(PrintWriter out, int particleCount)
+	{
+		out.println("Mini-batch size = " + batchSize);
+		out.println("Total number of mini-batches = " + batchDistances.size());
+		out.println("Average distance of mini-batch points from their centers " +
+				"at each iteration:");
+		for (double distance : batchDistances)
+			out.println(distance);
+	}
+	
+	/**
+	 * The following get and set methods are used in the Advanced dialog box
+	 * for the user to input specifications.
+	 */
+	
+	public static int getBatchSize() {
+		return batchSize;
+	}
+	
+	public static void setBatchSize(int size) {
+		batchSize = Math.max(1, size);
+	}
+	
+	public static int getMaxBatches() {
+		return maxBatches;
+	}
+	
+	public static void setMaxBatches(int batches) {
+		maxBatches = Math.max(1, batches);
+	}
+}
@@ -0,0 +1,228 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's NearestNeighborChain class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.analysis.clustering;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Agglomerative clustering with Ward's linkage by the nearest-neighbor-chain
+ * algorithm.  Distances are kept in a condensed upper-triangular float
+ * array, four bytes per pair, and updated with the Lance-Williams formula
+ * for Ward's method when clusters merge.
+ * 
+ * The chain follows nearest neighbors from some cluster until it finds two
+ * clusters that are each other's nearest neighbors, and merges them.  Ward's
+ * linkage is reducible (merging two clusters never brings the result closer
+ * to a third than the nearer of the two was), so the rest of the chain stays
+ * valid after a merge.  That makes the whole thing O(n^2) time, instead of
+ * re-sorting every pair on every merge.
+ * 
+ * The chain finds merges out of distance order, so getMerges() sorts them
+ * back into the order repeatedly merging the closest pair would have found
+ * them in.  In float arithmetic the Lance-Williams update can come out a
+ * hair below the distance of the merge that made the cluster (by an ulp,
+ * say, for equidistant points), which would sort a merge ahead of one it
+ * depends on.  So each merge is recorded at no less than the heights of
+ * the two clusters it joins.
+ */
+public class NearestNeighborChain {
+	
+	/**
+	 * One merge: the cluster containing initial cluster second joins the
+	 * cluster containing initial cluster first, at the given distance.
+	 */
+	public static class Merge implements Comparable<Merge> {
+		private final int first;
+		private final int second;
+		private final float distance;
+		
+		public Merge(int first, int second, float distance) {
+			this.first = first;
+			this.second = second;
+			this.distance = distance;
+		}
+		
+		public int getFirst() {
+			return first;
+		}
+		
+		public int getSecond() {
+			return second;
+		}
+		
+		public float getDistance() {
+			return distance;
+		}
+		
+		public int compareTo(Merge other) {
+			return Float.compare(distance, other.distance);
+		}
+	}
+	
+	private final int n;
+	private final float[] distances;
+	private final int[] sizes;
+	
+	/**
+	 * @param n the number of initial clusters.  Each starts with one member.
+	 */
+	public NearestNeighborChain(int n) {
+		if ((long) n * (n - 1) / 2 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many clusters for a " +
+					"condensed distance matrix: " + n);
+		this.n = n;
+		distances = new float[(int) Math.max((long) n * (n - 1) / 2, 0)];
+		sizes = new int[n];
+		for (int i = 0; i < n; i++)
+			sizes[i] = 1;
+	}
+	
+	/**
+	 * Sets the number of members in an initial cluster, which Ward's method
+	 * weights distances by.
+	 */
+	public void setSize(int i, int size) {
+		sizes[i] = size;
+	}
+	
+	private int index(int i, int j) {
+		if (i > j) {
+			int temp = i;
+			i = j;
+			j = temp;
+		}
+		return (int) ((long) n * i - (long) i * (i + 1) / 2 + (j - i - 1));
+	}
+	
+	public void setDistance(int i, int j, float distance) {
+		distances[index(i, j)] = distance;
+	}
+	
+	public float getDistance(int i, int j) {
+		return distances[index(i, j)];
+	}
+	
+	/**
+	 * Runs the clustering.  This overwrites the distance matrix, so it can
+	 * only be done once.
+	 * @return the n - 1 merges, ordered by distance (ties in the order the
+	 * chain found them).  The distances never decrease from a cluster to
+	 * the one it's merged into, so every merge comes after the merges that
+	 * made its two clusters.
+	 */
+	public ArrayList<Merge> getMerges() {
+		ArrayList<Merge> merges = new ArrayList<Merge>(Math.max(n - 1, 0));
+		boolean[] active = new boolean[n];
+		for (int i = 0; i < n; i++)
+			active[i] = true;
+		// the distance each slot's cluster was last merged at
+		float[] heights = new float[n];
+		int[] chain = new int[n];
+		int chainLength = 0;
+		int firstActive = 0;
+		int remaining = n;
+		
+		while (remaining > 1) {
+			if (chainLength == 0) {
+				while (!active[firstActive])
+					firstActive++;
+				chain[chainLength++] = firstActive;
+			}
+			int a = chain[chainLength - 1];
+			// Prefer the previous link on ties, or the chain could cycle.
+			int previous = chainLength > 1 ? chain[chainLength - 2] : -1;
+			int nearest = previous;
+			float nearestDistance = previous == -1 ?
+					Float.POSITIVE_INFINITY : getDistance(a, previous);
+			for (int x = 0; x < n; x++) {
+				if (x == a || !active[x])
+					continue;
+				float distance = getDistance(a, x);
+				if (distance < nearestDistance || nearest == -1) {
+					nearest = x;
+					nearestDistance = distance;
+				}
+			}
+			
+			if (nearest == previous) {
+				chainLength -= 2;
+				int first = Math.min(a, previous);
+				int second = Math.max(a, previous);
+				merge(first, second, nearestDistance, active);
+				float height = Math.max(nearestDistance,
+						Math.max(heights[first], heights[second]));
+				heights[first] = height;
+				merges.add(new Merge(first, second, height));
+				remaining--;
+			}
+			else {
+				chain[chainLength++] = nearest;
+			}
+		}
+		
+		// stable, so equal distances stay in the order they were found
+		Collections.sort(merges);
+		return merges;
+	}
+	
+	/**
+	 * Merges cluster b into cluster a, updating a's distances to every
+	 * other active cluster q with the Lance-Williams formula for Ward's
+	 * method.
+	 */
+	private void merge(int a, int b, float aToBDistance, boolean[] active) {
+		int clusterASize = sizes[a];
+		int clusterBSize = sizes[b];
+		active[b] = false;
+		for (int q = 0; q < n; q++) {
+			if (!active[q] || q == a)
+				continue;
+			int clusterQSize = sizes[q];
+			float aToQDistance = getDistance(a, q);
+			float bToQDistance = getDistance(b, q);
+			float distance = ((clusterASize + clusterQSize) * aToQDistance) / (clusterASize + clusterBSize + clusterQSize) + 
+				((clusterBSize + clusterQSize) * bToQDistance) / (clusterASize + clusterBSize + clusterQSize) - 
+				((clusterQSize) * aToBDistance) / (clusterASize + clusterBSize + clusterQSize);
+			setDistance(a, q, distance);
+		}
+		sizes[a] = clusterASize + clusterBSize;
+	}
+}
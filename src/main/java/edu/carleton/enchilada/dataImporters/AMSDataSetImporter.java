@@ -3,6 +3,7 @@ package edu.carleton.enchilada.dataImporters;
 import java.awt.Window;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
@@ -10,6 +11,7 @@ import java.util.*;
 
 import javax.swing.SwingUtilities;
 import edu.carleton.enchilada.collection.Collection;
+import edu.carleton.enchilada.database.AMSBulkInserter;
 import edu.carleton.enchilada.database.Database;
 import edu.carleton.enchilada.errorframework.*;
 import edu.carleton.enchilada.gui.AMSTableModel;
@@ -27,14 +29,15 @@ public class AMSDataSetImporter {
 	protected ArrayList<Date> timeSeries = null;
 	protected ArrayList<Double> massToCharge = null;
 	
-	private String dense;
-	private ArrayList<String> sparse;
+	//the item read() just read: its nonzero values and their m/z
+	private double[] locations, values;
+	private int numValues;
 	
 	// Progress Bar variables
 	public static final String TITLE = "Importing AMS Dataset";
 	protected ProgressBarWrapper progressBar;
+	private static final int PROGRESS_STEPS = 100;
 	protected int particleNum;
-	protected int totalParticles;
 	
 	/* contains the collectionID and particleID */
 	private int[] id;
@@ -52,7 +55,7 @@ public class AMSDataSetImporter {
 	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	private final float SEC_PER_YEAR  = 31556926;
 
-	private Scanner readData; // for reading the dataset;
+	private TokenReader readData; // for reading the dataset;
 	
 	//the parent collection to import into
 	private int parentID = 0;
@@ -118,173 +121,169 @@ public class AMSDataSetImporter {
 	 * // NOTE: Datatype is already in the db.
 	 */
 	public void processDataSet(int index) throws DisplayException, WriteException {
-		boolean skipFile = false;
-		String[] AMS_tables = {"AMSAtomInfoDense", "AtomMembership", "DataSetMembers", "AMSAtomInfoSparse"};
-		try (Database.Data_bulkBucket ams_buckets = ((Database)db).getDatabulkBucket(AMS_tables)) {
-
-			progressBar.setIndeterminate(true);
-			progressBar.setText("Reading time series file");
-			//put time series file and mz file into an array, since they will
-			//be accessed in the same way for every atom.
-			Scanner readTimeSeries;
-			try {
-				readTimeSeries = new Scanner(new File(timeSeriesFile));
-			} catch (FileNotFoundException e1) {
-				throw new WriteException(timeSeriesFile + " was not found.");
-			}
-			readTimeSeries.next(); // skip name
-			timeSeries = new ArrayList<Date>();
-			BigInteger maxInt = new BigInteger("" + Integer.MAX_VALUE);
-			BigInteger bigInt;
-			String tempStr;
-			BigInteger prevBigInt = null, temp = null;
-			while (readTimeSeries.hasNext()) {
-				tempStr = readTimeSeries.next();
-				if (tempStr.indexOf('.') != -1) {
-					tempStr = tempStr.substring(0, tempStr.indexOf('.'));
-					bigInt = new BigInteger("" + tempStr);
-					bigInt = bigInt.add(new BigInteger("" + 1));
-				} else
-					bigInt = new BigInteger("" + tempStr);
-				//if this is the first time, then calculate it using the while loop.
-				if (prevBigInt == null) {
-					prevBigInt = bigInt;
-					convertedCalendar = (Calendar) startCalendar.clone();
-					while (bigInt.compareTo(maxInt) == 1) {
-						convertedCalendar.add(Calendar.SECOND, Integer.MAX_VALUE);
-						bigInt = bigInt.subtract(maxInt);
-					}
-					convertedCalendar.add(Calendar.SECOND, bigInt.intValue());
-				}
-				// else, subtract it from previous time to calculate.
-				else {
-					temp = bigInt.subtract(prevBigInt);
-					convertedCalendar.add(Calendar.SECOND, temp.intValue());
-					prevBigInt = bigInt;
+		progressBar.setIndeterminate(true);
+		progressBar.setText("Reading time series file");
+		//put time series file and mz file into an array, since they will
+		//be accessed in the same way for every atom.
+		Scanner readTimeSeries;
+		try {
+			readTimeSeries = new Scanner(new File(timeSeriesFile));
+		} catch (FileNotFoundException e1) {
+			throw new WriteException(timeSeriesFile + " was not found.");
+		}
+		readTimeSeries.next(); // skip name
+		timeSeries = new ArrayList<Date>();
+		BigInteger maxInt = new BigInteger("" + Integer.MAX_VALUE);
+		BigInteger bigInt;
+		String tempStr;
+		BigInteger prevBigInt = null, temp = null;
+		while (readTimeSeries.hasNext()) {
+			tempStr = readTimeSeries.next();
+			if (tempStr.indexOf('.') != -1) {
+				tempStr = tempStr.substring(0, tempStr.indexOf('.'));
+				bigInt = new BigInteger("" + tempStr);
+				bigInt = bigInt.add(new BigInteger("" + 1));
+			} else
+				bigInt = new BigInteger("" + tempStr);
+			//if this is the first time, then calculate it using the while loop.
+			if (prevBigInt == null) {
+				prevBigInt = bigInt;
+				convertedCalendar = (Calendar) startCalendar.clone();
+				while (bigInt.compareTo(maxInt) == 1) {
+					convertedCalendar.add(Calendar.SECOND, Integer.MAX_VALUE);
+					bigInt = bigInt.subtract(maxInt);
 				}
-				timeSeries.add(convertedCalendar.getTime());
-			}
-			readTimeSeries.close();
-
-			progressBar.setText("Reading m/z file");
-			Scanner readMZ;
-			try {
-				readMZ = new Scanner(new File(massToChargeFile));
-			} catch (FileNotFoundException e1) {
-				throw new WriteException(massToChargeFile + " was not found.");
+				convertedCalendar.add(Calendar.SECOND, bigInt.intValue());
 			}
-			readMZ.next(); // skip name
-			massToCharge = new ArrayList<Double>();
-			while (readMZ.hasNext()) {
-				massToCharge.add(readMZ.nextDouble());
+			// else, subtract it from previous time to calculate.
+			else {
+				temp = bigInt.subtract(prevBigInt);
+				convertedCalendar.add(Calendar.SECOND, temp.intValue());
+				prevBigInt = bigInt;
 			}
-			readMZ.close();
+			timeSeries.add(convertedCalendar.getTime());
+		}
+		readTimeSeries.close();
 
-			// create empty collection.
-			try {
-				id = db.createEmptyCollectionAndDataset("AMS", parentID, getName(), "AMS import",
-						"'" + datasetName + "','" + timeSeriesFile + "','" + massToChargeFile + "'");
-			} catch (FileNotFoundException e1) {
-				throw new WriteException("Attempt to get name for collection not" +
-						" found because the file was not found.");
-			}
+		progressBar.setText("Reading m/z file");
+		Scanner readMZ;
+		try {
+			readMZ = new Scanner(new File(massToChargeFile));
+		} catch (FileNotFoundException e1) {
+			throw new WriteException(massToChargeFile + " was not found.");
+		}
+		readMZ.next(); // skip name
+		massToCharge = new ArrayList<Double>();
+		while (readMZ.hasNext()) {
+			massToCharge.add(readMZ.nextDouble());
+		}
+		readMZ.close();
 
+		// create empty collection.
+		try {
+			id = db.createEmptyCollectionAndDataset("AMS", parentID, getName(), "AMS import",
+					"'" + datasetName + "','" + timeSeriesFile + "','" + massToChargeFile + "'");
+		} catch (FileNotFoundException e1) {
+			throw new WriteException("Attempt to get name for collection not" +
+					" found because the file was not found.");
+		}
 
-			// get total number of particles for progress bar.
-			progressBar.setText("Finding number of items");
-			try {
-				readData = new Scanner(new File(datasetName));
-			} catch (FileNotFoundException e1) {
-				throw new WriteException(datasetName + " was not found.");
-			}
-			readData.next();//skip name
-			int tParticles = 0;
-			while (readData.hasNextLine()) {
-				//Items are stored in matrix format: one line per item, with
-				//	massToCharge.size() number of space-separated values per line
-				readData.nextLine();
-				tParticles++;
-			}
-			readData.close();
-			final int totalParticles = tParticles - 1;
-			System.out.println("total items: " + totalParticles);
-			progressBar.setMaximum((totalParticles / 10) + 1);
-			progressBar.setIndeterminate(false);
 
-			try {
-				Collection destination = db.getCollection(id[0]);
+		try {
+			readData = new TokenReader(new File(datasetName));
+		} catch (FileNotFoundException e1) {
+			throw new WriteException(datasetName + " was not found.");
+		} catch (IOException e1) {
+			throw new WriteException(datasetName + " could not be read.");
+		}
+		progressBar.setMaximum(PROGRESS_STEPS);
+		progressBar.setIndeterminate(false);
 
-				readData = new Scanner(new File(datasetName));
-				readData.next(); // skip name
+		try {
+			Collection destination = db.getCollection(id[0]);
 
-				//for skipped particles with no sparse information
-				java.util.Vector<Integer> nodataParticles = new java.util.Vector<Integer>();
+			readData.skip(); // skip name
+			locations = new double[massToCharge.size()];
+			values = new double[massToCharge.size()];
+
+			//for skipped particles with no sparse information
+			java.util.Vector<Integer> nodataParticles = new java.util.Vector<Integer>();
+			AMSBulkInserter inserter = new AMSBulkInserter(db, destination, id[1]);
+			try {
 				particleNum = 0;
-				int nextID = db.getNextID();
+				int step = -1;
 				while (readData.hasNext()) { // repeat until end of file.
-					if (particleNum % 10 == 0 && particleNum >= 10) {
-						String barText = "Importing Item # " + particleNum + " out of "
-								+ totalParticles;
-						if (nodataParticles.size() > 0)
-							barText += ", " + nodataParticles.size() + " have no data";
-						progressBar.increment(barText);
-					}
-					read(particleNum, nextID);
-					if (sparse != null && sparse.size() > 0) {
-						//db.insertParticle(dense,sparse,destination,id[1],nextID);
-						((Database) db).saveDataParticle(dense, sparse, destination, id[1], nextID, ams_buckets);
-						nextID++;
+					if (progressBar.wasTerminated())
+						throw new InterruptedException();
+					read(particleNum);
+					if (numValues > 0) {
+						inserter.addItem(timeSeries.get(particleNum), locations, values, numValues);
 					} else {
 						nodataParticles.add(particleNum);
 					}
 					particleNum++;
-				}
-				progressBar.setIndeterminate(true);
-				progressBar.setText("Inserting Items...");
-				((Database) db).BulkInsertDataParticles(ams_buckets);
-				((Database) db).updateInternalAtomOrder(destination);
-				//write information on no-data particles to Collection Information tab
-				if (nodataParticles.size() > 0) {
-					StringBuffer desc =
-							new StringBuffer(db.getCollectionDescription(destination.getCollectionID()));
-					desc.append("\n");
-					desc.append(nodataParticles.size());
-					desc.append(" items had no associated m/z spectrum data and were " +
-							"skipped during import. Their original indices are:\n");
-					Integer cur = null;
-					java.util.Iterator i = nodataParticles.iterator();
-					while (i.hasNext()) {
-						desc.append(((Integer) i.next()).intValue());
-						if (i.hasNext())
-							desc.append(", ");
+
+					int newStep = (int) (readData.getPosition() * PROGRESS_STEPS / Math.max(readData.length(), 1));
+					if (newStep != step) {
+						step = newStep;
+						String barText = "Importing Item # " + particleNum + " (" + step + "% of the file)";
+						if (nodataParticles.size() > 0)
+							barText += ", " + nodataParticles.size() + " have no data";
+						progressBar.setValue(step);
+						progressBar.setText(barText);
 					}
-					db.setCollectionDescription(destination, desc.toString());
 				}
-
-				//percolate possession of new atoms up the hierarchy
-				progressBar.setText("Updating Ancestors...");
+				inserter.close();
+			} catch (Exception e) {
+				// drop the items that weren't written yet, and give the
+				// ancestors the ones that were, so the collection stays whole
+				inserter.abort();
 				db.propagateNewCollection(destination);
+				throw e;
+			} finally {
 				readData.close();
+			}
+			progressBar.setIndeterminate(true);
+			//write information on no-data particles to Collection Information tab
+			if (nodataParticles.size() > 0) {
+				StringBuffer desc =
+						new StringBuffer(db.getCollectionDescription(destination.getCollectionID()));
+				desc.append("\n");
+				desc.append(nodataParticles.size());
+				desc.append(" items had no associated m/z spectrum data and were " +
+						"skipped during import. Their original indices are:\n");
+				Integer cur = null;
+				java.util.Iterator i = nodataParticles.iterator();
+				while (i.hasNext()) {
+					desc.append(((Integer) i.next()).intValue());
+					if (i.hasNext())
+						desc.append(", ");
+				}
+				db.setCollectionDescription(destination, desc.toString());
+			}
 
-			} catch (Exception e) {
+			//percolate possession of new atoms up the hierarchy
+			progressBar.setText("Updating Ancestors...");
+			db.propagateNewCollection(destination);
 
-				if (e instanceof ExceptionAdapter && ((ExceptionAdapter) e).originalException instanceof SQLException) {
-					throw (ExceptionAdapter) e;
-				}
-				try {
-					e.printStackTrace();
-					final String exception = e.toString();
-					SwingUtilities.invokeAndWait(new Runnable() {
-						public void run() {
-							// don't throw an exception here because we want to keep going:
-							ErrorLogger.writeExceptionToLogAndPrompt("Importing", "Corrupt datatset file or particle: " + exception);
-						}
-					});
-				} catch (Exception e2) {
-					e2.printStackTrace();
-					// don't throw exception here because we want to keep going:
-					ErrorLogger.writeExceptionToLogAndPrompt("Importing", "ParticleException: " + e2.toString());
-				}
+		} catch (Exception e) {
+
+			if (e instanceof ExceptionAdapter && ((ExceptionAdapter) e).originalException instanceof SQLException) {
+				throw (ExceptionAdapter) e;
+			}
+			try {
+				e.printStackTrace();
+				final String exception = e.toString();
+				SwingUtilities.invokeAndWait(new Runnable() {
+					public void run() {
+						// don't throw an exception here because we want to keep going:
+						ErrorLogger.writeExceptionToLogAndPrompt("Importing", "Corrupt datatset file or particle: " + exception);
+					}
+				});
+			} catch (Exception e2) {
+				e2.printStackTrace();
+				// don't throw exception here because we want to keep going:
+				ErrorLogger.writeExceptionToLogAndPrompt("Importing", "ParticleException: " + e2.toString());
 			}
 		}
 	}
@@ -336,21 +335,20 @@ public class AMSDataSetImporter {
 	}
 	
 	/** 
-	 * constructs a dense list and a sparse list for the atom at the given
-	 * position in the data file.  These are global variables.
-	 * @return
+	 * Reads the values for the atom at the given position in the data file,
+	 * keeping the ones that aren't 0 or -999 in locations and values.  These
+	 * are global variables.
 	 */
-	public void read(int particleNum, int nextID) {
-		// populate dense string
-		//dense = "'"+dateFormat.format(timeSeries.get(particleNum))+"'";
-		dense = dateFormat.format(timeSeries.get(particleNum));
-		sparse = new ArrayList<String>();
+	public void read(int particleNum) throws IOException {
+		numValues = 0;
 		double tempNum;
 		for (int i = 0; i < massToCharge.size(); i++) {
 			tempNum = readData.nextDouble();
-			//System.out.println(tempNum);
-			if (tempNum != 0.0 && tempNum != -999.0)
-				sparse.add(massToCharge.get(i)+","+tempNum);
+			if (tempNum != 0.0 && tempNum != -999.0) {
+				locations[numValues] = massToCharge.get(i);
+				values[numValues] = tempNum;
+				numValues++;
+			}
 		}	
 	}
 	
@@ -44,9 +44,11 @@
  */
 package edu.carleton.enchilada.dataImporters;
 
+import edu.carleton.enchilada.database.ATOFMSBulkInserter;
 import edu.carleton.enchilada.database.Database;
 import edu.carleton.enchilada.errorframework.DisplayException;
 import edu.carleton.enchilada.errorframework.ErrorLogger;
+import edu.carleton.enchilada.errorframework.ExceptionAdapter;
 import edu.carleton.enchilada.gui.*;
 
 import java.io.BufferedReader;
@@ -54,6 +56,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.sql.SQLException;
 
 import edu.carleton.enchilada.ATOFMS.*;
 
@@ -66,6 +69,12 @@ import java.util.Scanner;
 import java.util.StringTokenizer;
 import java.util.zip.DataFormatException;
 import java.util.Date;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 import edu.carleton.enchilada.collection.Collection;
@@ -94,6 +103,11 @@ public class ATOFMSDataSetImporter {
 	private float peakError;
 	private boolean autoCal;
 	
+	// Number of threads reading spectrum files during an import
+	private static int numReaderThreads = Runtime.getRuntime().availableProcessors();
+	// How many spectra each reader may get ahead of the database writer
+	private static final int READ_AHEAD_PER_THREAD = 64;
+
 	// Progress Bar variables
 	protected ProgressBarWrapper progressBar;
 	public static final String title = "Importing ATOFMS DataSet";
@@ -104,7 +118,6 @@ public class ATOFMSDataSetImporter {
 	/* contains the collectionID and particleID */
 	protected int[] id;
 	protected int collectionIndex, numCollections;
-	protected Integer nextAtomID;
 	protected Integer particleNumber;
 	protected int[] numParticles;
 	protected Collection[] collections;
@@ -128,7 +141,6 @@ public class ATOFMSDataSetImporter {
 		table = t;
 		mainFrame = mf;
 		this.progressBar = progressBar;
-		nextAtomID = new Integer(-1);
 		particleNumber = 0;
 		thisRef = this;
 	}
@@ -393,7 +405,6 @@ public class ATOFMSDataSetImporter {
 			int particleNum = 0;
 			Collection destination = db.getCollection(id[0]);
 			collections[collectionIndex] = destination;
-			ATOFMSParticle currentParticle;
 			Date d;
 			DateFormat df = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
 			Scanner readSet = new Scanner(new File(name));
@@ -402,56 +413,69 @@ public class ATOFMSDataSetImporter {
 			StringTokenizer token;
 			String particleFileName;
 			//int doDisplay = 4;
-			int nextID = db.getNextID();
 			Collection curCollection = db.getCollection(id[0]);
-			while (readSet.hasNextLine()) { // repeat until end of file.
-
-				if (progressBar.wasTerminated()) {
-					throw new InterruptedException();
-				}
+			// particles are committed in batches rather than one at a time
+			ATOFMSBulkInserter inserter = new ATOFMSBulkInserter(db, destination, id[1]);
+			// The spectrum files are read and their peaks found on a pool of
+			// reader threads, while this thread writes the particles out in
+			// the order the .set file lists them, so AtomIDs come out the same
+			// as a one-thread import would give them.  Only so many reads are
+			// allowed to get ahead of the writer, to bound the memory used.
+			ExecutorService readers = Executors.newFixedThreadPool(numReaderThreads);
+			ArrayDeque<Future<ATOFMSParticle>> pending = new ArrayDeque<>();
+			int readAhead = numReaderThreads * READ_AHEAD_PER_THREAD;
+			try {
+				while (readSet.hasNextLine()) { // repeat until end of file.
 
-				token = new StringTokenizer(readSet.nextLine(), ",");
-				// .set files are sometimes made with really strange line delims,
-				// so we ignore empty lines.
-				if (!token.hasMoreTokens()) {
-					continue;
-				}
+					if (progressBar.wasTerminated()) {
+						throw new InterruptedException();
+					}
 
-				token.nextToken();
-				String particleName = token.nextToken().replace('\\', File.separatorChar);
-				particleFileName = grandParent.toString() + File.separator + particleName;
+					token = new StringTokenizer(readSet.nextLine(), ",");
+					// .set files are sometimes made with really strange line delims,
+					// so we ignore empty lines.
+					if (!token.hasMoreTokens()) {
+						continue;
+					}
 
-				for (int i = 0; i < 3; i++) {
 					token.nextToken();
-				}
-
-				String time = token.nextToken();
-				d = df.parse(time);
+					String particleName = token.nextToken().replace('\\', File.separatorChar);
+					particleFileName = grandParent.toString() + File.separator + particleName;
 
-				try {
-					ReadSpec read = new ReadSpec(particleFileName, d);
-
-					currentParticle = read.getParticle();
-
-					((Database) db).insertParticle(
-							currentParticle.particleInfoDenseString(db.getDateFormat()),
-							currentParticle.getSparsePeakMap().values(),
-							destination, id[1], nextID, true);
+					for (int i = 0; i < 3; i++) {
+						token.nextToken();
+					}
 
-					nextID++;
-					particleNum++;
-					if (particleNum > 0) {
-						progressBar.setValue(particleNum);
-						progressBar.setText(
-								"Importing Particle # " + particleNum + " out of " + numParticles[collectionIndex]);
+					String time = token.nextToken();
+					d = df.parse(time);
 
+					pending.add(readers.submit(new ReadTask(particleFileName, d)));
+					if (pending.size() >= readAhead) {
+						particleNum = writeParticle(pending.poll(), inserter, particleNum);
 					}
-				} catch (FileNotFoundException e) {
-					ErrorLogger.writeExceptionToLogAndPrompt("Importing",
-															 "Particle listed in .set file but file is missing.");
-
+				} //***SLH
+				while (!pending.isEmpty()) {
+					if (progressBar.wasTerminated()) {
+						throw new InterruptedException();
+					}
+					particleNum = writeParticle(pending.poll(), inserter, particleNum);
 				}
-			} //***SLH
+				inserter.close();
+			} catch (SQLException e) {
+				inserter.abort();
+				ErrorLogger.writeExceptionToLogAndPrompt(db.getName(),
+						"SQL Exception inserting atom.  Please check incoming data for correct format.");
+				System.err.println("Exception inserting particle.");
+				e.printStackTrace();
+			} catch (Exception e) {
+				// drop the particles that weren't written yet, and give the
+				// ancestors the ones that were, so the collection stays whole
+				inserter.abort();
+				db.propagateNewCollection(curCollection);
+				throw e;
+			} finally {
+				readers.shutdownNow();
+			}
 			//Percolate new atoms upward
 			db.propagateNewCollection(curCollection);
 			readSet.close();
@@ -462,6 +486,79 @@ public class ATOFMSDataSetImporter {
 
 	}
 
+	/**
+	 * Reads one spectrum file and finds its peaks.  Run on the reader
+	 * threads.
+	 */
+	private static class ReadTask implements Callable<ATOFMSParticle> {
+		private final String fileName;
+		private final Date time;
+
+		ReadTask(String fileName, Date time) {
+			this.fileName = fileName;
+			this.time = time;
+		}
+
+		public ATOFMSParticle call() throws IOException {
+			SpectrumReader reader = SpectrumReader.forThread();
+			if (!reader.read(fileName))
+				throw new IOException(fileName + " is not an .ams or .amz file.");
+			ATOFMSParticle particle = new ATOFMSParticle(fileName, time,
+					reader.getLaserPower(), reader.getDigitRate(),
+					reader.getScatDelay(), reader.getPosSpectrum(),
+					reader.getNegSpectrum());
+			particle.getPeakList();
+			// The spectra are the reader's, and the next file this thread
+			// reads goes into them.  Only the peaks get written.
+			particle.posSpectrum = null;
+			particle.negSpectrum = null;
+			return particle;
+		}
+	}
+
+	/**
+	 * Waits for a spectrum to be read, and queues it up to be written.
+	 * Missing files are reported and skipped, as they always have been.
+	 * @return the number of particles written so far
+	 */
+	private int writeParticle(Future<ATOFMSParticle> read, ATOFMSBulkInserter inserter,
+			int particleNum) throws IOException, SQLException, InterruptedException {
+		ATOFMSParticle currentParticle;
+		try {
+			currentParticle = read.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof FileNotFoundException) {
+				ErrorLogger.writeExceptionToLogAndPrompt("Importing",
+														 "Particle listed in .set file but file is missing.");
+				return particleNum;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Exception) {
+				throw new ExceptionAdapter((Exception) cause);
+			} else {
+				throw (Error) cause;
+			}
+		}
+		inserter.addParticle(currentParticle);
+
+		particleNum++;
+		progressBar.setValue(particleNum);
+		progressBar.setText(
+				"Importing Particle # " + particleNum + " out of " + numParticles[collectionIndex]);
+		return particleNum;
+	}
+
+	public static int getNumReaderThreads() {
+		return numReaderThreads;
+	}
+
+	public static void setNumReaderThreads(int threads) {
+		numReaderThreads = Math.max(1, threads);
+	}
+
 	// tests for .par version (.ams,.amz)
 	// String[] returned is Name, Comment, and Description.
 	public String[] parVersion() throws IOException, DataFormatException {
@@ -509,11 +606,6 @@ public class ATOFMSDataSetImporter {
 		}
 	}
 	
-	private synchronized Integer getNextAtomID(){
-		if(nextAtomID < 0)nextAtomID = db.getNextID();
-		nextAtomID++;
-		return nextAtomID -1;
-	}
 	public void setParentID(int parentID) {
 		this.parentID = parentID;
 	}
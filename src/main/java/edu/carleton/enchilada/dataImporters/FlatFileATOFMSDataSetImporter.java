@@ -44,13 +44,16 @@
  */
 package edu.carleton.enchilada.dataImporters;
 
+import edu.carleton.enchilada.database.ATOFMSBulkInserter;
 import edu.carleton.enchilada.database.Database;
 import edu.carleton.enchilada.errorframework.DisplayException;
 import edu.carleton.enchilada.errorframework.ErrorLogger;
+import edu.carleton.enchilada.errorframework.ExceptionAdapter;
 import edu.carleton.enchilada.gui.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 
 import edu.carleton.enchilada.ATOFMS.*;
 
@@ -98,7 +101,6 @@ public class FlatFileATOFMSDataSetImporter {
 	protected ArrayList<Integer> mz;
 	int[] posSpec;
 	int[] negSpec;
-	protected Integer nextAtomID;
 	protected Integer particleNumber;
 	protected Collection collection;
 	private final FlatFileATOFMSDataSetImporter thisRef;
@@ -117,7 +119,6 @@ public class FlatFileATOFMSDataSetImporter {
 	public FlatFileATOFMSDataSetImporter(Window mf, Database db,  ProgressBarWrapper progressBar) {
 		parent = mf;
 		this.progressBar = progressBar;
-		nextAtomID = new Integer(-1);
 		particleNumber = 0;
 		thisRef = this;
 		this.db = db;
@@ -208,59 +209,69 @@ public class FlatFileATOFMSDataSetImporter {
 	throws IOException, NumberFormatException, InterruptedException, DisplayException{
 		//Read spectra & create particle.
 		
-		//***SLH
-		final String[] ATOFMS_tables = {"ATOFMSAtomInfoDense", "AtomMembership", "DataSetMembers", "ATOFMSAtomInfoSparse","InternalAtomOrder"};
-		try (Database.Data_bulkBucket ATOFMS_buckets = ((Database)db).getDatabulkBucket(ATOFMS_tables)) {
-			int numParticles = this.getNumParticles();
-			if (spassFile.isFile()) {
+		int numParticles = this.getNumParticles();
+		if (spassFile.isFile()) {
 
-				progressBar.setMaximum(numParticles);
-				progressBar.reset();
+			progressBar.setMaximum(numParticles);
+			progressBar.reset();
 
-				int particleNum = 0;
-				collection = db.getCollection(id[0]);
-				FlatFileATOFMSParticle currentParticle;
-				Scanner readSet = new Scanner(spassFile);
-				readSet.useDelimiter("\r\n");
-				String header = readSet.nextLine();
-				setParameters(header);
+			int particleNum = 0;
+			collection = db.getCollection(id[0]);
+			FlatFileATOFMSParticle currentParticle;
+			Scanner readSet = new Scanner(spassFile);
+			readSet.useDelimiter("\r\n");
+			String header = readSet.nextLine();
+			setParameters(header);
 
 
-				StringTokenizer token;
-				String particleFileName;
-				//int doDisplay = 4;
-				int nextID = db.getNextID();
-				Collection curCollection = db.getCollection(id[0]);
-				while (readSet.hasNextLine()) { // repeat until end of file.
+			StringTokenizer token;
+			String particleFileName;
+			//int doDisplay = 4;
+			Collection curCollection = db.getCollection(id[0]);
+			ATOFMSBulkInserter inserter = new ATOFMSBulkInserter(db, collection, id[1]);
+			ATOFMSBulkInserter.Peaks peaks = new ATOFMSBulkInserter.Peaks();
+			try {
+				try {
+					while (readSet.hasNextLine()) { // repeat until end of file.
 
-					if (progressBar.wasTerminated()) {
-						throw new InterruptedException();
-					}
-					String line = readSet.nextLine();
+						if (progressBar.wasTerminated()) {
+							throw new InterruptedException();
+						}
+						String line = readSet.nextLine();
 
-					currentParticle = this.getParticle(line);
-					((Database) db).saveDataParticle(
-							currentParticle.particleInfoDenseStr(db.getDateFormat()),
-							currentParticle.particleInfoSparseString(),
-							collection, id[1], nextID, ATOFMS_buckets);
+						currentParticle = this.getParticle(line);
+						peaks.clear();
+						for (ATOFMSPeak peak : currentParticle.getSparsePeakMap().values())
+							peaks.add(peak.massToCharge, peak.area, peak.relArea, peak.height);
+						inserter.addParticle(currentParticle.time, currentParticle.laserPower,
+								currentParticle.size, currentParticle.scatDelay,
+								currentParticle.filename.trim(), peaks);
 
-					nextID++;
-					particleNum++;
-					if (particleNum % 10 == 0 && particleNum > 0) {
-						progressBar.setValue(particleNum);
-						progressBar.setText("Importing Particle # " + particleNum + " out of " + numParticles);
+						particleNum++;
+						if (particleNum % 10 == 0 && particleNum > 0) {
+							progressBar.setValue(particleNum);
+							progressBar.setText("Importing Particle # " + particleNum + " out of " + numParticles);
 
+						}
 					}
-				} //***SLH
-				((Database) db).BulkInsertDataParticles(ATOFMS_buckets);
-				//Percolate new atoms upward
-				db.propagateNewCollection(curCollection);
-				readSet.close();
-
-			} else {
-				ErrorLogger.displayException(progressBar,
-						"Dataset has no hits because " + name + " does not exist.");
+					inserter.close();
+				} catch (Exception e) {
+					// drop the particles that weren't written yet, and give the
+					// ancestors the ones that were, so the collection stays whole
+					inserter.abort();
+					db.propagateNewCollection(curCollection);
+					throw e;
+				}
+			} catch (SQLException e) {
+				throw new ExceptionAdapter(e);
 			}
+			//Percolate new atoms upward
+			db.propagateNewCollection(curCollection);
+			readSet.close();
+
+		} else {
+			ErrorLogger.displayException(progressBar,
+					"Dataset has no hits because " + name + " does not exist.");
 		}
 	}
 	
@@ -343,11 +354,6 @@ public class FlatFileATOFMSDataSetImporter {
 
 	
 	
-	private synchronized Integer getNextAtomID(){
-		if(nextAtomID < 0)nextAtomID = db.getNextID();
-		nextAtomID++;
-		return nextAtomID -1;
-	}
 	public void setParentID(int parentID) {
 		this.parentID = parentID;
 	}
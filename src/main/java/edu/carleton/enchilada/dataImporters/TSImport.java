@@ -380,6 +380,7 @@ public class TSImport{
     	
     	}
     	ins.commit();
+    	ins.close();
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,318 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's TextDataSetImporter class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.dataImporters;
+
+import java.awt.Window;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Date;
+
+import javax.swing.SwingUtilities;
+import javax.swing.table.TableModel;
+
+import edu.carleton.enchilada.collection.Collection;
+import edu.carleton.enchilada.database.ATOFMSBulkInserter;
+import edu.carleton.enchilada.database.Database;
+import edu.carleton.enchilada.errorframework.*;
+import edu.carleton.enchilada.gui.ProgressBarWrapper;
+
+/**
+ * The part the SPASS, SPLAT, PALMS and PKL importers have in common.  Each
+ * of those formats is one text file per dataset, with some sort of header
+ * and then one particle after another, which go into the database as
+ * ATOFMS particles.
+ * <p>
+ * The file is read once, through a TokenReader; progress is shown as how
+ * far into the file the import is, rather than counting the particles
+ * first.  A subclass reads the header in readHeader() and each particle in
+ * readParticle(), which fills in the particle fields here, and the
+ * particles are written through an ATOFMSBulkInserter as they're read.
+ * Particles without any peaks are left out.  Another text format of ATOFMS
+ * particles only needs a subclass with those two methods.
+ */
+public abstract class TextDataSetImporter {
+	private TableModel table;
+	
+	//Table values - used repeatedly.
+	protected int rowCount;
+	protected String datasetName = "";
+	
+	// Progress Bar variables
+	private static final int PROGRESS_STEPS = 100;
+	protected ProgressBarWrapper progressBar;
+	protected int particleNum;
+	
+	/* contains the collectionID and particleID */
+	private int[] id;
+	protected int positionInBatch, totalInBatch;
+	
+	/* Database object */
+	Database db;
+	
+	//the parent collection to import into
+	private int parentID = 0;
+	
+	private final String format, title;
+	
+	//The particle readParticle() just read.  The peaks are cleared before
+	//each particle; the rest are left from the last one.
+	protected Date time;
+	protected double laserPower, size;
+	protected int scatDelay;
+	protected String fileName;
+	protected final ATOFMSBulkInserter.Peaks peaks = new ATOFMSBulkInserter.Peaks();
+	
+	/**
+	 * @param format the name of the format, such as "SPASS"
+	 * @param title the title of the progress bar
+	 */
+	protected TextDataSetImporter(TableModel t, Window mf, Database db,
+			ProgressBarWrapper pbar, String format, String title) {
+		table = t; //The gui table with multiple datasets
+		this.db = db;
+		progressBar = pbar;
+		this.format = format;
+		this.title = title;
+	}
+	
+	/**
+	 * Opens the dataset.  Whitespace separates the tokens unless this is
+	 * overridden.
+	 */
+	protected TokenReader open(File file) throws IOException {
+		return new TokenReader(file);
+	}
+	
+	/**
+	 * Reads whatever comes before the first particle.
+	 */
+	protected abstract void readHeader(TokenReader in) throws IOException;
+	
+	/**
+	 * Reads the next particle into the particle fields.
+	 */
+	protected abstract void readParticle(TokenReader in) throws IOException;
+	
+	/**
+	 * @return the comment to give the new collection
+	 */
+	protected String getComment() {
+		return format + " Import dummy ATOFMS";
+	}
+	
+	/**
+	 * Loops through each gui row, collects the information, and processes the
+	 * _datasets_ row by row.
+	 * @throws WriteException 
+	 */
+	public void collectTableInfo() throws DisplayException, WriteException {
+
+		rowCount = table.getRowCount()-1;
+		totalInBatch = rowCount;
+		//Loops through each dataset and creates each collection.
+		for (int i=0;i<rowCount;i++) {
+			try {
+				// Indicate progress for this dataset
+				progressBar.reset();
+				progressBar.setTitle(title+": "+(i+1)+" of "+rowCount);
+				
+				// Table values for this row.
+				datasetName = (String)table.getValueAt(i,1);
+				
+				System.out.println(datasetName);
+				
+				positionInBatch = i + 1;
+				processDataSet(i);
+
+			} catch (DisplayException e) {
+				throw new DisplayException(datasetName + " failed to import. Exception: " + e.toString());
+			} catch (WriteException e) {
+				throw new WriteException(datasetName + " failed to import.  Exception: " + e.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Dumps data from particles in .txt as ATOFMS into database.
+	 * 
+	 * // NOTE: Datatype is already in the db.
+	 */
+	public void processDataSet(int index) throws DisplayException, WriteException {
+		TokenReader in = null;
+		try {
+			progressBar.setIndeterminate(true);
+			progressBar.setText("Reading data headers");
+			try {
+				in = open(new File(datasetName));
+			} catch (FileNotFoundException e1) {
+				throw new WriteException(datasetName+" was not found.");
+			}
+			readHeader(in);
+
+			//Create empty ATOFMS collection
+			id = db.createEmptyCollectionAndDataset("ATOFMS",parentID,getName(),
+					getComment(),
+					"'" + format + "','" + format + "'," +
+							"0" + "," + "0"  + "," + "0" + ",0");
+			Collection destination = db.getCollection(id[0]);
+
+			progressBar.setMaximum(PROGRESS_STEPS);
+			progressBar.setIndeterminate(false);
+			
+			ATOFMSBulkInserter inserter = new ATOFMSBulkInserter(db, destination, id[1]);
+			try {
+				//Loop through particles in file
+				particleNum = 0;
+				int step = -1;
+				while (in.hasNext()) { // repeat until end of file.
+					if (progressBar.wasTerminated())
+						throw new InterruptedException();
+					
+					peaks.clear();
+					readParticle(in); //READ IN PARTICLE DATA HERE
+					
+					//Only copy in particles with peaks
+					if (peaks.size() > 0)
+						inserter.addParticle(time, laserPower, size, scatDelay, fileName, peaks);
+					particleNum++;
+					
+					int newStep = (int) (in.getPosition() * PROGRESS_STEPS / Math.max(in.length(), 1));
+					if (newStep != step) {
+						step = newStep;
+						progressBar.setValue(step);
+						progressBar.setText("Importing Item # " + particleNum + " (" + step + "% of the file)");
+					}
+				}
+				inserter.close();
+			} catch (Exception e) {
+				// drop the particles that weren't written yet, and give the
+				// ancestors the ones that were, so the collection stays whole
+				inserter.abort();
+				db.propagateNewCollection(destination);
+				throw e;
+			}
+			
+			//percolate possession of new atoms up the hierarchy
+			progressBar.setIndeterminate(true);
+			progressBar.setText("Updating Ancestors...");
+			db.propagateNewCollection(destination);
+		}catch (Exception e) {
+			try {
+				e.printStackTrace();
+				final String exception = e.toString();
+				SwingUtilities.invokeAndWait(new Runnable() {
+					public void run()
+					{
+						// don't throw an exception here because we want to keep going:
+						ErrorLogger.writeExceptionToLogAndPrompt("Importing",
+								"Corrupt datatset file or particle: "+ exception);
+					}
+				});
+			} catch (Exception e2) {
+				e2.printStackTrace();
+				// don't throw exception here because we want to keep going:
+				ErrorLogger.writeExceptionToLogAndPrompt("Importing","ParticleException: "+e2.toString());
+			}
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Removes the file extension and directory information 
+	 * from datasetName and returns the collection name. 
+	 * @return String
+	 * @author rzeszotj
+	 */
+	public String getName(){
+		Character c1 = '.';
+		Character c2 = '\\';
+		
+		if (!(datasetName == null)){
+			int begin = 0;
+			int end = datasetName.length() - 1;
+			for (int i = (datasetName.length()-1); i >= 0; i--) {
+				Character c3 = datasetName.charAt(i);
+				if (c1.equals(c3))
+					end = i;
+				if (c2.equals(c3)){
+					begin = i+1;
+					return datasetName.substring(begin,end);
+				}
+			}
+			return datasetName;//datasetName had no extension etc.
+		}
+		//For some reason datasetName doesn't exist
+		return format + " data";
+	}
+	
+	/**
+	 * Change the parent collection for incoming datasets from its default of 0
+	 * @param id the parent collection ID
+	 * @author shaferia
+	 */
+	public void setParentID(int id) {
+		parentID = id;
+	}
+	
+	public void errorCheck() throws DisplayException{
+		String name;
+		File d;
+		for (int i=0;i<table.getRowCount()-1;i++) {
+			name = (String)table.getValueAt(i,1);
+			//Check to make sure that .txt files are present.
+			if (name.equals(".txt file") || name.equals("")) 
+				throw new DisplayException("You must enter a data file at row # " + (i+1) + ".");
+			
+			// check to make sure all files are valid:
+			d = new File(name);
+			if (!d.exists()) {
+				throw new DisplayException("The file " + name +" does not exist.");
+			}
+		}
+	}
+}
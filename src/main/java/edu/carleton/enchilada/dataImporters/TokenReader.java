@@ -0,0 +1,353 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's TokenReader class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.dataImporters;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the tokens of a text data file in one pass, the way the importers
+ * used to with a Scanner, but straight out of a byte buffer: numbers are
+ * parsed where they lie, and only the tokens asked for as Strings become
+ * Strings.  It also knows how far into the file it is, so an importer can
+ * show its progress without counting the lines first.
+ * <p>
+ * By default tokens are separated by whitespace.  Given separator
+ * characters instead, a token runs until one of them or the end of the
+ * line, with the spaces at either end trimmed off, so a token can have
+ * spaces inside it (PKL dates do).  A run of separators counts as one.
+ * <p>
+ * nextLine() and skipLine() work like Scanner.nextLine(): after a token,
+ * they give the rest of its line.  Files are taken to be UTF-8, or ASCII.
+ */
+public class TokenReader implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
+	
+	private static final byte TOKEN = 0, SPACE = 1, LINE = 2, SEPARATOR = 3;
+	
+	// the doubles that a long of up to 2^53 can be multiplied or divided
+	// by without rounding twice
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long EXACT_MANTISSA = 1L << 53;
+	
+	private final InputStream in;
+	private final long length;
+	private final byte[] kinds = new byte[256];
+	private final boolean spacesSeparate;
+	
+	private byte[] buf = new byte[BUFFER_SIZE];
+	// the file offset of buf[0]
+	private long bufStart = 0;
+	private int pos = 0, limit = 0;
+	// the last token read, in buf
+	private int start, end;
+	
+	/**
+	 * Reads a file of whitespace separated tokens.
+	 */
+	public TokenReader(File file) throws IOException {
+		this(file, null);
+	}
+	
+	/**
+	 * Reads a file whose tokens are separated by any of the given
+	 * characters, or by whitespace if separators is null.
+	 */
+	public TokenReader(File file, String separators) throws IOException {
+		in = new FileInputStream(file);
+		length = file.length();
+		spacesSeparate = separators == null;
+		kinds[' '] = kinds['\t'] = kinds['\f'] = kinds[0x0b] = SPACE;
+		kinds['\n'] = kinds['\r'] = LINE;
+		if (separators != null)
+			for (int i = 0; i < separators.length(); i++)
+				kinds[separators.charAt(i)] = SEPARATOR;
+	}
+	
+	/**
+	 * @return how many bytes of the file have been read past
+	 */
+	public long getPosition() {
+		return bufStart + pos;
+	}
+	
+	/**
+	 * @return the length of the file in bytes
+	 */
+	public long length() {
+		return length;
+	}
+	
+	/**
+	 * @return true if there's another token before the end of the file
+	 */
+	public boolean hasNext() throws IOException {
+		return skipSeparators();
+	}
+	
+	public String next() throws IOException {
+		nextToken();
+		return tokenString();
+	}
+	
+	/**
+	 * Passes over the next token without making a String of it.
+	 */
+	public void skip() throws IOException {
+		nextToken();
+	}
+	
+	public int nextInt() throws IOException {
+		nextToken();
+		int i = start;
+		boolean negative = false;
+		if (buf[i] == '-' || buf[i] == '+')
+			negative = buf[i++] == '-';
+		// nine digits can't overflow; anything longer goes the slow way
+		if (i == end || end - i > 9)
+			return parseInt();
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				return parseInt();
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Gives exactly what Double.parseDouble would.  Plain decimals of up to
+	 * 15 or so digits are worked out here; the rest are handed to it.
+	 */
+	public double nextDouble() throws IOException {
+		nextToken();
+		int i = start;
+		boolean negative = false;
+		if (buf[i] == '-' || buf[i] == '+')
+			negative = buf[i++] == '-';
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			byte b = buf[i];
+			if (b >= '0' && b <= '9') {
+				if (mantissa >= EXACT_MANTISSA / 10)
+					return parseDouble();
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (point)
+					exponent--;
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0)
+			return parseDouble();
+		if (i < end) {
+			if (buf[i] != 'e' && buf[i] != 'E')
+				return parseDouble();
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (buf[i] == '-' || buf[i] == '+'))
+				negativeExponent = buf[i++] == '-';
+			if (i == end || end - i > 3)
+				return parseDouble();
+			int e = 0;
+			for (; i < end; i++) {
+				int digit = buf[i] - '0';
+				if (digit < 0 || digit > 9)
+					return parseDouble();
+				e = e * 10 + digit;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
+		if (exponent < -22 || exponent > 22)
+			return parseDouble();
+		double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+				: mantissa * POWERS_OF_TEN[exponent];
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * @return the rest of the current line, without its line ending
+	 */
+	public String nextLine() throws IOException {
+		int lineEnd = findLineEnd();
+		String line = new String(buf, pos, lineEnd - pos, StandardCharsets.UTF_8);
+		pos = lineEnd;
+		skipLineEnding();
+		return line;
+	}
+	
+	/**
+	 * Passes over the rest of the current line.
+	 */
+	public void skipLine() throws IOException {
+		pos = findLineEnd();
+		skipLineEnding();
+	}
+	
+	public void close() throws IOException {
+		in.close();
+	}
+	
+	private int parseInt() {
+		try {
+			return Integer.parseInt(tokenString());
+		} catch (NumberFormatException e) {
+			throw new InputMismatchException(e.getMessage());
+		}
+	}
+	
+	private double parseDouble() {
+		try {
+			return Double.parseDouble(tokenString());
+		} catch (NumberFormatException e) {
+			throw new InputMismatchException(e.getMessage());
+		}
+	}
+	
+	private String tokenString() {
+		return new String(buf, start, end - start, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Moves pos up to the start of the next token.
+	 * @return false if the file ends first
+	 */
+	private boolean skipSeparators() throws IOException {
+		while (true) {
+			for (; pos < limit; pos++)
+				if (kinds[buf[pos] & 0xff] == TOKEN)
+					return true;
+			if (!fill())
+				return false;
+		}
+	}
+	
+	/**
+	 * Finds the next token and sets start and end around it.
+	 */
+	private void nextToken() throws IOException {
+		if (!skipSeparators())
+			throw new NoSuchElementException();
+		int i = pos;
+		while (true) {
+			for (; i < limit; i++) {
+				byte kind = kinds[buf[i] & 0xff];
+				if (kind != TOKEN && (kind != SPACE || spacesSeparate))
+					break;
+			}
+			if (i < limit)
+				break;
+			int before = pos;
+			boolean more = fill();
+			i -= before - pos;
+			if (!more)
+				break;
+		}
+		start = pos;
+		end = i;
+		pos = i;
+		while (kinds[buf[end - 1] & 0xff] == SPACE)
+			end--;
+	}
+	
+	/**
+	 * @return the index in buf of the end of the current line
+	 */
+	private int findLineEnd() throws IOException {
+		if (pos == limit && !fill())
+			throw new NoSuchElementException();
+		int i = pos;
+		while (true) {
+			for (; i < limit; i++)
+				if (buf[i] == '\n' || buf[i] == '\r')
+					return i;
+			int before = pos;
+			boolean more = fill();
+			i -= before - pos;
+			if (!more)
+				return i;
+		}
+	}
+	
+	private void skipLineEnding() throws IOException {
+		if (pos == limit)
+			return;
+		if (buf[pos++] == '\r' && (pos < limit || fill()) && buf[pos] == '\n')
+			pos++;
+	}
+	
+	/**
+	 * Reads more of the file into buf, after moving what's left from pos on
+	 * to the front of it (or making it bigger, if pos is already there).
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			bufStart += pos;
+			limit -= pos;
+			pos = 0;
+		} else if (limit == buf.length) {
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n <= 0)
+			return false;
+		limit += n;
+		return true;
+	}
+}
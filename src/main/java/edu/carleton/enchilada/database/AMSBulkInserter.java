@@ -0,0 +1,67 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.collection.Collection;
+import edu.carleton.enchilada.errorframework.ExceptionAdapter;
+
+import java.sql.*;
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Inserts AMS items into one collection in large transactions.  Each item
+ * is a time and its nonzero m/z values; the batching, commits and
+ * membership rows are AtomBatchWriter's.
+ */
+public class AMSBulkInserter extends AtomBatchWriter {
+	private PreparedStatement dense, sparse;
+	private final DateFormat df;
+
+	/**
+	 * Create a new AMSBulkInserter with an already-connected database,
+	 * using the default batch size and commit interval.
+	 * @param db
+	 * @param collection the collection the items go into
+	 * @param datasetID the dataset the items belong to, or -1 for none
+	 */
+	public AMSBulkInserter(Database db, Collection collection, int datasetID) {
+		super(db, getDefaultBatchSize(), getDefaultCommitInterval());
+		setDestination(collection.getCollectionID(), datasetID);
+		df = db.getDateFormat();
+		try {
+			dense = prepare("INSERT INTO " +
+					db.getDynamicTableName(DynamicTable.AtomInfoDense, "AMS") +
+					" VALUES (?, ?)");
+			sparse = prepare("INSERT INTO " +
+					db.getDynamicTableName(DynamicTable.AtomInfoSparse, "AMS") +
+					" VALUES (?, ?, ?)");
+		} catch (SQLException e) {
+			throw new ExceptionAdapter(e);
+		}
+	}
+
+	/**
+	 * Queue up an item, taking a new AtomID for it from the database.
+	 *
+	 * @param locations the m/z of each value
+	 * @param values the values; the first count of these and of locations
+	 * are written before this returns, so the caller can reuse the arrays
+	 * @return the AtomID the item was given
+	 */
+	public int addItem(Date time, double[] locations, double[] values, int count)
+			throws SQLException {
+		int atomID = nextAtomID();
+		dense.setInt(1, atomID);
+		dense.setString(2, df.format(time));
+		dense.addBatch();
+
+		for (int i = 0; i < count; i++) {
+			sparse.setInt(1, atomID);
+			sparse.setDouble(2, locations[i]);
+			sparse.setDouble(3, values[i]);
+			sparse.addBatch();
+		}
+
+		addMember(atomID);
+		return atomID;
+	}
+}
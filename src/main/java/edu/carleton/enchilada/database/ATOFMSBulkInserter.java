@@ -0,0 +1,228 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.ATOFMS.ATOFMSParticle;
+import edu.carleton.enchilada.ATOFMS.ATOFMSPeak;
+import edu.carleton.enchilada.collection.Collection;
+import edu.carleton.enchilada.errorframework.ExceptionAdapter;
+
+import java.sql.*;
+import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inserts ATOFMS particles into one collection in large transactions,
+ * instead of committing after every particle the way insertParticle does.
+ * The prepared statements are made once and reused for every particle, and
+ * the peaks are bound straight from the ATOFMSPeak objects rather than
+ * going through a string of SQL.  The batching, commits and membership rows
+ * are AtomBatchWriter's.
+ * <p>
+ * If setPackSpectra(true) has been called, each particle's peaks are also
+ * written as one packed blob in ATOFMSAtomSpectra (see PackedSpectrum), which
+ * the collection cursors read much faster than the row-per-peak table.
+ * <p>
+ * Importers that parse the peaks themselves, rather than finding them in a
+ * spectrum, can hand them over in a Peaks instead of making an
+ * ATOFMSParticle.
+ */
+public class ATOFMSBulkInserter extends AtomBatchWriter {
+	private static boolean packSpectra = false;
+
+	private PreparedStatement dense, sparse, spectra;
+	private final PackedSpectrum.Writer packer = new PackedSpectrum.Writer();
+	private final DateFormat df;
+
+	/**
+	 * Create a new ATOFMSBulkInserter with an already-connected database,
+	 * using the default batch size and commit interval.
+	 * @param db
+	 * @param collection the collection the particles go into
+	 * @param datasetID the dataset the particles belong to, or -1 for none
+	 */
+	public ATOFMSBulkInserter(Database db, Collection collection, int datasetID) {
+		this(db, collection, datasetID, getDefaultBatchSize(), getDefaultCommitInterval());
+	}
+
+	/**
+	 * @param batchSize the most particles to hold before committing
+	 * @param commitInterval the most milliseconds to go between commits
+	 */
+	public ATOFMSBulkInserter(Database db, Collection collection, int datasetID,
+			int batchSize, long commitInterval) {
+		super(db, batchSize, commitInterval);
+		setDestination(collection.getCollectionID(), datasetID);
+		df = db.getDateFormat();
+		try {
+			dense = prepare("INSERT INTO " +
+					db.getDynamicTableName(DynamicTable.AtomInfoDense, "ATOFMS") +
+					" VALUES (?, ?, ?, ?, ?, ?)");
+			sparse = prepare("INSERT INTO " +
+					db.getDynamicTableName(DynamicTable.AtomInfoSparse, "ATOFMS") +
+					" VALUES (?, ?, ?, ?, ?)");
+			if (packSpectra) {
+				db.ensureSpectraTable();
+				spectra = prepare("INSERT INTO ATOFMSAtomSpectra (AtomID, Peaks) VALUES (?, ?)");
+			}
+		} catch (SQLException e) {
+			throw new ExceptionAdapter(e);
+		}
+	}
+
+	public static boolean getPackSpectra() {
+		return packSpectra;
+	}
+
+	/**
+	 * Whether inserters made from now on also write the packed peak lists.
+	 */
+	public static void setPackSpectra(boolean pack) {
+		packSpectra = pack;
+	}
+
+	/**
+	 * Queue up a particle, taking a new AtomID for it from the database.
+	 * If enough particles or enough time has built up, this writes and
+	 * commits the batch.
+	 *
+	 * @return the AtomID the particle was given
+	 */
+	public int addParticle(ATOFMSParticle particle) throws SQLException {
+		int atomID = nextAtomID();
+		addParticle(atomID, particle);
+		return atomID;
+	}
+
+	/**
+	 * Queue up a particle with an AtomID that the caller has already
+	 * taken from the database.
+	 */
+	public void addParticle(int atomID, ATOFMSParticle particle) throws SQLException {
+		dense.setInt(1, atomID);
+		dense.setString(2, df.format(particle.time));
+		dense.setFloat(3, particle.laserPower);
+		dense.setFloat(4, particle.size);
+		dense.setInt(5, particle.scatDelay);
+		dense.setString(6, particle.filename);
+		dense.addBatch();
+
+		Map<Integer, ATOFMSPeak> peaks = particle.getSparsePeakMap();
+		for (ATOFMSPeak peak : peaks.values()) {
+			sparse.setInt(1, atomID);
+			sparse.setDouble(2, peak.massToCharge);
+			sparse.setInt(3, peak.area);
+			sparse.setFloat(4, peak.relArea);
+			sparse.setInt(5, peak.height);
+			sparse.addBatch();
+		}
+		if (spectra != null) {
+			// in order of location, the same order the sparse table reads back in
+			packer.clear();
+			for (ATOFMSPeak peak : new TreeMap<Integer, ATOFMSPeak>(peaks).values())
+				packer.add(peak.massToCharge, peak.area, peak.relArea, peak.height);
+			addSpectrum(atomID);
+		}
+
+		addMember(atomID);
+	}
+
+	/**
+	 * Queue up a particle whose peaks have already been parsed, taking a new
+	 * AtomID for it from the database.
+	 *
+	 * @param peaks the particle's peaks, in any order; they're written
+	 * before this returns, so the caller can reuse them
+	 * @return the AtomID the particle was given
+	 */
+	public int addParticle(Date time, double laserPower, double size,
+			int scatDelay, String fileName, Peaks peaks) throws SQLException {
+		int atomID = nextAtomID();
+		dense.setInt(1, atomID);
+		dense.setString(2, df.format(time));
+		dense.setDouble(3, laserPower);
+		dense.setDouble(4, size);
+		dense.setInt(5, scatDelay);
+		dense.setString(6, fileName);
+		dense.addBatch();
+
+		for (int i = 0; i < peaks.size; i++) {
+			sparse.setInt(1, atomID);
+			sparse.setDouble(2, peaks.locations[i]);
+			sparse.setInt(3, peaks.areas[i]);
+			sparse.setDouble(4, peaks.relAreas[i]);
+			sparse.setInt(5, peaks.heights[i]);
+			sparse.addBatch();
+		}
+		if (spectra != null) {
+			packer.clear();
+			for (int i : peaks.byLocation())
+				packer.add(peaks.locations[i], peaks.areas[i],
+						(float) peaks.relAreas[i], peaks.heights[i]);
+			addSpectrum(atomID);
+		}
+
+		addMember(atomID);
+		return atomID;
+	}
+
+	private void addSpectrum(int atomID) throws SQLException {
+		byte[] packed = packer.toBytes();
+		if (packed != null) {
+			spectra.setInt(1, atomID);
+			spectra.setBytes(2, packed);
+			spectra.addBatch();
+		}
+	}
+
+	/**
+	 * The peaks of one particle, a row of the sparse table apiece, kept in
+	 * arrays that are reused from one particle to the next.
+	 */
+	public static final class Peaks {
+		private double[] locations = new double[16];
+		private int[] areas = new int[16];
+		private double[] relAreas = new double[16];
+		private int[] heights = new int[16];
+		private int size;
+
+		public void clear() {
+			size = 0;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void add(double location, int area, double relArea, int height) {
+			if (size == locations.length) {
+				int capacity = size * 2;
+				locations = Arrays.copyOf(locations, capacity);
+				areas = Arrays.copyOf(areas, capacity);
+				relAreas = Arrays.copyOf(relAreas, capacity);
+				heights = Arrays.copyOf(heights, capacity);
+			}
+			locations[size] = location;
+			areas[size] = area;
+			relAreas[size] = relArea;
+			heights[size] = height;
+			size++;
+		}
+
+		/**
+		 * @return the indices of the peaks in order of location, which is
+		 * the order the packed spectra have to be in
+		 */
+		int[] byLocation() {
+			int[] sorted = new int[size];
+			for (int i = 0; i < size; i++) {
+				int j = i;
+				for (; j > 0 && locations[sorted[j - 1]] > locations[i]; j--)
+					sorted[j] = sorted[j - 1];
+				sorted[j] = i;
+			}
+			return sorted;
+		}
+	}
+}
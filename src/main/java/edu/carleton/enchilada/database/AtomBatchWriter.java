@@ -0,0 +1,255 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.errorframework.ExceptionAdapter;
+
+import java.sql.*;
+import java.util.ArrayList;
+
+/**
+ * The part of importing that's the same whatever the datatype: writing new
+ * atoms into one collection and one dataset in large transactions.  This
+ * takes the AtomIDs from the database's allocator, writes the AtomMembership,
+ * InternalAtomOrder and DataSetMembers rows for each atom, and batches and
+ * commits everything.  A subclass prepares the statements for its own
+ * datatype's tables with prepare(), binds an atom's rows to them, and then
+ * calls addMember() for it.
+ * <p>
+ * The pending atoms are written and committed once batchSize of them have
+ * built up, or once commitInterval milliseconds have gone by since the last
+ * commit, whichever comes first.  If a batch fails it's rolled back as a
+ * whole, so a collection never ends up with half of an atom in it.  Call
+ * close() when you're done, so that the last batch gets written and the
+ * connection goes back to the auto-commit mode it was in; the new atoms
+ * still need to be propagated up to the parent collections afterwards.
+ * If the import fails part way, call abort() instead, which throws away
+ * the atoms that haven't been written yet; the batches already committed
+ * stay, and still need to be propagated.
+ * <p>
+ * If the caller already has a transaction open, that's left to the caller:
+ * each batch is written under a savepoint instead of being committed, and
+ * a failed batch only rolls back to its savepoint.
+ * <p>
+ * This holds the database connection in a transaction, so only use one at
+ * a time per connection.
+ */
+public abstract class AtomBatchWriter {
+	private static int defaultBatchSize = 1000;
+	private static long defaultCommitInterval = 5000;
+
+	// the subclass's statements, written in the order they were prepared,
+	// and then the membership ones
+	private final ArrayList<PreparedStatement> statements = new ArrayList<PreparedStatement>();
+	private PreparedStatement membership, iao, dataset;
+	private int collectionID = -1, datasetID = -1;
+	private final int batchSize;
+	private final long commitInterval;
+	private int numAtomsInBatch;
+	private long lastCommit;
+	// the connection's auto-commit mode before this took it over; if it was
+	// off, the transaction is the caller's, and this never commits or rolls
+	// it back
+	private final boolean autoCommit;
+	private boolean closed = false;
+
+	protected final Database db;
+	protected final Connection con;
+
+	/**
+	 * @param db an already-connected database
+	 * @param batchSize the most atoms to hold before committing
+	 * @param commitInterval the most milliseconds to go between commits
+	 */
+	protected AtomBatchWriter(Database db, int batchSize, long commitInterval) {
+		this.db = db;
+		this.batchSize = Math.max(batchSize, 1);
+		this.commitInterval = commitInterval;
+		con = db.getCon();
+		try {
+			autoCommit = con.getAutoCommit();
+			con.setAutoCommit(false);
+			membership = con.prepareStatement("INSERT INTO AtomMembership (CollectionID, AtomID) VALUES (?, ?)");
+			iao = con.prepareStatement("INSERT INTO InternalAtomOrder (AtomID, CollectionID) VALUES (?, ?)");
+			dataset = con.prepareStatement("INSERT INTO DataSetMembers (OrigDataSetID, AtomID) VALUES (?, ?)");
+		} catch (SQLException e) {
+			throw new ExceptionAdapter(e);
+		}
+		numAtomsInBatch = 0;
+		lastCommit = System.currentTimeMillis();
+	}
+
+	public static int getDefaultBatchSize() {
+		return defaultBatchSize;
+	}
+
+	public static void setDefaultBatchSize(int size) {
+		defaultBatchSize = size;
+	}
+
+	public static long getDefaultCommitInterval() {
+		return defaultCommitInterval;
+	}
+
+	public static void setDefaultCommitInterval(long millis) {
+		defaultCommitInterval = millis;
+	}
+
+	/**
+	 * Prepares one of the subclass's statements.  Its batch is written along
+	 * with the membership rows, and it's closed by close().
+	 */
+	protected PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement s = con.prepareStatement(sql);
+		statements.add(s);
+		return s;
+	}
+
+	/**
+	 * Sets the collection and dataset that atoms added from now on go into.
+	 *
+	 * @param datasetID the dataset, or -1 for none
+	 */
+	protected void setDestination(int collectionID, int datasetID) {
+		this.collectionID = collectionID;
+		this.datasetID = datasetID;
+	}
+
+	protected int getCollectionID() {
+		return collectionID;
+	}
+
+	/**
+	 * Takes a new AtomID from the database.  They come from the database's
+	 * allocator, so nothing else can take them while the batch is building
+	 * up.
+	 */
+	protected int nextAtomID() throws SQLException {
+		int atomID = db.getNextID();
+		if (atomID < 0)
+			throw new SQLException("Couldn't reserve an atom ID.");
+		return atomID;
+	}
+
+	/**
+	 * Queues up the rows that put an atom in the collection and the dataset,
+	 * once the subclass has queued up its own rows for it, and writes the
+	 * batch if it's time.
+	 */
+	protected void addMember(int atomID) throws SQLException {
+		membership.setInt(1, collectionID);
+		membership.setInt(2, atomID);
+		membership.addBatch();
+
+		iao.setInt(1, atomID);
+		iao.setInt(2, collectionID);
+		iao.addBatch();
+
+		if (datasetID != -1) {
+			dataset.setInt(1, datasetID);
+			dataset.setInt(2, atomID);
+			dataset.addBatch();
+		}
+
+		numAtomsInBatch++;
+		if (numAtomsInBatch >= batchSize ||
+				System.currentTimeMillis() - lastCommit >= commitInterval) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes and commits the atoms that are currently queued up.  If that
+	 * fails, the batch is rolled back.
+	 */
+	public void flush() throws SQLException {
+		if (numAtomsInBatch > 0) {
+			Savepoint batchStart = autoCommit ? null : con.setSavepoint();
+			try {
+				for (PreparedStatement s : statements)
+					s.executeBatch();
+				membership.executeBatch();
+				iao.executeBatch();
+				dataset.executeBatch();
+				if (autoCommit)
+					con.commit();
+				else
+					con.releaseSavepoint(batchStart);
+			} catch (SQLException e) {
+				clearBatches();
+				if (autoCommit) {
+					con.rollback();
+					// the atom IDs may have been reserved in this transaction
+					db.discardAtomIDBlock();
+				} else {
+					con.rollback(batchStart);
+				}
+				throw e;
+			} finally {
+				numAtomsInBatch = 0;
+			}
+		}
+		lastCommit = System.currentTimeMillis();
+	}
+
+	private void clearBatches() throws SQLException {
+		for (PreparedStatement s : statements)
+			s.clearBatch();
+		membership.clearBatch();
+		iao.clearBatch();
+		dataset.clearBatch();
+	}
+
+	/**
+	 * Writes whatever is left, releases the statements, and puts the
+	 * connection back in the auto-commit mode it was in.
+	 */
+	public void close() throws SQLException {
+		if (closed)
+			return;
+		try {
+			flush();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Throws away the atoms that are queued up instead of writing them, and
+	 * releases everything the way close() does.  Meant for when an import
+	 * fails, so it doesn't throw anything itself.  A caller's transaction
+	 * is left alone; the queued atoms haven't been written to it.
+	 */
+	public void abort() {
+		if (closed)
+			return;
+		try {
+			clearBatches();
+			if (autoCommit)
+				con.rollback();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			numAtomsInBatch = 0;
+			// the atom IDs may have been reserved in the rolled back transaction
+			if (autoCommit)
+				db.discardAtomIDBlock();
+			try {
+				release();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void release() throws SQLException {
+		closed = true;
+		try {
+			for (PreparedStatement s : statements)
+				s.close();
+			membership.close();
+			iao.close();
+			dataset.close();
+		} finally {
+			con.setAutoCommit(autoCommit);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package edu.carleton.enchilada.database;
+
+import org.sqlite.SQLiteConnection;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An in-memory copy of the Collections and CollectionRelationships tables,
+ * so that looking up a collection's name, datatype, parent or children
+ * doesn't need a query every time.  The whole table is read on the first
+ * lookup after the cache is invalidated; there are never more than a few
+ * thousand collections, and tree refreshes look at all of them anyway.
+ * <p>
+ * Database invalidates the cache in each method that changes those
+ * tables.  Changes made some other way (another connection, or SQL run
+ * directly on getCon()) aren't noticed until clearCache() is called.
+ * <p>
+ * Collection sizes are cached too, but they change whenever atoms are
+ * written, which happens all over the place.  So the sizes are only
+ * trusted while SQLite's count of rows changed on the connection stays
+ * the same; checking that is a call on the native handle, not a query.  The same goes
+ * for the particle table's page boundaries, which go stale just as easily.
+ */
+class CollectionCache {
+    static class Entry {
+        final String name, comment, description, datatype;
+        int parentID = -1;
+        final ArrayList<Integer> children = new ArrayList<Integer>();
+
+        Entry(String name, String comment, String description, String datatype) {
+            this.name = name;
+            this.comment = comment;
+            this.description = description;
+            this.datatype = datatype;
+        }
+    }
+
+    // null until loaded
+    private HashMap<Integer, Entry> entries;
+    private final HashMap<Integer, Integer> sizes = new HashMap<Integer, Integer>();
+    private final HashMap<Integer, int[]> pageBoundaries = new HashMap<Integer, int[]>();
+    private long sizesChanges = -1;
+
+    /**
+     * @return the cached row for the collection, or null if there is no
+     * such collection
+     */
+    synchronized Entry get(Connection con, int collectionID) throws SQLException {
+        if (entries == null)
+            load(con);
+        return entries.get(collectionID);
+    }
+
+    private void load(Connection con) throws SQLException {
+        HashMap<Integer, Entry> loaded = new HashMap<Integer, Entry>();
+        try (Statement stmt = con.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT CollectionID, Name, Comment, Description, Datatype FROM Collections")) {
+                while (rs.next())
+                    loaded.put(rs.getInt(1), new Entry(rs.getString(2), rs.getString(3),
+                                                       rs.getString(4), rs.getString(5)));
+            }
+            try (ResultSet rs = stmt.executeQuery(
+                    // in order of ChildID, as getImmediateSubCollections has
+                    // always returned them
+                    "SELECT ParentID, ChildID FROM CollectionRelationships ORDER BY ChildID")) {
+                while (rs.next()) {
+                    int parentID = rs.getInt(1);
+                    int childID = rs.getInt(2);
+                    Entry child = loaded.get(childID);
+                    if (child != null)
+                        child.parentID = parentID;
+                    Entry parent = loaded.get(parentID);
+                    if (parent != null)
+                        parent.children.add(childID);
+                }
+            }
+        }
+        entries = loaded;
+    }
+
+    /**
+     * @return the number of atoms in the collection, or -1 if it isn't
+     * cached or might be out of date
+     */
+    synchronized int getSize(Connection con, int collectionID) throws SQLException {
+        checkSizes(con);
+        Integer size = sizes.get(collectionID);
+        return size == null ? -1 : size;
+    }
+
+    synchronized void putSize(Connection con, int collectionID, int size) throws SQLException {
+        checkSizes(con);
+        sizes.put(collectionID, size);
+    }
+
+    /**
+     * @return the AtomIDs the particle table's pages end on, or null if they
+     * aren't cached or might be out of date
+     */
+    synchronized int[] getPageBoundaries(Connection con, int collectionID) throws SQLException {
+        checkSizes(con);
+        return pageBoundaries.get(collectionID);
+    }
+
+    synchronized void putPageBoundaries(Connection con, int collectionID, int[] boundaries)
+            throws SQLException {
+        checkSizes(con);
+        pageBoundaries.put(collectionID, boundaries);
+    }
+
+    private void checkSizes(Connection con) throws SQLException {
+        // straight from the native handle, so a size lookup doesn't cost a
+        // statement of its own
+        long changes = con.unwrap(SQLiteConnection.class).getDatabase().total_changes();
+        if (changes != sizesChanges) {
+            sizes.clear();
+            pageBoundaries.clear();
+            sizesChanges = changes;
+        }
+    }
+
+    synchronized void invalidate() {
+        entries = null;
+        sizes.clear();
+        pageBoundaries.clear();
+        sizesChanges = -1;
+    }
+}
@@ -68,14 +68,21 @@ import org.dbunit.dataset.filter.ITableFilter;
 import org.dbunit.dataset.xml.FlatXmlDataSet;
 import org.dbunit.ext.mssql.InsertIdentityOperation;
 import org.sqlite.ExtendedCommand;
+import org.sqlite.SQLiteConnection;
+import org.sqlite.SQLiteErrorCode;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /*
  * Maybe a good way to re-factor this file is to separate out methods that
@@ -116,6 +123,24 @@ public abstract class Database {
 
     private int randomSeed = 0;
 
+    // number of atom IDs getNextID reserves at a time
+    private static final int ATOM_ID_BLOCK_SIZE = 1000;
+    // the block of atom IDs getNextID is handing out: [next, limit)
+    private int nextBlockAtomID = -1;
+    private int atomIDBlockLimit = -1;
+    private boolean atomIDSequenceChecked = false;
+
+    // names, datatypes, parents, children and sizes of the collections
+    private final CollectionCache collectionCache = new CollectionCache();
+    // whether this connection has made sure CollectionClosure exists
+    private boolean collectionClosureChecked = false;
+    // what openConnectionImpl last connected to; keys the spectrum cache directory
+    private String connectionString;
+    // read-only connections for long cursors; null unless the database is in WAL mode
+    private ReadConnectionPool readPool;
+    // rows per page of the particle table
+    private static final int PARTICLE_PAGE = 1000;
+
     /**
      * Construct an instance of either SQLServerDatabase or MySQLDatabase
      *
@@ -172,12 +197,13 @@ public abstract class Database {
         return dbType;
     }
 
+    /**
+     * Forgets everything cached about the collections, so the next lookups
+     * read them from the database again.  Only needed if the collections
+     * were changed some way other than through this object.
+     */
     public void clearCache() {
-        try {
-            // Removed entirely for SQLite
-        } catch (Exception e1) {
-            System.out.println("Error clearing the database cache.");
-        }
+        collectionCache.invalidate();
     }
 
     /**
@@ -225,9 +251,18 @@ public abstract class Database {
      * @return true on success
      */
     protected boolean openConnectionImpl(String connectionstr, String user, String pass) {
+        if (readPool != null) {
+            readPool.close();
+            readPool = null;
+        }
         con = null;
+        nextBlockAtomID = atomIDBlockLimit = -1;
+        atomIDSequenceChecked = false;
+        collectionCache.invalidate();
+        collectionClosureChecked = false;
+        connectionString = connectionstr;
         try {
-            con = DriverManager.getConnection(connectionstr, user, pass);
+            con = QueryStats.wrap(DriverManager.getConnection(connectionstr, user, pass));
             con.setAutoCommit(true);
             //ResultSet rs = con.createStatement().executeQuery("SELECT db_name()");
             //rs.next();
@@ -249,8 +284,17 @@ public abstract class Database {
      * @return true on success
      */
     public boolean closeConnection() {
+        synchronized (prefetchedPages) {
+            prefetchedPages.clear();
+        }
+        if (readPool != null) {
+            readPool.close();
+            readPool = null;
+        }
         if (con != null) {
             try {
+                if (!con.isClosed())
+                    releaseAtomIDs();
                 con.close();
             } catch (Exception e) {
                 ErrorLogger.writeExceptionToLogAndPrompt("Database", "Could not close the connection to " + database);
@@ -263,6 +307,54 @@ public abstract class Database {
             return false;
     }
 
+    /**
+     * Puts the database into WAL mode and starts a pool of read-only
+     * connections to it, so that long cursors don't hold up the main
+     * connection.  If WAL mode isn't available, everything keeps using the
+     * main connection.
+     */
+    protected void openReadPool(String connectionstr) {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA journal_mode=WAL")) {
+            if (rs.next() && rs.getString(1).equalsIgnoreCase("wal"))
+                readPool = new ReadConnectionPool(connectionstr);
+        } catch (SQLException e) {
+            System.err.println("Could not switch the database to WAL mode; cursors will share the connection.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Gets a connection for a long read, such as a cursor over a whole
+     * collection.  This is one of the read-only connections if there are
+     * any, unless the main connection is in the middle of a transaction, in
+     * which case it's the main connection, so that the read sees the
+     * transaction's own changes.  Give it back with releaseReadConnection.
+     */
+    protected Connection getReadConnection() {
+        try {
+            if (readPool != null && con.getAutoCommit())
+                return readPool.borrow();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return con;
+    }
+
+    protected void releaseReadConnection(Connection c) {
+        if (c != null && c != con) {
+            if (readPool != null) {
+                readPool.release(c);
+            } else {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     /**
      * Opens a connection to the database, flat file, memory structure,
      * or whatever you're working with.
@@ -1018,6 +1110,15 @@ public abstract class Database {
                                               "WHERE " + sparseTableName + ".AtomID IN temp.AtomsToCompact");
                     }
                 }
+                if (datatype.equals("ATOFMS")) {
+                    try (Statement existsStmt = con.createStatement();
+                         ResultSet spectraTablePresent = existsStmt.executeQuery(
+                                 "SELECT * FROM sqlite_master WHERE tbl_name = 'ATOFMSAtomSpectra' AND type='table'");
+                    ) {
+                        if (spectraTablePresent.next())
+                            stmt.addBatch("DELETE FROM ATOFMSAtomSpectra WHERE AtomID IN temp.AtomsToCompact");
+                    }
+                }
                 stmt.addBatch("DELETE FROM " + denseTableName + "\n" +
                                       "WHERE " + denseTableName + ".AtomID IN temp.AtomsToCompact");
 
@@ -1074,6 +1175,77 @@ public abstract class Database {
         return version;
     }
 
+    /**
+     * Records the version string of the database's structure, once
+     * VersionChecker has brought it up to date.
+     */
+    void setVersion(String version) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement(
+                "UPDATE DBInfo SET Value = ? WHERE Name = 'Version'")) {
+            stmt.setString(1, version);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * SQL giving the milliseconds since 1970 of a time in the database's
+     * "yyyy-MM-dd HH:mm:ss" format, counting the wall-clock time as UTC.
+     * The AtomInfoDense time indexes are on this applied to Time, so a query
+     * has to compare or sort by exactly this expression to use them.
+     *
+     * @param time a Time column, a quoted literal or a ?
+     */
+    static String timeEpochOf(String time) {
+        return "CAST(ROUND((julianday(" + time + ") - 2440587.5) * 86400000) AS INTEGER)";
+    }
+
+    /**
+     * Gives every AtomInfoDense table with a Time column an index on its
+     * time as an integer (see timeEpochOf) and AtomID, unless it already
+     * has one.
+     * <p>
+     * Time is stored as text, so a range of times used to mean reading and
+     * comparing the string of every atom in the collection.  The index
+     * keeps the integer times in order, so a day out of a month-long
+     * campaign is read straight off in time order.  It's an index on an
+     * expression rather than a new column so that Time stays as it is for
+     * everything that reads it, and every insert keeps the index right.
+     */
+    synchronized void addTimeIndexes() throws SQLException {
+        ArrayList<String> tables = new ArrayList<String>();
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT DISTINCT Datatype FROM MetaData WHERE TableID = 1 AND ColumnName = 'Time'")) {
+            while (rs.next())
+                tables.add(getDynamicTableName(DynamicTable.AtomInfoDense, rs.getString(1)));
+        }
+        boolean autoCommit = con.getAutoCommit();
+        if (autoCommit)
+            con.setAutoCommit(false);
+        try (Statement stmt = con.createStatement();
+             PreparedStatement exists = con.prepareStatement(
+                     "SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            for (String table : tables) {
+                exists.setString(1, table);
+                try (ResultSet rs = exists.executeQuery()) {
+                    if (!rs.next())
+                        continue;
+                }
+                stmt.executeUpdate("CREATE INDEX IF NOT EXISTS " + table + "Time ON " + table +
+                                           " (" + timeEpochOf("Time") + ", AtomID)");
+            }
+            if (autoCommit)
+                con.commit();
+        } catch (SQLException e) {
+            if (autoCommit)
+                con.rollback();
+            throw e;
+        } finally {
+            if (autoCommit)
+                con.setAutoCommit(true);
+        }
+    }
+
     /**
      * Returns a hashmap representing the hierarchy of subcollections.
      * Each key is a parentID which hashes to an ArrayList<Integer> of its ChildIDs ordered by ChildID
@@ -1130,6 +1302,9 @@ public abstract class Database {
      * gets the collection name.
      */
     public String getCollectionName(int collectionID) {
+        CollectionCache.Entry entry = getCachedCollection(collectionID);
+        if (entry != null)
+            return entry.name;
         String name = "";
         try (Statement stmt = con.createStatement();
             ResultSet rs = stmt.executeQuery("SELECT Name\n" +
@@ -1199,6 +1374,7 @@ public abstract class Database {
                     "(ParentID, ChildID)\n" +
                     "VALUES (" + Integer.toString(parent) +
                     ", " + Integer.toString(nextID) + ")");
+            collectionCache.invalidate();
 
         } catch (SQLException e) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception creating empty collection.");
@@ -1388,24 +1564,38 @@ public abstract class Database {
     public boolean moveCollection(
             Collection collection,
             Collection toCollection) {
-        try {
+        boolean autoCommit = true;
+        try (Statement stmt = con.createStatement()) {
             int col = collection.getCollectionID();
             int toCol = toCollection.getCollectionID();
+            int fromCol = getParentCollectionID(col);
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            ensureCollectionClosure();
 
-            Statement stmt = con.createStatement();
             stmt.executeUpdate("UPDATE CollectionRelationships\n" +
                                        "SET ParentID = " + toCol + "\n" +
                                        "WHERE ChildID = " + col);
-
-            // update InternalAtomOrder table.
-            updateAncestors(collection);
-            stmt.close();
+            collectionCache.invalidate();
+
+            // update InternalAtomOrder table: the moved atoms leave the old
+            // parent's chain and join the new one.
+            String moved = "SELECT AtomID FROM InternalAtomOrder WHERE CollectionID = " + col;
+            if (fromCol != -1)
+                removeFromInternalAtomOrder(stmt, fromCol, moved);
+            addToInternalAtomOrder(stmt, toCol, moved);
+            if (autoCommit)
+                con.commit();
         } catch (SQLException e) {
+            rollbackIfOurs(autoCommit);
+            collectionCache.invalidate();
             ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                      "SQL Exception moving the collection " + collection.getName());
             System.err.println("Error moving collection: ");
             System.err.println(e);
             return false;
+        } finally {
+            restoreAutoCommit(autoCommit);
         }
         return true;
     }
@@ -1543,6 +1733,7 @@ public abstract class Database {
                             stmt.addBatch("DELETE FROM CollectionRelationships WHERE ChildID = " + id);
                             stmt.executeBatch();
                         }
+                        collectionCache.invalidate();
                         return true;
                     }
                 }
@@ -1583,6 +1774,7 @@ public abstract class Database {
             stmt.execute("DELETE FROM CollectionRelationships\n" +
                                  "WHERE ChildID = " +
                                  Integer.toString(collection.getCollectionID()));
+            collectionCache.invalidate();
 
             //This gets all the original atoms that belong to the parentCollection;
             Collection parentCollection = getCollection(parentID);
@@ -1680,6 +1872,7 @@ public abstract class Database {
             isDirty = true;
             con.commit();
             con.setAutoCommit(true);
+            collectionCache.invalidate();
             stmt.close();
             pstmt.close();
 
@@ -1689,6 +1882,7 @@ public abstract class Database {
             stmt.close();
 
         } catch (Exception e) {
+            collectionCache.invalidate();
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Exception deleting collection.");
             System.err.println("Exception deleting collection: ");
             e.printStackTrace();
@@ -1714,6 +1908,7 @@ public abstract class Database {
             stmt.setInt(2, collection.getCollectionID());
             stmt.executeUpdate();
             stmt.close();
+            collectionCache.invalidate();
             return true;
         } catch (SQLException ex) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Error renaming collection.");
@@ -1730,6 +1925,9 @@ public abstract class Database {
      * @return arrayList of atomIDs of subchildren.
      */
     public ArrayList<Integer> getImmediateSubCollections(Collection collection) {
+        CollectionCache.Entry entry = getCachedCollection(collection.getCollectionID());
+        if (entry != null)
+            return new ArrayList<Integer>(entry.children);
         ArrayList<Integer> subChildren = new ArrayList<Integer>();
         try (Statement stmt = con.createStatement();
             ResultSet rs = stmt.executeQuery("SELECT ChildID\n" +
@@ -1808,8 +2006,11 @@ public abstract class Database {
             return false;
         }
 
-        try {
-            Statement stmt = con.createStatement();
+        boolean autoCommit = true;
+        try (Statement stmt = con.createStatement()) {
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            ensureCollectionClosure();
             //System.out.println("AtomID: " + atomID + " from: " +
             //		fromParentID + " to: " + toParentID);
             stmt.executeUpdate(
@@ -1817,17 +2018,18 @@ public abstract class Database {
                             "SET CollectionID = " + toParentID + "\n" +
                             "WHERE AtomID = " + atomID + " AND CollectionID = " +
                             fromParentID);
-            stmt.execute("DELETE FROM InternalAtomOrder WHERE AtomID = " +
-                                 atomID + " AND CollectionID = " + fromParentID);
-            addSingleInternalAtomToTable(atomID, toParentID);
-            updateAncestors(getCollection(fromParentID));
-            updateAncestors(getCollection(toParentID));
-            stmt.close();
+            removeFromInternalAtomOrder(stmt, fromParentID, "SELECT " + atomID + " AS AtomID");
+            addToInternalAtomOrder(stmt, toParentID, "SELECT " + atomID + " AS AtomID");
+            if (autoCommit)
+                con.commit();
         } catch (SQLException e) {
+            rollbackIfOurs(autoCommit);
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception updating AtomMembership table.");
             System.err.println("Exception updating membership table");
             e.printStackTrace();
             throw new ExceptionAdapter(e);
+        } finally {
+            restoreAutoCommit(autoCommit);
         }
         return true;
     }
@@ -2062,10 +2264,27 @@ public abstract class Database {
         return subChildren;
     }
 
+    /**
+     * @return what's cached about the collection, or null if it isn't
+     * there; callers then fall back on querying for it themselves.
+     */
+    private CollectionCache.Entry getCachedCollection(int collectionID) {
+        try {
+            return collectionCache.get(con, collectionID);
+        } catch (SQLException e) {
+            System.err.println("Error reading the collections into the cache:");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * returns a collection given a collectionID.
      */
     public Collection getCollection(int collectionID) {
+        CollectionCache.Entry entry = getCachedCollection(collectionID);
+        if (entry != null)
+            return new Collection(entry.datatype, collectionID, this);
         Collection collection;
         boolean isPresent = false;
         String datatype = "";
@@ -2107,6 +2326,9 @@ public abstract class Database {
      * gets the collection comment.
      */
     public String getCollectionComment(int collectionID) {
+        CollectionCache.Entry entry = getCachedCollection(collectionID);
+        if (entry != null)
+            return entry.comment;
         String comment = "";
         try (Statement stmt = con.createStatement();
              ResultSet rs = stmt.executeQuery("SELECT Comment\n" +
@@ -2128,6 +2350,9 @@ public abstract class Database {
      * gets the collection's datatype
      */
     public String getCollectionDatatype(int collectionID) {
+        CollectionCache.Entry entry = getCachedCollection(collectionID);
+        if (entry != null)
+            return entry.datatype;
         String datatype = "";
         try (Statement stmt = con.createStatement();
              ResultSet rs = stmt.executeQuery(
@@ -2148,6 +2373,9 @@ public abstract class Database {
      * gets the collection description for the given collectionID
      */
     public String getCollectionDescription(int collectionID) {
+        CollectionCache.Entry entry = getCachedCollection(collectionID);
+        if (entry != null)
+            return entry.description;
         String descrip = "";
         try (Statement stmt = con.createStatement();
              ResultSet rs = stmt.executeQuery(
@@ -2171,12 +2399,23 @@ public abstract class Database {
      */
     public int getCollectionSize(int collectionID) {
         int returnThis = -1;
+        try {
+            returnThis = collectionCache.getSize(con, collectionID);
+            if (returnThis != -1)
+                return returnThis;
+        } catch (SQLException e) {
+            // just count them
+            e.printStackTrace();
+        }
         try (Statement stmt = con.createStatement();
              ResultSet rs = stmt.executeQuery(
                      "SELECT COUNT(AtomID) FROM InternalAtomOrder WHERE CollectionID = " + collectionID)) {
             boolean test = rs.next();
             assert (test) : "error getting atomID count.";
             returnThis = rs.getInt(1);
+            // a count taken inside a transaction could still be rolled back
+            if (con.getAutoCommit())
+                collectionCache.putSize(con, collectionID, returnThis);
         } catch (SQLException e1) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                      "Error retrieving the collection size for collectionID " + collectionID);
@@ -2244,6 +2483,9 @@ public abstract class Database {
      * Gets the parent collection ID using a simple query.
      */
     public int getParentCollectionID(int collectionID) {
+        CollectionCache.Entry entry = getCachedCollection(collectionID);
+        if (entry != null)
+            return entry.parentID;
         int parentID = -1;
         try (Statement stmt = con.createStatement();
              ResultSet rs = stmt.executeQuery("SELECT ParentID\n" +
@@ -2264,68 +2506,143 @@ public abstract class Database {
     }
 
     /**
-     * Returns all collectionIDs beneath the given collection, optionally including it.
+     * Makes sure the CollectionClosure table is there, creating and filling
+     * it if this database was built before it existed.
+     * <p>
+     * CollectionClosure has a row for every (ancestor, descendant) pair of
+     * collections, with the number of levels between them, so that all the
+     * collections above or below one can be found with a single indexed
+     * lookup.  A collection is not its own ancestor.  Triggers on
+     * CollectionRelationships keep it up to date however the relationships
+     * are changed; since the collections form a tree, removing an edge
+     * removes exactly the paths that went through it.
      */
-    public Set<Integer> getAllDescendantCollections(int collectionID, boolean includeTopLevel) {
+    public synchronized void ensureCollectionClosure() {
+        if (collectionClosureChecked)
+            return;
+        // whether this started the transaction; not until it's known
+        boolean autoCommit = false;
+        try (Statement stmt = con.createStatement()) {
+            boolean present;
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'CollectionClosure'")) {
+                present = rs.next();
+            }
+            if (!present) {
+                autoCommit = con.getAutoCommit();
+                if (autoCommit)
+                    con.setAutoCommit(false);
+                stmt.executeUpdate("CREATE TABLE CollectionClosure (AncestorID INT, DescendantID INT, Depth INT, " +
+                                           "PRIMARY KEY (AncestorID, DescendantID))");
+                stmt.executeUpdate("CREATE INDEX CollectionClosureDescendants ON CollectionClosure (DescendantID, AncestorID)");
+                stmt.executeUpdate("CREATE TRIGGER CollectionClosureInsert AFTER INSERT ON CollectionRelationships\n" +
+                                           "BEGIN\n" +
+                                           collectionClosureInsert("NEW") +
+                                           "END");
+                stmt.executeUpdate("CREATE TRIGGER CollectionClosureDelete AFTER DELETE ON CollectionRelationships\n" +
+                                           "BEGIN\n" +
+                                           collectionClosureDelete("OLD") +
+                                           "END");
+                stmt.executeUpdate("CREATE TRIGGER CollectionClosureUpdate AFTER UPDATE ON CollectionRelationships\n" +
+                                           "BEGIN\n" +
+                                           collectionClosureDelete("OLD") +
+                                           collectionClosureInsert("NEW") +
+                                           "END");
+                // the depth limit only guards against a cycle in a damaged database
+                stmt.executeUpdate("INSERT OR IGNORE INTO CollectionClosure (AncestorID, DescendantID, Depth)\n" +
+                                           "WITH RECURSIVE Paths(AncestorID, DescendantID, Depth) AS (\n" +
+                                           "	SELECT ParentID, ChildID, 1 FROM CollectionRelationships\n" +
+                                           "	UNION ALL\n" +
+                                           "	SELECT Paths.AncestorID, CollectionRelationships.ChildID, Paths.Depth + 1\n" +
+                                           "	FROM Paths JOIN CollectionRelationships ON CollectionRelationships.ParentID = Paths.DescendantID\n" +
+                                           "	WHERE Paths.Depth < 10000)\n" +
+                                           "SELECT AncestorID, DescendantID, MIN(Depth) FROM Paths GROUP BY AncestorID, DescendantID");
+                if (autoCommit)
+                    con.commit();
+            }
+            collectionClosureChecked = true;
+        } catch (SQLException e) {
+            rollbackIfOurs(autoCommit);
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception creating the collection closure table.");
+            throw new ExceptionAdapter(e);
+        } finally {
+            restoreAutoCommit(autoCommit);
+        }
+    }
 
-        // Construct a set of all collections that descend from this one,
-        // including this one.
-        ArrayList<Integer> lookUpNext = new ArrayList<Integer>();
-        boolean status = lookUpNext.add(new Integer(collectionID));
-        assert status : "lookUpNext queue full";
+    /**
+     * Trigger statement adding the paths made by a new parent/child edge:
+     * from the parent and each of its ancestors to the child and each of its
+     * descendants.
+     */
+    private static String collectionClosureInsert(String row) {
+        return "INSERT OR IGNORE INTO CollectionClosure (AncestorID, DescendantID, Depth)\n" +
+                "SELECT a.ID, d.ID, a.Depth + d.Depth + 1\n" +
+                "FROM (SELECT " + row + ".ParentID AS ID, 0 AS Depth\n" +
+                "      UNION SELECT AncestorID, Depth FROM CollectionClosure WHERE DescendantID = " + row + ".ParentID) a,\n" +
+                "     (SELECT " + row + ".ChildID AS ID, 0 AS Depth\n" +
+                "      UNION SELECT DescendantID, Depth FROM CollectionClosure WHERE AncestorID = " + row + ".ChildID) d;\n";
+    }
+
+    /**
+     * Trigger statement removing the paths that went through a parent/child
+     * edge.
+     */
+    private static String collectionClosureDelete(String row) {
+        return "DELETE FROM CollectionClosure\n" +
+                "WHERE AncestorID IN (SELECT " + row + ".ParentID\n" +
+                "                     UNION SELECT AncestorID FROM CollectionClosure WHERE DescendantID = " + row + ".ParentID)\n" +
+                "AND DescendantID IN (SELECT " + row + ".ChildID\n" +
+                "                     UNION SELECT DescendantID FROM CollectionClosure WHERE AncestorID = " + row + ".ChildID);\n";
+    }
 
+    /**
+     * Returns all collectionIDs beneath the given collection, optionally including it.
+     */
+    public Set<Integer> getAllDescendantCollections(int collectionID, boolean includeTopLevel) {
+        ensureCollectionClosure();
         Set<Integer> descCollections = new HashSet<Integer>();
         if (includeTopLevel)
-            descCollections.add(new Integer(collectionID));
-
-        // As long as there is at least one collection to lookup, find
-        // all subchildren for all of these collections. Add them to the
-        // set of all collections we have visited and plan to visit
-        // then next time (if we haven't). (This is essentially a breadth
-        // first search on the graph of collection relationships).
-        while (!lookUpNext.isEmpty()) {
-            ArrayList<Integer> subChildren =
-                    getImmediateSubCollections(lookUpNext);
-            lookUpNext.clear();
-            for (Integer col : subChildren)
-                if (!descCollections.contains(col)) {
-                    descCollections.add(col);
-                    lookUpNext.add(col);
-                }
+            descCollections.add(collectionID);
+        try (PreparedStatement pstmt = con.prepareStatement(
+                "SELECT DescendantID FROM CollectionClosure WHERE AncestorID = ?")) {
+            pstmt.setInt(1, collectionID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next())
+                    descCollections.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception retrieving descendants of the collection.");
+            System.err.println("Error retrieving descendant collections.");
+            e.printStackTrace();
         }
-
         return descCollections;
     }
 
     public Set<Integer> getAllDescendantCollectionsNew(int collectionID, boolean includeTopLevel) {
+        return getAllDescendantCollections(collectionID, includeTopLevel);
+    }
 
-        // Construct a set of all collections that descend from this one,
-        // including this one.
-        ArrayList<Integer> lookUpNext = new ArrayList<Integer>();
-        boolean status = lookUpNext.add(new Integer(collectionID));
-        assert status : "lookUpNext queue full";
-
-        Set<Integer> descCollections = new HashSet<Integer>();
-        if (includeTopLevel)
-            descCollections.add(new Integer(collectionID));
-
-        // As long as there is at least one collection to lookup, find
-        // all subchildren for all of these collections. Add them to the
-        // set of all collections we have visited and plan to visit
-        // then next time (if we haven't). (This is essentially a breadth
-        // first search on the graph of collection relationships).
-        while (!lookUpNext.isEmpty()) {
-            ArrayList<Integer> subChildren =
-                    getImmediateSubCollections(lookUpNext);
-            lookUpNext.clear();
-            for (Integer col : subChildren)
-                if (!descCollections.contains(col)) {
-                    descCollections.add(col);
-                    lookUpNext.add(col);
-                }
+    /**
+     * Returns all the collections above the given one, nearest first, not
+     * including the collection itself.
+     */
+    public ArrayList<Integer> getAllAncestorCollections(int collectionID) {
+        ensureCollectionClosure();
+        ArrayList<Integer> ancestors = new ArrayList<Integer>();
+        try (PreparedStatement pstmt = con.prepareStatement(
+                "SELECT AncestorID FROM CollectionClosure WHERE DescendantID = ? ORDER BY Depth")) {
+            pstmt.setInt(1, collectionID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next())
+                    ancestors.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception retrieving ancestors of the collection.");
+            System.err.println("Error retrieving ancestor collections.");
+            e.printStackTrace();
         }
-
-        return descCollections;
+        return ancestors;
     }
 
     /**
@@ -2393,6 +2710,12 @@ public abstract class Database {
      * graphs.
      * <p>
      * This will only return 1000 particles at a time. - steinbel
+     * <p>
+     * Pages are found by AtomID rather than by numbering every row in the
+     * collection: the AtomID each 1000-row page ends on is worked out once
+     * (see getPageBoundaries), and a page is then read starting just after
+     * the boundary before it.  If prefetchParticleTable has already read the
+     * page in the background, that's used instead.
      */
     public Vector<Vector<Object>> updateParticleTable(
             Collection collection, Vector<Vector<Object>> particleInfo, int lowIndex, int highIndex) {
@@ -2404,34 +2727,187 @@ public abstract class Database {
             return null;
 
         try {
-            Statement stmt = con.createStatement();
+            Vector<Vector<Object>> rows = takePrefetchedPage(collection, lowIndex, highIndex);
+            if (rows != null) {
+                particleInfo.addAll(rows);
+                return particleInfo;
+            }
+            int[] start = findParticlePage(collection, lowIndex);
+            readParticlePage(con, collection, colNames, start, highIndex - lowIndex + 1, particleInfo);
+        } catch (SQLException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception collecting particle information.");
+            System.err.println("Error collecting particle " +
+                                       "information:");
+            e.printStackTrace();
+        }
+        return particleInfo;
+    }
 
-            StringBuffer query = new StringBuffer();
-            query.append("SELECT ");
-            for (int i = 0; i < colNames.size(); i++) {
-                query.append(colNames.get(i));
-                query.append(",");
+    /**
+     * Starts reading a page of the particle table in the background, on one
+     * of the read connections, so that it's ready by the time
+     * updateParticleTable asks for it.  Only the most recent couple of
+     * pages are kept, and they're thrown away if anything is written to the
+     * database in the meantime.  Without read connections this does nothing.
+     */
+    public void prefetchParticleTable(final Collection collection, int lowIndex, int highIndex) {
+        final ReadConnectionPool pool = readPool;
+        if (pool == null || highIndex < lowIndex)
+            return;
+        final ArrayList<String> colNames = getColNames(collection.getDatatype(), DynamicTable.AtomInfoDense);
+        if (colNames.size() == 0)
+            return;
+        try {
+            // a read connection wouldn't see an open transaction's rows
+            if (!con.getAutoCommit())
+                return;
+            String key = collection.getCollectionID() + ":" + lowIndex + ":" + highIndex;
+            long changes = totalChanges();
+            synchronized (prefetchedPages) {
+                PrefetchedPage page = prefetchedPages.get(key);
+                if (page != null && page.changes == changes)
+                    return;
+            }
+            // the boundary lookup uses the main connection, so it happens here
+            final int[] start = findParticlePage(collection, lowIndex);
+            final int count = highIndex - lowIndex + 1;
+            if (prefetcher == null) {
+                prefetcher = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "Particle table prefetch");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            Future<Vector<Vector<Object>>> rows = prefetcher.submit(() -> {
+                Vector<Vector<Object>> page = new Vector<Vector<Object>>(count);
+                Connection readCon = pool.borrow();
+                try {
+                    readParticlePage(readCon, collection, colNames, start, count, page);
+                } finally {
+                    pool.release(readCon);
+                }
+                return page;
+            });
+            synchronized (prefetchedPages) {
+                prefetchedPages.put(key, new PrefetchedPage(changes, rows));
             }
-            query.setLength(query.length() - 1);
-            query.append(" FROM \n(\n");
-            query.append("SELECT ");
-            query.append(getDynamicTableName(DynamicTable.AtomInfoDense, collection.getDatatype()));
-            query.append(".*, ROW_NUMBER() OVER (ORDER BY InternalAtomOrder.AtomID) as rowNum FROM ");
-            query.append(getDynamicTableName(DynamicTable.AtomInfoDense, collection.getDatatype()));
-            query.append(", InternalAtomOrder\n");
-            query.append("WHERE ");
-            query.append(getDynamicTableName(DynamicTable.AtomInfoDense, collection.getDatatype()));
-            query.append(".AtomID = InternalAtomOrder.AtomID\n");
-            query.append("AND InternalAtomOrder.CollectionID = ");
-            query.append(collection.getCollectionID());
-            query.append("\n) temptable \n");
-            query.append("WHERE rowNum >= ");
-            query.append(lowIndex);
-            query.append(" AND rowNum <= ");
-            query.append(highIndex);
-            query.append(" ORDER BY AtomID\n");
-            ResultSet rs = stmt.executeQuery(query.toString());//changed with IAO change - steinbel 9.19.06
+        } catch (SQLException e) {
+            // it'll just be read when it's asked for
+            e.printStackTrace();
+        }
+    }
+
+    private static class PrefetchedPage {
+        final long changes;
+        final Future<Vector<Vector<Object>>> rows;
+
+        PrefetchedPage(long changes, Future<Vector<Vector<Object>>> rows) {
+            this.changes = changes;
+            this.rows = rows;
+        }
+    }
+
+    // the pages prefetchParticleTable has started on, by collection and rows
+    private final LinkedHashMap<String, PrefetchedPage> prefetchedPages =
+            new LinkedHashMap<String, PrefetchedPage>() {
+                protected boolean removeEldestEntry(Map.Entry<String, PrefetchedPage> eldest) {
+                    return size() > 2;
+                }
+            };
+    private ExecutorService prefetcher;
 
+    /**
+     * @return the prefetched rows, or null if that page wasn't prefetched
+     * or the database has changed since
+     */
+    private Vector<Vector<Object>> takePrefetchedPage(Collection collection, int lowIndex, int highIndex)
+            throws SQLException {
+        PrefetchedPage page;
+        synchronized (prefetchedPages) {
+            page = prefetchedPages.remove(collection.getCollectionID() + ":" + lowIndex + ":" + highIndex);
+        }
+        if (page == null || page.changes != totalChanges())
+            return null;
+        try {
+            return page.rows.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private long totalChanges() throws SQLException {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT total_changes()")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Rows in the particle table are numbered from 1, in AtomID order.
+     *
+     * @return the AtomID the page starts after (0 for the start of the
+     * collection), and how many more rows to skip after that
+     */
+    private int[] findParticlePage(Collection collection, int lowIndex) throws SQLException {
+        int page = (lowIndex - 1) / PARTICLE_PAGE;
+        if (page == 0)
+            return new int[]{0, lowIndex - 1};
+        int[] boundaries = getPageBoundaries(collection.getCollectionID());
+        if (page > boundaries.length)
+            return new int[]{Integer.MAX_VALUE, 0};
+        return new int[]{boundaries[page - 1], lowIndex - 1 - page * PARTICLE_PAGE};
+    }
+
+    /**
+     * @return the AtomIDs on rows 1000, 2000, 3000... of the collection's
+     * particle table.  These take one pass over the collection's
+     * InternalAtomOrder index to find, and are cached until the database
+     * is next written to.
+     */
+    private int[] getPageBoundaries(int collectionID) throws SQLException {
+        int[] boundaries = collectionCache.getPageBoundaries(con, collectionID);
+        if (boundaries != null)
+            return boundaries;
+        ArrayList<Integer> found = new ArrayList<Integer>();
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery(
+                     "SELECT AtomID FROM (SELECT AtomID, ROW_NUMBER() OVER (ORDER BY AtomID) AS rowNum\n" +
+                             "FROM InternalAtomOrder WHERE CollectionID = " + collectionID + ")\n" +
+                             "WHERE rowNum % " + PARTICLE_PAGE + " = 0 ORDER BY AtomID")) {
+            while (rs.next())
+                found.add(rs.getInt(1));
+        }
+        boundaries = new int[found.size()];
+        for (int i = 0; i < boundaries.length; i++)
+            boundaries[i] = found.get(i);
+        collectionCache.putPageBoundaries(con, collectionID, boundaries);
+        return boundaries;
+    }
+
+    /**
+     * Reads count rows of the particle table, starting after the position
+     * findParticlePage gave.
+     */
+    private void readParticlePage(Connection c, Collection collection, ArrayList<String> colNames,
+                                  int[] start, int count, Vector<Vector<Object>> particleInfo)
+            throws SQLException {
+        String denseTableName = getDynamicTableName(DynamicTable.AtomInfoDense, collection.getDatatype());
+        StringBuilder query = new StringBuilder("SELECT ");
+        for (int i = 0; i < colNames.size(); i++) {
+            query.append(denseTableName).append(".").append(colNames.get(i));
+            query.append(",");
+        }
+        query.setLength(query.length() - 1);
+        query.append(" FROM InternalAtomOrder JOIN ").append(denseTableName);
+        query.append(" ON ").append(denseTableName).append(".AtomID = InternalAtomOrder.AtomID\n");
+        query.append("WHERE InternalAtomOrder.CollectionID = ").append(collection.getCollectionID());
+        query.append(" AND InternalAtomOrder.AtomID > ").append(start[0]);
+        query.append("\nORDER BY InternalAtomOrder.AtomID LIMIT ").append(count);
+        query.append(" OFFSET ").append(start[1]);
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery(query.toString())) {//changed with IAO change - steinbel 9.19.06
             while (rs.next()) {
                 Vector<Object> vtemp = new Vector<Object>(colNames.size());
                 vtemp.add(rs.getInt(1)); // Integer for atomID
@@ -2439,14 +2915,49 @@ public abstract class Database {
                     vtemp.add(rs.getString(i));
                 particleInfo.add(vtemp);
             }
-            stmt.close();
-        } catch (SQLException e) {
-            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception collecting particle information.");
-            System.err.println("Error collecting particle " +
-                                       "information:");
+        }
+    }
+
+    /**
+     * Writes the whole database to a directory of compressed chunk files,
+     * a table at a time, without holding any table in memory.  See
+     * DatabaseDump for the layout.
+     *
+     * @param progressBar may be null
+     * @return true on success, false if it failed or was cancelled
+     */
+    public boolean exportDatabase(File dir, ProgressBarWrapper progressBar) {
+        try {
+            return new DatabaseDump(this, progressBar).export(dir);
+        } catch (SQLException | IOException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Exception exporting the database to " + dir + ": " + e.getMessage());
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the contents of the database with a dump written by
+     * exportDatabase(File, ProgressBarWrapper).  If it fails or is cancelled
+     * the database is left as it was.
+     *
+     * @param progressBar may be null
+     * @return true on success
+     */
+    public boolean importDatabase(File dir, ProgressBarWrapper progressBar) {
+        try {
+            return new DatabaseDump(this, progressBar).importInto(dir);
+        } catch (SQLException | IOException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Exception importing the database from " + dir + ": " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            // the dump brings its own atoms, collections and NextAtomID
+            clearCache();
+            discardAtomIDBlock();
+            collectionClosureChecked = false;
+            SpectrumCacheFile.discardAll(getSpectrumCacheDirectory());
         }
-        return particleInfo;
     }
 
     public void exportDatabase(String filename, int fileType) throws FileNotFoundException {
@@ -2514,59 +3025,120 @@ public abstract class Database {
     }
 
     /**
-     * Finds a list of data backup locations, those added by sp_addumpdevice
+     * Pages copied by each step of a backup or restore.  The source is only
+     * read-locked during a step, so everything else carries on in between;
+     * at the default page size this is 16 MB a step.
+     */
+    private static final int BACKUP_PAGES_PER_STEP = 4096;
+
+    /**
+     * Told how a backup or restore is getting on, after each step.
+     */
+    public interface BackupObserver {
+        /**
+         * @param remainingPages pages still to copy
+         * @param pageCount      pages in the whole database
+         * @return false to cancel the backup; ignored for restores, which
+         * can't be stopped part way
+         */
+        boolean progress(int remainingPages, int pageCount);
+    }
+
+    /**
+     * The directory holding the backup catalog, and where backups go if
+     * nobody says otherwise.
+     */
+    public File getBackupDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "enchilada-backups-" + getDatabaseName());
+    }
+
+    private final Object backupCatalogLock = new Object();
+
+    private File getBackupCatalogFile() {
+        return new File(getBackupDirectory(), "catalog.properties");
+    }
+
+    /**
+     * The catalog holds, for each backup name, &lt;name&gt;.path and, once
+     * something has been backed up there, &lt;name&gt;.created in
+     * milliseconds.
+     */
+    private Properties loadBackupCatalog() throws IOException {
+        Properties catalog = new Properties();
+        File file = getBackupCatalogFile();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                catalog.load(in);
+            }
+        }
+        return catalog;
+    }
+
+    private void storeBackupCatalog(Properties catalog) throws IOException {
+        File file = getBackupCatalogFile();
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed to make directory " + dir + " for the backup catalog.");
+        File temp = new File(dir, file.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            catalog.store(out, "Enchilada backups of " + getDatabaseName());
+        }
+        java.nio.file.Files.move(temp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Finds the backups in the catalog.
      *
      * @return A list of maps which define the backup locations: each element of the list has K=>V
      * "name" => the name of the backup
-     * "type" => the type of backup (Disk, Tape)
+     * "type" => the type of backup (always Disk)
      * "path" => the pathname of the backup
+     * "size" => the size of the backup file, or "Empty" if nothing's been backed up there
+     * "created" => when the backup was made, if it has been
      * @author shaferia
      */
     public ArrayList<HashMap<String, String>> getBackupLocations() {
         ArrayList<HashMap<String, String>> locations = new ArrayList<HashMap<String, String>>();
-
-        try (Statement stmt = con.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT name,type,physical_name FROM sys.backup_devices")) {
-
-            while (rs.next()) {
-                HashMap<String, String> loc = new HashMap<String, String>();
-                loc.put("name", rs.getString(1));
-                String type = null;
-                switch (rs.getInt(2)) {
-                    case 2:
-                        type = "Disk";
-                        break;
-                    case 5:
-                        type = "Tape";
-                        break;
-                    default:
-                        type = "Other";
-                        break;
-                }
-                loc.put("type", type);
-                loc.put("path", rs.getString(3));
-                if (type.equals("Disk")) {
-                    locations.add(loc);
-                    File f = new File(rs.getString(3));
-                    if (f.exists())
-                        loc.put("size", (f.length() / 1024) + " KB");
-                    else
-                        loc.put("size", "Empty");
-                }
+        Properties catalog;
+        try {
+            synchronized (backupCatalogLock) {
+                catalog = loadBackupCatalog();
             }
-        } catch (SQLException ex) {
-            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Could not retrieve backup device list");
-            System.err.println("Error getting backup device list");
+        } catch (IOException ex) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Could not read the backup catalog");
+            System.err.println("Error reading the backup catalog");
             ex.printStackTrace();
+            return locations;
+        }
+
+        TreeSet<String> names = new TreeSet<String>();
+        for (String key : catalog.stringPropertyNames()) {
+            if (key.endsWith(".path"))
+                names.add(key.substring(0, key.length() - ".path".length()));
+        }
+        for (String name : names) {
+            HashMap<String, String> loc = new HashMap<String, String>();
+            String path = catalog.getProperty(name + ".path");
+            loc.put("name", name);
+            loc.put("type", "Disk");
+            loc.put("path", path);
+            File f = new File(path);
+            if (f.exists())
+                loc.put("size", (f.length() / 1024) + " KB");
+            else
+                loc.put("size", "Empty");
+            String created = catalog.getProperty(name + ".created");
+            if (created != null)
+                loc.put("created", DateFormat.getDateTimeInstance().format(new Date(Long.parseLong(created))));
+            locations.add(loc);
         }
-
         return locations;
     }
 
     /**
      * Add a database backup location as a file
      *
-     * @param name the name of the backup file to add (as referenced in the master database)
+     * @param name the name of the backup file to add (as referenced in the backup catalog)
      * @param path the path of the backup file to add
      * @return true on success
      * @author shaferia
@@ -2575,14 +3147,17 @@ public abstract class Database {
         boolean success = false;
         try {
             name = removeReservedCharacters(name);
-            String query = "EXEC sp_addumpdevice \'disk\', \'" + name + "\', \'" + path + "\'";
-            try (Statement stmt = con.createStatement()) {
-                stmt.execute(query);
+            synchronized (backupCatalogLock) {
+                Properties catalog = loadBackupCatalog();
+                if (catalog.getProperty(name + ".path") != null)
+                    throw new IOException("There is already a backup called " + name);
+                catalog.setProperty(name + ".path", new File(path).getAbsolutePath());
+                storeBackupCatalog(catalog);
             }
             success = true;
-        } catch (SQLException ex) {
+        } catch (IOException ex) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Error adding backup file");
-            System.err.println("Error adding backup file - executing sp_adddumpdevice");
+            System.err.println("Error adding backup file to the catalog");
             ex.printStackTrace();
         }
 
@@ -2592,7 +3167,7 @@ public abstract class Database {
     /**
      * Remove a database backup location
      *
-     * @param name    the name of the backup file to delete (as referenced in the master database)
+     * @param name    the name of the backup file to delete (as referenced in the backup catalog)
      * @param delfile delete the associated file?
      * @return true on success
      * @author shaferia
@@ -2601,17 +3176,21 @@ public abstract class Database {
         boolean success = false;
         try {
             name = removeReservedCharacters(name);
-            String query = "EXEC sp_dropdevice \'" + name + "\'";
-            if (delfile)
-                query += ", \'DELFILE\'";
-            try (Statement stmt = con.createStatement()) {
-                stmt.execute(query);
+            synchronized (backupCatalogLock) {
+                Properties catalog = loadBackupCatalog();
+                String path = catalog.getProperty(name + ".path");
+                if (path == null)
+                    throw new IOException("There is no backup called " + name);
+                catalog.remove(name + ".path");
+                catalog.remove(name + ".created");
+                storeBackupCatalog(catalog);
+                if (delfile)
+                    new File(path).delete();
             }
-
             success = true;
-        } catch (SQLException ex) {
+        } catch (IOException ex) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Error removing backup file");
-            System.err.println("Error removing backup file - executing sp_dropdevice");
+            System.err.println("Error removing backup file from the catalog");
             ex.printStackTrace();
         }
 
@@ -2619,44 +3198,151 @@ public abstract class Database {
     }
 
     /**
-     * Backup the database to the backup location with the specified name
-     *
-     * @param name the name of the backup location
-     * @return output returned from the server if failed, or "Succeeded" otherwise
+     * @return the file for a backup, given either its name in the catalog or
+     * a path
      */
+    private File backupFile(String name) throws IOException {
+        synchronized (backupCatalogLock) {
+            String path = loadBackupCatalog().getProperty(name + ".path");
+            return new File(path == null ? name : path).getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Notes a finished backup in the catalog, adding it under the name of its
+     * file if it isn't there already.
+     */
+    private void catalogBackup(File file) throws IOException {
+        synchronized (backupCatalogLock) {
+            Properties catalog = loadBackupCatalog();
+            String name = null;
+            for (String key : catalog.stringPropertyNames()) {
+                if (key.endsWith(".path") && new File(catalog.getProperty(key)).equals(file))
+                    name = key.substring(0, key.length() - ".path".length());
+            }
+            if (name == null) {
+                String base = file.getName();
+                if (base.indexOf('.') > 0)
+                    base = base.substring(0, base.indexOf('.'));
+                base = base.replaceAll("[^A-Za-z0-9]", "");
+                name = base;
+                for (int i = 2; catalog.getProperty(name + ".path") != null; i++)
+                    name = base + i;
+                catalog.setProperty(name + ".path", file.getPath());
+            }
+            catalog.setProperty(name + ".created", Long.toString(System.currentTimeMillis()));
+            storeBackupCatalog(catalog);
+        }
+    }
+
     public String backupDatabase(String name) {
-        String ret = "Succeeded";
+        return backupDatabase(name, null);
+    }
 
-        try (Statement stmt = getCon().createStatement()) {
-            stmt.executeUpdate("backup to '" + name + "'");
-        } catch (SQLException ex) {
+    /**
+     * Backs up the database, a few thousand pages at a time, using SQLite's
+     * online backup.  The copy is read through one of the read-only
+     * connections, so the rest of the program can go on using the database
+     * the whole time; if something else writes to it, SQLite starts the copy
+     * over so the backup is always of one moment.  The copy goes to a
+     * .partial file that only replaces the old backup once it's complete.
+     * <p>
+     * The sqlite-jdbc copy loop can't be stopped from inside, so a cancelled
+     * backup finishes copying in the background before its file is thrown
+     * away; nothing is reported to the observer after it cancels.
+     *
+     * @param name     the name of the backup in the catalog, or the path of a
+     *                 file to back up to, which is added to the catalog
+     * @param observer told how far along the backup is; may be null
+     * @return a message saying the backup succeeded or why it didn't
+     */
+    public String backupDatabase(String name, final BackupObserver observer) {
+        File partial = null;
+        Connection source = null;
+        try {
+            File target = backupFile(name);
+            File dir = target.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs())
+                throw new IOException("Failed to make directory " + dir + " for the backup.");
+            partial = new File(target.getPath() + ".partial");
+            partial.delete();
+
+            final boolean[] cancelled = {false};
+            source = getReadConnection();
+            int rc = source.unwrap(SQLiteConnection.class).getDatabase().backup(
+                    "main", partial.getPath(),
+                    (remaining, pageCount) -> {
+                        if (!cancelled[0] && observer != null && !observer.progress(remaining, pageCount))
+                            cancelled[0] = true;
+                    },
+                    100, 50, BACKUP_PAGES_PER_STEP);
+            if (rc != SQLiteErrorCode.SQLITE_OK.code && rc != SQLiteErrorCode.SQLITE_DONE.code)
+                throw new SQLException("Backup stopped with SQLite error " + SQLiteErrorCode.getErrorCode(rc));
+            if (cancelled[0]) {
+                partial.delete();
+                return "Backup cancelled.";
+            }
+            java.nio.file.Files.move(partial.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            catalogBackup(target);
+            return "Backup of " + getDatabaseName() + " to " + target + " completed successfully (" +
+                    (target.length() / 1024) + " KB).";
+        } catch (SQLException | IOException ex) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                      "Error backing up database to " + name);
-            System.err.println("Error backing up database - executing BACKUP DATABASE");
-            throw new ExceptionAdapter(ex);
+            System.err.println("Error backing up database");
+            ex.printStackTrace();
+            if (partial != null)
+                partial.delete();
+            return ex.getMessage();
+        } finally {
+            releaseReadConnection(source);
         }
-        return ret;
+    }
+
+    public String restoreDatabase(String name) {
+        return restoreDatabase(name, null);
     }
 
     /**
-     * Restore the database from the backup location with the specified name
+     * Replaces the database with a backup, a few thousand pages at a time,
+     * using SQLite's online backup the other way round.  It all happens in
+     * one transaction, so if it fails the database is left as it was.  The
+     * connection is reopened afterwards, which throws away everything cached
+     * about the old contents.
      *
-     * @param name the name of the backup location
-     * @return output returned from the server if failed, or "Suceeded" otherwise
+     * @param name     the name of the backup in the catalog, or the path of a
+     *                 backup file
+     * @param observer told how far along the restore is; may be null
+     * @return a message saying the restore succeeded or why it didn't
      */
-    public String restoreDatabase(String name) {
-        closeConnection();
-        openConnection();
-        String ret = "Succeeded";
-        try (Statement stmt = getCon().createStatement()) {
-            stmt.executeUpdate("restore from '" + name + "'");
-        } catch (SQLException ex) {
+    public String restoreDatabase(String name, final BackupObserver observer) {
+        String ret;
+        try {
+            File source = backupFile(name);
+            if (!source.isFile())
+                throw new IOException("There is no backup at " + source);
+            closeConnection();
+            openConnection();
+            int rc = con.unwrap(SQLiteConnection.class).getDatabase().restore(
+                    "main", source.getPath(),
+                    (remaining, pageCount) -> {
+                        if (observer != null)
+                            observer.progress(remaining, pageCount);
+                    },
+                    100, 50, BACKUP_PAGES_PER_STEP);
+            if (rc != SQLiteErrorCode.SQLITE_OK.code && rc != SQLiteErrorCode.SQLITE_DONE.code)
+                throw new SQLException("Restore stopped with SQLite error " + SQLiteErrorCode.getErrorCode(rc));
+            ret = "Restore of " + getDatabaseName() + " from " + source + " completed successfully.";
+        } catch (SQLException | IOException ex) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                      "Error restoring database from " + name);
-            System.err.println("Error restoring database - executing RESTORE DATABASE");
+            System.err.println("Error restoring database");
             ex.printStackTrace();
             ret = ex.getMessage();
         }
+        SpectrumCacheFile.discardAll(getSpectrumCacheDirectory());
+        closeConnection();
+        openConnection();
 
         return ret;
     }
@@ -2727,6 +3413,7 @@ public abstract class Database {
             pstmt.setString(1, description);
             pstmt.setInt(2, collection.getCollectionID());
             pstmt.executeUpdate();
+            collectionCache.invalidate();
         } catch (SQLException e) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception updating collection description.");
             System.err.println("Error updating collection description:");
@@ -2739,33 +3426,118 @@ public abstract class Database {
     /* Misc */
 
     /**
-     * getNextID returns the next possible ID for an atom.
+     * getNextID hands out a new, unused ID for an atom.  Each call uses up
+     * an ID, whether or not an atom is ever stored under it.
      *
-     * @return ID
+     * IDs come from a block reserved with reserveAtomIDs, so most calls
+     * don't touch the database at all.
+     *
+     * @return ID, or -1 if no ID could be reserved
      */
-    public int getNextID() {
-        try {
-            Statement stmt = con.createStatement();
-
-            ResultSet rs = stmt.executeQuery("SELECT MAX(AtomID) FROM AtomMembership");
-
-            int nextID;
-            if (rs.next())
-                nextID = rs.getInt(1) + 1;
-            else
-                nextID = 0;
-            stmt.close();
-            return nextID;
+    public synchronized int getNextID() {
+        if (nextBlockAtomID < 0 || nextBlockAtomID >= atomIDBlockLimit) {
+            int first = reserveAtomIDs(ATOM_ID_BLOCK_SIZE);
+            if (first < 0)
+                return -1;
+            nextBlockAtomID = first;
+            atomIDBlockLimit = first + ATOM_ID_BLOCK_SIZE;
+        }
+        return nextBlockAtomID++;
+    }
 
+    /**
+     * Reserves a range of consecutive atom IDs that no one else will be
+     * given.  The next free ID is kept in the NextAtomID row of DBInfo,
+     * and moving it along is committed before the range is handed out, so
+     * a crash can leave unused gaps but never hands out an ID twice.
+     *
+     * The first reservation on a connection also makes sure the counter is
+     * past MAX(AtomID), in case atoms were written without it (older
+     * databases, test data); after that the membership table is never
+     * scanned again.
+     *
+     * If the connection is in the middle of a transaction, the
+     * reservation becomes part of it.
+     *
+     * @param count the number of IDs needed
+     * @return the first ID of the range, or -1 on failure
+     */
+    public synchronized int reserveAtomIDs(int count) {
+        try {
+            boolean autoCommit = con.getAutoCommit();
+            if (autoCommit)
+                con.setAutoCommit(false);
+            int first;
+            try (Statement stmt = con.createStatement()) {
+                if (!atomIDSequenceChecked) {
+                    stmt.executeUpdate("INSERT OR IGNORE INTO DBInfo VALUES ('NextAtomID', 0)");
+                    stmt.executeUpdate("UPDATE DBInfo SET Value = " +
+                            "(SELECT IFNULL(MAX(AtomID), 0) + 1 FROM AtomMembership) " +
+                            "WHERE Name = 'NextAtomID' AND CAST(Value AS INTEGER) <= " +
+                            "(SELECT IFNULL(MAX(AtomID), 0) FROM AtomMembership)");
+                }
+                // Write before reading: the UPDATE takes the write lock (waiting
+                // out the busy timeout if need be), so no other connection can
+                // move NextAtomID between it and the read.  Reading first would
+                // leave a read snapshot that can't be upgraded if someone else
+                // commits in between.
+                stmt.executeUpdate("UPDATE DBInfo SET Value = CAST(Value AS INTEGER) + " + count +
+                        " WHERE Name = 'NextAtomID'");
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT CAST(Value AS INTEGER) - " + count + " FROM DBInfo WHERE Name = 'NextAtomID'")) {
+                    rs.next();
+                    first = rs.getInt(1);
+                }
+                if (autoCommit)
+                    con.commit();
+            } catch (SQLException e) {
+                if (autoCommit)
+                    con.rollback();
+                throw e;
+            } finally {
+                if (autoCommit)
+                    con.setAutoCommit(true);
+            }
+            atomIDSequenceChecked = true;
+            return first;
         } catch (SQLException e) {
-            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception finding the maximum atomID.");
-            System.err.println("Exception finding max atom id.");
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception reserving atom IDs.");
+            System.err.println("Exception reserving atom ids.");
             e.printStackTrace();
         }
 
         return -1;
     }
 
+    /**
+     * Forgets the block getNextID is handing out, without touching the
+     * database.  Call this after rolling back a transaction the block may
+     * have been reserved in, since the reservation went with it.
+     */
+    synchronized void discardAtomIDBlock() {
+        nextBlockAtomID = atomIDBlockLimit = -1;
+        atomIDSequenceChecked = false;
+    }
+
+    /**
+     * Gives back the unused part of the block getNextID is handing out,
+     * if no one has reserved IDs since, so that closing a connection
+     * doesn't leave a gap in the IDs.
+     */
+    private synchronized void releaseAtomIDs() {
+        if (nextBlockAtomID >= 0 && nextBlockAtomID < atomIDBlockLimit) {
+            try (Statement stmt = con.createStatement()) {
+                stmt.executeUpdate("UPDATE DBInfo SET Value = " + nextBlockAtomID +
+                        " WHERE Name = 'NextAtomID' AND CAST(Value AS INTEGER) = " + atomIDBlockLimit);
+            } catch (SQLException e) {
+                // the IDs just stay unused
+                e.printStackTrace();
+            }
+        }
+        nextBlockAtomID = atomIDBlockLimit = -1;
+        atomIDSequenceChecked = false;
+    }
+
     /**
      * exports a collection to the MSAnalyze database by making up
      * the necessary data to import (.par file, etc).
@@ -3100,24 +3872,191 @@ public abstract class Database {
     }
 
     /* Cursor classes */
+
+    /**
+     * Clustering cursor.  Returns the binned peak list described by a
+     * ClusterInformation for each atom in a collection.
+     * <p>
+     * In streaming mode (the default) the whole collection is read with a
+     * single query that joins InternalAtomOrder to the sparse or dense table,
+     * ordered by AtomID, and rows are grouped into peak lists as they go by,
+     * the same way BPLOnlyCursor does.  Otherwise a separate query is run for
+     * each atom, which is only worth it if you're going to look at a handful
+     * of particles.
+     * <p>
+     * A streaming cursor can also be limited to some of the collection's
+     * atoms, which it reads with the same query, still in AtomID order.
+     */
     private class ClusteringCursor implements CollectionCursor {
         protected InstancedResultSet irs;
         protected ResultSet rs;
         protected Statement stmt = null;
+        // where the streaming query runs
+        private Connection readCon;
         private Collection collection;
         private ClusterInformation cInfo;
         private String datatype;
+        private boolean streaming;
+        // the atoms to read, sorted, or null for the whole collection
+        private int[] atomIDs;
+        // streaming mode: true if rs is sitting on the first row of the next atom
+        private boolean rowPending;
+        private ParticleInfo current;
+        // streaming from ATOFMSAtomSpectra: which peak field is the value, or null
+        private String packedValue;
+        private final PackedSpectrum.Reader reader = new PackedSpectrum.Reader();
 
         public ClusteringCursor(Collection collection, ClusterInformation cInfo) {
+            this(collection, cInfo, true);
+        }
+
+        public ClusteringCursor(Collection collection, ClusterInformation cInfo, boolean streaming) {
+            this(collection, cInfo, streaming, null);
+        }
+
+        /**
+         * @param atomIDs the atoms to read, or null for all of them; only a
+         * streaming cursor can be limited
+         */
+        public ClusteringCursor(Collection collection, ClusterInformation cInfo, boolean streaming,
+                                int[] atomIDs) {
             super();
             this.collection = collection;
+            if (atomIDs != null) {
+                this.atomIDs = atomIDs.clone();
+                Arrays.sort(this.atomIDs);
+            }
             datatype = collection.getDatatype();
             this.cInfo = cInfo;
-            rs = getAllAtomsRS(collection);
+            this.streaming = streaming;
+            if (streaming) {
+                readCon = getReadConnection();
+                openStream();
+            }
+            else
+                rs = getAllAtomsRS(collection);
+        }
+
+        /**
+         * Runs the ordered join that the streaming mode reads from, and
+         * positions the result set on its first row.
+         */
+        private void openStream() {
+            packedValue = packedValueColumn();
+            StringBuilder query = new StringBuilder("SELECT InternalAtomOrder.AtomID, ");
+            if (packedValue != null) {
+                query.append("ATOFMSAtomSpectra.Peaks FROM InternalAtomOrder JOIN ATOFMSAtomSpectra");
+                query.append(" ON ATOFMSAtomSpectra.AtomID = InternalAtomOrder.AtomID");
+            } else if (cInfo.automatic) {
+                String denseTableName = getDynamicTableName(DynamicTable.AtomInfoDense, datatype);
+                query.append(join(cInfo.valueColumns, ","));
+                query.append(" FROM InternalAtomOrder JOIN ").append(denseTableName);
+                query.append(" ON ").append(denseTableName).append(".AtomID = InternalAtomOrder.AtomID");
+            } else {
+                // LEFT JOIN so that atoms without peaks still come back, with
+                // an empty peak list, just as they do for per-atom queries.
+                String sparseTableName = getDynamicTableName(DynamicTable.AtomInfoSparse, datatype);
+                query.append(cInfo.keyColumn).append(", ").append(cInfo.valueColumns.iterator().next());
+                query.append(" FROM InternalAtomOrder LEFT JOIN ").append(sparseTableName);
+                query.append(" ON ").append(sparseTableName).append(".AtomID = InternalAtomOrder.AtomID");
+            }
+            query.append(" WHERE InternalAtomOrder.CollectionID = ").append(collection.getCollectionID());
+            if (atomIDs != null) {
+                query.append(" AND InternalAtomOrder.AtomID IN (");
+                for (int i = 0; i < atomIDs.length; i++) {
+                    if (i > 0)
+                        query.append(',');
+                    query.append(atomIDs[i]);
+                }
+                query.append(')');
+            }
+            query.append(" ORDER BY InternalAtomOrder.AtomID");
+            try {
+                stmt = readCon.createStatement();
+                rs = stmt.executeQuery(query.toString());
+                rowPending = rs.next();
+            } catch (SQLException e) {
+                ErrorLogger.writeExceptionToLogAndPrompt(getName(),
+                                                         "SQL Exception retrieving data through a clustering cursor.");
+                e.printStackTrace();
+                rowPending = false;
+            }
+            current = null;
+        }
+
+        /**
+         * @return the sparse column clustered on, if it's one the packed
+         * peak lists hold and this collection has them; otherwise null
+         */
+        private String packedValueColumn() {
+            if (cInfo.automatic || !datatype.equals("ATOFMS"))
+                return null;
+            String key = cInfo.keyColumn.substring(cInfo.keyColumn.lastIndexOf('.') + 1);
+            String value = cInfo.valueColumns.iterator().next();
+            value = value.substring(value.lastIndexOf('.') + 1);
+            if (!key.equalsIgnoreCase("PeakLocation") ||
+                    !(value.equalsIgnoreCase("PeakArea") || value.equalsIgnoreCase("RelPeakArea") ||
+                            value.equalsIgnoreCase("PeakHeight")))
+                return null;
+            if (!hasPackedSpectra(collection.getCollectionID()))
+                return null;
+            return value;
+        }
+
+        /**
+         * Reads all rows belonging to the atom the result set is sitting on,
+         * leaving it on the first row of the following atom.
+         */
+        private boolean nextStreamed() throws SQLException {
+            if (!rowPending) {
+                current = null;
+                return false;
+            }
+            int atomID = rs.getInt(1);
+            BinnedPeakList peakList = newPeakList();
+            if (packedValue != null) {
+                // one row per atom
+                reader.reset(rs.getBytes(2));
+                while (reader.next()) {
+                    if (packedValue.equalsIgnoreCase("PeakArea"))
+                        peakList.add(reader.location, reader.area);
+                    else if (packedValue.equalsIgnoreCase("RelPeakArea"))
+                        peakList.add(reader.location, reader.relArea);
+                    else
+                        peakList.add(reader.location, reader.height);
+                }
+                rowPending = rs.next();
+            } else {
+                do {
+                    if (cInfo.automatic) {
+                        for (int i = 1; i <= cInfo.valueColumns.size(); i++)
+                            peakList.addNoChecks(i, rs.getFloat(i + 1));
+                    } else {
+                        float location = rs.getFloat(2);
+                        if (!rs.wasNull())
+                            peakList.add(location, rs.getFloat(3));
+                    }
+                    rowPending = rs.next();
+                } while (rowPending && rs.getInt(1) == atomID);
+            }
+
+            current = new ParticleInfo();
+            current.setID(atomID);
+            current.setBinnedList(peakList);
+            return true;
+        }
+
+        private BinnedPeakList newPeakList() {
+            if (cInfo.normalize)
+                return new BinnedPeakList(new Normalizer());
+            else
+                return new BinnedPeakList(new DummyNormalizer());
         }
 
         public boolean next() {
             try {
+                if (streaming)
+                    return nextStreamed();
                 return rs.next();
             } catch (SQLException e) {
                 ErrorLogger.writeExceptionToLogAndPrompt(getName(),
@@ -3131,6 +4070,8 @@ public abstract class Database {
         }
 
         public ParticleInfo getCurrent() {
+            if (streaming)
+                return current;
 
             ParticleInfo particleInfo = new ParticleInfo();
             try {
@@ -3150,17 +4091,25 @@ public abstract class Database {
         public void close() {
             try {
                 rs.close();
+                if (stmt != null)
+                    stmt.close();
             } catch (SQLException e) {
                 ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                          "SQL Exception retrieving data through a clustering cursor.");
                 e.printStackTrace();
             }
+            releaseReadConnection(readCon);
+            readCon = null;
         }
 
         public void reset() {
             try {
                 rs.close();
-                rs = getAllAtomsRS(collection);
+                if (streaming) {
+                    stmt.close();
+                    openStream();
+                } else
+                    rs = getAllAtomsRS(collection);
             } catch (SQLException e) {
                 ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                          "SQL Exception retrieving data through a clustering cursor.");
@@ -3176,40 +4125,33 @@ public abstract class Database {
         }
 
         public BinnedPeakList getPeakListfromAtomID(int id) {
-            BinnedPeakList peakList;
-            if (cInfo.normalize)
-                peakList = new BinnedPeakList(new Normalizer());
-            else
-                peakList = new BinnedPeakList(new DummyNormalizer());
-            try {
-                ResultSet listRS;
-                Statement stmt2 = con.createStatement();
+            BinnedPeakList peakList = newPeakList();
+            try (Statement stmt2 = con.createStatement()) {
                 if (cInfo.automatic) {
-                    listRS = stmt2.executeQuery("SELECT " + join(cInfo.valueColumns, ",") +
+                    try (ResultSet listRS = stmt2.executeQuery("SELECT " + join(cInfo.valueColumns, ",") +
                                                         " FROM " + getDynamicTableName(DynamicTable.AtomInfoDense,
                                                                                        datatype) +
-                                                        " WHERE AtomID = " + id);
-
-                    listRS.next();
-                    for (int i = 1; i <= cInfo.valueColumns.size(); i++) {
-                        //TODO: this is a hack; fix.
-                        try {
-                            peakList.addNoChecks(i, listRS.getFloat(i));
-                        } catch (SQLException e) {
-                            peakList.addNoChecks(i, listRS.getInt(i));
+                                                        " WHERE AtomID = " + id)) {
+                        listRS.next();
+                        for (int i = 1; i <= cInfo.valueColumns.size(); i++) {
+                            //TODO: this is a hack; fix.
+                            try {
+                                peakList.addNoChecks(i, listRS.getFloat(i));
+                            } catch (SQLException e) {
+                                peakList.addNoChecks(i, listRS.getInt(i));
+                            }
                         }
                     }
                 } else {
-                    listRS = stmt2.executeQuery("SELECT " +
+                    try (ResultSet listRS = stmt2.executeQuery("SELECT " +
                                                         cInfo.keyColumn + ", " + cInfo.valueColumns.iterator().next() +
                                                         " FROM " + getDynamicTableName(DynamicTable.AtomInfoSparse,
                                                                                        datatype) +
-                                                        " WHERE AtomID = " + id);
-                    while (listRS.next())
-                        peakList.add(listRS.getFloat(1), listRS.getFloat(2));
+                                                        " WHERE AtomID = " + id)) {
+                        while (listRS.next())
+                            peakList.add(listRS.getFloat(1), listRS.getFloat(2));
+                    }
                 }
-                stmt2.close();
-                listRS.close();
             } catch (SQLException e) {
                 ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                          "SQL Exception retrieving data through a clustering cursor.");
@@ -3263,27 +4205,138 @@ public abstract class Database {
                 return (position < storedInfo.size());
         }
 
-        public ParticleInfo getCurrent() {
-            return storedInfo.get(position);
+        public ParticleInfo getCurrent() {
+            return storedInfo.get(position);
+        }
+
+        public ParticleInfo get(int i) {
+            if (firstPass)
+                if (i < position)
+                    return storedInfo.get(i);
+                else
+                    return null;
+            else
+                return storedInfo.get(i);
+        }
+
+        public BinnedPeakList getPeakListfromAtomID(int atomID) {
+            for (ParticleInfo particleInfo : storedInfo) {
+                if (particleInfo.getID() == atomID)
+                    return particleInfo.getBinnedList();
+            }
+            return super.getPeakListfromAtomID(atomID);
+        }
+    }
+
+    /* Packed spectra */
+
+    /**
+     * Makes the ATOFMSAtomSpectra table, which holds each ATOFMS particle's
+     * peak list as one packed blob (see PackedSpectrum), if it isn't there.
+     * ATOFMSAtomInfoSparse stays the real copy of the peaks; the blobs are
+     * only there so that reading a whole collection doesn't mean reading a
+     * row for every peak.
+     */
+    public void ensureSpectraTable() {
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS ATOFMSAtomSpectra (AtomID INTEGER PRIMARY KEY, Peaks BLOB)");
+        } catch (SQLException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception creating the packed spectra table.");
+            throw new ExceptionAdapter(e);
+        }
+    }
+
+    /**
+     * @return true if every atom in the collection has a packed peak list,
+     * so the collection can be read from ATOFMSAtomSpectra alone
+     */
+    public boolean hasPackedSpectra(int collectionID) {
+        try (Statement stmt = con.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'ATOFMSAtomSpectra'")) {
+                if (!rs.next())
+                    return false;
+            }
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT 1 FROM InternalAtomOrder i WHERE i.CollectionID = " + collectionID +
+                            " AND NOT EXISTS (SELECT 1 FROM ATOFMSAtomSpectra s WHERE s.AtomID = i.AtomID) LIMIT 1")) {
+                return !rs.next();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Packs the peak lists of the atoms in an ATOFMS collection that don't
+     * have packed ones yet, e.g. ones imported before packing was turned on.
+     *
+     * @return the number of atoms packed
+     */
+    public int packSpectra(Collection collection) {
+        ensureSpectraTable();
+        int packed = 0;
+        boolean autoCommit = true;
+        try (Statement stmt = con.createStatement();
+             PreparedStatement insert = con.prepareStatement(
+                     "INSERT OR REPLACE INTO ATOFMSAtomSpectra (AtomID, Peaks) VALUES (?, ?)")) {
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            PackedSpectrum.Writer writer = new PackedSpectrum.Writer();
+            int currentID = -1;
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT i.AtomID, s.PeakLocation, s.PeakArea, s.RelPeakArea, s.PeakHeight\n" +
+                            "FROM InternalAtomOrder i LEFT JOIN ATOFMSAtomInfoSparse s ON s.AtomID = i.AtomID\n" +
+                            "WHERE i.CollectionID = " + collection.getCollectionID() + "\n" +
+                            "AND NOT EXISTS (SELECT 1 FROM ATOFMSAtomSpectra p WHERE p.AtomID = i.AtomID)\n" +
+                            "ORDER BY i.AtomID, s.PeakLocation")) {
+                while (rs.next()) {
+                    int atomID = rs.getInt(1);
+                    if (atomID != currentID) {
+                        if (currentID != -1)
+                            packed += addPackedSpectrum(insert, currentID, writer);
+                        writer.clear();
+                        currentID = atomID;
+                    }
+                    double location = rs.getDouble(2);
+                    if (!rs.wasNull())
+                        writer.add(location, rs.getInt(3), rs.getFloat(4), rs.getInt(5));
+                }
+            }
+            if (currentID != -1)
+                packed += addPackedSpectrum(insert, currentID, writer);
+            insert.executeBatch();
+            if (autoCommit)
+                con.commit();
+        } catch (SQLException e) {
+            rollbackIfOurs(autoCommit);
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception packing the collection's spectra.");
+            throw new ExceptionAdapter(e);
+        } finally {
+            restoreAutoCommit(autoCommit);
         }
+        return packed;
+    }
 
-        public ParticleInfo get(int i) {
-            if (firstPass)
-                if (i < position)
-                    return storedInfo.get(i);
-                else
-                    return null;
-            else
-                return storedInfo.get(i);
-        }
+    private int addPackedSpectrum(PreparedStatement insert, int atomID, PackedSpectrum.Writer writer)
+            throws SQLException {
+        byte[] peaks = writer.toBytes();
+        if (peaks == null)
+            return 0;
+        insert.setInt(1, atomID);
+        insert.setBytes(2, peaks);
+        insert.addBatch();
+        return 1;
+    }
 
-        public BinnedPeakList getPeakListfromAtomID(int atomID) {
-            for (ParticleInfo particleInfo : storedInfo) {
-                if (particleInfo.getID() == atomID)
-                    return particleInfo.getBinnedList();
-            }
-            return super.getPeakListfromAtomID(atomID);
-        }
+    /**
+     * The packed peak lists of a collection's atoms, in AtomID order, for
+     * the cursors.  Like the sparse table, this skips atoms with no peaks.
+     */
+    private String packedSpectraQuery(int collectionID) {
+        return "SELECT i.AtomID, s.Peaks FROM InternalAtomOrder i JOIN ATOFMSAtomSpectra s ON s.AtomID = i.AtomID " +
+                "WHERE i.CollectionID = " + collectionID + " AND length(s.Peaks) > 1 ORDER BY i.AtomID";
     }
 
     /**
@@ -3298,20 +4351,28 @@ public abstract class Database {
     public class BPLOnlyCursor implements CollectionCursor {
         private ResultSet rs;
         private Statement stmt;
+        private Connection readCon;
         public int currID; // the current atomID.
         public int collID;
+        // one row per atom from ATOFMSAtomSpectra instead of one per peak
+        private boolean packed;
+        private final PackedSpectrum.Reader reader = new PackedSpectrum.Reader();
 
         private BPLOnlyCursor(Collection coll) throws SQLException {
             collID = coll.getCollectionID();
-            stmt = con.createStatement();
-            rs = stmt.executeQuery(
-                    "select AtomID, PeakLocation, PeakArea " +
-                            "FROM ATOFMSAtomInfoSparse WHERE AtomID in " +
-                            "(SELECT AtomID FROM InternalAtomOrder " +
-                            "Where CollectionID = " + coll.getCollectionID() + ") " +
-                            "order by AtomID;");
-            if (!rs.next()) {
-                throw new SQLException("Empty collection or a problem!");
+            packed = hasPackedSpectra(collID);
+            readCon = getReadConnection();
+            try {
+                stmt = readCon.createStatement();
+                rs = stmt.executeQuery(query());
+                if (!rs.next()) {
+                    throw new SQLException("Empty collection or a problem!");
+                }
+            } catch (SQLException e) {
+                if (stmt != null)
+                    stmt.close();
+                releaseReadConnection(readCon);
+                throw e;
             }
             currID = rs.getInt(1);
         }
@@ -3324,6 +4385,8 @@ public abstract class Database {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
             }
+            releaseReadConnection(readCon);
+            readCon = null;
         }
 
 
@@ -3331,16 +4394,33 @@ public abstract class Database {
             throw new NoSuchMethodException("Not implemented in disk based cursors.");
         }
 
+        private String query() {
+            if (packed)
+                return packedSpectraQuery(collID);
+            return "select AtomID, PeakLocation, PeakArea " +
+                    "FROM ATOFMSAtomInfoSparse WHERE AtomID in " +
+                    "(SELECT AtomID FROM InternalAtomOrder " +
+                    "Where CollectionID = " + collID + ") " +
+                    "order by AtomID;";
+        }
+
         public ParticleInfo getCurrent() {
             ParticleInfo p = new ParticleInfo();
             try {
                 int retAtom = currID;
                 BinnedPeakList bpl = new BinnedPeakList();
-                while (rs.getInt(1) == retAtom) {
-                    bpl.add(rs.getInt(2), rs.getInt(3));
+                if (packed) {
+                    reader.reset(rs.getBytes(2));
+                    while (reader.next())
+                        bpl.add(reader.location, reader.area);
+                    rs.next();
+                } else {
+                    while (rs.getInt(1) == retAtom) {
+                        bpl.add(rs.getInt(2), rs.getInt(3));
 
-                    if (!rs.next()) {
-                        break;
+                        if (!rs.next()) {
+                            break;
+                        }
                     }
                 }
                 if (!rs.isAfterLast())
@@ -3371,12 +4451,7 @@ public abstract class Database {
         public void reset() {
             try {
                 rs.close();
-                String q = "select AtomID, PeakLocation, PeakArea " +
-                        "FROM ATOFMSAtomInfoSparse WHERE AtomID in " +
-                        "(SELECT AtomID FROM InternalAtomOrder " +
-                        "Where CollectionID = " + collID + ") " +
-                        "order by AtomID;";
-                rs = stmt.executeQuery(q);
+                rs = stmt.executeQuery(query());
                 if (!rs.next()) {
                     throw new SQLException("Empty collection or a problem!");
                 }
@@ -4085,6 +5160,39 @@ public abstract class Database {
         return new PeakCursor(collection);
     }
 
+    /**
+     * A cursor over the memory-mapped spectrum cache file for a collection,
+     * building the file first if it's missing or out of date.
+     * See SpectrumCacheFile.
+     */
+    public SpectrumCacheFile.Cursor getSpectrumCacheCursor(Collection collection) {
+        try {
+            return SpectrumCacheFile.get(this, collection).cursor();
+        } catch (SQLException | IOException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "Exception building the spectrum cache file.");
+            throw new ExceptionAdapter(e);
+        }
+    }
+
+    /**
+     * @return where SpectrumCacheFile keeps this database's files: a directory
+     * under java.io.tmpdir named for the database and the server or file it
+     * was opened on, so two databases that share a name never share a cache
+     */
+    public File getSpectrumCacheDirectory() {
+        String source = connectionString == null ? "" : connectionString;
+        if (source.startsWith("jdbc:sqlite:")) {
+            try {
+                source = new File(source.substring("jdbc:sqlite:".length())).getCanonicalPath();
+            } catch (IOException e) {
+                // fall back on the connection string as given
+            }
+        }
+        String key = UUID.nameUUIDFromBytes(source.getBytes(StandardCharsets.UTF_8)).toString();
+        return new File(System.getProperty("java.io.tmpdir"),
+                "enchilada-spectra-" + getDatabaseName() + "-" + key);
+    }
+
     /**
      * get method for BPLOnlyCursor.
      */
@@ -4118,12 +5226,35 @@ public abstract class Database {
     }
 
     /**
-     * get method for ClusteringCursor.
+     * get method for ClusteringCursor.  The cursor streams the whole
+     * collection through one query.
      */
     public CollectionCursor getClusteringCursor(Collection collection, ClusterInformation cInfo) {
         return new ClusteringCursor(collection, cInfo);
     }
 
+    /**
+     * get method for ClusteringCursor.
+     *
+     * @param streaming false to fall back to one query per atom
+     */
+    public CollectionCursor getClusteringCursor(Collection collection, ClusterInformation cInfo,
+                                                boolean streaming) {
+        return new ClusteringCursor(collection, cInfo, streaming);
+    }
+
+    /**
+     * get method for a streaming ClusteringCursor that only reads some of
+     * the collection's atoms.  They come back in order of AtomID, and each
+     * one only once, whatever order they're given in.
+     *
+     * @param atomIDs the atoms to read, all of which should be in the collection
+     */
+    public CollectionCursor getClusteringCursor(Collection collection, ClusterInformation cInfo,
+                                                int[] atomIDs) {
+        return new ClusteringCursor(collection, cInfo, true, atomIDs);
+    }
+
     /**
      * Seeds the random number generator.
      */
@@ -4274,7 +5405,7 @@ public abstract class Database {
         int newCollectionID = createEmptyCollection(dataType, oldCollectionID, mapName, "", "");
         String tableName = getDynamicTableName(DynamicTable.AtomInfoDense, dataType);
 
-        int nextAtomID = getNextID();
+        int nextAtomID = reserveAtomIDs(getCollectionSize(oldCollectionID));
         String mapStatement = "CASE";
         for (int i = 0; i < map.size(); i++) {
             int[] curMap = map.get(i);
@@ -4341,14 +5472,22 @@ public abstract class Database {
             stmt.executeUpdate("DROP INDEX IF EXISTS iao_index;\n");
             stmt.executeUpdate("CREATE INDEX iao_index ON InternalAtomOrder (CollectionID);\n");
 
+            // Each dense table is joined to the collections' atoms on its
+            // own, rather than through a UNION of whole tables, which had to
+            // read and sort every atom of every datatype first.  The times
+            // are all in the one format, so the earliest is also the least
+            // as text.
             StringBuilder sqlStr = new StringBuilder();
-            sqlStr.append("SELECT MAX(Time) as MaxTime, MIN(Time) as MinTime\nFROM(\n");
-            sqlStr.append("SELECT AtomID, Time FROM " + infoDenseNames.get(0) + "\n");
-            for (int i = 1; i < infoDenseNames.size(); i++)
-                sqlStr.append("UNION SELECT AtomID, Time FROM " + infoDenseNames.get(i) + "\n");
-            sqlStr.append(") AID, InternalAtomOrder IAO\n" +
-                                  "WHERE IAO.CollectionID in (" + cIDs + ")\n" +
-                                  "AND AID.AtomID = IAO.AtomID;\n");
+            sqlStr.append("SELECT MAX(MaxTime) as MaxTime, MIN(MinTime) as MinTime\nFROM(\n");
+            for (int i = 0; i < infoDenseNames.size(); i++) {
+                if (i > 0)
+                    sqlStr.append("UNION ALL ");
+                sqlStr.append("SELECT MAX(AID.Time) as MaxTime, MIN(AID.Time) as MinTime\n" +
+                                      "FROM InternalAtomOrder IAO JOIN " + infoDenseNames.get(i) +
+                                      " AID ON AID.AtomID = IAO.AtomID\n" +
+                                      "WHERE IAO.CollectionID in (" + cIDs + ")\n");
+            }
+            sqlStr.append(");\n");
 
             ResultSet rs = stmt.executeQuery(sqlStr.toString());
             if (rs.next()) {
@@ -4500,77 +5639,78 @@ public abstract class Database {
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         Calendar increment = (Calendar) start.clone();
         int counter = 0;
-        try (
-                Statement stmt = con.createStatement();
-                Statement stmt1 = con.createStatement();
-        ) {
+        try (Statement stmt = con.createStatement()) {
             stmt.executeUpdate("DROP TABLE IF EXISTS temp.TimeBins;");
             stmt.executeUpdate(
                     "CREATE TEMPORARY TABLE TimeBins (AtomID INT, BinnedTime datetime, PRIMARY KEY (AtomID));");
             counter++;
 
+            // The last bin is the first one that ends after end, so only the
+            // atoms from start up to the end of that bin get binned, and the
+            // time index finds just those.
+            Calendar last = (Calendar) start.clone();
+            do {
+                addInterval(last, interval);
+            } while (last.getTime().compareTo(end.getTime()) <= 0);
+
             try (PreparedStatement timeBinsInsertStmt = con.prepareStatement("INSERT INTO temp.TimeBins VALUES (?, ?);");
                  // get all times from collection to bin.
-                 ResultSet collectionRS = stmt1.executeQuery("SELECT AID.AtomID, Time \n" +
+                 PreparedStatement collectionStmt = con.prepareStatement("SELECT AID.AtomID, Time \n" +
                          "FROM " + getDynamicTableName(
                          DynamicTable.AtomInfoDense, c.getDatatype()) + " AID,\n" +
                          "InternalAtomOrder IAO \n" +
                          "WHERE IAO.AtomID = AID.AtomID\n" +
                          "AND CollectionID = " + c.getCollectionID() + "\n" +
-                         "ORDER BY Time, AID.AtomID;\n");
+                         "AND " + timeEpochOf("AID.Time") + " >= " + timeEpochOf("?") + "\n" +
+                         "AND " + timeEpochOf("AID.Time") + " < " + timeEpochOf("?") + "\n" +
+                         "ORDER BY " + timeEpochOf("AID.Time") + ", AID.AtomID;\n");
             ) {
-                // initialize first values:
-                collectionRS.next();
-                int atomID = collectionRS.getInt(1);
-                Date collectionTime = TimeUtilities.iso8601ToDate(collectionRS.getString(2));
-                Date basisTime = increment.getTime();
-                Date nextTime = null;
-                boolean next = true;
-
-                // if there are times before the first bin, skip them.
-                while (basisTime.compareTo(collectionTime) > 0) {
-                    next = collectionRS.next();
-                    if (!next)
-                        break;
-                    else {
+                collectionStmt.setString(1, dateFormat.format(start.getTime()));
+                collectionStmt.setString(2, dateFormat.format(last.getTime()));
+                try (ResultSet collectionRS = collectionStmt.executeQuery()) {
+                    // initialize first values:
+                    boolean next = collectionRS.next();
+                    int atomID = 0;
+                    Date collectionTime = null;
+                    if (next) {
                         atomID = collectionRS.getInt(1);
                         collectionTime = TimeUtilities.iso8601ToDate(collectionRS.getString(2));
                     }
-                }
-                // while the next time bin is legal...
-                while (next) {
-                    increment.add(Calendar.DATE, interval.get(Calendar.DATE) - 1);
-                    increment.add(Calendar.HOUR, interval.get(Calendar.HOUR_OF_DAY));
-                    increment.add(Calendar.MINUTE, interval.get(Calendar.MINUTE));
-                    increment.add(Calendar.SECOND, interval.get(Calendar.SECOND));
-                    nextTime = increment.getTime();
-                    while (next && nextTime.compareTo((Date) collectionTime) > 0) {
-                        timeBinsInsertStmt.setInt(1, atomID);
-                        timeBinsInsertStmt.setString(2, dateFormat.format(basisTime));
-                        timeBinsInsertStmt.addBatch();
-                        //stmt.executeUpdate("INSERT INTO temp.TimeBins VALUES ("+atomID+",'"+dateFormat.format(basisTime)+"');");
-                        counter++;
-                        next = collectionRS.next();
-                        if (!next)
-                            break;
-                        atomID = collectionRS.getInt(1);
-                        collectionTime = TimeUtilities.iso8601ToDate(collectionRS.getString(2));
-                        if (counter > 1000) {
-                            timeBinsInsertStmt.executeBatch();
-                            counter = 0;
-                            timeBinsInsertStmt.clearBatch();
+                    Date basisTime = increment.getTime();
+                    Date nextTime = null;
+
+                    // while the next time bin is legal...
+                    while (next) {
+                        addInterval(increment, interval);
+                        nextTime = increment.getTime();
+                        while (next && nextTime.compareTo((Date) collectionTime) > 0) {
+                            timeBinsInsertStmt.setInt(1, atomID);
+                            timeBinsInsertStmt.setString(2, dateFormat.format(basisTime));
+                            timeBinsInsertStmt.addBatch();
+                            //stmt.executeUpdate("INSERT INTO temp.TimeBins VALUES ("+atomID+",'"+dateFormat.format(basisTime)+"');");
+                            counter++;
+                            next = collectionRS.next();
+                            if (!next)
+                                break;
+                            atomID = collectionRS.getInt(1);
+                            collectionTime = TimeUtilities.iso8601ToDate(collectionRS.getString(2));
+                            if (counter > 1000) {
+                                timeBinsInsertStmt.executeBatch();
+                                counter = 0;
+                                timeBinsInsertStmt.clearBatch();
+                            }
                         }
-                    }
-                    if (nextTime.compareTo(end.getTime()) > 0)
-                        next = false;
-                    else
-                        basisTime = nextTime;
+                        if (nextTime.compareTo(end.getTime()) > 0)
+                            next = false;
+                        else
+                            basisTime = nextTime;
 
 
-                }
+                    }
 
-                // if there are still more times, skip them.
-                timeBinsInsertStmt.executeBatch();
+                    // if there are still more times, skip them.
+                    timeBinsInsertStmt.executeBatch();
+                }
             }
         } catch (SQLException | ParseException e) {
             ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL exception creating aggregate basis temp table");
@@ -4578,6 +5718,17 @@ public abstract class Database {
         }
     }
 
+    /**
+     * Moves time on by one aggregation interval, which is kept as a Calendar
+     * whose day of the month is one more than the number of days.
+     */
+    private static void addInterval(Calendar time, Calendar interval) {
+        time.add(Calendar.DATE, interval.get(Calendar.DATE) - 1);
+        time.add(Calendar.HOUR, interval.get(Calendar.HOUR_OF_DAY));
+        time.add(Calendar.MINUTE, interval.get(Calendar.MINUTE));
+        time.add(Calendar.SECOND, interval.get(Calendar.SECOND));
+    }
+
     /**
      * Deletes the most recent temp aggregate basis table.
      */
@@ -4602,6 +5753,11 @@ public abstract class Database {
         }
     }
 
+    /**
+     * Rolls back the transaction, and forgets everything cached about the
+     * database that it may have changed: the atom IDs reserved in it, and
+     * the collections.
+     */
     public boolean rollbackTransaction() {
         try {
             System.out.println("rolling back to savepoint");
@@ -4614,6 +5770,10 @@ public abstract class Database {
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
+        } finally {
+            discardAtomIDBlock();
+            collectionCache.invalidate();
+            collectionClosureChecked = false;
         }
     }
 
@@ -4650,8 +5810,6 @@ public abstract class Database {
             stmt.executeUpdate("CREATE TABLE IF NOT EXISTS tmpatoms " + "" +
                                        "(NewAtomID INTEGER PRIMARY KEY AUTOINCREMENT,\n" +
                                        " Time DateTime, \n MZLocation int, \n Value real, \n UNIQUE (MZLocation,Time));\n");
-            stmt.executeUpdate("DELETE FROM tmpatoms");
-            setNextAtomID(getNextID());
 
             // create the root collection
 
@@ -4702,16 +5860,29 @@ public abstract class Database {
         }
     }
 
-    private void setNextAtomID(int nextID) throws SQLException {
-        try (Statement stmt = con.createStatement()) {
-            // SQLite stores the last sequence number added, so need to subtract one
-            // https://stackoverflow.com/questions/692856/set-start-value-for-autoincrement-in-sqlite/692871#692871
-            int sqlLiteSequenceNumber = nextID - 1;
-            stmt.executeUpdate("UPDATE SQLITE_SEQUENCE SET seq = " + sqlLiteSequenceNumber + " WHERE name='tmpatoms'");
-            stmt.executeUpdate("\n" +
-                    "INSERT INTO sqlite_sequence (name,seq) SELECT 'tmpatoms', " + sqlLiteSequenceNumber + " WHERE NOT EXISTS \n" +
-                    "           (SELECT changes() AS change FROM sqlite_sequence WHERE change <> 0);");
+    /**
+     * Refills tmpatoms using the given INSERT, numbering the rows from 1,
+     * and reserves an atom ID for every row.
+     *
+     * @return the amount to add to NewAtomID to get the row's atom ID
+     */
+    private int fillTmpAtoms(Statement stmt, String insert) throws SQLException {
+        stmt.executeUpdate("DELETE FROM tmpatoms");
+        // SQLite stores the last sequence number added
+        // https://stackoverflow.com/questions/692856/set-start-value-for-autoincrement-in-sqlite/692871#692871
+        stmt.executeUpdate("UPDATE SQLITE_SEQUENCE SET seq = 0 WHERE name='tmpatoms'");
+        stmt.executeUpdate(insert);
+        int rows;
+        try (ResultSet rs = stmt.executeQuery("SELECT IFNULL(MAX(NewAtomID), 0) FROM tmpatoms")) {
+            rs.next();
+            rows = rs.getInt(1);
         }
+        if (rows == 0)
+            return 0;
+        int firstID = reserveAtomIDs(rows);
+        if (firstID < 0)
+            throw new SQLException("Could not reserve atom IDs for aggregation");
+        return firstID - 1;
     }
 
     private void aggregateAMSUpdate(
@@ -4725,8 +5896,9 @@ public abstract class Database {
             for (int mzValue : mzValues) {
                 stmt.addBatch("INSERT INTO temp.mz VALUES(" + mzValue + ");\n");
             }
+            stmt.executeBatch();
             // went back to Greg's JOIN methodology, but retained #mz table, which speeds it up.
-            stmt.addBatch("INSERT INTO tmpatoms (Time, MZLocation, Value) \n" +
+            int idOffset = fillTmpAtoms(stmt, "INSERT INTO tmpatoms (Time, MZLocation, Value) \n" +
                     "SELECT BinnedTime, MZ.Value AS Location," + options.getGroupMethodStr() + "(PeakHeight) AS PeakHeight \n" +
                     "FROM temp.TimeBins TB\n" +
                     "JOIN AMSAtomInfoSparse AIS on (TB.AtomID = AIS.AtomID)\n" +
@@ -4744,10 +5916,10 @@ public abstract class Database {
                 mzCollectionID = createEmptyCollection("TimeSeries", mzRootCollectionID, mzPeakLoc + "", "", "");
                 progressBar.increment("  " + collectionName + ", M/Z: " + mzPeakLoc);
                 stmt.addBatch("INSERT INTO AtomMembership (CollectionID, AtomID) \n" +
-                        "select " + mzCollectionID + ", NewAtomID from tmpatoms WHERE MZLocation = " + mzPeakLoc + "\n" +
+                        "select " + mzCollectionID + ", NewAtomID + " + idOffset + " from tmpatoms WHERE MZLocation = " + mzPeakLoc + "\n" +
                         "ORDER BY NewAtomID;\n");
                 stmt.addBatch("INSERT INTO TimeSeriesAtomInfoDense (AtomID, Time, Value) \n" +
-                        "select NewAtomID, Time, Value from tmpatoms WHERE MZLocation = " + mzPeakLoc +
+                        "select NewAtomID + " + idOffset + ", Time, Value from tmpatoms WHERE MZLocation = " + mzPeakLoc +
                         " ORDER BY NewAtomID;\n");
             }
             stmt.addBatch("DROP TABLE temp.mz;\n");
@@ -4761,7 +5933,7 @@ public abstract class Database {
             AggregationOptions options) throws SQLException {
         try (Statement stmt = con.createStatement()) {
 
-            stmt.addBatch("INSERT INTO tmpatoms (Time, Value) \n" +
+            int idOffset = fillTmpAtoms(stmt, "INSERT INTO tmpatoms (Time, Value) \n" +
                     "select BinnedTime, " + options.getGroupMethodStr() + "(AID.Value) AS Value \n" +
                     "from temp.TimeBins TB \n" +
                     "join TimeSeriesAtomInfoDense AID on (TB.AtomID = AID.AtomID) \n" +
@@ -4770,10 +5942,10 @@ public abstract class Database {
 
             int newCollectionID = createEmptyCollection("TimeSeries", rootCollectionID, collectionName, "", "");
             stmt.addBatch("INSERT INTO AtomMembership (CollectionID, AtomID) \n" +
-                    "select " + newCollectionID + ", NewAtomID from tmpatoms;\n");
+                    "select " + newCollectionID + ", NewAtomID + " + idOffset + " from tmpatoms;\n");
 
             stmt.addBatch("INSERT INTO TimeSeriesAtomInfoDense (AtomID, Time, Value) \n" +
-                    "select NewAtomID, Time, Value from tmpatoms;\n");
+                    "select NewAtomID + " + idOffset + ", Time, Value from tmpatoms;\n");
             progressBar.increment("  " + collectionName);
             stmt.executeBatch();
         }
@@ -4794,7 +5966,7 @@ public abstract class Database {
 
                 // went back to Greg's JOIN methodology, but retained #mz table, which speeds it up.
                 // collects the sum of the Height/Area over all atoms at a given Time and for a specific m/z
-                stmt.addBatch("INSERT INTO tmpatoms (Time, MZLocation, Value) \n" +
+                int idOffset = fillTmpAtoms(stmt, "INSERT INTO tmpatoms (Time, MZLocation, Value) \n" +
                         "SELECT BinnedTime, AIS.PeakLocation AS Location," + options.getGroupMethodStr() + "(PeakHeight) AS PeakHeight \n" +
                         "FROM temp.TimeBins TB\n" +
                         "JOIN ATOFMSAtomInfoSparse AIS on (TB.AtomID = AIS.AtomID)\n" +
@@ -4815,10 +5987,10 @@ public abstract class Database {
                     mzCollectionID = createEmptyCollection("TimeSeries", mzRootCollectionID, mzPeakLoc + "", "", "");
                     progressBar.increment("  " + collectionName + ", M/Z: " + mzPeakLoc);
                     stmt.addBatch("INSERT INTO AtomMembership (CollectionID, AtomID) \n" +
-                            "select " + mzCollectionID + ", NewAtomID from tmpatoms WHERE MZLocation = " + mzPeakLoc + "\n" +
+                            "select " + mzCollectionID + ", NewAtomID + " + idOffset + " from tmpatoms WHERE MZLocation = " + mzPeakLoc + "\n" +
                             "ORDER BY NewAtomID;\n");
                     stmt.addBatch("INSERT INTO TimeSeriesAtomInfoDense (AtomID, Time, Value) \n" +
-                            "select NewAtomID, Time, Value from tmpatoms WHERE MZLocation = " + mzPeakLoc +
+                            "select NewAtomID + " + idOffset + ", Time, Value from tmpatoms WHERE MZLocation = " + mzPeakLoc +
                             " ORDER BY NewAtomID;\n");
                 }
 
@@ -4840,19 +6012,17 @@ public abstract class Database {
             }
 
             stmt.clearBatch();
-            setNextAtomID(getNextID());
-            stmt.executeUpdate("DELETE FROM tmpatoms");
             if (options.produceParticleCountTS) {
                 int combinedCollectionID = createEmptyCollection("TimeSeries", newCollectionID, "Particle Counts", "", "");
-                stmt.addBatch("INSERT INTO tmpatoms (Time, Value) \n" +
+                int idOffset = fillTmpAtoms(stmt, "INSERT INTO tmpatoms (Time, Value) \n" +
                         "SELECT BinnedTime, COUNT(AtomID) AS IDCount FROM temp.TimeBins TB\n" +
                         "GROUP BY BinnedTime\n" +
                         "ORDER BY BinnedTime;\n");
                 stmt.addBatch("INSERT INTO AtomMembership (CollectionID, AtomID) \n" +
-                        "select " + combinedCollectionID + ", NewAtomID from tmpatoms;\n");
+                        "select " + combinedCollectionID + ", NewAtomID + " + idOffset + " from tmpatoms;\n");
                 stmt.addBatch("INSERT INTO " + getDynamicTableName(DynamicTable.AtomInfoDense,
                         "TimeSeries") + " (AtomID, Time, Value) \n" +
-                        "select NewAtomID, Time, Value from tmpatoms;\n");
+                        "select NewAtomID + " + idOffset + ", Time, Value from tmpatoms;\n");
 
                 progressBar.increment("  " + collectionName + ", Particle Counts");
                 long start = System.currentTimeMillis();
@@ -4888,8 +6058,8 @@ public abstract class Database {
                                                "WHERE IAO.CollectionID = " + collection.getCollectionID() + "\n" +
                                                "AND IAO.AtomID = AIS.AtomID \n" +
                                                "AND IAO.AtomID = AID.AtomID \n" +
-                                               "AND AID.Time >= '" + dateFormat.format(startDate) + "'\n" +
-                                               "AND AID.Time <= '" + dateFormat.format(endDate) + "'\n" +
+                                               "AND " + timeEpochOf("AID.Time") + " >= " + timeEpochOf("'" + dateFormat.format(startDate) + "'") + "\n" +
+                                               "AND " + timeEpochOf("AID.Time") + " <= " + timeEpochOf("'" + dateFormat.format(endDate) + "'") + "\n" +
                                                "ORDER BY RoundedPeakLocation;\n")) {
                     while (rs.next()) {
                         peakLocs.add(rs.getInt("RoundedPeakLocation"));
@@ -4927,8 +6097,8 @@ public abstract class Database {
                                                "AND IAO.AtomID = AIS.AtomID \n" +
                                                "AND IAO.AtomID = AID.AtomID \n" +
                                                "AND PeakLocation = MZ.Value \n" +
-                                               "AND AID.Time >= '" + dateFormat.format(startDate) + "'\n" +
-                                               "AND AID.Time <= '" + dateFormat.format(endDate) + "'\n" +
+                                               "AND " + timeEpochOf("AID.Time") + " >= " + timeEpochOf("'" + dateFormat.format(startDate) + "'") + "\n" +
+                                               "AND " + timeEpochOf("AID.Time") + " <= " + timeEpochOf("'" + dateFormat.format(endDate) + "'") + "\n" +
                                                "ORDER BY MZ.Value;\n")) {
                     while (rs.next()) {
                         peakLocs.add(rs.getInt("RoundedPeakLocation"));
@@ -5029,7 +6199,8 @@ public abstract class Database {
 
         if (conditionStrs.size() > 0) {
             for (int i = 0; i < conditionalSeqs.size(); i++) {
-                tableJoinStr += "JOIN (" + atomSelStr + ") C" + i + " on (C" + i + ".Time = T.Time) \n";
+                tableJoinStr += "JOIN (" + atomSelStr + ") C" + i + " on (" +
+                        timeEpochOf("C" + i + ".Time") + " = " + timeEpochOf("T.Time") + ") \n";
                 //selectStr += ", C" + i + ".Value as C" + i + "Value";
                 if (i == 0) {
                     collCondStr += "AND ((C" + i + ".CollectionID = " + conditionalSeqs.get(i).getCollectionID();
@@ -5061,7 +6232,7 @@ public abstract class Database {
         String sqlStr;
         sqlStr = "SELECT S.Time as Time, S.Value as TsValue\n" +
                 "FROM (" + atomSelStr + ") S \n" +
-                "JOIN (" + timesStr + ") T on (S.Time = T.Time)\n" +
+                "JOIN (" + timesStr + ") T on (" + timeEpochOf("S.Time") + " = " + timeEpochOf("T.Time") + ")\n" +
                 "WHERE S.CollectionID = " + seq.getCollectionID() + ";";
 
 
@@ -5104,6 +6275,18 @@ public abstract class Database {
         return retData;
     }
 
+    /**
+     * The LEFT OUTER JOIN, onto the times T of the plume queries, of the
+     * values a time series collection has at those times, as V.  The times
+     * are matched with timeEpochOf on both sides, so each one is looked up
+     * through the dense table's time index.
+     */
+    private String timeSeriesValueJoin(int collectionID) {
+        return "	LEFT OUTER JOIN " + getDynamicTableName(DynamicTable.AtomInfoDense, "TimeSeries") + " V\n" +
+                "	ON (" + timeEpochOf("V.Time") + " = " + timeEpochOf("T.Time") + "\n" +
+                "	AND V.AtomID IN (SELECT AtomID FROM AtomMembership WHERE CollectionID = " + collectionID + "))\n";
+    }
+
     public ArrayList<TreeMap<Date, Double>> createAndDetectPlumesFromPercent(
             Collection collection, double magnitude, int minDuration) {
 		/*System.out.println("collection: |"+collection+"|");
@@ -5117,10 +6300,6 @@ public abstract class Database {
                 "JOIN AtomMembership M ON (D.AtomID = M.AtomID)";
 
 
-        String selectAtomsStr = "SELECT T.Time as Time, T.Value AS Value\n " +
-                "FROM (" + atomSelStr + ") T\n" +
-                "WHERE T.CollectionID = " + collection.getCollectionID() + " ";
-
         String selectValuesStr = "SELECT DISTINCT T.Time as Time, V.Value as Value\n";
 
         String joinStr =
@@ -5137,7 +6316,7 @@ public abstract class Database {
         String selectAllAtomsTimesStr =
                 selectValuesStr +
                         joinStr +
-                        "	LEFT OUTER JOIN (" + selectAtomsStr + ") V ON (V.Time = T.Time)\n" +
+                        timeSeriesValueJoin(collection.getCollectionID()) +
                         "	WHERE ParentID = " + parentCollection + "\n";
 
         String datesCountStr =
@@ -5209,10 +6388,6 @@ public abstract class Database {
                 "JOIN AtomMembership M ON (D.AtomID = M.AtomID)";
 
 
-        String selectAtomsStr = "SELECT T.Time as Time, T.Value AS Value\n " +
-                "FROM (" + atomSelStr + ") T\n" +
-                "WHERE T.CollectionID = " + collection.getCollectionID() + " ";
-
         String selectValuesStr = "SELECT DISTINCT T.Time as Time, V.Value as Value\n";
 
         String joinStr =
@@ -5229,7 +6404,7 @@ public abstract class Database {
         String selectAllAtomsTimesStr =
                 selectValuesStr +
                         joinStr +
-                        "	LEFT OUTER JOIN (" + selectAtomsStr + ") V ON (V.Time = T.Time)\n" +
+                        timeSeriesValueJoin(collection.getCollectionID()) +
                         "	WHERE ParentID = " + parentCollection + "\n";
 
         String datesCountStr =
@@ -5298,10 +6473,6 @@ public abstract class Database {
                 "JOIN AtomMembership M ON (D.AtomID = M.AtomID)";
 
 
-        String selectAtomsStr = "SELECT T.Time as Time, T.Value AS Value\n " +
-                "FROM (" + atomSelStr + ") T\n" +
-                "WHERE T.CollectionID = " + collection.getCollectionID() + " ";
-
         String selectValuesStr = "SELECT DISTINCT T.Time as Time, V.Value as Value\n";
 
         String joinStr =
@@ -5318,7 +6489,7 @@ public abstract class Database {
         String selectAllAtomsTimesStr =
                 selectValuesStr +
                         joinStr +
-                        "	LEFT OUTER JOIN (" + selectAtomsStr + ") V ON (V.Time = T.Time)\n" +
+                        timeSeriesValueJoin(collection.getCollectionID()) +
                         "	WHERE ParentID = " + parentCollection + "\n";
 
         String orderedByTime = selectAllAtomsTimesStr + "     Order BY Time;\n";
@@ -5681,28 +6852,33 @@ public abstract class Database {
     public void updateAllInternalAtomOrder() {
 
         // TopSort(G)
-        ArrayList<Integer> sorted = new ArrayList<Integer>();
-        HashSet<Integer> visited = new HashSet<Integer>();
-        int place = 0;
-        place = topologicalSort(0, place, sorted, visited);
-
+        ArrayList<Integer> sorted = topologicalSort(0);
 
-        sorted = new ArrayList<Integer>();
-        visited = new HashSet<Integer>();
-        place = 0;
-        place = topologicalSort(1, place, sorted, visited);
+        sorted = topologicalSort(1);
 
 
     }
 
-    private int topologicalSort(int vertex, int place, ArrayList<Integer> sorted, HashSet<Integer> visited) {
-        visited.add(vertex);
-        ArrayList<Integer> children = getImmediateSubCollections(getCollection(vertex));
-        for (Integer child : children)
-            if (!visited.contains(child)) place = topologicalSort(child, place, sorted, visited);
-        sorted.add(place, vertex);
-        place++;
-        return place;
+    /**
+     * @return the root and the collections beneath it, each after its
+     * parent, in a single query on CollectionClosure.
+     */
+    private ArrayList<Integer> topologicalSort(int root) {
+        ensureCollectionClosure();
+        ArrayList<Integer> sorted = new ArrayList<Integer>();
+        sorted.add(root);
+        try (PreparedStatement pstmt = con.prepareStatement(
+                "SELECT DescendantID FROM CollectionClosure WHERE AncestorID = ? ORDER BY Depth, DescendantID")) {
+            pstmt.setInt(1, root);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next())
+                    sorted.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            ErrorLogger.writeExceptionToLogAndPrompt(getName(), "SQL Exception sorting the collections.");
+            e.printStackTrace();
+        }
+        return sorted;
     }
 
 
@@ -5721,50 +6897,106 @@ public abstract class Database {
      * and the server have to be on the same machine.
      */
     public void updateInternalAtomOrder(Collection collection) {
-        File tempFile = null;
         int cID = collection.getCollectionID();
         if (cID == 0 || cID == 1)
             return;
-        try {
-            Statement stmt = con.createStatement();
+        ensureCollectionClosure();
+        //get all the AtomIDs from AtomMembership if the corresponding CollectionID was
+        //the parent's or one of the children's.  We want the union of these so that there
+        //are no overlaps.
+        String members = "SELECT AtomID FROM AtomMembership WHERE CollectionID IN " +
+                "(SELECT " + cID + " UNION SELECT DescendantID FROM CollectionClosure WHERE AncestorID = " + cID + ")";
+        boolean autoCommit = true;
+        try (Statement stmt = con.createStatement()) {
+            autoCommit = con.getAutoCommit();
             con.setAutoCommit(false);
 
-            //again, want to compare with existing IAO table to see if there
-            //are any difference, if not, why delete? - steinbel
-            stmt.execute("DELETE FROM InternalAtomOrder WHERE CollectionID = " + cID);
-
-            //get all the AtomIDs from AtomMembership if the corresponding CollectionID was
-            //the parent's or one of the children's.  We want the union of these so that there
-            //are no overlaps.
-            String query = "SELECT AtomID FROM AtomMembership WHERE CollectionID = " + cID;
-            Iterator<Integer> subCollections = getAllDescendantCollections(cID, false).iterator();
-            while (subCollections.hasNext())
-                query += " union SELECT AtomID FROM AtomMembership WHERE CollectionID = " + subCollections.next();
-            query += " ORDER BY AtomID";
+            // only touch the rows that differ, rather than deleting the
+            // whole collection and putting most of it back
+            stmt.executeUpdate("DELETE FROM InternalAtomOrder WHERE CollectionID = " + cID +
+                                       " AND AtomID NOT IN (" + members + ")");
+            stmt.executeUpdate("INSERT OR IGNORE INTO InternalAtomOrder (AtomID, CollectionID) " +
+                                       "SELECT DISTINCT AtomID, " + cID + " FROM (" + members + ")");
 
-            ResultSet rs = stmt.executeQuery(query);
-
-            // Only bulk insert if client and server are on the same machine...
-            String queryTemplate = "INSERT INTO InternalAtomOrder VALUES(?, ?)";
-            PreparedStatement pstmt = con.prepareStatement(queryTemplate);
-            while (rs.next()) {
-                pstmt.setInt(1, rs.getInt(1));
-                pstmt.setInt(2, cID);
-                pstmt.addBatch();
-            }
-
-            pstmt.executeBatch();
-            con.commit();
-            con.setAutoCommit(true);
-            stmt.close();
-            if (tempFile != null && tempFile.exists()) {
-                tempFile.delete();
-            }
+            if (autoCommit)
+                con.commit();
         } catch (SQLException e) {
+            rollbackIfOurs(autoCommit);
             ErrorLogger.writeExceptionToLogAndPrompt(getName(),
                                                      "SQL Exception inserting atom.  Please check incoming data for correct format.");
             System.err.println("Exception inserting particle.");
             throw new ExceptionAdapter(e);
+        } finally {
+            restoreAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Adds atoms to the InternalAtomOrder of a collection and of everything
+     * above it, in a single INSERT ... SELECT over CollectionClosure.  The
+     * root collections are skipped, as everywhere else.
+     *
+     * @param atoms a query whose AtomID column gives the atoms to add
+     */
+    private void addToInternalAtomOrder(Statement stmt, int collectionID, String atoms)
+            throws SQLException {
+        stmt.executeUpdate("INSERT OR IGNORE INTO InternalAtomOrder (AtomID, CollectionID)\n" +
+                                   "SELECT Atoms.AtomID, Chain.ID FROM (" + atoms + ") Atoms,\n" +
+                                   "(SELECT " + collectionID + " AS ID UNION " +
+                                   "SELECT AncestorID FROM CollectionClosure WHERE DescendantID = " + collectionID + ") Chain\n" +
+                                   "WHERE Chain.ID > 1");
+    }
+
+    /**
+     * Takes atoms out of the InternalAtomOrder of a collection and of
+     * everything above it, except where the collection still holds the
+     * atom itself or through another child.  This goes one level at a time,
+     * nearest first, since each level depends on its children's rows, but
+     * each level is a single DELETE.
+     *
+     * @param atoms a query whose AtomID column gives the atoms to remove
+     */
+    private void removeFromInternalAtomOrder(Statement stmt, int collectionID, String atoms)
+            throws SQLException {
+        ArrayList<Integer> chain = new ArrayList<Integer>();
+        chain.add(collectionID);
+        chain.addAll(getAllAncestorCollections(collectionID));
+        for (int cID : chain) {
+            if (cID == 0 || cID == 1)
+                break;
+            stmt.executeUpdate("DELETE FROM InternalAtomOrder\n" +
+                                       "WHERE CollectionID = " + cID + " AND AtomID IN (" + atoms + ")\n" +
+                                       "AND NOT EXISTS (SELECT 1 FROM AtomMembership m WHERE m.CollectionID = " + cID +
+                                       " AND m.AtomID = InternalAtomOrder.AtomID)\n" +
+                                       "AND NOT EXISTS (SELECT 1 FROM CollectionRelationships r\n" +
+                                       "    JOIN InternalAtomOrder c ON c.CollectionID = r.ChildID AND c.AtomID = InternalAtomOrder.AtomID\n" +
+                                       "    WHERE r.ParentID = " + cID + ")");
+        }
+    }
+
+    /**
+     * Rolls back a transaction that was started by the calling method, i.e.
+     * one where the connection was in auto-commit mode when it began.  If the
+     * caller was already inside someone else's transaction, that transaction
+     * is left for its owner to deal with.
+     */
+    private void rollbackIfOurs(boolean autoCommit) {
+        if (!autoCommit)
+            return;
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void restoreAutoCommit(boolean autoCommit) {
+        if (!autoCommit)
+            return;
+        try {
+            con.setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
     }
 
@@ -5818,7 +7050,9 @@ public abstract class Database {
      * @author steinbel - removed OrderNumber
      * @author jtbigwoo - use InternalAtomOrder for the children so that we get
      * the contents from sub-sub collections
-     * TODO: still needs optimization
+     * <p>
+     * Each level up the chain is brought up to date with one INSERT ... SELECT,
+     * and the whole chain is one transaction.
      */
     public void updateAncestors(Collection collection) {
         // if you try to update a null collection or one of the root collections,
@@ -5827,62 +7061,36 @@ public abstract class Database {
                 collection.getCollectionID() == 0 ||
                 collection.getCollectionID() == 1)
             return;
-        int cID = collection.getCollectionID();
+        boolean autoCommit = true;
         try (Statement stmt = con.createStatement()) {
+            autoCommit = con.getAutoCommit();
             con.setAutoCommit(false);
-
-            /*get atomIDs for collection in IAO and in AtomMembership.
-             * if difference, rectify it
-             *
-             * then, loop through all children and repeat procedure
-             */
-
-            String query = "INSERT INTO InternalAtomOrder " +
-                    "(AtomID, CollectionID)" +
-                    "SELECT AtomID, CollectionID FROM AtomMembership " +
-                    "WHERE CollectionID = " + cID +
-                    " AND (AtomID NOT IN (SELECT AtomID from InternalAtomOrder" +
-                    " WHERE CollectionID = " + cID + "))";
-            ArrayList<Integer> subCollections = collection.getSubCollectionIDs();
-            stmt.executeUpdate(query);
-
-            if (subCollections.size() > 0) {
-
-                /*
-                 * Because of SQL syntax, cannot combine SELECT with a constant,
-                 * so we'll create a temp table and poplulate it with the AtomIDs
-                 * of the children collection and the CollectionID of the
-                 * current collection.  Then we'll copy that info into IAO. - steinbel
-                 */
-//				stmt.executeUpdate("DROP TABLE IF EXISTS temp.children\n");
-//				stmt.executeUpdate("CREATE temporary TABLE children (AtomID int, CollectionID int)");
-                query = " SELECT AtomID FROM InternalAtomOrder WHERE (CollectionID = ";
-                for (int i = 0; i < subCollections.size(); i++) {
-                    query += subCollections.get(i) + ")";
-                    if (i < subCollections.size() - 1)
-                        query += "OR (CollectionID = ";
-                }
-                try (ResultSet atomsToAdd = stmt.executeQuery(query);
-                    PreparedStatement pstmt = con.prepareStatement(
-                            "INSERT OR IGNORE INTO InternalAtomOrder VALUES (?,?)")) {
-                    while (atomsToAdd.next()) {
-                        pstmt.setInt(1, atomsToAdd.getInt("AtomID"));
-                        pstmt.setInt(2, cID);
-                        pstmt.addBatch();
-                    }
-                    pstmt.executeBatch();
-                }
+            // the whole chain up to the root comes from one lookup, nearest first
+            updateAncestor(stmt, collection.getCollectionID());
+            for (int ancestorID : getAllAncestorCollections(collection.getCollectionID())) {
+                if (ancestorID == 0 || ancestorID == 1)
+                    break;
+                updateAncestor(stmt, ancestorID);
             }
-
-
-            con.commit();
-            con.setAutoCommit(true);
+            if (autoCommit)
+                con.commit();
         } catch (SQLException e) {
+            rollbackIfOurs(autoCommit);
             e.printStackTrace();
+        } finally {
+            restoreAutoCommit(autoCommit);
         }
+    }
 
-        // maybe make this conditional?  how?  temp table and replace it?
-        updateAncestors(collection.getParentCollection());
+    /**
+     * Brings one collection's InternalAtomOrder rows up to date with its
+     * own atoms and its children's.
+     */
+    private void updateAncestor(Statement stmt, int cID) throws SQLException {
+        stmt.executeUpdate("INSERT OR IGNORE INTO InternalAtomOrder (AtomID, CollectionID)\n" +
+                                   "SELECT AtomID, " + cID + " FROM AtomMembership WHERE CollectionID = " + cID + "\n" +
+                                   "UNION SELECT AtomID, " + cID + " FROM InternalAtomOrder WHERE CollectionID IN " +
+                                   "(SELECT ChildID FROM CollectionRelationships WHERE ParentID = " + cID + ")");
     }
 
 
@@ -5967,40 +7175,81 @@ public abstract class Database {
         int numRows;
 
         ArrayCursor(Collection coll) throws SQLException {
+            if (hasPackedSpectra(coll.getCollectionID())) {
+                loadPacked(coll.getCollectionID());
+                return;
+            }
             String query = "SELECT AtomID, PeakLocation, PeakArea FROM ATOFMSAtomInfoSparse WHERE AtomID IN " +
                     "(SELECT AtomID FROM InternalAtomOrder WHERE CollectionID = " + coll.getCollectionID() + ") ORDER BY AtomID";
-            Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-            ResultSet rs = stmt.executeQuery(query);
+            Connection readCon = getReadConnection();
+            try (Statement stmt = readCon.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+                 ResultSet rs = stmt.executeQuery(query)) {
 
-            // retrieve row count
-            rs.last();
-            numRows = rs.getRow();
-            rs.beforeFirst();
+                // retrieve row count
+                rs.last();
+                numRows = rs.getRow();
+                rs.beforeFirst();
 
-            atomIds = new int[numRows];
-            peakLocations = new short[numRows];
-            peakAreas = new short[numRows];
+                atomIds = new int[numRows];
+                peakLocations = new short[numRows];
+                peakAreas = new short[numRows];
 
-            // load rows into arrays
-            int i = 0;
-            while (rs.next()) {
+                // load rows into arrays
+                int i = 0;
+                while (rs.next()) {
 //				if (Thread.interrupted()) {
 //					close();
 //					return;
 //				}
-                atomIds[i] = rs.getInt(1);
-                peakLocations[i] = rs.getShort(2);
-                peakAreas[i] = rs.getShort(3);
-                i++;
+                    atomIds[i] = rs.getInt(1);
+                    peakLocations[i] = rs.getShort(2);
+                    peakAreas[i] = rs.getShort(3);
+                    i++;
+                }
+            } finally {
+                releaseReadConnection(readCon);
             }
 
             pos = -1;
+        }
 
-            // discard result set from memory
-            stmt.close();
-            rs.close();
-            stmt = null;
-            rs = null;
+        /**
+         * Fills the arrays from the packed peak lists, which say how many
+         * peaks they hold, so the arrays can be sized without a second query.
+         */
+        private void loadPacked(int collectionID) throws SQLException {
+            ArrayList<Integer> ids = new ArrayList<Integer>();
+            ArrayList<byte[]> spectra = new ArrayList<byte[]>();
+            numRows = 0;
+            Connection readCon = getReadConnection();
+            try (Statement stmt = readCon.createStatement();
+                 ResultSet rs = stmt.executeQuery(packedSpectraQuery(collectionID))) {
+                while (rs.next()) {
+                    ids.add(rs.getInt(1));
+                    byte[] peaks = rs.getBytes(2);
+                    spectra.add(peaks);
+                    numRows += PackedSpectrum.count(peaks);
+                }
+            } finally {
+                releaseReadConnection(readCon);
+            }
+
+            atomIds = new int[numRows];
+            peakLocations = new short[numRows];
+            peakAreas = new short[numRows];
+
+            PackedSpectrum.Reader reader = new PackedSpectrum.Reader();
+            int i = 0;
+            for (int j = 0; j < ids.size(); j++) {
+                reader.reset(spectra.get(j));
+                while (reader.next()) {
+                    atomIds[i] = ids.get(j);
+                    peakLocations[i] = (short) reader.location;
+                    peakAreas[i] = (short) reader.area;
+                    i++;
+                }
+            }
+            pos = -1;
         }
 
         // Generate a cursor that shares other's dataset
@@ -0,0 +1,377 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.gui.ProgressBarWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copies a whole database to a directory of files and back, for moving
+ * databases between machines.  Unlike the DbUnit export, nothing is ever
+ * held in memory but one row: each table is read with a plain cursor and
+ * written out as gzipped chunk files of CHUNK_ROWS rows, and read back in
+ * with batched prepared inserts.
+ * <p>
+ * The directory holds manifest.properties, which lists the tables in the
+ * order they were written along with each one's CREATE statement, indexes,
+ * columns, row count and number of chunks, and the chunk files
+ * &lt;table&gt;.&lt;n&gt;.gz.  Each row in a chunk is one tagged value per
+ * column, so every value comes back with the same SQLite storage class it
+ * was written with.  The manifest is written last, so a dump that didn't
+ * finish can't be imported.
+ * <p>
+ * CollectionClosure isn't written: it's rebuilt by its triggers as the
+ * CollectionRelationships rows go back in.
+ */
+public class DatabaseDump {
+	public static final String MANIFEST = "manifest.properties";
+	private static final int FORMAT = 1;
+	private static final int CHUNK_ROWS = 50000;
+	private static final int BATCH_ROWS = 1000;
+
+	private static final byte NULL = 0, INTEGER = 1, REAL = 2, TEXT = 3, BLOB = 4;
+
+	private final Database db;
+	private final ProgressBarWrapper progress;
+	private final long startTime = System.currentTimeMillis();
+	private long rowsDone = 0;
+
+	/**
+	 * @param progress may be null
+	 */
+	public DatabaseDump(Database db, ProgressBarWrapper progress) {
+		this.db = db;
+		this.progress = progress;
+	}
+
+	/**
+	 * Writes every table into dir, which is made if it isn't there.  All the
+	 * tables are read in one transaction, so the dump is a consistent copy
+	 * even if the database is written to meanwhile.
+	 *
+	 * @return false if it was cancelled from the progress bar
+	 */
+	public boolean export(File dir) throws SQLException, IOException {
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Failed to make directory " + dir + " for the database dump.");
+		if (new File(dir, MANIFEST).exists())
+			throw new IOException(dir + " already holds a database dump.");
+
+		Connection c = db.getReadConnection();
+		boolean autoCommit = c.getAutoCommit();
+		ArrayList<File> written = new ArrayList<File>();
+		boolean finished = false;
+		try {
+			if (autoCommit)
+				c.setAutoCommit(false);
+			Properties manifest = new Properties();
+			manifest.setProperty("format", Integer.toString(FORMAT));
+			LinkedHashMap<String, String> tables = new LinkedHashMap<String, String>();
+			try (Statement stmt = c.createStatement();
+				 ResultSet rs = stmt.executeQuery(
+						 "SELECT name, sql FROM sqlite_master WHERE type = 'table' " +
+						 "AND name NOT LIKE 'sqlite%' AND name <> 'CollectionClosure' ORDER BY rowid")) {
+				while (rs.next())
+					tables.put(rs.getString(1), rs.getString(2));
+			}
+			long totalRows = 0;
+			int totalChunks = 0;
+			for (String table : tables.keySet()) {
+				long rows = countRows(c, table);
+				totalRows += rows;
+				totalChunks += Math.max(1, (rows + CHUNK_ROWS - 1) / CHUNK_ROWS);
+			}
+			startProgress(totalChunks);
+
+			for (String table : tables.keySet()) {
+				manifest.setProperty(table + ".sql", tables.get(table));
+				int indexes = 0;
+				try (PreparedStatement stmt = c.prepareStatement(
+						"SELECT sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL")) {
+					stmt.setString(1, table);
+					try (ResultSet rs = stmt.executeQuery()) {
+						while (rs.next())
+							manifest.setProperty(table + ".index." + indexes++, rs.getString(1));
+					}
+				}
+				manifest.setProperty(table + ".indexes", Integer.toString(indexes));
+
+				try (Statement stmt = c.createStatement()) {
+					stmt.setFetchSize(BATCH_ROWS);
+					try (ResultSet rs = stmt.executeQuery("SELECT * FROM [" + table + "]")) {
+						ResultSetMetaData meta = rs.getMetaData();
+						int numColumns = meta.getColumnCount();
+						StringBuilder columns = new StringBuilder();
+						for (int i = 1; i <= numColumns; i++) {
+							if (i > 1)
+								columns.append(',');
+							columns.append(meta.getColumnName(i));
+						}
+						manifest.setProperty(table + ".columns", columns.toString());
+
+						long rows = 0;
+						int chunks = 0;
+						boolean more = rs.next();
+						// an empty table still gets one (empty) chunk, so
+						// every table has something to show for progress
+						do {
+							long before = rows;
+							File chunk = new File(dir, table + "." + chunks++ + ".gz");
+							written.add(chunk);
+							try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+									new BufferedOutputStream(new FileOutputStream(chunk), 1 << 16), 1 << 16))) {
+								for (int n = 0; more && n < CHUNK_ROWS; n++) {
+									for (int i = 1; i <= numColumns; i++)
+										writeValue(out, rs.getObject(i));
+									rows++;
+									more = rs.next();
+								}
+							}
+							if (!chunkDone(table, rows, rows - before))
+								return false;
+						} while (more);
+						manifest.setProperty(table + ".rows", Long.toString(rows));
+						manifest.setProperty(table + ".chunks", Integer.toString(chunks));
+					}
+				}
+			}
+			manifest.setProperty("tables", String.join(",", tables.keySet()));
+			manifest.setProperty("rows", Long.toString(totalRows));
+
+			File manifestFile = new File(dir, MANIFEST);
+			written.add(manifestFile);
+			try (OutputStream out = new FileOutputStream(manifestFile)) {
+				manifest.store(out, "Enchilada database " + db.getDatabaseName());
+			}
+			finished = true;
+			return true;
+		} finally {
+			if (autoCommit) {
+				try {
+					c.rollback();
+					c.setAutoCommit(true);
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+			db.releaseReadConnection(c);
+			if (!finished) {
+				for (File f : written)
+					f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Replaces everything in the database with the dump in dir.  It all
+	 * happens in one transaction; if anything goes wrong, or it's cancelled,
+	 * the database is left as it was.  Tables the dump has that the database
+	 * doesn't are created, and tables the database has that the dump doesn't
+	 * are left empty.
+	 *
+	 * @return false if it was cancelled from the progress bar
+	 */
+	public boolean importInto(File dir) throws SQLException, IOException {
+		Properties manifest = new Properties();
+		try (InputStream in = new FileInputStream(new File(dir, MANIFEST))) {
+			manifest.load(in);
+		}
+		if (!Integer.toString(FORMAT).equals(manifest.getProperty("format")))
+			throw new IOException("The database dump in " + dir + " is in a format this version can't read.");
+		String[] tables = manifest.getProperty("tables", "").isEmpty() ?
+			new String[0] : manifest.getProperty("tables").split(",");
+		int totalChunks = 0;
+		for (String table : tables)
+			totalChunks += Integer.parseInt(manifest.getProperty(table + ".chunks"));
+
+		Connection con = db.getCon();
+		boolean autoCommit = con.getAutoCommit();
+		boolean committed = false;
+		try (Statement stmt = con.createStatement()) {
+			con.setAutoCommit(false);
+			startProgress(totalChunks);
+
+			ArrayList<String> existing = new ArrayList<String>();
+			try (ResultSet rs = stmt.executeQuery(
+					"SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite%'")) {
+				while (rs.next())
+					existing.add(rs.getString(1));
+			}
+			// emptying the closure first leaves its delete trigger nothing to do
+			if (existing.remove("CollectionClosure"))
+				stmt.executeUpdate("DELETE FROM CollectionClosure");
+			for (String table : existing)
+				stmt.executeUpdate("DELETE FROM [" + table + "]");
+			for (String table : tables) {
+				if (!existing.contains(table)) {
+					stmt.executeUpdate(manifest.getProperty(table + ".sql"));
+					int indexes = Integer.parseInt(manifest.getProperty(table + ".indexes", "0"));
+					for (int i = 0; i < indexes; i++)
+						stmt.executeUpdate(manifest.getProperty(table + ".index." + i));
+				}
+			}
+
+			for (String table : tables) {
+				String[] columns = manifest.getProperty(table + ".columns").split(",");
+				int chunks = Integer.parseInt(manifest.getProperty(table + ".chunks"));
+				long expected = Long.parseLong(manifest.getProperty(table + ".rows"));
+				StringBuilder sql = new StringBuilder("INSERT INTO [" + table + "] (");
+				for (int i = 0; i < columns.length; i++)
+					sql.append(i == 0 ? "[" : ", [").append(columns[i]).append("]");
+				sql.append(") VALUES (");
+				for (int i = 0; i < columns.length; i++)
+					sql.append(i == 0 ? "?" : ", ?");
+				sql.append(")");
+
+				long rows = 0;
+				try (PreparedStatement insert = con.prepareStatement(sql.toString())) {
+					for (int chunk = 0; chunk < chunks; chunk++) {
+						long before = rows;
+						File file = new File(dir, table + "." + chunk + ".gz");
+						try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+								new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16))) {
+							int batched = 0;
+							while (readRow(in, insert, columns.length)) {
+								insert.addBatch();
+								rows++;
+								if (++batched == BATCH_ROWS) {
+									insert.executeBatch();
+									batched = 0;
+								}
+							}
+							if (batched > 0)
+								insert.executeBatch();
+						}
+						if (!chunkDone(table, rows, rows - before))
+							return false;
+					}
+				}
+				if (rows != expected)
+					throw new IOException("The database dump in " + dir + " has " + rows + " rows of " +
+							table + " where its manifest says " + expected + ".");
+			}
+			con.commit();
+			committed = true;
+			return true;
+		} finally {
+			if (!committed)
+				con.rollback();
+			con.setAutoCommit(autoCommit);
+		}
+	}
+
+	private static long countRows(Connection c, String table) throws SQLException {
+		try (Statement stmt = c.createStatement();
+			 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM [" + table + "]")) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Integer || value instanceof Long) {
+			out.writeByte(INTEGER);
+			out.writeLong(((Number) value).longValue());
+		} else if (value instanceof Number) {
+			out.writeByte(REAL);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BLOB);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else {
+			byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeByte(TEXT);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads one row into the parameters of insert.
+	 *
+	 * @return false at the end of the chunk
+	 */
+	private static boolean readRow(DataInputStream in, PreparedStatement insert, int numColumns)
+			throws IOException, SQLException {
+		for (int i = 1; i <= numColumns; i++) {
+			int tag = in.read();
+			if (tag == -1) {
+				if (i == 1)
+					return false;
+				throw new IOException("Database dump chunk ends in the middle of a row.");
+			}
+			switch (tag) {
+				case NULL:
+					insert.setNull(i, java.sql.Types.NULL);
+					break;
+				case INTEGER:
+					insert.setLong(i, in.readLong());
+					break;
+				case REAL:
+					insert.setDouble(i, in.readDouble());
+					break;
+				case TEXT:
+					insert.setString(i, new String(readBytes(in), StandardCharsets.UTF_8));
+					break;
+				case BLOB:
+					insert.setBytes(i, readBytes(in));
+					break;
+				default:
+					throw new IOException("Unknown value type " + tag + " in database dump chunk.");
+			}
+		}
+		return true;
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private void startProgress(int chunks) {
+		if (progress != null) {
+			progress.setIndeterminate(false);
+			progress.reset();
+			progress.setMaximum(chunks);
+		}
+	}
+
+	/**
+	 * Reports a finished chunk, with the rate so far.
+	 *
+	 * @return false if the progress bar has been closed
+	 */
+	private boolean chunkDone(String table, long tableRows, long chunkRows) {
+		rowsDone += chunkRows;
+		if (progress == null)
+			return true;
+		double seconds = Math.max(0.001, (System.currentTimeMillis() - startTime) / 1000.0);
+		progress.increment(String.format("%s: %,d rows (%,.0f rows/s)", table, tableRows, rowsDone / seconds));
+		return !progress.wasTerminated();
+	}
+}
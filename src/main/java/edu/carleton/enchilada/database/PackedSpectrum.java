@@ -0,0 +1,164 @@
+package edu.carleton.enchilada.database;
+
+import java.util.Arrays;
+
+/**
+ * The packed form of an ATOFMS peak list, stored as one blob per particle in
+ * ATOFMSAtomSpectra.  The cursors that read a whole collection at a time
+ * (BPLOnlyCursor, ArrayCursor and ClusteringCursor) read these instead of one
+ * ATOFMSAtomInfoSparse row per peak when every atom in the collection has one.
+ * <p>
+ * The blob is the number of peaks, then for each peak: the change in
+ * location from the previous peak, the area, the relative area as the four
+ * bytes of the float, and the height.  Everything but the relative area is a
+ * zigzag varint, so most peaks fit in five or six bytes besides the relative
+ * area.  Locations are whole m/z values, which is all the ATOFMS importer
+ * ever produces; a peak list with a fractional location isn't packed at all,
+ * and its collection is read from the sparse table as before.
+ * <p>
+ * Peaks come back out in the order they went in, which for everything that
+ * writes them is order of location, the same as the sparse table's key.
+ */
+class PackedSpectrum {
+	private PackedSpectrum() {
+	}
+
+	/**
+	 * Builds a blob one peak at a time.  One Writer can be reused for any
+	 * number of particles by calling clear() in between.
+	 */
+	static final class Writer {
+		private byte[] buf = new byte[256];
+		private int len;
+		private int count;
+		private int lastLocation;
+		private boolean packable = true;
+
+		void clear() {
+			len = 0;
+			count = 0;
+			lastLocation = 0;
+			packable = true;
+		}
+
+		void add(double location, int area, float relArea, int height) {
+			int whole = (int) location;
+			if (whole != location) {
+				packable = false;
+				return;
+			}
+			ensureRoom(19);
+			writeVarint(zigzag(whole - lastLocation));
+			writeVarint(zigzag(area));
+			int bits = Float.floatToRawIntBits(relArea);
+			buf[len++] = (byte) (bits >>> 24);
+			buf[len++] = (byte) (bits >>> 16);
+			buf[len++] = (byte) (bits >>> 8);
+			buf[len++] = (byte) bits;
+			writeVarint(zigzag(height));
+			lastLocation = whole;
+			count++;
+		}
+
+		/**
+		 * @return the packed peaks added since the last clear(), or null if
+		 * one of them can't be packed
+		 */
+		byte[] toBytes() {
+			if (!packable)
+				return null;
+			byte[] header = new byte[5];
+			int headerLen = putVarint(header, 0, count);
+			byte[] out = new byte[headerLen + len];
+			System.arraycopy(header, 0, out, 0, headerLen);
+			System.arraycopy(buf, 0, out, headerLen, len);
+			return out;
+		}
+
+		private void ensureRoom(int n) {
+			if (len + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+		}
+
+		private void writeVarint(int value) {
+			len = putVarint(buf, len, value);
+		}
+	}
+
+	/**
+	 * Walks through a blob without making an object per peak: after each
+	 * call to next() that returns true, the fields hold that peak.
+	 */
+	static final class Reader {
+		int location;
+		int area;
+		float relArea;
+		int height;
+
+		private byte[] data;
+		private int pos;
+		private int remaining;
+
+		/**
+		 * Starts reading a new blob.  A null blob reads as no peaks.
+		 */
+		Reader reset(byte[] data) {
+			this.data = data;
+			pos = 0;
+			location = 0;
+			remaining = data == null ? 0 : readVarint();
+			return this;
+		}
+
+		boolean next() {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			location += unzigzag(readVarint());
+			area = unzigzag(readVarint());
+			relArea = Float.intBitsToFloat(((data[pos] & 0xff) << 24) |
+					((data[pos + 1] & 0xff) << 16) |
+					((data[pos + 2] & 0xff) << 8) |
+					(data[pos + 3] & 0xff));
+			pos += 4;
+			height = unzigzag(readVarint());
+			return true;
+		}
+
+		private int readVarint() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+	}
+
+	/**
+	 * @return how many peaks are in the blob, without decoding them
+	 */
+	static int count(byte[] data) {
+		return data == null ? 0 : new Reader().reset(data).remaining;
+	}
+
+	private static int putVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+}
@@ -0,0 +1,569 @@
+package edu.carleton.enchilada.database;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times every statement run through Database's connections, grouped by the
+ * shape of its SQL: the SQL with its numbers and strings replaced by ?, and
+ * lists of them folded into one, so the same query built for different
+ * collections counts as one.  For each shape it keeps how many times it ran,
+ * how long it took altogether, a histogram of how long each run took, and
+ * how many rows it read or wrote.
+ * <p>
+ * Any statement that takes longer than getSlowMillis() is also kept, with
+ * SQLite's EXPLAIN QUERY PLAN for it, in a list of the last MAX_SLOW slow
+ * statements; the plan is worked out once per shape.
+ * <p>
+ * The timing comes from wrap(), which Database uses on every connection it
+ * opens: the statements and result sets handed out by the wrapped
+ * connection are timed too.  A query's time is the time to execute it plus
+ * the time spent in its ResultSet's next(), so it's counted when the result
+ * set (or its statement) is closed; a query whose result set is never closed
+ * isn't counted.
+ * <p>
+ * It's off until setEnabled(true), which the Query Statistics dialog does;
+ * while it's off the wrapped connection hands out the driver's own
+ * statements, so nothing is timed and nothing costs extra.  Statements
+ * made while it was on stay timed until they're closed.
+ */
+public class QueryStats {
+	private static final int MAX_SLOW = 200;
+	private static final int BUCKETS = 40;
+
+	private static volatile boolean enabled = false;
+	private static volatile long slowNanos = 500 * 1000000L;
+
+	private static final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<String, Shape>();
+	private static final ConcurrentHashMap<String, String> plans = new ConcurrentHashMap<String, String>();
+	private static final ArrayDeque<SlowStatement> slow = new ArrayDeque<SlowStatement>();
+
+	private QueryStats() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	public static long getSlowMillis() {
+		return slowNanos / 1000000L;
+	}
+
+	public static void setSlowMillis(long millis) {
+		slowNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public static void reset() {
+		shapes.clear();
+		plans.clear();
+		synchronized (slow) {
+			slow.clear();
+		}
+	}
+
+	/**
+	 * The statistics for one shape of statement.  The histogram has a bucket
+	 * for each power of two microseconds.
+	 */
+	public static class Shape {
+		private final String sql;
+		private long count, totalNanos, maxNanos, rows;
+		private final long[] buckets = new long[BUCKETS];
+
+		Shape(String sql) {
+			this.sql = sql;
+		}
+
+		synchronized void add(long nanos, long rowCount) {
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			rows += rowCount;
+			long micros = Math.max(1, nanos / 1000);
+			buckets[Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros))]++;
+		}
+
+		synchronized Shape copy() {
+			Shape s = new Shape(sql);
+			s.count = count;
+			s.totalNanos = totalNanos;
+			s.maxNanos = maxNanos;
+			s.rows = rows;
+			System.arraycopy(buckets, 0, s.buckets, 0, BUCKETS);
+			return s;
+		}
+
+		public String getSQL() {
+			return sql;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getTotalMillis() {
+			return totalNanos / 1e6;
+		}
+
+		public double getMeanMillis() {
+			return count == 0 ? 0 : totalNanos / 1e6 / count;
+		}
+
+		public double getMaxMillis() {
+			return maxNanos / 1e6;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		/**
+		 * @param fraction between 0 and 1
+		 * @return the top of the histogram bucket the given fraction of runs
+		 * fall within, but no more than the longest run
+		 */
+		public double getPercentileMillis(double fraction) {
+			long wanted = (long) Math.ceil(fraction * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= wanted && seen > 0)
+					return Math.min((1L << (i + 1)) / 1000.0, getMaxMillis());
+			}
+			return getMaxMillis();
+		}
+	}
+
+	/**
+	 * One run of a statement that went over the slow threshold.
+	 */
+	public static class SlowStatement {
+		private final Date when = new Date();
+		private final String sql, plan;
+		private final double millis;
+		private final long rows;
+
+		SlowStatement(String sql, String plan, long nanos, long rows) {
+			this.sql = sql;
+			this.plan = plan;
+			this.millis = nanos / 1e6;
+			this.rows = rows;
+		}
+
+		public Date getWhen() {
+			return when;
+		}
+
+		public String getSQL() {
+			return sql;
+		}
+
+		public String getPlan() {
+			return plan;
+		}
+
+		public double getMillis() {
+			return millis;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+	}
+
+	/**
+	 * @return a copy of the statistics for each shape, the ones that have
+	 * taken the most time altogether first
+	 */
+	public static List<Shape> getShapes() {
+		ArrayList<Shape> list = new ArrayList<Shape>();
+		for (Shape s : shapes.values())
+			list.add(s.copy());
+		list.sort((a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+		return list;
+	}
+
+	/**
+	 * @return the slow statements kept, most recent first
+	 */
+	public static List<SlowStatement> getSlowStatements() {
+		synchronized (slow) {
+			return new ArrayList<SlowStatement>(slow);
+		}
+	}
+
+	/**
+	 * Writes report() to a file, for looking at later.
+	 */
+	public static void dump(File file) throws IOException {
+		try (FileWriter out = new FileWriter(file)) {
+			out.write(report());
+		}
+	}
+
+	/**
+	 * @return everything recorded, as text: a line for each shape, then each
+	 * slow statement with its plan
+	 */
+	public static String report() {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		out.printf("Statement statistics, %s; slow threshold %d ms%n%n", new Date(), getSlowMillis());
+		out.printf("%12s %9s %10s %10s %10s %10s %12s  %s%n",
+				"total ms", "count", "mean ms", "p50 ms", "p99 ms", "max ms", "rows", "statement");
+		for (Shape s : getShapes()) {
+			out.printf("%12.1f %9d %10.2f %10.2f %10.2f %10.2f %12d  %s%n",
+					s.getTotalMillis(), s.getCount(), s.getMeanMillis(), s.getPercentileMillis(0.5),
+					s.getPercentileMillis(0.99), s.getMaxMillis(), s.getRows(), s.getSQL());
+		}
+		out.printf("%nSlow statements%n");
+		for (SlowStatement s : getSlowStatements()) {
+			out.printf("%n%s  %.1f ms, %d rows%n%s%n", s.getWhen(), s.getMillis(), s.getRows(), s.getSQL());
+			out.println(s.getPlan().replaceAll("(?m)^", "    "));
+		}
+		out.flush();
+		return text.toString();
+	}
+
+	/**
+	 * @return the shape of a statement: whitespace collapsed, string and
+	 * number literals replaced with ?, and lists of ?s folded into ?...
+	 */
+	static String shapeOf(String sql) {
+		StringBuilder sb = new StringBuilder(Math.min(sql.length(), 256));
+		int n = sql.length();
+		for (int i = 0; i < n; i++) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+					sb.append(' ');
+			} else if (c == '\'') {
+				// a string, with '' for a quote inside it
+				i++;
+				while (i < n && !(sql.charAt(i) == '\'' && (i + 1 >= n || sql.charAt(i + 1) != '\'')))
+					i += sql.charAt(i) == '\'' ? 2 : 1;
+				placeholder(sb);
+			} else if (c == '[' || c == '"') {
+				// a quoted name, kept as it is
+				char close = c == '[' ? ']' : '"';
+				int end = sql.indexOf(close, i + 1);
+				if (end == -1)
+					end = n - 1;
+				sb.append(sql, i, end + 1);
+				i = end;
+			} else if ((Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(sql.charAt(i + 1))))
+					&& !partOfName(sb)) {
+				while (i + 1 < n && (Character.isLetterOrDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+					i++;
+				placeholder(sb);
+			} else if (c == '?') {
+				placeholder(sb);
+			} else {
+				sb.append(c);
+			}
+		}
+		int end = sb.length();
+		while (end > 0 && (sb.charAt(end - 1) == ' ' || sb.charAt(end - 1) == ';'))
+			end--;
+		sb.setLength(end);
+		return sb.toString();
+	}
+
+	private static boolean partOfName(StringBuilder sb) {
+		if (sb.length() == 0)
+			return false;
+		char prev = sb.charAt(sb.length() - 1);
+		return Character.isLetterOrDigit(prev) || prev == '_' || prev == '#';
+	}
+
+	private static void placeholder(StringBuilder sb) {
+		int end = sb.length();
+		while (end > 0 && sb.charAt(end - 1) == ' ')
+			end--;
+		if (end > 0 && sb.charAt(end - 1) == ',') {
+			int before = end - 1;
+			while (before > 0 && sb.charAt(before - 1) == ' ')
+				before--;
+			if (before >= 4 && sb.substring(before - 4, before).equals("?...")) {
+				sb.setLength(before);
+				return;
+			}
+			if (before >= 1 && sb.charAt(before - 1) == '?') {
+				sb.setLength(before);
+				sb.append("...");
+				return;
+			}
+		}
+		sb.append('?');
+	}
+
+	/**
+	 * Adds one run of a statement.
+	 *
+	 * @param raw the unwrapped connection it ran on, for EXPLAIN QUERY PLAN
+	 */
+	static void record(String shape, String sql, long nanos, long rows, Connection raw) {
+		if (!enabled)
+			return;
+		Shape s = shapes.get(shape);
+		if (s == null) {
+			shapes.putIfAbsent(shape, new Shape(shape));
+			s = shapes.get(shape);
+		}
+		s.add(nanos, rows);
+		if (nanos >= slowNanos) {
+			String plan = plans.get(shape);
+			if (plan == null) {
+				plan = explain(raw, sql);
+				plans.put(shape, plan);
+			}
+			synchronized (slow) {
+				if (slow.size() == MAX_SLOW)
+					slow.removeLast();
+				slow.addFirst(new SlowStatement(sql, plan, nanos, rows));
+			}
+		}
+	}
+
+	private static String explain(Connection raw, String sql) {
+		String trimmed = sql.trim();
+		int space = 0;
+		while (space < trimmed.length() && Character.isLetter(trimmed.charAt(space)))
+			space++;
+		String verb = trimmed.substring(0, space).toUpperCase();
+		if (!(verb.equals("SELECT") || verb.equals("WITH") || verb.equals("INSERT") ||
+				verb.equals("UPDATE") || verb.equals("DELETE") || verb.equals("REPLACE")))
+			return "(no plan for " + (verb.isEmpty() ? "this statement" : verb) + ")";
+		StringBuilder plan = new StringBuilder();
+		try (Statement stmt = raw.createStatement();
+			 ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN " + trimmed)) {
+			while (rs.next()) {
+				if (plan.length() > 0)
+					plan.append('\n');
+				plan.append(rs.getInt("id")).append(' ').append(rs.getInt("parent")).append(' ')
+					.append(rs.getString("detail"));
+			}
+		} catch (SQLException e) {
+			return "(plan unavailable: " + e.getMessage() + ")";
+		}
+		return plan.toString();
+	}
+
+	/**
+	 * @return a connection that times the statements run through it
+	 */
+	static Connection wrap(Connection raw) {
+		return (Connection) Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new ConnectionHandler(raw));
+	}
+
+	private static Object invoke(Object target, Method m, Object[] args) throws Throwable {
+		try {
+			return m.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static class ConnectionHandler implements InvocationHandler {
+		private final Connection raw;
+
+		ConnectionHandler(Connection raw) {
+			this.raw = raw;
+		}
+
+		public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+			String name = m.getName();
+			if (!enabled && (name.equals("createStatement") || name.equals("prepareStatement"))) {
+				return QueryStats.invoke(raw, m, args);
+			} else if (name.equals("createStatement")) {
+				Statement stmt = (Statement) QueryStats.invoke(raw, m, args);
+				return Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+						new Class<?>[] {Statement.class}, new StatementHandler(raw, stmt, null));
+			} else if (name.equals("prepareStatement")) {
+				PreparedStatement stmt = (PreparedStatement) QueryStats.invoke(raw, m, args);
+				return Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+						new Class<?>[] {PreparedStatement.class}, new StatementHandler(raw, stmt, (String) args[0]));
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			return QueryStats.invoke(raw, m, args);
+		}
+	}
+
+	/**
+	 * A statement being timed.  Its time is added up until it's finished.
+	 */
+	private static class Run {
+		final String shape, sql;
+		final Connection raw;
+		long nanos, rows;
+		boolean finished;
+
+		Run(String sql, Connection raw) {
+			this.shape = shapeOf(sql);
+			this.sql = sql;
+			this.raw = raw;
+		}
+
+		void finish() {
+			if (!finished) {
+				finished = true;
+				record(shape, sql, nanos, rows, raw);
+			}
+		}
+	}
+
+	private static class StatementHandler implements InvocationHandler {
+		private final Connection raw;
+		private final Statement stmt;
+		// null for a plain Statement
+		private final String preparedSQL;
+		private String batchSQL;
+		private Run pending;
+
+		StatementHandler(Connection raw, Statement stmt, String preparedSQL) {
+			this.raw = raw;
+			this.stmt = stmt;
+			this.preparedSQL = preparedSQL;
+		}
+
+		public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+			String name = m.getName();
+			if (!name.startsWith("execute") && !name.equals("addBatch") && !name.equals("clearBatch") &&
+					!name.equals("getResultSet") && !name.equals("close")) {
+				if (name.equals("equals"))
+					return proxy == args[0];
+				if (name.equals("hashCode"))
+					return System.identityHashCode(proxy);
+				return QueryStats.invoke(stmt, m, args);
+			}
+
+			if (name.equals("addBatch")) {
+				if (batchSQL == null)
+					batchSQL = preparedSQL != null ? preparedSQL : (String) args[0];
+				return QueryStats.invoke(stmt, m, args);
+			} else if (name.equals("clearBatch")) {
+				batchSQL = null;
+				return QueryStats.invoke(stmt, m, args);
+			} else if (name.equals("getResultSet")) {
+				ResultSet rs = (ResultSet) QueryStats.invoke(stmt, m, args);
+				return rs == null || pending == null || pending.finished ? rs : wrapResultSet(rs, pending);
+			} else if (name.equals("close")) {
+				finishPending();
+				return QueryStats.invoke(stmt, m, args);
+			}
+
+			// one of the execute methods
+			finishPending();
+			String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : preparedSQL;
+			if (name.equals("executeBatch") || name.equals("executeLargeBatch"))
+				sql = batchSQL;
+			if (sql == null)
+				return QueryStats.invoke(stmt, m, args);
+			Run run = new Run(sql, raw);
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = QueryStats.invoke(stmt, m, args);
+			} finally {
+				run.nanos = System.nanoTime() - start;
+			}
+			if (name.equals("executeBatch") || name.equals("executeLargeBatch")) {
+				batchSQL = null;
+				if (result instanceof int[]) {
+					for (int r : (int[]) result)
+						run.rows += Math.max(0, r);
+				} else {
+					for (long r : (long[]) result)
+						run.rows += Math.max(0, r);
+				}
+				run.finish();
+			} else if (name.equals("executeQuery")) {
+				pending = run;
+				return wrapResultSet((ResultSet) result, run);
+			} else if (result instanceof Boolean) {
+				if ((Boolean) result) {
+					pending = run;
+				} else {
+					run.rows = Math.max(0, stmt.getUpdateCount());
+					run.finish();
+				}
+			} else {
+				run.rows = ((Number) result).longValue();
+				run.finish();
+			}
+			return result;
+		}
+
+		private void finishPending() {
+			if (pending != null) {
+				pending.finish();
+				pending = null;
+			}
+		}
+	}
+
+	private static ResultSet wrapResultSet(ResultSet rs, Run run) {
+		return (ResultSet) Proxy.newProxyInstance(QueryStats.class.getClassLoader(),
+				new Class<?>[] {ResultSet.class}, new ResultSetHandler(rs, run));
+	}
+
+	private static class ResultSetHandler implements InvocationHandler {
+		private final ResultSet rs;
+		private final Run run;
+
+		ResultSetHandler(ResultSet rs, Run run) {
+			this.rs = rs;
+			this.run = run;
+		}
+
+		public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+			String name = m.getName();
+			if (name.equals("next")) {
+				long start = System.nanoTime();
+				try {
+					Object more = QueryStats.invoke(rs, m, args);
+					if ((Boolean) more)
+						run.rows++;
+					return more;
+				} finally {
+					run.nanos += System.nanoTime() - start;
+				}
+			} else if (name.equals("close")) {
+				run.finish();
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			return QueryStats.invoke(rs, m, args);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package edu.carleton.enchilada.database;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+
+/**
+ * Read-only connections to a SQLite database in WAL mode, for the cursors
+ * that hold a query open for a long time.  With the database in WAL mode a
+ * reader never blocks the writer connection or the other readers, so the
+ * collection tree and particle windows keep working while a clustering or
+ * aggregation walks its cursor.
+ * <p>
+ * Connections are opened as they're needed; up to maxIdle of them are kept
+ * around once they're given back.  Each reader sees the database as of the
+ * last commit, so anything that needs to see its own uncommitted writes has
+ * to use the writer connection instead (Database.getReadConnection does).
+ */
+class ReadConnectionPool {
+	private static int maxIdle = 4;
+
+	private final String url;
+	private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+	private boolean closed = false;
+
+	ReadConnectionPool(String url) {
+		this.url = url;
+	}
+
+	public static int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public static void setMaxIdle(int max) {
+		maxIdle = max;
+	}
+
+	synchronized Connection borrow() throws SQLException {
+		if (closed)
+			throw new SQLException("The database connection has been closed.");
+		Connection c = idle.poll();
+		if (c != null)
+			return c;
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		return QueryStats.wrap(DriverManager.getConnection(url, config.toProperties()));
+	}
+
+	synchronized void release(Connection c) {
+		try {
+			if (closed || idle.size() >= maxIdle || c.isClosed())
+				c.close();
+			else
+				idle.push(c);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes the idle connections.  Ones that are still out get closed when
+	 * they come back.
+	 */
+	synchronized void close() {
+		closed = true;
+		for (Connection c : idle) {
+			try {
+				c.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		idle.clear();
+	}
+}
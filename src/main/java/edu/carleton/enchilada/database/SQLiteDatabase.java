@@ -60,10 +60,11 @@ public class SQLiteDatabase extends Database {
      * Open a connection to a SQLite database:
      */
     public boolean openConnection() {
-        return openConnectionImpl(
-                "jdbc:sqlite:" + dbPath.resolve(database),
-                "SpASMS",
-                "finally");
+        String url = "jdbc:sqlite:" + dbPath.resolve(database);
+        if (!openConnectionImpl(url, "SpASMS", "finally"))
+            return false;
+        openReadPool(url);
+        return true;
     }
     public boolean openConnectionNoDB() {
         return openConnectionImpl(
@@ -72,6 +73,21 @@ public class SQLiteDatabase extends Database {
                 "finally");
     }
 
+    /**
+     * Spectrum cache files go next to the database file.
+     */
+    public File getSpectrumCacheDirectory() {
+        return dbPath.resolve(database + ".spectra").toFile();
+    }
+
+    /**
+     * Backups, and their catalog, go next to the database file too.  They're
+     * left alone when the database is dropped.
+     */
+    public File getBackupDirectory() {
+        return dbPath.resolve(database + ".backups").toFile();
+    }
+
     /**
      * @return the format to match how elsewhere in SQLite expects it
      */
@@ -84,6 +100,7 @@ public class SQLiteDatabase extends Database {
      * @throws SQLException
      */
     public void dropDatabaseCommands() throws SQLException {
+        SpectrumCacheFile.discardAll(getSpectrumCacheDirectory());
         File dbFile = dbPath.resolve(getDatabaseName()).toFile();
         if (!dbFile.exists()) {
             // easy: wasn't there anyway
@@ -100,6 +117,10 @@ public class SQLiteDatabase extends Database {
             if (!success) {
                 throw new SQLException("Failed to delete database file.");
             }
+            // and the WAL files, so a new database by the same name doesn't
+            // pick up this one's leftover pages
+            new File(dbFile.getPath() + "-wal").delete();
+            new File(dbFile.getPath() + "-shm").delete();
         }
     }
 
@@ -117,48 +138,22 @@ public class SQLiteDatabase extends Database {
      * @param newCollection
      */
     public void propagateNewCollection(Collection newCollection){
+        // One INSERT ... SELECT through the closure table covers every
+        // ancestor at once, so there's no temp table to copy through (and
+        // no reconnecting to get rid of it afterwards).
+        ensureCollectionClosure();
         try (Statement stmt = con.createStatement()) {
-            stmt.executeUpdate("DROP TABLE IF EXISTS newCollection\n");
-
-            stmt.executeUpdate("CREATE TEMP TABLE newCollection (AtomID int, CollectionID int)");
-            String query = "INSERT INTO newCollection (AtomID)" +
-                    " SELECT AtomID FROM InternalAtomOrder WHERE (CollectionID = "+newCollection.getCollectionID()+");";
-            stmt.execute(query);
-            propagateNewCollection(newCollection,newCollection.getParentCollection());
-
+            stmt.executeUpdate("INSERT OR IGNORE INTO InternalAtomOrder (AtomID, CollectionID)\n" +
+                    "SELECT InternalAtomOrder.AtomID, CollectionClosure.AncestorID\n" +
+                    "FROM InternalAtomOrder JOIN CollectionClosure\n" +
+                    "ON CollectionClosure.DescendantID = InternalAtomOrder.CollectionID\n" +
+                    "WHERE InternalAtomOrder.CollectionID = " + newCollection.getCollectionID() +
+                    " AND CollectionClosure.AncestorID > 1");
         } catch (SQLException e) {
             throw new ExceptionAdapter(e);
         }
     }
 
-
-    private void propagateNewCollection(Collection newCollection, Collection parentCollection){
-        if (parentCollection == null ||
-                parentCollection.getCollectionID() == 0 ||
-                parentCollection.getCollectionID() == 1){
-            try {
-                // Need to close previous connections in order to drop table
-                closeConnection();
-                openConnection();
-                Statement stmt = con.createStatement();
-                String query = "DROP TABLE IF EXISTS newCollection;";
-                stmt.execute(query);
-            } catch (SQLException e) {
-                throw new ExceptionAdapter(e);
-            }
-            return;
-        }
-        try (Statement stmt = con.createStatement()) {
-            stmt.execute("UPDATE newCollection SET CollectionID = " + parentCollection.getCollectionID());
-            stmt.execute("INSERT INTO InternalAtomOrder (AtomID, CollectionID) SELECT * FROM newCollection;");
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        propagateNewCollection(newCollection,parentCollection.getParentCollection());
-
-
-    }
-
     /**
      * insertParticle takes a string of dense info, a string of sparse info,
      * the collection, the datasetID and the nextID and inserts the info
@@ -249,7 +244,8 @@ public class SQLiteDatabase extends Database {
 
                 stmt.executeUpdate("CREATE TABLE DBInfo (Name VARCHAR(50) PRIMARY KEY, Value VARCHAR(7500))");
                 // -- %version-next% Don't change the spacing of the version number, it gets parsed by the program as well as by SQL.  Also, don't put any lines between this one and the insertion of the version.  Versions are compared by STRING equality.
-                stmt.executeUpdate("INSERT INTO DBInfo VALUES ('Version','Sept2006.1')");
+                stmt.executeUpdate("INSERT INTO DBInfo VALUES ('Version','Oct2026.1')");
+                stmt.executeUpdate("INSERT INTO DBInfo VALUES ('NextAtomID', 1)");
                 stmt.executeUpdate("CREATE TABLE Collections (CollectionID INT PRIMARY KEY, Name VARCHAR(8000), Comment VARCHAR(8000), Description TEXT, Datatype VARCHAR(8000))");
                 stmt.executeUpdate("INSERT INTO Collections VALUES (0, 'ROOT', 'root for unsynchronized data','root', 'root')");
                 stmt.executeUpdate("INSERT INTO Collections VALUES (1, 'ROOT-SYNCHRONIZED', 'root for synchronized data','root', 'root')");
@@ -308,6 +304,8 @@ public class SQLiteDatabase extends Database {
                 stmt.executeUpdate("CREATE TABLE AtomIonSignaturesRemoved(AtomID INT, IonID INT, PRIMARY KEY (AtomID, IonID), FOREIGN KEY (IonID) REFERENCES IonSignature(IonID))");
                 stmt.executeUpdate("CREATE TABLE InternalAtomOrder(AtomID INT, CollectionID INT, PRIMARY KEY (CollectionID, AtomID))");
             }
+            db.addTimeIndexes();
+            db.ensureCollectionClosure();
 
         } catch (SQLException e) {
             throw new ExceptionAdapter(e);
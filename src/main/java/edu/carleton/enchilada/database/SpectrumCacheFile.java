@@ -0,0 +1,373 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.ATOFMS.ParticleInfo;
+import edu.carleton.enchilada.analysis.BinnedPeakList;
+import edu.carleton.enchilada.collection.Collection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The AtomIDs and peaks of one collection, kept in a flat file that
+ * is memory-mapped rather than read into the heap.  It holds the same arrays
+ * ArrayCursor builds, plus an offset for each atom into the peak arrays, so
+ * clustering, validation and plotting the same collection over and over
+ * only read the peaks out of the database the first time.  The peaks are
+ * the first two columns after AtomID of the datatype's sparse table, e.g.
+ * PeakLocation and PeakArea for ATOFMS or PeakLocation and PeakHeight for
+ * AMS; the atoms of a datatype with no sparse table have no peaks.
+ * <p>
+ * get() reads the collection's AtomIDs out of InternalAtomOrder each time
+ * it's called (one pass over the index, no peaks) and checks them one by
+ * one against the AtomIDs in the file, building a new file if they differ
+ * at all.  The file's name includes a 64-bit digest of the AtomIDs, so a
+ * file that some other window still has mapped never needs replacing.
+ * <p>
+ * One SpectrumCacheFile is shared by everybody asking for the same
+ * collection in the same database.  Its buffers are only ever read with
+ * absolute gets, so any number of cursors, on any threads, can read it at
+ * once.
+ */
+public class SpectrumCacheFile {
+	private static final int MAGIC = 0x454e4353; // "ENCS"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 64;
+
+	private static final HashMap<String, SpectrumCacheFile> shared =
+		new HashMap<String, SpectrumCacheFile>();
+
+	private final File file;
+	private final long digest;
+	private final int numAtoms, numPeaks;
+	private final IntBuffer atomIDs, offsets;
+	private final FloatBuffer locations, areas;
+
+	private SpectrumCacheFile(File file, int[] ids, long digest) throws IOException {
+		this.file = file;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			 FileChannel channel = raf.getChannel()) {
+			ByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+					header.getInt(8) != ids.length || header.getLong(16) != digest)
+				throw new IOException("Spectrum cache file " + file + " is out of date.");
+			numAtoms = header.getInt(8);
+			numPeaks = header.getInt(12);
+			this.digest = digest;
+
+			long pos = HEADER_BYTES;
+			atomIDs = map(channel, FileChannel.MapMode.READ_ONLY, pos, 4L * numAtoms).asIntBuffer();
+			pos += 4L * numAtoms;
+			offsets = map(channel, FileChannel.MapMode.READ_ONLY, pos, 4L * (numAtoms + 1)).asIntBuffer();
+			pos += 4L * (numAtoms + 1);
+			locations = map(channel, FileChannel.MapMode.READ_ONLY, pos, 4L * numPeaks).asFloatBuffer();
+			pos += 4L * numPeaks;
+			areas = map(channel, FileChannel.MapMode.READ_ONLY, pos, 4L * numPeaks).asFloatBuffer();
+		}
+		if (!matches(ids, digest))
+			throw new IOException("Spectrum cache file " + file + " is out of date.");
+	}
+
+	private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long pos, long size)
+			throws IOException {
+		return channel.map(mode, pos, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns the cache for a collection, building the file first if there
+	 * isn't one or the collection has changed since it was built.
+	 */
+	public static SpectrumCacheFile get(Database db, Collection collection)
+			throws SQLException, IOException {
+		int collectionID = collection.getCollectionID();
+		int[] ids = atomIDsOf(db, collectionID);
+		long digest = digest(ids);
+		File dir = db.getSpectrumCacheDirectory();
+		String prefix = "collection" + collectionID + "-";
+		File file = new File(dir, prefix + ids.length + "-" + Long.toHexString(digest) + ".bin");
+		String key = file.getAbsolutePath();
+
+		synchronized (shared) {
+			SpectrumCacheFile cache = shared.get(key);
+			if (cache != null && cache.matches(ids, digest))
+				return cache;
+			if (file.exists()) {
+				try {
+					cache = new SpectrumCacheFile(file, ids, digest);
+				} catch (IOException e) {
+					// left over from an older version, or half-written
+					cache = null;
+				}
+			}
+			if (cache == null) {
+				deleteOldFiles(dir, prefix);
+				build(db, collection, ids, digest, file);
+				cache = new SpectrumCacheFile(file, ids, digest);
+			}
+			// the collection has changed, so forget the caches of how it was
+			shared.values().removeIf(old -> old.file.getParentFile().equals(dir) &&
+					old.file.getName().startsWith(prefix));
+			shared.put(key, cache);
+			return cache;
+		}
+	}
+
+	/**
+	 * Forgets and deletes all the cache files in a directory, for when the
+	 * database they came from is dropped.
+	 */
+	public static void discardAll(File dir) {
+		synchronized (shared) {
+			shared.values().removeIf(cache -> cache.file.getParentFile().equals(dir));
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files)
+					f.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return whether the file holds exactly these AtomIDs; the digest only
+	 * saves comparing them when it already differs
+	 */
+	private boolean matches(int[] ids, long digest) {
+		if (this.digest != digest || numAtoms != ids.length)
+			return false;
+		for (int i = 0; i < numAtoms; i++) {
+			if (atomIDs.get(i) != ids[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the collection's AtomIDs in order, straight off the
+	 * InternalAtomOrder index
+	 */
+	private static int[] atomIDsOf(Database db, int collectionID) throws SQLException {
+		int[] ids = new int[1024];
+		int count = 0;
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT AtomID FROM InternalAtomOrder WHERE CollectionID = " + collectionID +
+					 " ORDER BY AtomID")) {
+			while (rs.next()) {
+				if (count == ids.length)
+					ids = Arrays.copyOf(ids, count * 2);
+				ids[count++] = rs.getInt(1);
+			}
+		}
+		return Arrays.copyOf(ids, count);
+	}
+
+	private static long digest(int[] ids) {
+		long h = ids.length;
+		for (int id : ids) {
+			h = (h ^ id) * 0x9e3779b97f4a7c15L;
+			h ^= h >>> 31;
+		}
+		return h;
+	}
+
+	private static void deleteOldFiles(File dir, String prefix) {
+		File[] old = dir.listFiles((d, name) -> name.startsWith(prefix));
+		if (old == null)
+			return;
+		for (File f : old) {
+			// may fail while some other window still has it mapped; it'll
+			// go the next time round
+			f.delete();
+		}
+	}
+
+	/**
+	 * Writes the file in one pass over the peaks, straight into the mapped
+	 * regions, under a temporary name that's only renamed once it's done.
+	 */
+	private static void build(Database db, Collection collection, int[] ids, long digest, File file)
+			throws SQLException, IOException {
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Failed to make directory " + dir + " for spectrum cache files.");
+
+		int collectionID = collection.getCollectionID();
+		String datatype = collection.getDatatype();
+		ArrayList<String> sparseColumns = db.getColNames(datatype, DynamicTable.AtomInfoSparse);
+		String query;
+		int numAtoms = ids.length;
+		int numPeaks;
+		if (sparseColumns.size() < 3) {
+			query = "SELECT AtomID, NULL, NULL FROM InternalAtomOrder " +
+				"WHERE CollectionID = " + collectionID + " ORDER BY AtomID";
+			numPeaks = 0;
+		} else {
+			String sparse = db.getDynamicTableName(DynamicTable.AtomInfoSparse, datatype);
+			String location = sparseColumns.get(1), area = sparseColumns.get(2);
+			query = "SELECT i.AtomID, s." + location + ", s." + area + " " +
+				"FROM InternalAtomOrder i LEFT JOIN " + sparse + " s ON s.AtomID = i.AtomID " +
+				"WHERE i.CollectionID = " + collectionID + " ORDER BY i.AtomID, s." + location;
+			try (Statement stmt = db.getCon().createStatement();
+				 ResultSet rs = stmt.executeQuery(
+						 "SELECT COUNT(*) FROM InternalAtomOrder i JOIN " + sparse + " s " +
+						 "ON s.AtomID = i.AtomID WHERE i.CollectionID = " + collectionID)) {
+				rs.next();
+				numPeaks = rs.getInt(1);
+			}
+		}
+
+		File temp = File.createTempFile("collection" + collectionID + "-", ".tmp", dir);
+		try {
+			try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+				 FileChannel channel = raf.getChannel();
+				 Statement stmt = db.getCon().createStatement();
+				 ResultSet rs = stmt.executeQuery(query)) {
+				long length = HEADER_BYTES + 4L * numAtoms + 4L * (numAtoms + 1) + 8L * numPeaks;
+				raf.setLength(length);
+				long pos = HEADER_BYTES;
+				IntBuffer atomIDs = map(channel, FileChannel.MapMode.READ_WRITE, pos, 4L * numAtoms).asIntBuffer();
+				pos += 4L * numAtoms;
+				IntBuffer offsets = map(channel, FileChannel.MapMode.READ_WRITE, pos, 4L * (numAtoms + 1)).asIntBuffer();
+				pos += 4L * (numAtoms + 1);
+				FloatBuffer locations = map(channel, FileChannel.MapMode.READ_WRITE, pos, 4L * numPeaks).asFloatBuffer();
+				pos += 4L * numPeaks;
+				FloatBuffer areas = map(channel, FileChannel.MapMode.READ_WRITE, pos, 4L * numPeaks).asFloatBuffer();
+
+				int atom = -1, peak = 0, lastID = -1;
+				while (rs.next()) {
+					int atomID = rs.getInt(1);
+					if (atomID != lastID) {
+						if (++atom >= numAtoms || ids[atom] != atomID)
+							throw new SQLException("Collection " + collectionID + " changed while caching it.");
+						atomIDs.put(atom, atomID);
+						offsets.put(atom, peak);
+						lastID = atomID;
+					}
+					float location = rs.getFloat(2);
+					if (rs.wasNull())
+						continue;
+					if (peak >= numPeaks)
+						throw new SQLException("Collection " + collectionID + " changed while caching it.");
+					locations.put(peak, location);
+					areas.put(peak, rs.getFloat(3));
+					peak++;
+				}
+				if (atom + 1 != numAtoms || peak != numPeaks)
+					throw new SQLException("Collection " + collectionID + " changed while caching it.");
+				offsets.put(numAtoms, numPeaks);
+
+				// the header goes last, so a file cut short never looks complete
+				ByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+				header.putInt(4, VERSION);
+				header.putInt(8, numAtoms);
+				header.putInt(12, numPeaks);
+				header.putLong(16, digest);
+				header.putInt(0, MAGIC);
+				channel.force(true);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	public int getNumAtoms() {
+		return numAtoms;
+	}
+
+	public int getNumPeaks() {
+		return numPeaks;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the index of the atom in the cache, or -1 if it isn't there
+	 */
+	public int indexOf(int atomID) {
+		int lo = 0, hi = numAtoms - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int id = atomIDs.get(mid);
+			if (id < atomID)
+				lo = mid + 1;
+			else if (id > atomID)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	public int getAtomID(int index) {
+		return atomIDs.get(index);
+	}
+
+	public BinnedPeakList getPeakList(int index) {
+		BinnedPeakList bpl = new BinnedPeakList();
+		int end = offsets.get(index + 1);
+		for (int i = offsets.get(index); i < end; i++)
+			bpl.add(locations.get(i), areas.get(i));
+		return bpl;
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Walks through the cache in AtomID order.  Each cursor has its own
+	 * position, but they all read the same mapped file, so open as many as
+	 * you like.  Unlike the database cursors, this one can also fetch any
+	 * atom by index or by AtomID.  Atoms with no peaks come back with empty
+	 * peak lists.
+	 */
+	public class Cursor implements CollectionCursor {
+		private int pos = -1;
+
+		public boolean next() {
+			if (pos < numAtoms)
+				pos++;
+			return pos < numAtoms;
+		}
+
+		public ParticleInfo getCurrent() {
+			return get(pos);
+		}
+
+		public void close() {
+			// the mapping belongs to the shared SpectrumCacheFile
+		}
+
+		public void reset() {
+			pos = -1;
+		}
+
+		public ParticleInfo get(int i) {
+			ParticleInfo p = new ParticleInfo();
+			p.setID(getAtomID(i));
+			p.setBinnedList(getPeakList(i));
+			return p;
+		}
+
+		public BinnedPeakList getPeakListfromAtomID(int id) {
+			int index = indexOf(id);
+			return index == -1 ? null : getPeakList(index);
+		}
+	}
+}
@@ -7,6 +7,7 @@ import java.sql.*;
 
 /**
  * This class makes it fairly simple to insert a lot of time series data quickly.
+ * The batching, commits and membership rows are AtomBatchWriter's.
  * <p>
  * It is not synchronized or anything, so only use one at a time!  
  * Otherwise you'll get conflicting AtomIDs.
@@ -16,40 +17,21 @@ import java.sql.*;
  * @author dmusicant
  *
  */
-public class TSBulkInserter {
-	private PreparedStatement vals, membership, iao, dataset;
-	private String tabName;
+public class TSBulkInserter extends AtomBatchWriter {
+	private PreparedStatement vals;
 	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	private boolean started = false;
-	private int collectionID, datasetID, nextID, firstID;
-	// number of inserts to batch up before executing, to avoid filling up too much memory before doing so
-	private final int maxBufferSize = 1000;
-	private int numRowsAddedInBatch;
-	
-	
-	private Database db;
-	private Connection con;
 
 	/**
 	 * Create a new TSBulkInserter with an already-connected database.
 	 * @param db
 	 */
 	public TSBulkInserter(Database db) {
-		this.db = db;
-		setUp();
-	}
-
-	private void setUp() {
+		super(db, getDefaultBatchSize(), getDefaultCommitInterval());
 		try {
-			tabName = db.getDynamicTableName(DynamicTable.AtomInfoDense, "TimeSeries");
-			nextID = firstID = collectionID = datasetID = -1;
-			con = db.getCon();
-			con.setAutoCommit(false);
-			vals = con.prepareStatement("INSERT INTO " + tabName + " VALUES (?, ?, ?)");
-			membership = con.prepareStatement("INSERT INTO AtomMembership (CollectionID, AtomID) VALUES (?, ?)");
-			iao = con.prepareStatement("INSERT INTO InternalAtomOrder (CollectionID, AtomID) VALUES (?, ?)");
-			dataset = con.prepareStatement("INSERT INTO DataSetMembers (OrigDatasetID, AtomID) VALUES (?, ?)");
-			numRowsAddedInBatch = 0;
+			vals = prepare("INSERT INTO " +
+					db.getDynamicTableName(DynamicTable.AtomInfoDense, "TimeSeries") +
+					" VALUES (?, ?, ?)");
 		} catch (SQLException e) {
 			throw new ExceptionAdapter(e);
 		}
@@ -70,9 +52,7 @@ public class TSBulkInserter {
 				collName,
 				"",
 				"-1,0");
-		collectionID = collectionInfo[0];
-		datasetID = collectionInfo[1];
-		nextID = firstID = db.getNextID();
+		setDestination(collectionInfo[0], collectionInfo[1]);
 		started = true;
 		return collectionInfo;
 	}
@@ -89,47 +69,13 @@ public class TSBulkInserter {
 		if (!started) {
 			throw new Error("Haven't called startDataset() before adding a point.");
 		}
+		int nextID = nextAtomID();
 		vals.setInt(1, nextID);
 		vals.setString(2, df.format(time));
 		vals.setFloat(3, val);
 		vals.addBatch();
 
-		membership.setInt(1, collectionID);
-		membership.setInt(2, nextID);
-		membership.addBatch();
-
-		iao.setInt(1, collectionID);
-		iao.setInt(2, nextID);
-		iao.addBatch();
-
-		dataset.setInt(1, datasetID);
-		dataset.setInt(2, nextID);
-		dataset.addBatch();
-		
-		nextID++;
-		numRowsAddedInBatch++;
-		
-		if (numRowsAddedInBatch >= maxBufferSize) {
-			interimCommit();
-		}
-	
-	}
-	
-	/**
-	 * commits the particles that are currently queued up in the StringBuffers.
-	 */
-	private void interimCommit() throws SQLException {
-		if (db.getNextID() != firstID) {
-			throw new IllegalStateException("Database has changed under a batch insert.. you can't do that!");
-		}
-
-		vals.executeBatch();
-		membership.executeBatch();
-		iao.executeBatch();
-		dataset.executeBatch();
-		con.commit();
-		numRowsAddedInBatch = 0;
-		firstID = nextID = db.getNextID();
+		addMember(nextID);
 	}
 	
 	/**
@@ -140,16 +86,13 @@ public class TSBulkInserter {
 	 * @return the collectionID of the collection which holds the observations.
 	 */
 	public int commit() throws SQLException {
-		interimCommit();
+		flush();
 		started = false;
 		
-		db.propagateNewCollection(db.getCollection(collectionID));
-		
-		int ret = collectionID;
+		int ret = getCollectionID();
+		db.propagateNewCollection(db.getCollection(ret));
 		
-		collectionID = -1;
-		datasetID = -1;
-		nextID = firstID = -1;
+		setDestination(-1, -1);
 		
 		return ret;
 	}
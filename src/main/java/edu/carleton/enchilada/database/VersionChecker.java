@@ -22,6 +22,12 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class VersionChecker {
+	/**
+	 * The version before the AtomInfoDense tables had time indexes.
+	 * Databases this old can be upgraded in place.
+	 */
+	private static final String BEFORE_TIME_INDEXES = "Sept2006.1";
+
 	private Database db;
 	private String progVers;
 	private String dbVers;
@@ -77,11 +83,29 @@ public class VersionChecker {
 	 */
 	public String programVersion() throws IOException {
 		if (progVers == null) {
-			progVers = "Sept2006.1";
+			progVers = "Oct2026.1";
 		}
 		return progVers;
 		
 	}
 	
+	/**
+	 * Brings an older database up to the program's version, if it's one
+	 * whose changes can be added without rebuilding.  Databases from
+	 * Sept2006.1 just need the time indexes.
+	 * 
+	 * @return whether the database is now current
+	 * @throws SQLException if the upgrade failed
+	 * @throws IOException
+	 */
+	public boolean upgradeDatabase() throws SQLException, IOException {
+		if (dbVersion().equals(BEFORE_TIME_INDEXES)) {
+			db.addTimeIndexes();
+			db.setVersion(programVersion());
+			dbVers = null;
+		}
+		return isDatabaseCurrent();
+	}
+	
 	
 }
@@ -0,0 +1,134 @@
+package edu.carleton.enchilada.experiments;
+
+import edu.carleton.enchilada.analysis.clustering.ClusterInformation;
+import edu.carleton.enchilada.collection.Collection;
+import edu.carleton.enchilada.database.CollectionCursor;
+import edu.carleton.enchilada.database.Database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmark comparing a pass through a ClusteringCursor that runs one query
+ * per atom with a pass through one that streams the collection with a
+ * single ordered join.  Builds a synthetic ATOFMS collection in TestDB,
+ * so don't point it at anything you care about.
+ *
+ * Usage: ClusteringCursorExperiment [numParticles] [peaksPerParticle] [passes]
+ */
+public class ClusteringCursorExperiment {
+	private Database db;
+	private int collectionID;
+
+	public ClusteringCursorExperiment(int numParticles, int peaksPerParticle) throws SQLException {
+		Database.getDatabase("TestDB").rebuildDatabase("TestDB");
+		db = Database.getDatabase("TestDB");
+		db.openConnection();
+
+		int[] id = db.createEmptyCollectionAndDataset("ATOFMS", 0, "Synthetic",
+				"synthetic particles for the clustering cursor benchmark",
+				"'none', 'none', 0, 0, 0.0, 0");
+		collectionID = id[0];
+
+		Connection con = db.getCon();
+		Random rnd = new Random(23713);
+		con.setAutoCommit(false);
+		try (PreparedStatement dense = con.prepareStatement(
+				"INSERT INTO ATOFMSAtomInfoDense VALUES (?, '2003-09-02 17:30:38', ?, ?, ?, ?)");
+			 PreparedStatement sparse = con.prepareStatement(
+				"INSERT OR IGNORE INTO ATOFMSAtomInfoSparse VALUES (?, ?, ?, ?, ?)");
+			 PreparedStatement membership = con.prepareStatement(
+				"INSERT INTO AtomMembership VALUES (?, ?)");
+			 PreparedStatement order = con.prepareStatement(
+				"INSERT INTO InternalAtomOrder VALUES (?, ?)")) {
+			for (int atomID = 1; atomID <= numParticles; atomID++) {
+				dense.setInt(1, atomID);
+				dense.setFloat(2, rnd.nextFloat());
+				dense.setFloat(3, rnd.nextFloat());
+				dense.setInt(4, rnd.nextInt(1000));
+				dense.setString(5, "particle" + atomID);
+				dense.addBatch();
+				for (int p = 0; p < peaksPerParticle; p++) {
+					sparse.setInt(1, atomID);
+					sparse.setFloat(2, rnd.nextInt(600) - 300);
+					sparse.setInt(3, rnd.nextInt(5000) + 1);
+					sparse.setFloat(4, rnd.nextFloat());
+					sparse.setInt(5, rnd.nextInt(5000) + 1);
+					sparse.addBatch();
+				}
+				membership.setInt(1, collectionID);
+				membership.setInt(2, atomID);
+				membership.addBatch();
+				order.setInt(1, atomID);
+				order.setInt(2, collectionID);
+				order.addBatch();
+				if (atomID % 10000 == 0) {
+					dense.executeBatch();
+					sparse.executeBatch();
+					membership.executeBatch();
+					order.executeBatch();
+				}
+			}
+			dense.executeBatch();
+			sparse.executeBatch();
+			membership.executeBatch();
+			order.executeBatch();
+		}
+		con.commit();
+		con.setAutoCommit(true);
+	}
+
+	/**
+	 * Time a number of full passes through the collection.
+	 * @return the average time per pass, in milliseconds
+	 */
+	public double timePasses(boolean streaming, int passes) {
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("ATOFMSAtomInfoSparse.PeakArea");
+		ClusterInformation cInfo = new ClusterInformation(list,
+				"ATOFMSAtomInfoSparse.PeakLocation", null, false, true);
+		Collection coll = db.getCollection(collectionID);
+		CollectionCursor curs = db.getClusteringCursor(coll, cInfo, streaming);
+
+		long total = 0;
+		for (int pass = 0; pass < passes; pass++) {
+			long start = System.currentTimeMillis();
+			int count = 0;
+			while (curs.next()) {
+				curs.getCurrent().getBinnedList();
+				count++;
+			}
+			curs.reset();
+			long elapsed = System.currentTimeMillis() - start;
+			total += elapsed;
+			System.out.println((streaming ? "Streaming" : "Per-atom") + " pass " + pass +
+					": " + count + " particles in " + elapsed + " ms");
+		}
+		curs.close();
+		return total / (double) passes;
+	}
+
+	public void close() {
+		db.closeConnection();
+	}
+
+	public static void main(String[] args) throws SQLException {
+		int numParticles = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int peaksPerParticle = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		int passes = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		ClusteringCursorExperiment exp =
+			new ClusteringCursorExperiment(numParticles, peaksPerParticle);
+		double perAtom = exp.timePasses(false, passes);
+		double streaming = exp.timePasses(true, passes);
+		exp.close();
+
+		System.out.println();
+		System.out.println(numParticles + " particles, " + peaksPerParticle + " peaks each");
+		System.out.println("Per-atom queries: " + perAtom + " ms per pass");
+		System.out.println("Streaming join:   " + streaming + " ms per pass");
+	}
+}
@@ -0,0 +1,88 @@
+package edu.carleton.enchilada.experiments;
+
+import edu.carleton.enchilada.analysis.BinnedPeakList;
+import edu.carleton.enchilada.analysis.DistanceMetric;
+import edu.carleton.enchilada.analysis.Normalizer;
+
+import java.util.Random;
+
+/**
+ * Compares BinnedPeakLists backed by a TreeMap with ones backed by sorted
+ * primitive arrays: heap used to hold a set of synthetic spectra, and the
+ * rate at which distances from each spectrum to a handful of centroids can
+ * be computed, as ClusterK does on every pass.
+ *
+ * Usage: PeakListBackingExperiment [numParticles] [peaksPerParticle] [numCentroids]
+ */
+public class PeakListBackingExperiment {
+
+	private static BinnedPeakList[] makeLists(boolean arrayBacked, int count,
+			int peaksPerList, long seed) {
+		Random rnd = new Random(seed);
+		BinnedPeakList[] lists = new BinnedPeakList[count];
+		for (int i = 0; i < count; i++) {
+			lists[i] = arrayBacked ? new BinnedPeakList(new Normalizer())
+					: BinnedPeakList.treeBacked(new Normalizer());
+			for (int p = 0; p < peaksPerList; p++)
+				lists[i].add((float) (rnd.nextInt(600) - 300), rnd.nextFloat() * 1000);
+			lists[i].normalize(DistanceMetric.EUCLIDEAN_SQUARED);
+		}
+		return lists;
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	/**
+	 * Build the spectra and time the distance computations with the given
+	 * backing.  Prints bytes per spectrum and distances per second.
+	 * @return the checksum of all distances, so both backings can be
+	 * compared for identical results
+	 */
+	public static double run(boolean arrayBacked, int numParticles,
+			int peaksPerParticle, int numCentroids) {
+		String name = arrayBacked ? "Array" : "TreeMap";
+
+		long before = usedMemory();
+		BinnedPeakList[] particles = makeLists(arrayBacked, numParticles, peaksPerParticle, 1);
+		long after = usedMemory();
+		BinnedPeakList[] centroids = makeLists(arrayBacked, numCentroids, 4 * peaksPerParticle, 2);
+
+		System.out.println(name + ": " + (after - before) / numParticles +
+				" bytes per spectrum");
+
+		double checksum = 0;
+		for (DistanceMetric metric : DistanceMetric.values()) {
+			long start = System.currentTimeMillis();
+			for (BinnedPeakList particle : particles)
+				for (BinnedPeakList centroid : centroids)
+					checksum += particle.getDistance(centroid, metric);
+			long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+			System.out.println(name + " " + metric + ": " +
+					(1000L * numParticles * numCentroids / elapsed) +
+					" distances per second");
+		}
+		// keep the particles reachable until after the memory measurement
+		System.out.println(name + ": " + particles.length + " spectra, checksum " + checksum);
+		return checksum;
+	}
+
+	public static void main(String[] args) {
+		int numParticles = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int peaksPerParticle = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		int numCentroids = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		// warm up both code paths before timing anything
+		run(false, numParticles / 10, peaksPerParticle, numCentroids);
+		run(true, numParticles / 10, peaksPerParticle, numCentroids);
+		System.out.println();
+
+		double tree = run(false, numParticles, peaksPerParticle, numCentroids);
+		double array = run(true, numParticles, peaksPerParticle, numCentroids);
+		System.out.println(tree == array ? "Results identical" : "RESULTS DIFFER");
+	}
+}
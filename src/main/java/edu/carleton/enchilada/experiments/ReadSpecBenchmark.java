@@ -0,0 +1,87 @@
+package edu.carleton.enchilada.experiments;
+
+import edu.carleton.enchilada.ATOFMS.ATOFMSParticle;
+import edu.carleton.enchilada.ATOFMS.CalInfo;
+import edu.carleton.enchilada.ATOFMS.PeakParams;
+import edu.carleton.enchilada.ATOFMS.ReadSpec;
+import edu.carleton.enchilada.ATOFMS.SpectrumReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Times reading spectrum files: with SpectrumReader alone, which reuses
+ * all of its buffers, and with ReadSpec, which also makes a particle with
+ * its own copy of the spectra.  Reports files per second and bytes
+ * allocated per file.
+ * <p>
+ * Usage: ReadSpecBenchmark [directory of .ams/.amz files] [rounds]
+ * <br>
+ * The directory defaults to testRow/b.
+ */
+public class ReadSpecBenchmark {
+	private static final int WARMUP_ROUNDS = 200;
+
+	private interface Read {
+		void read(String fileName) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		File dir = new File(args.length > 0 ? args[0] : "testRow" + File.separator + "b");
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		ArrayList<String> files = new ArrayList<String>();
+		File[] listing = dir.listFiles();
+		if (listing == null)
+			throw new IOException(dir + " is not a directory.");
+		Arrays.sort(listing);
+		for (File f : listing)
+			if (f.getName().endsWith(".ams") || f.getName().endsWith(".amz"))
+				files.add(f.getPath());
+		if (files.isEmpty())
+			throw new IOException("No spectrum files in " + dir);
+		System.out.println(files.size() + " spectrum files in " + dir + ", " + rounds + " rounds");
+
+		ATOFMSParticle.currCalInfo = new CalInfo();
+		ATOFMSParticle.currPeakParams = new PeakParams(30, 30, 0.01f, .50f);
+		final Date time = new Date();
+		final SpectrumReader reader = SpectrumReader.forThread();
+
+		run("SpectrumReader", files, rounds, new Read() {
+			public void read(String fileName) throws IOException {
+				reader.read(fileName);
+			}
+		});
+		run("ReadSpec", files, rounds, new Read() {
+			public void read(String fileName) throws IOException {
+				new ReadSpec(fileName, time).getParticle();
+			}
+		});
+	}
+
+	private static void run(String name, ArrayList<String> files, int rounds, Read read)
+			throws IOException {
+		for (int r = 0; r < WARMUP_ROUNDS; r++)
+			for (String f : files)
+				read.read(f);
+
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++)
+			for (String f : files)
+				read.read(f);
+		long nanos = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		long count = (long) rounds * files.size();
+		System.out.printf("%-15s %10.0f files/s %10d bytes allocated/file%n",
+				name, count * 1e9 / nanos, allocated / count);
+	}
+}
@@ -45,6 +45,7 @@ public abstract class AbstractClusterDialog extends JDialog implements ItemListe
 	final static String KMEANS = "K-Means / Euclidean Squared";
 	final static String KMEDIANS = "K-Medians / City Block";
 	final static String SKMEANS = "K-Means / Dot Product";
+	final static String MBKMEANS = "Mini-Batch K-Means / Euclidean Squared";
 	final static String HIERARCHICAL = "Hierarchical";
 	final static String HIER_WARDS = "Ward's Method";
 	final static String OTHER = "Other";
@@ -164,7 +165,7 @@ public abstract class AbstractClusterDialog extends JDialog implements ItemListe
 		
 		JLabel kClusterLabel = new JLabel("Choose algorithm: ");
 		JPanel kClusterDropDown = new JPanel();
-		String[] averagingNames = {KMEANS,KMEDIANS,SKMEANS};
+		String[] averagingNames = {KMEANS,KMEDIANS,SKMEANS,MBKMEANS};
 		averageClusterDropDown = new JComboBox(averagingNames);
 		averageClusterDropDown.setEditable(false);
 		averageClusterDropDown.addItemListener(this);
@@ -405,7 +406,8 @@ public abstract class AbstractClusterDialog extends JDialog implements ItemListe
 			dMetInt = DistanceMetric.CITY_BLOCK;
 		}
 		else if (dMetric.equals(EUCLIDEAN_SQUARED) || 
-				dMetric.equals(KMEANS) || dMetric.equals(HIER_WARDS))
+				dMetric.equals(KMEANS) || dMetric.equals(MBKMEANS) ||
+				dMetric.equals(HIER_WARDS))
 		{
 			dMetInt = DistanceMetric.EUCLIDEAN_SQUARED;
 		}
@@ -54,6 +54,7 @@ import javax.swing.*;
 import edu.carleton.enchilada.analysis.PeakTransform;
 import edu.carleton.enchilada.analysis.clustering.Cluster;
 import edu.carleton.enchilada.analysis.clustering.ClusterK;
+import edu.carleton.enchilada.analysis.clustering.MiniBatchKMeans;
 import java.awt.*;
 /**
  *
@@ -75,6 +76,9 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 	
 	private JTextField errorField;
 	private JTextField numSamplesField;
+	private JTextField threadsField;
+	private JTextField batchSizeField;
+	private JTextField maxBatchesField;
 	private JTextField powerField;
 	private JTextField smallestNormalizedPeakField;
 	
@@ -86,13 +90,14 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 	private JCheckBox logBox;
 	private JCheckBox sqrtBox;
 	private JCheckBox normBox;
+	private JCheckBox pruningBox;
 	
 	private JCheckBox stationaryBox;
 	
 	public AdvancedClusterDialog(JDialog frame) {
 		super(frame,"Advanced Cluster Options", true);
 		parent = frame;
-		setSize(350,350);
+		setSize(350,460);
 		setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
 		
 		JLabel kHeader = new JLabel("K-Cluster:");
@@ -111,6 +116,29 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 		k.add(kSampNum);
 		k.add(numSamplesField);
 		
+		JPanel kThreads = new JPanel();
+		JLabel threadsLabel = new JLabel("# of threads:");
+		threadsField = new JTextField(Integer.toString(ClusterK.getNumThreads()), 5);
+		threadsField.setEditable(true);
+		kThreads.add(threadsLabel);
+		kThreads.add(threadsField);
+		pruningBox = new JCheckBox("Skip distances by triangle inequality",
+				ClusterK.getTrianglePruning());
+		pruningBox.setToolTipText("Euclidean squared only; does not change the clusters");
+		kThreads.add(pruningBox);
+		
+		JPanel kBatches = new JPanel();
+		JLabel batchSizeLabel = new JLabel("Mini-batch size:");
+		batchSizeField = new JTextField(Integer.toString(MiniBatchKMeans.getBatchSize()), 5);
+		batchSizeField.setEditable(true);
+		JLabel maxBatchesLabel = new JLabel("max # of batches:");
+		maxBatchesField = new JTextField(Integer.toString(MiniBatchKMeans.getMaxBatches()), 5);
+		maxBatchesField.setEditable(true);
+		kBatches.add(batchSizeLabel);
+		kBatches.add(batchSizeField);
+		kBatches.add(maxBatchesLabel);
+		kBatches.add(maxBatchesField);
+		
 		/*A section for setting the preprocessing power for peaks.*/
 		//JLabel preProcess = new JLabel("Preprocessing parameters:");		
 		JPanel p = new JPanel();
@@ -190,6 +218,8 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 		
 		add(kHeader);
 		add(k);
+		add(kThreads);
+		add(kBatches);
 		//add(preProcess);
 		add(p);
 		add(p3);
@@ -213,6 +243,13 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 			ClusterK.setError(Float.parseFloat(text));
 			text = numSamplesField.getText();
 			ClusterK.setNumSamples(Integer.parseInt(text));
+			text = threadsField.getText();
+			ClusterK.setNumThreads(Integer.parseInt(text));
+			ClusterK.setTrianglePruning(pruningBox.isSelected());
+			text = batchSizeField.getText();
+			MiniBatchKMeans.setBatchSize(Integer.parseInt(text));
+			text = maxBatchesField.getText();
+			MiniBatchKMeans.setMaxBatches(Integer.parseInt(text));
 			text = powerField.getText();
 			Cluster.setPower(Double.parseDouble(text));
 			text = smallestNormalizedPeakField.getText();
@@ -245,7 +282,7 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 						"Error with parameters.\n" +
 						"Make sure there are no empty entries,\n" +
 						"the 'error' field contains a real number,\n" +
-						"the '# of subsamples' field contains an integer,\n" +
+						"the '# of subsamples', '# of threads' and mini-batch fields contain integers,\n" +
 						" and the 'peak power' field contains a decimal number.",
 						"Exception",
 						JOptionPane.ERROR_MESSAGE);
@@ -258,6 +295,10 @@ public class AdvancedClusterDialog extends JDialog implements ActionListener {
 		if(source == restoreDefault) {
 			errorField.setText("0.01");
 			numSamplesField.setText("10");
+			threadsField.setText(Integer.toString(Runtime.getRuntime().availableProcessors()));
+			pruningBox.setSelected(true);
+			batchSizeField.setText("1000");
+			maxBatchesField.setText("300");
 			powerField.setText("0.5");
 			randomSeedField.setText(Integer.toString(ClusterK.DEFAULT_RANDOM));
 			sampleBox.setSelected(false);
@@ -43,27 +43,37 @@
  */
 package edu.carleton.enchilada.gui;
 
-import javax.swing.table.AbstractTableModel;
-
-import edu.carleton.enchilada.ATOFMS.ParticleInfo;
+import java.util.ArrayList;
+import java.util.Vector;
 
+import javax.swing.table.AbstractTableModel;
 
-import edu.carleton.enchilada.database.CollectionCursor;
+import edu.carleton.enchilada.collection.Collection;
 import edu.carleton.enchilada.database.Database;
+import edu.carleton.enchilada.database.DynamicTable;
 
 /**
  * This table model goes straight to the database to lookup 
  * particles.  It is also never used?
- * 
- * TODO: Implement cacheing (and figure out how to spell it as a 
- * verb)
+ * <p>
+ * Rows are read a page of 1000 at a time with updateParticleTable, which
+ * finds a page by AtomID, so jumping anywhere in the table costs the same
+ * as scrolling down one row.  The page after the one being looked at is
+ * read in the background.
  * @author andersbe
  */
 public class AtomTableModel extends AbstractTableModel {
+	private static final int PAGE_SIZE = 1000;
+
 	Database db;
 	int collectionID;
-	int lastCheckedRow = -1;
-	CollectionCursor curs;
+	Collection collection;
+	// which page is in rows, or -1
+	int currentPage = -1;
+	Vector<Vector<Object>> rows = new Vector<Vector<Object>>(PAGE_SIZE);
+	// where the columns this model shows are in the dense table's rows
+	int filenameColumn, sizeColumn, timeColumn;
+
 	/**
 	 * 
 	 */
@@ -71,7 +81,11 @@ public class AtomTableModel extends AbstractTableModel {
 		super();
 		this.db = db;
 		this.collectionID = collectionID;
-		curs = db.getAtomInfoOnlyCursor(db.getCollection(collectionID));
+		collection = db.getCollection(collectionID);
+		ArrayList<String> colNames = db.getColNames(collection.getDatatype(), DynamicTable.AtomInfoDense);
+		filenameColumn = colNames.indexOf("OrigFilename");
+		sizeColumn = colNames.indexOf("Size");
+		timeColumn = colNames.indexOf("Time");
 	}
 
 	/* (non-Javadoc)
@@ -92,44 +106,45 @@ public class AtomTableModel extends AbstractTableModel {
 	 * @see javax.swing.table.TableModel#getValueAt(int, int)
 	 */
 	public Object getValueAt(int rowIndex, int columnIndex) {
-		ParticleInfo pInfo = null;
-		if (rowIndex == lastCheckedRow + 1)
-		{
-			curs.next();
-			pInfo = curs.getCurrent();
+		int page = rowIndex / PAGE_SIZE;
+		if (page != currentPage) {
+			int low = page * PAGE_SIZE + 1;
+			db.updateParticleTable(collection, rows, low, low + PAGE_SIZE - 1);
+			currentPage = page;
+			db.prefetchParticleTable(collection, low + PAGE_SIZE, low + 2 * PAGE_SIZE - 1);
 		}
-		else
-		{
-			curs.reset();
-			for (int i = 0; i <= rowIndex; i++)
-				curs.next();
-			pInfo = curs.getCurrent();
-		}
-		lastCheckedRow = rowIndex;
+		int row = rowIndex - page * PAGE_SIZE;
+		if (row >= rows.size())
+			return null;
+		Vector<Object> values = rows.get(row);
 		
 		if (columnIndex == 0)
 		{
-			return new Integer(
-					pInfo.getATOFMSParticleInfo().getAtomID());
+			return values.get(0);
 		}
 		else if (columnIndex == 1)
 		{
-			return pInfo.getATOFMSParticleInfo().getFilename();
+			return filenameColumn == -1 ? null : values.get(filenameColumn);
 		}
 		else if (columnIndex == 2)
 		{
-			return new Float(pInfo.getATOFMSParticleInfo().getSize());
+			if (sizeColumn == -1)
+				return null;
+			// Size can be NULL, e.g. for particles that weren't sized
+			String size = (String) values.get(sizeColumn);
+			return size == null ? null : Float.valueOf(size);
 		}
 		else if (columnIndex == 3)
 		{
-			return pInfo.getATOFMSParticleInfo().getDateString();
+			return timeColumn == -1 ? null : values.get(timeColumn);
 		}
 		else
 			return null;
 	}
 	
 	public void close() {
-		curs.close();
+		rows.clear();
+		currentPage = -1;
 	}
 
 }
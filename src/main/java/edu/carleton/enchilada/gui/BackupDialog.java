@@ -59,6 +59,11 @@ import edu.carleton.enchilada.externalswing.SwingWorker;
  * A GUI that allows the user to use the fast database backup/restore commands
  * to save/restore the entire contents of the database to a file (or, potentially,
  * other backup devices like tape drives or network locations)
+ * <p>
+ * The list is the database's backup catalog.  Backups run in the background
+ * while the rest of Enchilada carries on, so neither this dialog nor the
+ * backup progress window is modal; a restore replaces everything, so its
+ * progress window is.
  * 
  * @author shaferia
  */
@@ -76,12 +81,12 @@ public class BackupDialog extends JDialog {
 	Database db;
 	
 	/**
-	 * Attempt to only accept .dat files for backup
+	 * Attempt to only accept .sqlite files for backup
 	 */
 	FilenameFilter filter = new FilenameFilter() {
 		public boolean accept(File dir, String name) {
 			File f = new File(name);
-			return f.isDirectory() || name.endsWith(".dat");
+			return f.isDirectory() || name.endsWith(".sqlite");
 		}
 	};
 	
@@ -113,7 +118,7 @@ public class BackupDialog extends JDialog {
 	 * @param db the database to backup or restore
 	 */
 	public BackupDialog(MainFrame owner, Database db) {
-		super(owner, "Backup Database", true);
+		super(owner, "Backup Database", false);
 		setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
 		
 		this.owner = owner;
@@ -243,7 +248,9 @@ public class BackupDialog extends JDialog {
 	 * Show an error dialog if the backup location was not created properly.
 	 */
 	private void addBackupLocation() {
-		FileDialog dialog = new FileDialog(this, "Select a location...", FileDialog.LOAD);
+		FileDialog dialog = new FileDialog(this, "Select a location...", FileDialog.SAVE);
+		dialog.setDirectory(db.getBackupDirectory().getPath());
+		dialog.setFile("*.sqlite");
 		dialog.setFilenameFilter(filter);
 		dialog.setVisible(true);
 		
@@ -356,16 +363,18 @@ public class BackupDialog extends JDialog {
 		}
 		
 		String message = null;
-		final BRProgress pbar = new BRProgress(this, "Backup", "Executing backup...");
+		final BRProgress pbar = new BRProgress(this, "Backup", "Executing backup...", true);
 		final String target = name;
 		
 		SwingWorker worker = new SwingWorker() {
 			public Object construct() {
-				return ((Database)db).backupDatabase(target);
+				return ((Database)db).backupDatabase(target, pbar);
 			}
 			public void finished() {
 				String val = (String) getValue();
-				if (val.indexOf("successfully") > -1) {
+				if (pbar.cancelled)
+					pbar.setDone("Backup Cancelled", val);
+				else if (val.indexOf("successfully") > -1) {
 					pbar.setDone("Backup Successful", val);
 					refreshLocations();
 				}
@@ -404,12 +413,12 @@ public class BackupDialog extends JDialog {
 			return;
 		
 		String message = null;
-		final BRProgress pbar = new BRProgress(this, "Restore", "Executing restore...");
+		final BRProgress pbar = new BRProgress(this, "Restore", "Executing restore...", false);
 		final String target = name;
 		
 		SwingWorker worker = new SwingWorker() {
 			public Object construct() {
-				return ((Database)db).restoreDatabase(target);
+				return ((Database)db).restoreDatabase(target, pbar);
 			}
 			public void finished() {
 				String val = (String) getValue();
@@ -431,15 +440,25 @@ public class BackupDialog extends JDialog {
 	
 	/**
 	 * ProgressBarWrapper doesn't work for JDialogs, sigh.
+	 * Doubles as the observer of the backup or restore, so it can show how
+	 * many pages are left and pass on a cancel.
 	 * @author shaferia
 	 */
-	class BRProgress extends JDialog {
+	class BRProgress extends JDialog implements Database.BackupObserver {
 		JLabel majorDoneText;
 		JTextArea doneText;
+		JProgressBar prog;
+		JLabel workinglabel;
 		CardLayout layout = new CardLayout();
+		volatile boolean cancelled = false;
 		
-		public BRProgress(Dialog parent, String title, String action) {
-			super(parent, title, true);
+		/**
+		 * @param cancellable whether to offer a cancel button; only backups
+		 * can be stopped, and while one runs the rest of the program carries
+		 * on, so the window isn't modal either
+		 */
+		public BRProgress(Dialog parent, String title, String action, boolean cancellable) {
+			super(parent, title, !cancellable);
 			setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
 			setLayout(layout);
 			Container cont = getContentPane();
@@ -447,13 +466,24 @@ public class BackupDialog extends JDialog {
 			//panel displayed when backup/restore is in process
 			JPanel working = new JPanel(new BorderLayout());
 			working.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-			JProgressBar prog = new JProgressBar(JProgressBar.HORIZONTAL);
+			prog = new JProgressBar(JProgressBar.HORIZONTAL);
 			prog.setPreferredSize(new Dimension(450, 40));
 			prog.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
 			prog.setIndeterminate(true);
 			working.add(prog, BorderLayout.NORTH);
-			JLabel workinglabel = new JLabel(action);
+			workinglabel = new JLabel(action);
 			working.add(workinglabel, BorderLayout.CENTER);
+			if (cancellable) {
+				final JButton cancel = new JButton("Cancel");
+				cancel.addActionListener(new ActionListener() {
+					public void actionPerformed(ActionEvent arg0) {
+						cancelled = true;
+						cancel.setEnabled(false);
+						workinglabel.setText("Cancelling...");
+					}
+				});
+				working.add(cancel, BorderLayout.SOUTH);
+			}
 			cont.add(working, "working");
 			
 			//panel displayed when operation is complete
@@ -486,6 +516,23 @@ public class BackupDialog extends JDialog {
 			});
 		}
 		
+		public boolean progress(final int remainingPages, final int pageCount) {
+			if (!cancelled) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (cancelled)
+							return;
+						prog.setIndeterminate(false);
+						prog.setMaximum(pageCount);
+						prog.setValue(pageCount - remainingPages);
+						workinglabel.setText("Copied " + (pageCount - remainingPages) +
+								" of " + pageCount + " pages");
+					}
+				});
+			}
+			return !cancelled;
+		}
+		
 		/**
 		 * Switch to the done panel of the progress bar display
 		 * @param majortext	the header to display
@@ -543,7 +590,10 @@ public class BackupDialog extends JDialog {
 		public Component getListCellRendererComponent(JList list, Object val, int index, boolean selected, boolean focus) {
 			HashMap<String, String> cval = (HashMap<String, String>) val;
 			label.setText(cval.get("name"));
-			pathLabel.setText(cval.get("path") + " - " + cval.get("size"));
+			String text = cval.get("path") + " - " + cval.get("size");
+			if (cval.get("created") != null)
+				text += " - " + cval.get("created");
+			pathLabel.setText(text);
 			
 			if (selected) {
 				label.setForeground(selectionForeground);
@@ -101,6 +101,10 @@ public class ClusterDialog extends AbstractClusterDialog
 		Cluster.setPower(1.0);
 		Cluster.setSmallestNormalizedPeak(0.0001f);
 		ClusterK.setNumSamples(10);
+		ClusterK.setNumThreads(Runtime.getRuntime().availableProcessors());
+		ClusterK.setTrianglePruning(true);
+		MiniBatchKMeans.setBatchSize(1000);
+		MiniBatchKMeans.setMaxBatches(300);
 		
 		//Create common info panel:
 		JPanel commonInfo = setCommonInfo();
@@ -268,7 +272,31 @@ public class ClusterDialog extends AbstractClusterDialog
 				}
 				else {
 					for (int k : kValues) {
-						if (dMetInt == DistanceMetric.CITY_BLOCK) {
+						if (dMetric.equals(MBKMEANS)) {
+							MiniBatchKMeans miniBatch = new MiniBatchKMeans(
+									cTree.getSelectedCollection().
+									getCollectionID(),db, 
+									k,
+									"", commentField.getText(), initialCentroidsInt, cInfo);
+							miniBatch.addInfo(cInfo);
+							miniBatch.setDistanceMetric(dMetInt);
+							if (initialCentroidsInt == ClusterK.CentroidsApproach.USER_DEFINED_CENTROIDS)
+								miniBatch.setCentroidFilenames(filenames);
+							
+							// The batches come from their own cursors; this
+							// one is only read for the final assignment.
+							if (randomSample) {
+								miniBatch.setCursorType(Cluster.RANDOM_SUBSAMPLE, sampleFraction);
+							}
+							else
+							{
+								miniBatch.setCursorType(Cluster.DISK_BASED);
+							}
+							
+							miniBatch.divide();
+							dispose();
+						}
+						else if (dMetInt == DistanceMetric.CITY_BLOCK) {
 							KMedians kMedians = new KMedians(
 									cTree.getSelectedCollection().
 									getCollectionID(),db, k, "", 
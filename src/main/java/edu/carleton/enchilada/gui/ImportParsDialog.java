@@ -55,6 +55,7 @@ import javax.swing.table.TableColumn;
 
 
 import edu.carleton.enchilada.dataImporters.ATOFMSDataSetImporter;
+import edu.carleton.enchilada.database.ATOFMSBulkInserter;
 import edu.carleton.enchilada.database.Database;
 import edu.carleton.enchilada.errorframework.*;
 import edu.carleton.enchilada.externalswing.SwingWorker;
@@ -67,7 +68,7 @@ import edu.carleton.enchilada.externalswing.SwingWorker;
 
 public class ImportParsDialog extends JDialog implements ActionListener {
 	private JButton okButton, cancelButton, advancedOptionsButton;
-	private JCheckBox parentButton;
+	private JCheckBox parentButton, packButton;
 	private JLabel parentLabel;
 	private JPanel listPane;
 	private ParTableModel pTableModel,advancedTableModel,basicTableModel;
@@ -120,6 +121,11 @@ public class ImportParsDialog extends JDialog implements ActionListener {
 		
 		parentLabel = new JLabel();
 		
+		//an option to also store each particle's peaks packed together,
+		//which makes reading the collections back faster
+		packButton = new JCheckBox("Pack spectra for faster reading.",
+				ATOFMSBulkInserter.getPackSpectra());
+		
 		
 		listPane = getListPane();
 		
@@ -136,6 +142,8 @@ public class ImportParsDialog extends JDialog implements ActionListener {
 		
 		buttonPane.add(parentButton);
 		buttonPane.add(parentLabel);
+		buttonPane.add(Box.createRigidArea(new Dimension(5,0)));
+		buttonPane.add(packButton);
 		buttonPane.add(Box.createHorizontalGlue());
 		buttonPane.add(okButton);
 		buttonPane.add(Box.createRigidArea(new Dimension(5,0)));
@@ -235,6 +243,7 @@ public class ImportParsDialog extends JDialog implements ActionListener {
 				final JDialog thisRef = this;
 				final CardLayout card = (CardLayout)(listPane.getLayout());
 				final Database dbRef = db;
+				ATOFMSBulkInserter.setPackSpectra(packButton.isSelected());
 				//construct everything
 				final ProgressBarWrapper progressBar = 
 					new ProgressBarWrapper(parent, ATOFMSDataSetImporter.title, 100);
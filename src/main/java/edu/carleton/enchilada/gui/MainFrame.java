@@ -124,7 +124,8 @@ public class MainFrame extends JFrame implements ActionListener
 
 	private JMenu backupRestoreMenu;
 	private JMenuItem backupItem;
-	private JMenuItem restoreItem;
+	private JMenuItem exportDBItem;
+	private JMenuItem importDBItem;
 
 	private JMenuItem cutItem;
 	private JMenuItem copyItem;
@@ -133,6 +134,7 @@ public class MainFrame extends JFrame implements ActionListener
 	private JMenuItem dataFormatItem;
 	private JMenuItem recursiveDeleteItem;
 	private JMenuItem renameItem;
+	private JMenuItem packSpectraItem;
 	private CollectionTree collectionPane;
 	private CollectionTree synchronizedPane;
 	private JTextArea descriptionTA;
@@ -158,6 +160,7 @@ public class MainFrame extends JFrame implements ActionListener
 	private JMenuItem visualizeItem;
 	private JMenuItem visualizeHierarchyItem;
 	private JMenuItem outputItem;
+	private JMenuItem queryStatsItem;
 	private JMenuItem aboutItem;
 	private JMenuItem validationItem;
 	private JMenuItem distogramItem;
@@ -420,6 +423,9 @@ public class MainFrame extends JFrame implements ActionListener
 					"Rob Atlas, Tom Bigwood, Michael Murphy\n");
 		}
 		
+		else if (source == queryStatsItem) {
+			new QueryStatsDialog(this);
+		}
 		else if (source == outputItem) {
 			if (outputFrame == null) {
 				outputFrame = new OutputWindow(this);
@@ -680,6 +686,34 @@ public class MainFrame extends JFrame implements ActionListener
 				collectionPane.updateTree(); //Mostly unnecessary, but without it, there is a problem when the name of a collection is changes length.
 			}
 		}
+		else if (source == packSpectraItem)
+		{
+			final Collection[] c = getSelectedCollections();
+			if (c == null) {
+				JOptionPane.showMessageDialog(this, "Please select a collection to pack.",
+						"No collection selected", JOptionPane.WARNING_MESSAGE);
+				return;
+			}
+			final ProgressBarWrapper progressBar = 
+				new ProgressBarWrapper(this, "Packing Spectra",100);
+			progressBar.constructThis();
+			progressBar.setIndeterminate(true);
+			progressBar.setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+			UIWorker worker = new UIWorker() {
+				public Object construct() {
+					// only ATOFMS collections have packed spectra
+					for (int i = 0; i < c.length; ++i)
+						if (c[i].getDatatype().equals("ATOFMS"))
+							db.packSpectra(c[i]);
+					return null;
+				}
+				public void finished() {
+					super.finished();
+					progressBar.disposeThis();
+				}
+			};
+			worker.start();
+		}
 		else if (source == copyItem || source == cutItem)
 		{
 			// @author jtbigwoo changed this to copy/cut multiple collections at once
@@ -937,29 +971,37 @@ public class MainFrame extends JFrame implements ActionListener
 			worker.start();
 		}
 		else if (source == backupItem) {
-			FileDialog dialog = new FileDialog(this, "Select a location for backup file...",
-											   FileDialog.SAVE);
-			dialog.setFile("*.sqlite");
-			dialog.setVisible(true);
-			if (dialog.getFile() == null)
+			new BackupDialog(this, db);
+		}
+		else if (source == exportDBItem || source == importDBItem) {
+			final boolean export = source == exportDBItem;
+			JFileChooser chooser = new JFileChooser();
+			chooser.setDialogTitle(export ? "Select a directory to export the database to..." :
+									"Select a directory holding an exported database...");
+			chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			if (chooser.showDialog(this, export ? "Export" : "Import") != JFileChooser.APPROVE_OPTION)
 				return;
-			String absolutePath = Paths.get(dialog.getDirectory(), dialog.getFile()).toString();
-			db.backupDatabase(absolutePath);
-		}
-		else if (source == restoreItem) {
-			FileDialog dialog = new FileDialog(this, "Select file to restore from...",
-											   FileDialog.LOAD);
-			dialog.setFilenameFilter((dir, name) -> {
-				File f = new File(name);
-				return f.isDirectory() || name.endsWith(".sqlite");
-			});
-
-			dialog.setVisible(true);
-			if (dialog.getFile() == null)
+			final File dir = chooser.getSelectedFile();
+			if (!export && JOptionPane.showConfirmDialog(this,
+					"This will replace everything in the database with the contents of\n" + dir +
+					"\nAre you sure?") != JOptionPane.YES_OPTION)
 				return;
-			String absolutePath = Paths.get(dialog.getDirectory(), dialog.getFile()).toString();
-			db.restoreDatabase(absolutePath);
-			refreshData();
+			final ProgressBarWrapper progressBar =
+				new ProgressBarWrapper(this, export ? "Exporting Database" : "Importing Database", 100);
+			progressBar.constructThis();
+			progressBar.setIndeterminate(true);
+			UIWorker worker = new UIWorker() {
+				public Object construct() {
+					return export ? db.exportDatabase(dir, progressBar) : db.importDatabase(dir, progressBar);
+				}
+				public void finished() {
+					super.finished();
+					progressBar.disposeThis();
+					if (!export)
+						refreshData();
+				}
+			};
+			worker.start();
 		}
 		else if (source == exitItem) {
 			exit();
@@ -1240,12 +1282,16 @@ public class MainFrame extends JFrame implements ActionListener
 //
 
 		backupRestoreMenu = new JMenu("Backup/Restore...");
-		backupItem = new JMenuItem("Backup", KeyEvent.VK_B);
+		backupItem = new JMenuItem("Backups...", KeyEvent.VK_B);
 		backupItem.addActionListener(this);
-		restoreItem = new JMenuItem("Restore", KeyEvent.VK_E);
-		restoreItem.addActionListener(this);
+		exportDBItem = new JMenuItem("Export to Directory...");
+		exportDBItem.addActionListener(this);
+		importDBItem = new JMenuItem("Import from Directory...");
+		importDBItem.addActionListener(this);
 		backupRestoreMenu.add(backupItem);
-		backupRestoreMenu.add(restoreItem);
+		backupRestoreMenu.addSeparator();
+		backupRestoreMenu.add(exportDBItem);
+		backupRestoreMenu.add(importDBItem);
 
 
 		exitItem = new JMenuItem("Exit", KeyEvent.VK_X);
@@ -1337,10 +1383,13 @@ public class MainFrame extends JFrame implements ActionListener
 		recursiveDeleteItem.addActionListener(this);
 		renameItem = new JMenuItem("Rename Collection");
 		renameItem.addActionListener(this);
+		packSpectraItem = new JMenuItem("Pack Spectra");
+		packSpectraItem.addActionListener(this);
 		
 		collectionMenu.add(deleteAdoptItem);
 		collectionMenu.add(recursiveDeleteItem);
 		collectionMenu.add(renameItem);
+		collectionMenu.add(packSpectraItem);
 		
 		// add a datatype menu to the menu bar.
 		JMenu datatypeMenu = new JMenu("Datatype");
@@ -1359,6 +1408,9 @@ public class MainFrame extends JFrame implements ActionListener
 		outputItem = new JMenuItem("Show Output Window", KeyEvent.VK_S);
 		outputItem.addActionListener(this);
 		helpMenu.add(outputItem);
+		queryStatsItem = new JMenuItem("Query Statistics...", KeyEvent.VK_Q);
+		queryStatsItem.addActionListener(this);
+		helpMenu.add(queryStatsItem);
 		helpMenu.addSeparator();
 		aboutItem = new JMenuItem("About Enchilada", 
 						KeyEvent.VK_A);
@@ -1767,7 +1819,8 @@ public class MainFrame extends JFrame implements ActionListener
 		//@author steinbel
 		VersionChecker vc = new VersionChecker(db);
 		try {
-			if (! vc.isDatabaseCurrent()) {
+			// databases that only lack the time indexes are upgraded in place
+			if (! vc.isDatabaseCurrent() && ! vc.upgradeDatabase()) {
 				//new error window, but it should have button options, so the
 				//existing error framework isn't any good.
 				//soooo want new JOptionPane
@@ -1996,6 +2049,10 @@ public class MainFrame extends JFrame implements ActionListener
 					"-" + currHigh + " of " + currCollectionSize + ".");
 			data.clear();
 			db.updateParticleTable(getSelectedCollection(),data,currLow,currHigh);
+			// have the next page ready for the forward button
+			if (currHigh < currCollectionSize)
+				db.prefetchParticleTable(getSelectedCollection(), currHigh + 1,
+						Math.min(currHigh + 1000, currCollectionSize));
 			particlesTable.tableChanged(new TableModelEvent(particlesTable.getModel()));
 			particlesTable.doLayout();
 	
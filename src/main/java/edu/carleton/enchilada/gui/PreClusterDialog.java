@@ -221,7 +221,21 @@ public class PreClusterDialog extends AbstractClusterDialog
 							JOptionPane.ERROR_MESSAGE);
 				}
 				else {
-					if (dMetInt == DistanceMetric.CITY_BLOCK) {
+					if (dMetric.equals(MBKMEANS)) {
+						MiniBatchKMeans miniBatch = new MiniBatchKMeans(
+								cTree.getSelectedCollection().
+								getCollectionID(),db, 
+								k, 
+								"", commentField.getText(), 
+								initialCentroidsInt, cInfo);
+						miniBatch.addInfo(cInfo);
+						miniBatch.setDistanceMetric(dMetInt);
+						miniBatch.setCursorType(Cluster.DISK_BASED);
+						miniBatch.setCreateCentroids(false);
+
+						dividedParticleCollectionId = miniBatch.divide();
+					}
+					else if (dMetInt == DistanceMetric.CITY_BLOCK) {
 						KMedians kMedians = new KMedians(
 								cTree.getSelectedCollection().
 								getCollectionID(),db, k, "", 
@@ -0,0 +1,222 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's QueryStatsDialog class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.gui;
+
+import java.awt.BorderLayout;
+import java.awt.FileDialog;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.List;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+
+import edu.carleton.enchilada.database.QueryStats;
+
+/**
+ * Shows what QueryStats has recorded about the statements run against the
+ * database: a table of statement shapes, the ones that have taken longest
+ * altogether at the top, and the recent slow statements with their query
+ * plans.  Nothing updates by itself; Refresh takes a new snapshot.  The
+ * statistics are only gathered while the Record box is ticked.
+ */
+public class QueryStatsDialog extends JDialog implements ActionListener {
+	private static final long serialVersionUID = 1L;
+	private static final String[] COLUMNS =
+		{"Statement", "Count", "Total ms", "Mean ms", "p50 ms", "p99 ms", "Max ms", "Rows"};
+
+	private final JCheckBox enabledBox;
+	private final JButton refreshButton, resetButton, saveButton, closeButton;
+	private final JTextField thresholdField;
+	private final JTextArea slowText;
+	private final ShapeTableModel shapeModel = new ShapeTableModel();
+
+	public QueryStatsDialog(JFrame owner) {
+		super(owner, "Query Statistics", false);
+		setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+
+		JTable shapeTable = new JTable(shapeModel);
+		shapeTable.getColumnModel().getColumn(0).setPreferredWidth(500);
+		shapeTable.setAutoCreateRowSorter(true);
+
+		slowText = new JTextArea();
+		slowText.setEditable(false);
+		slowText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, slowText.getFont().getSize()));
+
+		JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+				new JScrollPane(shapeTable), new JScrollPane(slowText));
+		split.setResizeWeight(0.6);
+
+		JPanel buttons = new JPanel();
+		enabledBox = new JCheckBox("Record", QueryStats.isEnabled());
+		enabledBox.addActionListener(this);
+		buttons.add(enabledBox);
+		buttons.add(new JLabel("Log statements slower than (ms):"));
+		thresholdField = new JTextField(Long.toString(QueryStats.getSlowMillis()), 6);
+		thresholdField.addActionListener(this);
+		buttons.add(thresholdField);
+		refreshButton = new JButton("Refresh");
+		resetButton = new JButton("Reset");
+		saveButton = new JButton("Save to File...");
+		closeButton = new JButton("Close");
+		for (JButton b : new JButton[] {refreshButton, resetButton, saveButton, closeButton}) {
+			b.addActionListener(this);
+			buttons.add(b);
+		}
+
+		JPanel all = new JPanel(new BorderLayout());
+		all.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+		all.add(split, BorderLayout.CENTER);
+		all.add(buttons, BorderLayout.SOUTH);
+		add(all);
+
+		refresh();
+		setSize(1000, 600);
+		setLocationRelativeTo(owner);
+		setVisible(true);
+	}
+
+	private void refresh() {
+		shapeModel.setShapes(QueryStats.getShapes());
+		StringBuilder text = new StringBuilder();
+		DateFormat format = DateFormat.getTimeInstance();
+		for (QueryStats.SlowStatement s : QueryStats.getSlowStatements()) {
+			text.append(format.format(s.getWhen())).append(String.format("  %.1f ms, %d rows%n",
+					s.getMillis(), s.getRows()));
+			text.append(s.getSQL()).append('\n');
+			text.append(s.getPlan().replaceAll("(?m)^", "    ")).append("\n\n");
+		}
+		slowText.setText(text.toString());
+		slowText.setCaretPosition(0);
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		Object source = e.getSource();
+		if (source == enabledBox) {
+			QueryStats.setEnabled(enabledBox.isSelected());
+		} else if (source == thresholdField) {
+			try {
+				QueryStats.setSlowMillis(Long.parseLong(thresholdField.getText().trim()));
+			} catch (NumberFormatException ex) {
+				thresholdField.setText(Long.toString(QueryStats.getSlowMillis()));
+			}
+		} else if (source == refreshButton) {
+			refresh();
+		} else if (source == resetButton) {
+			QueryStats.reset();
+			refresh();
+		} else if (source == saveButton) {
+			FileDialog dialog = new FileDialog(this, "Save query statistics to...", FileDialog.SAVE);
+			dialog.setFile("querystats.txt");
+			dialog.setVisible(true);
+			if (dialog.getFile() == null)
+				return;
+			File file = new File(dialog.getDirectory(), dialog.getFile());
+			try {
+				QueryStats.dump(file);
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(this, "Could not write " + file + ": " + ex.getMessage(),
+						"Error", JOptionPane.ERROR_MESSAGE);
+			}
+		} else if (source == closeButton) {
+			dispose();
+		}
+	}
+
+	private static class ShapeTableModel extends AbstractTableModel {
+		private static final long serialVersionUID = 1L;
+		private List<QueryStats.Shape> shapes = new java.util.ArrayList<QueryStats.Shape>();
+
+		void setShapes(List<QueryStats.Shape> shapes) {
+			this.shapes = shapes;
+			fireTableDataChanged();
+		}
+
+		public int getRowCount() {
+			return shapes.size();
+		}
+
+		public int getColumnCount() {
+			return COLUMNS.length;
+		}
+
+		public String getColumnName(int column) {
+			return COLUMNS[column];
+		}
+
+		public Class<?> getColumnClass(int column) {
+			switch (column) {
+				case 0:
+					return String.class;
+				case 1:
+				case 7:
+					return Long.class;
+				default:
+					return Double.class;
+			}
+		}
+
+		public Object getValueAt(int row, int column) {
+			QueryStats.Shape s = shapes.get(row);
+			switch (column) {
+				case 0:
+					return s.getSQL();
+				case 1:
+					return s.getCount();
+				case 2:
+					return Math.round(s.getTotalMillis() * 10) / 10.0;
+				case 3:
+					return Math.round(s.getMeanMillis() * 100) / 100.0;
+				case 4:
+					return Math.round(s.getPercentileMillis(0.5) * 100) / 100.0;
+				case 5:
+					return Math.round(s.getPercentileMillis(0.99) * 100) / 100.0;
+				case 6:
+					return Math.round(s.getMaxMillis() * 100) / 100.0;
+				default:
+					return s.getRows();
+			}
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's ATOFMSParticleTest class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.ATOFMS;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Checks the peak finder against the one it replaced, which is kept here
+ * as the reference: it made an ATOFMSPeak for every candidate and then
+ * removed the ones that failed the area filters.
+ */
+public class ATOFMSParticleTest extends TestCase {
+	private static final PeakParams[] PARAMS = {
+		new PeakParams(30, 30, 0.01f, .50f),
+		new PeakParams(0, 0, 0f, .50f),
+		new PeakParams(-20, -1000, -1f, .50f),
+		new PeakParams(5, 100, 0.1f, .50f),
+		new PeakParams(0, 30, 0.2f, .50f),
+	};
+
+	protected void setUp() throws IOException {
+		ATOFMSParticle.currCalInfo = new CalInfo(
+				Paths.get("testRow", "b", "cal.cal").toString(), false);
+	}
+
+	/**
+	 * The old getPosPeaks/getNegPeaks, run on one spectrum.
+	 */
+	private static ArrayList<ATOFMSPeak> referencePeaks(int[] spectrum, int baseline,
+			boolean positive) {
+		PeakParams params = ATOFMSParticle.currPeakParams;
+		CalInfo cal = ATOFMSParticle.currCalInfo;
+		ArrayList<ATOFMSPeak> peaks = new ArrayList<ATOFMSPeak>();
+		int i = 0, startLoc, endLoc = 0, totalArea = 0;
+		boolean foundPeak = false;
+		while (i < spectrum.length) {
+			startLoc = i;
+			int peakHeight = 0, peakArea = 0;
+			while (i < spectrum.length && spectrum[i] > baseline + params.minHeight) {
+				foundPeak = true;
+				endLoc = i;
+				int temp = spectrum[i] - baseline;
+				if (temp > peakHeight)
+					peakHeight = temp;
+				i++;
+			}
+			if (foundPeak) {
+				int centerIndex = startLoc + (endLoc - (startLoc - 1)) / 2;
+				for (int j = startLoc; j <= endLoc; j++)
+					peakArea = peakArea + spectrum[j];
+				peakArea = peakArea - baseline * (endLoc - startLoc + 1);
+				totalArea += peakArea;
+				double root = positive
+					? cal.posSlope * centerIndex + cal.posIntercept
+					: cal.negSlope * centerIndex + cal.negIntercept;
+				peaks.add(new ATOFMSPeak(peakHeight, peakArea, positive ? root * root : -(root * root)));
+				foundPeak = false;
+			} else
+				i++;
+		}
+		int k = 0;
+		while (k < peaks.size()) {
+			ATOFMSPeak peak = peaks.get(k);
+			peak.relArea = (float) peak.area / totalArea;
+			if (peak.relArea <= params.minRelArea || peak.area <= params.minArea)
+				peaks.remove(k);
+			else
+				k++;
+		}
+		return peaks;
+	}
+
+	private static int baseline(int[] spectrum) {
+		int n = spectrum.length;
+		int sum = 0;
+		for (int i = n - n / 10; i < n; i++)
+			sum += spectrum[i];
+		return sum / (n / 10);
+	}
+
+	private static void assertSamePeaks(String what, int[] pos, int[] neg) {
+		for (PeakParams params : PARAMS) {
+			ATOFMSParticle.currPeakParams = params;
+			ArrayList<ATOFMSPeak> expected = referencePeaks(pos, baseline(pos), true);
+			expected.addAll(referencePeaks(neg, baseline(neg), false));
+			ArrayList<Peak> actual =
+				new ATOFMSParticle(what, new Date(), 1, 1, 0, pos, neg).getPeakList();
+			assertEquals(what, expected.size(), actual.size());
+			for (int k = 0; k < expected.size(); k++) {
+				ATOFMSPeak e = expected.get(k);
+				ATOFMSPeak a = (ATOFMSPeak) actual.get(k);
+				assertEquals(what, e.height, a.height);
+				assertEquals(what, e.area, a.area);
+				assertEquals(what, Float.floatToIntBits(e.relArea), Float.floatToIntBits(a.relArea));
+				assertEquals(what, Double.doubleToLongBits(e.massToCharge),
+						Double.doubleToLongBits(a.massToCharge));
+				assertEquals(what, Double.doubleToLongBits(e.value), Double.doubleToLongBits(a.value));
+			}
+		}
+	}
+
+	public void testPeaksMatchReferenceOnTestData() throws IOException {
+		File[] files = Paths.get("testRow", "b").toFile().listFiles();
+		Arrays.sort(files);
+		SpectrumReader reader = new SpectrumReader();
+		int read = 0;
+		for (File f : files) {
+			if (reader.read(f.getPath())) {
+				assertSamePeaks(f.getName(), reader.getPosSpectrum().clone(),
+						reader.getNegSpectrum().clone());
+				read++;
+			}
+		}
+		assertEquals(10, read);
+	}
+
+	public void testFiltersAreStrict() {
+		// peaks with areas 30, 20 and 50: the first is exactly minArea and
+		// the second exactly minRelArea of the total, so only the last stays
+		int[] spectrum = new int[100];
+		spectrum[10] = spectrum[11] = 15;
+		spectrum[20] = 20;
+		spectrum[30] = spectrum[31] = 25;
+		assertSamePeaks("boundaries", spectrum, spectrum.clone());
+		ATOFMSParticle.currPeakParams = new PeakParams(0, 30, 0.2f, .50f);
+		ArrayList<Peak> peaks =
+			new ATOFMSParticle("boundaries", new Date(), 1, 1, 0, spectrum, spectrum.clone()).getPeakList();
+		assertEquals(2, peaks.size());
+		assertEquals(50, ((ATOFMSPeak) peaks.get(0)).area);
+		assertEquals(0.5f, ((ATOFMSPeak) peaks.get(0)).relArea);
+		assertTrue(peaks.get(1).massToCharge < 0);
+	}
+
+	public void testPeaksMatchReferenceOnNoise() {
+		Random random = new Random(20);
+		for (int n = 0; n < 20; n++) {
+			int[] pos = new int[15000];
+			int[] neg = new int[15000];
+			for (int i = 0; i < pos.length; i++) {
+				pos[i] = random.nextInt(n < 10 ? 60 : 4000);
+				neg[i] = random.nextInt(60) + (i % 97 == 0 ? 500 : 0);
+			}
+			assertSamePeaks("noise " + n, pos, neg);
+		}
+	}
+}
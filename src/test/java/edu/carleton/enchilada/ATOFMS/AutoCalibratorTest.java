@@ -0,0 +1,170 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's AutoCalibratorTest class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.ATOFMS;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class AutoCalibratorTest extends TestCase {
+	private static final String[] FILES = {
+		"b-040804153913-00001.amz",
+		"b-040804154107-00005.amz",
+		"b-040804154325-00010.amz"
+	};
+	private static final float[] DIGIT_RATES = { 5.0E8f, 2.5E8f };
+
+	/**
+	 * What the static, single-cache calibrator gave for FILES, indexed by
+	 * digit rate, then file, then charge.
+	 */
+	private static final double[][][][] EXPECTED = {
+		{
+			{ { 0.001402745300830711, -0.24985991317000522 },
+			  { 0.0013069755413362449, -0.06763259491309359 } },
+			{ { 0.0014007327537706956, -0.24776082658640952 },
+			  { 0.0013075590125600557, -0.06951195572498836 } },
+			{ { 0.0014000631874448014, -0.25126265847083573 },
+			  { 0.0013000142867885152, -0.0673106368902614 } }
+		},
+		{
+			{ { 7.078134819078116E-4, -0.12597967217315276 },
+			  { 6.494306403845953E-4, -0.03565168586315082 } },
+			{ { 7.064477057729195E-4, -0.12692786225480113 },
+			  { 6.497187640049966E-4, -0.0336068725291625 } },
+			{ { 7.064477057729195E-4, -0.12692786225480113 },
+			  { 6.457081543506447E-4, -0.03365901045466835 } }
+		}
+	};
+
+	private CalInfo calInfo;
+	private int[][][] spectra;
+
+	protected void setUp() throws IOException {
+		calInfo = new CalInfo(Paths.get("testRow", "b", "cal.cal").toString(), true);
+		ATOFMSParticle.currCalInfo = calInfo;
+		ATOFMSParticle.currPeakParams = new PeakParams(30, 30, 0.01f, .50f);
+		SpectrumReader reader = new SpectrumReader();
+		spectra = new int[FILES.length][][];
+		for (int f = 0; f < FILES.length; f++) {
+			assertTrue(reader.read(Paths.get("testRow", "b", FILES[f]).toString()));
+			spectra[f] = new int[][] {
+				reader.getPosSpectrum().clone(), reader.getNegSpectrum().clone() };
+		}
+	}
+
+	private void assertExpected(double[] calibration, int rate, int file, int charge) {
+		assertNotNull(calibration);
+		assertTrue(FILES[file] + " " + DIGIT_RATES[rate] + " " + charge,
+				Arrays.equals(EXPECTED[rate][file][charge], calibration));
+	}
+
+	public void testMatchesOldCalibrations() {
+		AutoCalibrator calibrator = new AutoCalibrator(calInfo);
+		for (int r = 0; r < DIGIT_RATES.length; r++)
+			for (int f = 0; f < FILES.length; f++)
+				for (int c = AutoCalibrator.POS; c <= AutoCalibrator.NEG; c++)
+					assertExpected(calibrator.autoCalibrate(DIGIT_RATES[r], c, spectra[f][c]), r, f, c);
+	}
+
+	public void testInterleavedDigitRates() {
+		AutoCalibrator calibrator = calInfo.getAutoCalibrator();
+		assertSame(calibrator, calInfo.getAutoCalibrator());
+		for (int f = 0; f < FILES.length; f++)
+			for (int r = 0; r < DIGIT_RATES.length; r++)
+				for (int c = AutoCalibrator.NEG; c >= AutoCalibrator.POS; c--) {
+					double[] calibration = calibrator.autoCalibrate(DIGIT_RATES[r], c, spectra[f][c]);
+					assertExpected(calibration, r, f, c);
+					// callers get their own copy of the cached calibration
+					calibration[0] = 0;
+				}
+		assertExpected(calibrator.autoCalibrate(DIGIT_RATES[0], 0, spectra[0][0]), 0, 0, 0);
+	}
+
+	public void testCalibratorsDontShareCalibrations() throws IOException {
+		AutoCalibrator calibrator = new AutoCalibrator(calInfo);
+		double[] before = calibrator.autoCalibrate(DIGIT_RATES[0], 0, spectra[0][0]);
+		CalInfo other = new CalInfo();
+		other.posSlope = calInfo.posSlope * 1.01;
+		other.posIntercept = calInfo.posIntercept;
+		double[] changed = new AutoCalibrator(other).autoCalibrate(DIGIT_RATES[0], 0, spectra[0][0]);
+		assertFalse(Arrays.equals(before, changed));
+		assertTrue(Arrays.equals(before,
+				calibrator.autoCalibrate(DIGIT_RATES[0], 0, spectra[0][0])));
+	}
+
+	public void testConcurrentCalibration() throws Exception {
+		final AutoCalibrator calibrator = new AutoCalibrator(calInfo);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; t++) {
+				final int offset = t;
+				results.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						for (int i = 0; i < 60; i++) {
+							int n = i + offset;
+							int r = n % DIGIT_RATES.length;
+							int f = (n / 2) % FILES.length;
+							int c = (n / 6) % 2;
+							double[] calibration =
+								calibrator.autoCalibrate(DIGIT_RATES[r], c, spectra[f][c]);
+							if (! Arrays.equals(EXPECTED[r][f][c], calibration))
+								return false;
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results)
+				assertTrue(result.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
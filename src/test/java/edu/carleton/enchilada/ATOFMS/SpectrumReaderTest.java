@@ -0,0 +1,137 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's SpectrumReaderTest class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.ATOFMS;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.zip.ZipFile;
+
+public class SpectrumReaderTest extends TestCase {
+	private static final String AMZ =
+		Paths.get("testRow", "b", "b-040804153913-00001.amz").toString();
+
+	private File ams;
+
+	protected void setUp() {
+		ATOFMSParticle.currCalInfo = new CalInfo();
+		ATOFMSParticle.currPeakParams = new PeakParams(30, 30, 0.01f, .50f);
+	}
+
+	protected void tearDown() {
+		if (ams != null)
+			ams.delete();
+	}
+
+	/**
+	 * Writes the spectrum inside AMZ out as an .ams, followed by padding
+	 * bytes that the reader should never look at.
+	 */
+	private File unzipped(int padding) throws IOException {
+		ams = File.createTempFile("spectrum", ".ams");
+		try (ZipFile zip = new ZipFile(AMZ);
+			 InputStream in = zip.getInputStream(zip.entries().nextElement());
+			 FileOutputStream out = new FileOutputStream(ams)) {
+			in.transferTo(out);
+			out.write(new byte[padding]);
+		}
+		return ams;
+	}
+
+	public void testZippedAndUnzippedAgree() throws IOException {
+		SpectrumReader reader = new SpectrumReader();
+		assertTrue(reader.read(AMZ));
+		int version = reader.getVersion();
+		int scatDelay = reader.getScatDelay();
+		float laserPower = reader.getLaserPower();
+		int[] pos = reader.getPosSpectrum().clone();
+		int[] neg = reader.getNegSpectrum().clone();
+		assertEquals(30000, pos.length);
+		assertEquals(3129, scatDelay);
+
+		// small enough to read, then big enough to be mapped
+		for (int padding : new int[] {0, SpectrumReader.MAP_BYTES}) {
+			File f = unzipped(padding);
+			assertEquals(padding > 0, f.length() > SpectrumReader.MAP_BYTES);
+			assertTrue(reader.read(f.getPath()));
+			assertEquals(version, reader.getVersion());
+			assertEquals(scatDelay, reader.getScatDelay());
+			assertEquals(laserPower, reader.getLaserPower());
+			assertTrue(Arrays.equals(pos, reader.getPosSpectrum()));
+			assertTrue(Arrays.equals(neg, reader.getNegSpectrum()));
+			f.delete();
+		}
+	}
+
+	public void testBuffersReused() throws IOException {
+		SpectrumReader reader = SpectrumReader.forThread();
+		assertTrue(reader.read(AMZ));
+		int[] pos = reader.getPosSpectrum();
+		assertTrue(reader.read(Paths.get("testRow", "b", "b-040804153917-00002.amz").toString()));
+		assertSame(pos, reader.getPosSpectrum());
+		assertEquals(2763, reader.getScatDelay());
+
+		// particles from ReadSpec keep their own copy
+		ATOFMSParticle p = new ReadSpec(AMZ, new Date()).getParticle();
+		assertNotSame(reader.getPosSpectrum(), p.posSpectrum);
+		assertTrue(Arrays.equals(reader.getPosSpectrum(), p.posSpectrum));
+		assertEquals(19, p.getPeakList().size());
+
+		assertFalse(reader.read(Paths.get("testRow", "b", "b.par").toString()));
+	}
+
+	public void testNotAZipFile() throws IOException {
+		ams = File.createTempFile("spectrum", ".amz");
+		Files.write(ams.toPath(), new byte[100]);
+		try {
+			new SpectrumReader().read(ams.getPath());
+			fail();
+		} catch (java.util.zip.ZipException e) {
+			// expected
+		}
+	}
+}
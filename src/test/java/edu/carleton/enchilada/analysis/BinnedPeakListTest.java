@@ -82,6 +82,123 @@ public class BinnedPeakListTest extends TestCase {
 		assertEquals("failed at location 3, value: " + bpl.getAreaAt(3), bpl.getAreaAt(3), 6f);
 	}
 	
+	/*
+	 * Array-backed and TreeMap-backed lists should hold the same peaks
+	 * and give exactly the same distances.
+	 */
+	public void testArrayBacking() {
+		java.util.Random rnd = new java.util.Random(1234);
+		BinnedPeakList[] arrays = new BinnedPeakList[2];
+		BinnedPeakList[] trees = new BinnedPeakList[2];
+		for (int n = 0; n < 2; n++) {
+			arrays[n] = new BinnedPeakList(new Normalizer());
+			trees[n] = BinnedPeakList.treeBacked(new Normalizer());
+			for (int i = 0; i < 50; i++) {
+				// out of order, with duplicate locations
+				float location = rnd.nextInt(200) - 100 + rnd.nextFloat();
+				float area = rnd.nextFloat();
+				arrays[n].add(location, area);
+				trees[n].add(location, area);
+			}
+			assertTrue(arrays[n].getPeaks() instanceof PeakArrayMap);
+			assertFalse(trees[n].getPeaks() instanceof PeakArrayMap);
+			assertEquals(trees[n].getPeaks(), arrays[n].getPeaks());
+			assertEquals(trees[n].getPeaks().firstKey(), arrays[n].getPeaks().firstKey());
+			assertEquals(trees[n].getPeaks().lastKey(), arrays[n].getPeaks().lastKey());
+			arrays[n].normalize(EUCLIDEAN_SQUARED);
+			trees[n].normalize(EUCLIDEAN_SQUARED);
+			assertTrue(arrays[n].comparePeakLists(trees[n]));
+		}
+		
+		float[] dense = new float[401];
+		for (BinnedPeak p : trees[1])
+			dense[p.getKey() + 200] = p.getValue();
+		
+		for (DistanceMetric metric : DistanceMetric.values()) {
+			assertEquals(trees[0].getMagnitude(metric), arrays[0].getMagnitude(metric));
+			assertEquals(trees[0].getDistance(trees[1], metric),
+					arrays[0].getDistance(arrays[1], metric));
+			float mag = trees[1].getMagnitude(metric);
+			assertEquals(trees[0].getDistance(trees[1], mag, metric),
+					arrays[0].getDistance(arrays[1], mag, metric));
+			assertEquals(trees[0].getDistance(dense, mag, metric, 200),
+					arrays[0].getDistance(dense, mag, metric, 200));
+		}
+		
+		arrays[0].addWeightedParticle3(arrays[1], 2);
+		trees[0].addWeightedParticle3(trees[1], 2);
+		assertEquals(trees[0].getPeaks(), arrays[0].getPeaks());
+		
+		BinnedPeakList copy = arrays[0].copyOf();
+		copy.multiply(2f);
+		assertFalse(copy.comparePeakLists(arrays[0]));
+		
+		java.util.Iterator<java.util.Map.Entry<Integer, Float>> iter =
+			arrays[0].getPeaks().entrySet().iterator();
+		int size = arrays[0].length();
+		iter.next();
+		iter.remove();
+		assertEquals(size - 1, arrays[0].length());
+	}
+	
+	/*
+	 * The sub-map views of a PeakArrayMap should behave like TreeMap's, and
+	 * write through to the map they came from.
+	 */
+	public void testSubMaps() {
+		PeakArrayMap array = new PeakArrayMap();
+		java.util.TreeMap<Integer, Float> tree = new java.util.TreeMap<Integer, Float>();
+		for (int i = -10; i <= 10; i += 2) {
+			array.put(i, (float) i);
+			tree.put(i, (float) i);
+		}
+		
+		assertEquals(tree.headMap(0), array.headMap(0));
+		assertEquals(tree.tailMap(3), array.tailMap(3));
+		assertEquals(tree.subMap(-5, 5), array.subMap(-5, 5));
+		assertEquals(tree.subMap(-5, 5).headMap(2), array.subMap(-5, 5).headMap(2));
+		assertEquals(tree.subMap(-5, 5).tailMap(-2), array.subMap(-5, 5).tailMap(-2));
+		assertEquals(0, array.subMap(3, 4).size());
+		assertEquals(Integer.valueOf(-4), array.subMap(-5, 5).firstKey());
+		assertEquals(Integer.valueOf(4), array.subMap(-5, 5).lastKey());
+		
+		java.util.SortedMap<Integer, Float> sub = array.subMap(-5, 5);
+		assertNull(sub.get(6));
+		assertFalse(sub.containsKey(-6));
+		sub.put(1, 1f);
+		assertEquals(Float.valueOf(1f), array.get(1));
+		array.put(3, 3f);
+		array.put(7, 7f);
+		assertEquals(7, sub.size());
+		assertEquals(Float.valueOf(3f), sub.get(3));
+		
+		sub.entrySet().iterator().next().setValue(100f);
+		assertEquals(Float.valueOf(100f), array.get(-4));
+		
+		sub.clear();
+		assertEquals(0, sub.size());
+		assertEquals(7, array.size());
+		assertEquals(Integer.valueOf(-6), array.headMap(0).lastKey());
+		assertEquals(Integer.valueOf(6), array.tailMap(0).firstKey());
+		
+		try {
+			sub.put(5, 5f);
+			fail("put outside the view's range");
+		} catch (IllegalArgumentException e) {}
+		try {
+			array.subMap(5, -5);
+			fail("fromKey > toKey");
+		} catch (IllegalArgumentException e) {}
+		try {
+			array.headMap(0).tailMap(2);
+			fail("fromKey out of range");
+		} catch (IllegalArgumentException e) {}
+		try {
+			array.subMap(-1, 1).firstKey();
+			fail("empty view has no first key");
+		} catch (java.util.NoSuchElementException e) {}
+	}
+	
 	/**
 	 * @author shaferia
 	 */
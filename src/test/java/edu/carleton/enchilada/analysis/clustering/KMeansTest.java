@@ -241,6 +241,47 @@ public class KMeansTest extends TestCase {
 		*/
     }
     
+    /**
+     * Assigning particles on several threads, and skipping distances with
+     * the triangle inequality, should each give exactly the same clusters
+     * as computing every distance on one thread.
+     */
+    public void testKMeansSameClusters() throws Exception {
+    	int oldThreads = ClusterK.getNumThreads();
+    	boolean oldPruning = ClusterK.getTrianglePruning();
+    	try {
+    		int expectedID = clusterWith(1, false);
+    		assertSameClusters(expectedID, clusterWith(4, false));
+    		assertSameClusters(expectedID, clusterWith(1, true));
+    		assertSameClusters(expectedID, clusterWith(4, true));
+    	} finally {
+    		ClusterK.setNumThreads(oldThreads);
+    		ClusterK.setTrianglePruning(oldPruning);
+    	}
+    }
+    
+    private int clusterWith(int threads, boolean pruning) throws Exception {
+    	ClusterK.setNumThreads(threads);
+    	ClusterK.setTrianglePruning(pruning);
+    	setupStandardKmeans(ClusterK.CentroidsApproach.FARTHEST_DIST_CENTROIDS);
+    	kmeans.setDistanceMetric(DistanceMetric.EUCLIDEAN_SQUARED);
+    	return kmeans.cluster(false);
+    }
+    
+    private void assertSameClusters(int expectedID, int actualID) {
+    	assertFalse(expectedID == actualID);
+    	assertEquals(db.getCollection(expectedID).getDescription(),
+    			db.getCollection(actualID).getDescription());
+    	ArrayList<Integer> expectedSubs =
+    		db.getCollection(expectedID).getSubCollectionIDs();
+    	ArrayList<Integer> actualSubs =
+    		db.getCollection(actualID).getSubCollectionIDs();
+    	assertEquals(expectedSubs.size(), actualSubs.size());
+    	for (int i = 0; i < expectedSubs.size(); i++)
+    		assertEquals(db.getCollection(expectedSubs.get(i)).getParticleIDs(),
+    				db.getCollection(actualSubs.get(i)).getParticleIDs());
+    }
+    
     /**
      * This one is set up as a test that breaks if you don't normalize the
      * positive and negative sections of the original peak lists separately
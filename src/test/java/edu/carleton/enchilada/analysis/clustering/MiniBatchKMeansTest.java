@@ -0,0 +1,145 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's KMeans unit test.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.analysis.clustering;
+
+import java.util.ArrayList;
+
+import edu.carleton.enchilada.analysis.CollectionDivider;
+import edu.carleton.enchilada.analysis.DistanceMetric;
+import edu.carleton.enchilada.collection.Collection;
+import edu.carleton.enchilada.database.CreateTestDatabase;
+import edu.carleton.enchilada.database.Database;
+import junit.framework.TestCase;
+
+public class MiniBatchKMeansTest extends TestCase {
+
+    private MiniBatchKMeans miniBatch;
+    private Database db;
+    String dbName = "TestDB";
+    
+    protected void setUp() throws Exception {
+        super.setUp();
+        
+		new CreateTestDatabase();
+		db = Database.getDatabase("TestDB");
+		db.openConnection();
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+		db.closeConnection();
+		System.runFinalization();
+		System.gc();
+	    Database.dropDatabase(dbName);
+	    ClusterK.setRandomSeed(ClusterK.DEFAULT_RANDOM);
+	    MiniBatchKMeans.setBatchSize(1000);
+	    MiniBatchKMeans.setMaxBatches(300);
+    }
+
+    public void testName() {
+    	setupStandardMiniBatch(ClusterK.CentroidsApproach.FARTHEST_DIST_CENTROIDS);
+    	assertEquals("MiniBatchKMeans,K=2,Test comment", miniBatch.parameterString);
+    }
+    
+    /**
+     * With batches of two particles, the test collection should still end
+     * up in the same two clusters that KMeans finds.
+     */
+    public void testMiniBatchKMeans() throws Exception {
+    	MiniBatchKMeans.setBatchSize(2);
+    	setupStandardMiniBatch(ClusterK.CentroidsApproach.FARTHEST_DIST_CENTROIDS);
+    	int collectionID = miniBatch.cluster(false);
+    	
+    	assertEquals(7, collectionID);
+    	Collection cluster1 = db.getCollection(8);
+    	Collection cluster2 = db.getCollection(9);
+    	assertEquals(7, cluster1.getParentCollection().getCollectionID());
+    	ArrayList<Integer> particles = cluster1.getParticleIDs();
+    	assertEquals(3, particles.size());
+    	assertEquals(2, particles.get(0).intValue());
+    	assertEquals(3, particles.get(1).intValue());
+    	assertEquals(5, particles.get(2).intValue());
+    	particles = cluster2.getParticleIDs();
+    	assertEquals(1, particles.size());
+    	assertEquals(4, particles.get(0).intValue());
+    }
+    
+    /**
+     * The description reports the distance after every mini-batch, followed
+     * by the distance on the final assignment.
+     */
+    public void testConvergenceCurve() throws Exception {
+    	MiniBatchKMeans.setBatchSize(2);
+    	MiniBatchKMeans.setMaxBatches(5);
+    	setupStandardMiniBatch(ClusterK.CentroidsApproach.FARTHEST_DIST_CENTROIDS);
+    	int collectionID = miniBatch.cluster(false);
+    	
+    	String description = db.getCollection(collectionID).getDescription();
+    	assertTrue(description.contains("Mini-batch size = 2"));
+    	String[] lines = description.split("\n");
+    	int batches = -1;
+    	int curveStart = -1;
+    	for (int i = 0; i < lines.length; i++) {
+    		if (lines[i].startsWith("Total number of mini-batches = "))
+    			batches = Integer.parseInt(lines[i].substring(31).trim());
+    		if (lines[i].startsWith("Average distance of mini-batch points"))
+    			curveStart = i + 1;
+    	}
+    	assertTrue(batches > 0 && batches <= 5);
+    	assertTrue(curveStart > 0);
+    	for (int i = curveStart; i < curveStart + batches; i++)
+    		assertTrue(Double.parseDouble(lines[i].trim()) >= 0);
+    	assertTrue(lines[curveStart + batches].startsWith(
+    			"Average distance of all points from their centers on final assignment:"));
+    }
+
+    /**
+     * Sets up a MiniBatchKMeans object with coll id = 2, k = 2, name = "",
+     * comment = "Test comment", Euclidean squared distance.
+     */
+    private void setupStandardMiniBatch(ClusterK.CentroidsApproach clustering) {
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("ATOFMSAtomInfoSparse.PeakArea");
+    	ClusterInformation cInfo = new ClusterInformation(list, "ATOFMSAtomInfoSparse.PeakLocation", null, false, true);
+    	miniBatch = new MiniBatchKMeans(2,db,2,"","Test comment",clustering, cInfo);
+    	miniBatch.setDistanceMetric(DistanceMetric.EUCLIDEAN_SQUARED);
+    	miniBatch.setCursorType(CollectionDivider.STORE_ON_FIRST_PASS);
+    }
+}
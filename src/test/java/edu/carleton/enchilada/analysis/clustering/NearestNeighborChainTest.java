@@ -0,0 +1,161 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's NearestNeighborChain unit test.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.analysis.clustering;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the nearest-neighbor chain against the straightforward approach of
+ * always merging the closest pair.
+ */
+public class NearestNeighborChainTest extends TestCase {
+
+	public void testMatchesGreedyWard() {
+		Random rnd = new Random(2718);
+		int n = 60;
+		float[][] points = new float[n][5];
+		for (int i = 0; i < n; i++)
+			for (int d = 0; d < 5; d++)
+				points[i][d] = rnd.nextFloat();
+		
+		NearestNeighborChain chain = new NearestNeighborChain(n);
+		float[][] matrix = new float[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < i; j++) {
+				float distance = 0;
+				for (int d = 0; d < 5; d++)
+					distance += (points[i][d] - points[j][d]) * (points[i][d] - points[j][d]);
+				chain.setDistance(i, j, distance);
+				matrix[i][j] = matrix[j][i] = distance;
+			}
+		}
+		assertEquals(matrix[3][7], chain.getDistance(7, 3));
+		
+		ArrayList<NearestNeighborChain.Merge> merges = chain.getMerges();
+		assertEquals(n - 1, merges.size());
+		
+		// greedy Ward's, one merge at a time
+		int[] label = new int[n];
+		int[] chainLabel = new int[n];
+		int[] size = new int[n];
+		boolean[] active = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			label[i] = chainLabel[i] = i;
+			size[i] = 1;
+			active[i] = true;
+		}
+		for (NearestNeighborChain.Merge merge : merges) {
+			int a = -1, b = -1;
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++)
+					if (active[i] && active[j] && (a == -1 || matrix[i][j] < matrix[a][b])) {
+						a = i;
+						b = j;
+					}
+			assertEquals(matrix[a][b], merge.getDistance(), 1e-5f);
+			for (int q = 0; q < n; q++) {
+				if (!active[q] || q == a || q == b)
+					continue;
+				int total = size[a] + size[b] + size[q];
+				matrix[a][q] = matrix[q][a] = ((size[a] + size[q]) * matrix[a][q]) / total +
+					((size[b] + size[q]) * matrix[b][q]) / total -
+					(size[q] * matrix[a][b]) / total;
+			}
+			size[a] += size[b];
+			active[b] = false;
+			relabel(label, label[b], label[a]);
+			relabel(chainLabel, chainLabel[merge.getSecond()], chainLabel[merge.getFirst()]);
+			
+			// both should have the same clusters, though they may be
+			// labelled differently
+			for (int i = 0; i < n; i++)
+				for (int j = 0; j < n; j++)
+					assertEquals(label[i] == label[j], chainLabel[i] == chainLabel[j]);
+		}
+	}
+	
+	/*
+	 * Equidistant clusters stay equidistant under Ward's method, but in
+	 * floats the merged distance can come out an ulp below the original.
+	 * The merge that made the pair still has to come first.
+	 */
+	public void testEquidistant() {
+		float distance = (float) Math.sqrt(2);
+		for (int sizeA = 1; sizeA <= 6; sizeA++) {
+			for (int sizeB = 1; sizeB <= 6; sizeB++) {
+				for (int sizeQ = 1; sizeQ <= 6; sizeQ++) {
+					NearestNeighborChain chain = new NearestNeighborChain(3);
+					chain.setSize(0, sizeA);
+					chain.setSize(1, sizeB);
+					chain.setSize(2, sizeQ);
+					chain.setDistance(0, 1, distance);
+					chain.setDistance(0, 2, distance);
+					chain.setDistance(1, 2, distance);
+					
+					ArrayList<NearestNeighborChain.Merge> merges = chain.getMerges();
+					String sizes = sizeA + "," + sizeB + "," + sizeQ;
+					assertEquals(2, merges.size());
+					// the chain pairs up 0 and 1 first, on ties
+					assertEquals(sizes, 0, merges.get(0).getFirst());
+					assertEquals(sizes, 1, merges.get(0).getSecond());
+					assertEquals(sizes, 2, merges.get(1).getSecond());
+					assertTrue(sizes, merges.get(1).getDistance() >= distance);
+				}
+			}
+		}
+	}
+	
+	public void testTrivial() {
+		assertTrue(new NearestNeighborChain(0).getMerges().isEmpty());
+		assertTrue(new NearestNeighborChain(1).getMerges().isEmpty());
+		NearestNeighborChain chain = new NearestNeighborChain(2);
+		chain.setDistance(0, 1, 0.5f);
+		assertEquals(1, chain.getMerges().size());
+	}
+	
+	private static void relabel(int[] labels, int from, int to) {
+		for (int i = 0; i < labels.length; i++)
+			if (labels[i] == from)
+				labels[i] = to;
+	}
+}
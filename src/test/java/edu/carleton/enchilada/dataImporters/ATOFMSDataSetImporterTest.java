@@ -561,6 +561,50 @@ public class ATOFMSDataSetImporterTest extends TestCase {
 	}
 
 
+	/**
+	 * With several reader threads, the particles should still be written in
+	 * the order the .set file lists them.
+	 */
+	public void testReadSpectraWithSeveralReaders() throws Exception {
+		int oldThreads = ATOFMSDataSetImporter.getNumReaderThreads();
+		ATOFMSDataSetImporter.setNumReaderThreads(3);
+		try {
+			importer.parFile = new File((String)table.getValueAt(0,1));
+			String massCalFile = Paths.get("testRow", "b", "cal.cal").toString();
+			ATOFMSParticle.currCalInfo = new CalInfo(massCalFile, true);
+			ATOFMSParticle.currPeakParams = new PeakParams(10, 20, .1f, .5f);
+			importer.numParticles = new int[1];
+			importer.numParticles[0] = 10;
+			importer.collections = new Collection[1];
+			importer.id = 
+				db.createEmptyCollectionAndDataset("ATOFMS", 0, "b", 
+						"comment", "'null', 'null', 10, 10, 0.005, 1");
+			importer.progressBar = new ProgressBarWrapper(null, "Progress", 10);
+			importer.readSpectraAndCreateParticle();
+		} finally {
+			ATOFMSDataSetImporter.setNumReaderThreads(oldThreads);
+		}
+
+		String[] expected = {"00001", "00002", "00003", "00004", "00005",
+				"00006", "00007", "00008", "00009", "00010"};
+		Connection con = db.getCon();
+		ResultSet rs = con.createStatement().executeQuery(
+				"SELECT AtomID, OrigFilename FROM ATOFMSAtomInfoDense ORDER BY AtomID");
+		for (int i = 0; i < expected.length; i++) {
+			assertTrue(rs.next());
+			assertEquals(i + 1, rs.getInt(1));
+			assertTrue(rs.getString(2).endsWith(expected[i] + ".amz"));
+		}
+		assertFalse(rs.next());
+		rs.close();
+
+		rs = con.createStatement().executeQuery(
+				"SELECT COUNT(*) FROM ATOFMSAtomInfoSparse");
+		assertTrue(rs.next());
+		assertEquals(27, rs.getInt(1));
+		rs.close();
+	}
+
 	public void testReadSpectraAndCreateParticleWithMissingParticle()
 			throws URISyntaxException, InterruptedException, ParseException, IOException {
 		URI testDataURI = ATOFMSDataSetImporterTest.class.getResource("/test-row-missing").toURI();
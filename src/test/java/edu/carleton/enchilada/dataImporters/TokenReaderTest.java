@@ -0,0 +1,186 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is EDAM Enchilada's TokenReaderTest class.
+ *
+ * The Initial Developer of the Original Code is
+ * The EDAM Project at Carleton College.
+ * Portions created by the Initial Developer are Copyright (C) 2005
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Ben J Anderson andersbe@gmail.com
+ * David R Musicant dmusican@carleton.edu
+ * Anna Ritz ritza@carleton.edu
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package edu.carleton.enchilada.dataImporters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Scanner;
+
+import junit.framework.TestCase;
+
+public class TokenReaderTest extends TestCase {
+	private File file;
+
+	protected void tearDown() {
+		if (file != null)
+			file.delete();
+	}
+
+	private TokenReader reader(String contents, String separators) throws IOException {
+		file = File.createTempFile("tokens", ".txt");
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		return new TokenReader(file, separators);
+	}
+
+	public void testWhitespace() throws IOException {
+		TokenReader in = reader("  name\\path.txt\t12 -7 +3\r\n" +
+				"1.5 -0.25 2e3 1E-2 .5 7.\r" +
+				"µm last", null);
+		assertTrue(in.hasNext());
+		assertEquals("name\\path.txt", in.next());
+		assertEquals(12, in.nextInt());
+		assertEquals(-7, in.nextInt());
+		assertEquals(3, in.nextInt());
+		assertEquals(1.5, in.nextDouble());
+		assertEquals(-0.25, in.nextDouble());
+		assertEquals(2000.0, in.nextDouble());
+		assertEquals(0.01, in.nextDouble());
+		assertEquals(0.5, in.nextDouble());
+		assertEquals(7.0, in.nextDouble());
+		assertEquals("µm", in.next());
+		assertEquals("last", in.next());
+		assertFalse(in.hasNext());
+		assertEquals(in.length(), in.getPosition());
+		try {
+			in.next();
+			fail("Read past the end of the file");
+		} catch (NoSuchElementException e) {
+		}
+		in.close();
+	}
+
+	public void testMismatch() throws IOException {
+		TokenReader in = reader("1.5 abc 12345678901 99999999999", null);
+		try {
+			in.nextInt();
+			fail("Read 1.5 as an int");
+		} catch (InputMismatchException e) {
+		}
+		try {
+			in.nextDouble();
+			fail("Read abc as a double");
+		} catch (InputMismatchException e) {
+		}
+		try {
+			in.nextInt();
+			fail("Read an int that overflows");
+		} catch (InputMismatchException e) {
+		}
+		assertEquals(99999999999.0, in.nextDouble());
+		in.close();
+	}
+
+	/**
+	 * Lines work the way they do with a Scanner: after a token, the rest
+	 * of its line.
+	 */
+	public void testLines() throws IOException {
+		String contents = "header one\n12 rest of line\r\n\nthird\r\n13\nlast";
+		TokenReader in = reader(contents, null);
+		Scanner scanner = new Scanner(contents);
+		assertEquals(scanner.nextLine(), in.nextLine());
+		assertEquals(scanner.nextInt(), in.nextInt());
+		assertEquals(scanner.nextLine(), in.nextLine());
+		assertEquals(scanner.nextLine(), in.nextLine());
+		in.skipLine();
+		scanner.nextLine();
+		assertEquals(scanner.nextInt(), in.nextInt());
+		in.skipLine();
+		scanner.nextLine();
+		assertEquals(scanner.nextLine(), in.nextLine());
+		try {
+			in.nextLine();
+			fail("Read a line past the end of the file");
+		} catch (NoSuchElementException e) {
+		}
+		in.close();
+	}
+
+	public void testSeparators() throws IOException {
+		TokenReader in = reader("a file.txt, 03/06/2015 12:05:35, cls, 2.5, 6.0e-01, 2 " +
+				"{(1.4, 10, 0.1, 20, 1), (3, 4, 0.2, 5, 1)}, 48, 89\r\n" +
+				"next, 0 {}, 1, 2\n", ",(){}");
+		assertEquals("a file.txt", in.next());
+		assertEquals("03/06/2015 12:05:35", in.next());
+		in.skip();
+		assertEquals(2.5, in.nextDouble());
+		assertEquals(0.6, in.nextDouble());
+		assertEquals(2, in.nextInt());
+		for (int i = 0; i < 10; i++)
+			in.skip();
+		in.skipLine();
+		assertEquals("next", in.next());
+		assertEquals("0", in.next());
+		assertEquals(1, in.nextInt());
+		assertEquals(2, in.nextInt());
+		assertFalse(in.hasNext());
+		in.close();
+	}
+
+	/**
+	 * Numbers have to come out exactly as Double.parseDouble gives them,
+	 * including ones that cross the edge of a buffer.
+	 */
+	public void testDoublesMatchParseDouble() throws IOException {
+		Random random = new Random(42);
+		String[] numbers = new String[50000];
+		StringBuilder contents = new StringBuilder();
+		for (int i = 0; i < numbers.length; i++) {
+			switch (i % 5) {
+			case 0: numbers[i] = Double.toString(random.nextDouble()); break;
+			case 1: numbers[i] = Double.toString(random.nextGaussian() * 1e6); break;
+			case 2: numbers[i] = String.format("%.6f", random.nextDouble()); break;
+			case 3: numbers[i] = Double.toString(random.nextDouble() * 1e-30); break;
+			default: numbers[i] = Long.toString(random.nextLong()); break;
+			}
+			contents.append(numbers[i]).append(i % 7 == 0 ? "\r\n" : " ");
+		}
+		TokenReader in = reader(contents.toString(), null);
+		for (String number : numbers)
+			assertEquals(number, Double.parseDouble(number), in.nextDouble());
+		assertFalse(in.hasNext());
+		in.close();
+	}
+}
@@ -0,0 +1,115 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.collection.Collection;
+import junit.framework.TestCase;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+
+public class AMSBulkInserterTest extends TestCase {
+	Database db;
+
+	protected void setUp() throws Exception {
+		new CreateTestDatabase();
+		db = Database.getDatabase("TestDB");
+		db.openConnection();
+	}
+
+	protected void tearDown() throws Exception {
+		db.closeConnection();
+	}
+
+	private int count(String query) throws SQLException {
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(query)) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	public void testInsert() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("AMS", 0, "bulk", "",
+				"'data', 'time', 'mz'");
+		Collection coll = db.getCollection(ids[0]);
+
+		AMSBulkInserter ins = new AMSBulkInserter(db, coll, ids[1]);
+		double[] locations = {1, 2, 3};
+		double[] values = new double[3];
+		int first = -1;
+		for (int i = 1; i <= 10; i++) {
+			values[0] = i;
+			values[1] = i / 4.0;
+			values[2] = -i;
+			// only the first two values of the odd items
+			int atomID = ins.addItem(new Date(1000000000000L + i * 1000L),
+					locations, values, i % 2 == 0 ? 3 : 2);
+			if (first == -1)
+				first = atomID;
+			assertEquals(first + i - 1, atomID);
+		}
+		ins.close();
+		assertTrue(db.getCon().getAutoCommit());
+
+		assertEquals(10, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+		assertEquals(10, count("SELECT COUNT(*) FROM InternalAtomOrder WHERE CollectionID = " + ids[0]));
+		// dataset IDs are only unique within a datatype
+		assertEquals(10, count("SELECT COUNT(*) FROM DataSetMembers WHERE OrigDataSetID = " + ids[1] +
+				" AND AtomID >= " + first));
+		assertEquals(25, count("SELECT COUNT(*) FROM AMSAtomInfoSparse WHERE AtomID >= " + first));
+
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT Time FROM AMSAtomInfoDense WHERE AtomID = " + (first + 5))) {
+			assertTrue(rs.next());
+			assertEquals(db.getDateFormat().format(new Date(1000000006000L)), rs.getString(1));
+		}
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT PeakLocation, PeakHeight FROM AMSAtomInfoSparse WHERE AtomID = " +
+					 (first + 5) + " ORDER BY PeakLocation")) {
+			assertTrue(rs.next());
+			assertEquals(1.0, rs.getDouble(1));
+			assertEquals(6.0, rs.getDouble(2));
+			assertTrue(rs.next());
+			assertEquals(2.0, rs.getDouble(1));
+			assertEquals(1.5, rs.getDouble(2));
+			assertTrue(rs.next());
+			assertEquals(3.0, rs.getDouble(1));
+			assertEquals(-6.0, rs.getDouble(2));
+			assertFalse(rs.next());
+		}
+	}
+
+	public void testKeepsCallersTransaction() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("AMS", 0, "bulk", "",
+				"'data', 'time', 'mz'");
+		Collection coll = db.getCollection(ids[0]);
+
+		db.getCon().setAutoCommit(false);
+		try {
+			// two batches, each under its own savepoint
+			AMSBulkInserter ins = new AMSBulkInserter(db, coll, ids[1]);
+			ins.addItem(new Date(1000000000000L), new double[] {1}, new double[] {2}, 1);
+			ins.flush();
+			ins.addItem(new Date(1000000001000L), new double[] {1}, new double[] {2}, 1);
+			ins.close();
+			assertFalse(db.getCon().getAutoCommit());
+			assertEquals(2, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+
+			// aborting doesn't roll back what the caller has written
+			ins = new AMSBulkInserter(db, coll, ids[1]);
+			ins.addItem(new Date(1000000002000L), new double[] {1}, new double[] {2}, 1);
+			ins.abort();
+			assertFalse(db.getCon().getAutoCommit());
+			assertEquals(2, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+
+			// nothing was committed, so the caller can still undo it all
+			db.getCon().rollback();
+		} finally {
+			db.getCon().setAutoCommit(true);
+		}
+		assertEquals(0, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+	}
+}
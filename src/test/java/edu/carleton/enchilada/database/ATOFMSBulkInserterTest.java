@@ -0,0 +1,230 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.ATOFMS.ATOFMSParticle;
+import edu.carleton.enchilada.ATOFMS.ATOFMSPeak;
+import edu.carleton.enchilada.collection.Collection;
+import junit.framework.TestCase;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ATOFMSBulkInserterTest extends TestCase {
+	Database db;
+
+	protected void setUp() throws Exception {
+		new CreateTestDatabase();
+		db = Database.getDatabase("TestDB");
+		db.openConnection();
+	}
+
+	protected void tearDown() throws Exception {
+		db.closeConnection();
+	}
+
+	private ATOFMSParticle makeParticle(int num) {
+		final Map<Integer, ATOFMSPeak> peaks = new LinkedHashMap<>();
+		peaks.put(num, new ATOFMSPeak(num * 10, num * 100, 0.5f, num));
+		peaks.put(-num, new ATOFMSPeak(num * 20, num * 200, 0.25f, -num));
+		ATOFMSParticle particle = new ATOFMSParticle() {
+			public Map<Integer, ATOFMSPeak> getSparsePeakMap() {
+				return peaks;
+			}
+		};
+		particle.filename = "particle" + num;
+		particle.time = new Date(1000000000000L + num * 1000L);
+		particle.laserPower = num;
+		particle.size = num / 10f;
+		particle.scatDelay = num * 3;
+		return particle;
+	}
+
+	private int count(String query) throws SQLException {
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(query)) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	public void testInsert() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("ATOFMS", 0, "bulk", "",
+				"'mass', 'size', 0, 0, 0.0, 0");
+		Collection coll = db.getCollection(ids[0]);
+
+		// a batch size that doesn't divide the particle count, so the last
+		// few are only written by close()
+		ATOFMSBulkInserter ins = new ATOFMSBulkInserter(db, coll, ids[1], 3, 60000);
+		int first = -1;
+		for (int i = 1; i <= 10; i++) {
+			int atomID = ins.addParticle(makeParticle(i));
+			if (first == -1)
+				first = atomID;
+			assertEquals(first + i - 1, atomID);
+		}
+		assertEquals(9, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+		ins.close();
+		assertTrue(db.getCon().getAutoCommit());
+
+		assertEquals(10, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+		assertEquals(10, count("SELECT COUNT(*) FROM InternalAtomOrder WHERE CollectionID = " + ids[0]));
+		assertEquals(10, count("SELECT COUNT(*) FROM DataSetMembers WHERE OrigDataSetID = " + ids[1]));
+		assertEquals(20, count("SELECT COUNT(*) FROM ATOFMSAtomInfoSparse WHERE AtomID >= " + first));
+
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT Time, LaserPower, Size, ScatDelay, OrigFilename " +
+					 "FROM ATOFMSAtomInfoDense WHERE AtomID = " + (first + 4))) {
+			assertTrue(rs.next());
+			assertEquals(db.getDateFormat().format(new Date(1000000005000L)), rs.getString(1));
+			assertEquals(5f, rs.getFloat(2));
+			assertEquals(0.5f, rs.getFloat(3));
+			assertEquals(15, rs.getInt(4));
+			assertEquals("particle5", rs.getString(5));
+		}
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT PeakLocation, PeakArea, RelPeakArea, PeakHeight " +
+					 "FROM ATOFMSAtomInfoSparse WHERE AtomID = " + (first + 4) +
+					 " ORDER BY PeakLocation")) {
+			assertTrue(rs.next());
+			assertEquals(-5.0, rs.getDouble(1));
+			assertEquals(1000, rs.getInt(2));
+			assertEquals(0.25f, rs.getFloat(3));
+			assertEquals(100, rs.getInt(4));
+			assertTrue(rs.next());
+			assertEquals(5.0, rs.getDouble(1));
+			assertEquals(500, rs.getInt(2));
+			assertEquals(0.5f, rs.getFloat(3));
+			assertEquals(50, rs.getInt(4));
+			assertFalse(rs.next());
+		}
+	}
+
+	public void testCommitInterval() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("ATOFMS", 0, "bulk", "",
+				"'mass', 'size', 0, 0, 0.0, 0");
+		Collection coll = db.getCollection(ids[0]);
+
+		// an interval of zero commits every particle, however big the batch
+		ATOFMSBulkInserter ins = new ATOFMSBulkInserter(db, coll, ids[1], 1000, 0);
+		ins.addParticle(makeParticle(1));
+		ins.addParticle(makeParticle(2));
+		assertEquals(2, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+		ins.close();
+	}
+
+	public void testAbort() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("ATOFMS", 0, "bulk", "",
+				"'mass', 'size', 0, 0, 0.0, 0");
+		Collection coll = db.getCollection(ids[0]);
+
+		// the first batch is committed, the last two are thrown away
+		ATOFMSBulkInserter ins = new ATOFMSBulkInserter(db, coll, ids[1], 3, 60000);
+		int first = -1;
+		for (int i = 1; i <= 5; i++) {
+			int atomID = ins.addParticle(makeParticle(i));
+			if (first == -1)
+				first = atomID;
+		}
+		ins.abort();
+		assertTrue(db.getCon().getAutoCommit());
+
+		assertEquals(3, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+		assertEquals(3, count("SELECT COUNT(*) FROM ATOFMSAtomInfoDense WHERE AtomID >= " + first));
+		assertEquals(6, count("SELECT COUNT(*) FROM ATOFMSAtomInfoSparse WHERE AtomID >= " + first));
+		// closing afterwards doesn't write anything more
+		ins.close();
+		assertEquals(3, count("SELECT COUNT(*) FROM AtomMembership WHERE CollectionID = " + ids[0]));
+	}
+
+	public void testPackSpectra() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("ATOFMS", 0, "bulk", "",
+				"'mass', 'size', 0, 0, 0.0, 0");
+		Collection coll = db.getCollection(ids[0]);
+
+		ATOFMSBulkInserter.setPackSpectra(true);
+		try {
+			ATOFMSBulkInserter ins = new ATOFMSBulkInserter(db, coll, ids[1]);
+			ins.addParticle(makeParticle(1));
+			ins.addParticle(makeParticle(2));
+			ins.close();
+		} finally {
+			ATOFMSBulkInserter.setPackSpectra(false);
+		}
+		assertEquals(2, count("SELECT COUNT(*) FROM ATOFMSAtomSpectra s JOIN AtomMembership m " +
+				"ON m.AtomID = s.AtomID WHERE m.CollectionID = " + ids[0]));
+		assertTrue(db.hasPackedSpectra(ids[0]));
+	}
+
+	public void testParsedPeaks() throws SQLException {
+		int[] ids = db.createEmptyCollectionAndDataset("ATOFMS", 0, "bulk", "",
+				"'mass', 'size', 0, 0, 0.0, 0");
+		Collection coll = db.getCollection(ids[0]);
+
+		ATOFMSBulkInserter.Peaks peaks = new ATOFMSBulkInserter.Peaks();
+		int[] atomIDs = new int[2];
+		ATOFMSBulkInserter.setPackSpectra(true);
+		try {
+			ATOFMSBulkInserter ins = new ATOFMSBulkInserter(db, coll, ids[1]);
+			// out of order, and more than the arrays start out holding
+			for (int i = 20; i >= -20; i--)
+				if (i != 0)
+					peaks.add(i, i * 10, 0.1 / i, i + 100);
+			atomIDs[0] = ins.addParticle(new Date(1000000000000L), 1.5, 0.25, 7,
+					"first", peaks);
+			peaks.clear();
+			peaks.add(3, 30, 0.123456789, 300);
+			atomIDs[1] = ins.addParticle(new Date(1000000001000L), 2.5, 0.5, 8,
+					"second", peaks);
+			ins.close();
+		} finally {
+			ATOFMSBulkInserter.setPackSpectra(false);
+		}
+
+		assertEquals(40, count("SELECT COUNT(*) FROM ATOFMSAtomInfoSparse WHERE AtomID = " + atomIDs[0]));
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT PeakLocation, PeakArea, RelPeakArea, PeakHeight " +
+					 "FROM ATOFMSAtomInfoSparse WHERE AtomID = " + atomIDs[1])) {
+			assertTrue(rs.next());
+			assertEquals(3.0, rs.getDouble(1));
+			assertEquals(30, rs.getInt(2));
+			// written as a double, not squeezed into a float
+			assertEquals(0.123456789, rs.getDouble(3));
+			assertEquals(300, rs.getInt(4));
+			assertFalse(rs.next());
+		}
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT Time, LaserPower, Size, ScatDelay, OrigFilename " +
+					 "FROM ATOFMSAtomInfoDense WHERE AtomID = " + atomIDs[1])) {
+			assertTrue(rs.next());
+			assertEquals(db.getDateFormat().format(new Date(1000000001000L)), rs.getString(1));
+			assertEquals(2.5, rs.getDouble(2));
+			assertEquals(0.5, rs.getDouble(3));
+			assertEquals(8, rs.getInt(4));
+			assertEquals("second", rs.getString(5));
+		}
+
+		// the packed peaks have to be in order of location
+		try (Statement stmt = db.getCon().createStatement();
+			 ResultSet rs = stmt.executeQuery(
+					 "SELECT Peaks FROM ATOFMSAtomSpectra WHERE AtomID = " + atomIDs[0])) {
+			assertTrue(rs.next());
+			PackedSpectrum.Reader reader = new PackedSpectrum.Reader().reset(rs.getBytes(1));
+			for (int i = -20; i <= 20; i++) {
+				if (i == 0)
+					continue;
+				assertTrue(reader.next());
+				assertEquals(i, reader.location);
+				assertEquals(i * 10, reader.area);
+				assertEquals(i + 100, reader.height);
+			}
+			assertFalse(reader.next());
+		}
+	}
+}
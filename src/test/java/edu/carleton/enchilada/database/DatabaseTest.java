@@ -83,6 +83,7 @@ import edu.carleton.enchilada.ATOFMS.ParticleInfo;
 import edu.carleton.enchilada.ATOFMS.Peak;
 import edu.carleton.enchilada.analysis.BinnedPeakList;
 import edu.carleton.enchilada.analysis.SubSampleCursor;
+import edu.carleton.enchilada.analysis.clustering.ClusterInformation;
 import edu.carleton.enchilada.atom.ATOFMSAtomFromDB;
 import org.sqlite.SQLiteException;
 
@@ -655,7 +656,97 @@ public class DatabaseTest extends TestCase {
 		db.openConnection();
 		
 		assertTrue(db.getNextID() >= 0);
-	
+
+		db.closeConnection();
+	}
+
+	public void testAtomIDAllocator() throws SQLException {
+		db.openConnection();
+
+		// the test database has atoms 1 through 21
+		assertEquals(22, db.getNextID());
+		assertEquals(23, db.getNextID());
+
+		// a second connection gets a block of its own
+		Database other = Database.getDatabase(dbName);
+		other.openConnection();
+		int otherID = other.getNextID();
+		assertTrue(otherID > 23);
+		assertEquals(24, db.getNextID());
+		int first = other.reserveAtomIDs(10);
+		assertTrue(first > otherID);
+		other.closeConnection();
+
+		// closing the connection hands back the rest of its block
+		db.closeConnection();
+		db.openConnection();
+		assertEquals(first + 10, db.getNextID());
+
+		// atoms written without the allocator are skipped over on the
+		// next connection
+		db.addAtom(5000, 2);
+		db.closeConnection();
+		db.openConnection();
+		assertEquals(5001, db.getNextID());
+
+		db.closeConnection();
+	}
+
+	public void testConcurrentAtomIDReservations() throws Exception {
+		final Database[] dbs = {Database.getDatabase(dbName), Database.getDatabase(dbName)};
+		final int[][] firsts = new int[2][200];
+		Thread[] threads = new Thread[2];
+		for (int t = 0; t < 2; t++) {
+			dbs[t].openConnection();
+			final int which = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < firsts[which].length; i++)
+						firsts[which][i] = dbs[which].reserveAtomIDs(5);
+				}
+			};
+		}
+		try {
+			for (Thread thread : threads)
+				thread.start();
+			for (Thread thread : threads)
+				thread.join();
+		} finally {
+			for (Database d : dbs)
+				d.closeConnection();
+		}
+
+		// every reservation succeeded, and no two ranges overlap
+		TreeSet<Integer> starts = new TreeSet<Integer>();
+		for (int[] run : firsts) {
+			for (int first : run) {
+				assertTrue(first > 0);
+				starts.add(first);
+			}
+		}
+		assertEquals(400, starts.size());
+		Integer previous = null;
+		for (int first : starts) {
+			if (previous != null)
+				assertTrue(first >= previous + 5);
+			previous = first;
+		}
+	}
+
+	public void testAtomIDsAfterRollback() {
+		db.openConnection();
+
+		// the block is reserved inside the transaction, so it's rolled back
+		// along with everything else
+		db.beginTransaction();
+		int rolledBack = db.getNextID();
+		db.rollbackTransaction();
+
+		int first = db.reserveAtomIDs(10);
+		assertEquals(rolledBack, first);
+		int next = db.getNextID();
+		assertTrue(next < first || next >= first + 10);
+
 		db.closeConnection();
 	}
 	
@@ -1270,6 +1361,309 @@ public class DatabaseTest extends TestCase {
 		}
 		db.closeConnection();
 	}
+	public void testGetClusteringCursor() {
+		db.openConnection();
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("ATOFMSAtomInfoSparse.PeakArea");
+		ClusterInformation cInfo = new ClusterInformation(list,
+				"ATOFMSAtomInfoSparse.PeakLocation", null, false, true);
+		Collection c = db.getCollection(2);
+		CollectionCursor streamed = db.getClusteringCursor(c, cInfo);
+		CollectionCursor perAtom = db.getClusteringCursor(c, cInfo, false);
+
+		// the streamed cursor must agree with the per-atom one, on both passes
+		for (int pass = 0; pass < 2; pass++) {
+			int count = 0;
+			while (perAtom.next()) {
+				assertTrue(streamed.next());
+				ParticleInfo expected = perAtom.getCurrent();
+				ParticleInfo actual = streamed.getCurrent();
+				assertEquals(expected.getID(), actual.getID());
+				assertTrue(expected.getBinnedList().comparePeakLists(actual.getBinnedList()));
+				assertTrue(actual.getBinnedList().comparePeakLists(
+						streamed.getPeakListfromAtomID(actual.getID())));
+				count++;
+			}
+			assertFalse(streamed.next());
+			assertEquals(5, count);
+			perAtom.reset();
+			streamed.reset();
+		}
+		streamed.close();
+		perAtom.close();
+		db.closeConnection();
+	}
+
+	public void testGetSampledClusteringCursor() {
+		db.openConnection();
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("ATOFMSAtomInfoSparse.PeakArea");
+		ClusterInformation cInfo = new ClusterInformation(list,
+				"ATOFMSAtomInfoSparse.PeakLocation", null, false, true);
+		Collection c = db.getCollection(2);
+		CollectionCursor all = db.getClusteringCursor(c, cInfo, false);
+		// out of order and with a repeat; they come back once each, in order
+		CollectionCursor sampled = db.getClusteringCursor(c, cInfo, new int[] {5, 2, 5, 4});
+
+		int[] expectedIDs = {2, 4, 5};
+		for (int id : expectedIDs) {
+			assertTrue(sampled.next());
+			ParticleInfo actual = sampled.getCurrent();
+			assertEquals(id, actual.getID());
+			assertTrue(all.getPeakListfromAtomID(id).comparePeakLists(actual.getBinnedList()));
+		}
+		assertFalse(sampled.next());
+		sampled.close();
+		all.close();
+		db.closeConnection();
+	}
+
+	public void testExportImportDatabase() throws SQLException, IOException {
+		db.openConnection();
+		db.packSpectra(db.getCollection(2));
+		String[] tables = {"Collections", "CollectionRelationships", "AtomMembership", "InternalAtomOrder",
+				"ATOFMSAtomInfoDense", "ATOFMSAtomInfoSparse", "ATOFMSAtomSpectra", "CollectionClosure"};
+		Map<String, List<String>> before = new HashMap<String, List<String>>();
+		for (String table : tables)
+			before.put(table, tableRows(table));
+
+		File dir = Files.createTempDirectory("dump").toFile();
+		try {
+			assertTrue(db.exportDatabase(dir, null));
+			assertTrue(new File(dir, DatabaseDump.MANIFEST).exists());
+			// a dump is never written over
+			assertFalse(db.exportDatabase(dir, null));
+
+			// change the database in all sorts of ways, including losing a table
+			int newID = db.createEmptyCollection("ATOFMS", 2, "Extra", "", "");
+			db.addAtom(1, newID);
+			db.moveCollection(db.getCollection(6), db.getCollection(2));
+			Statement stmt = db.getCon().createStatement();
+			stmt.executeUpdate("DELETE FROM ATOFMSAtomInfoSparse WHERE AtomID < 4");
+			stmt.executeUpdate("DROP TABLE ATOFMSAtomSpectra");
+			stmt.close();
+
+			assertTrue(db.importDatabase(dir, null));
+			for (String table : tables)
+				assertEquals(table, before.get(table), tableRows(table));
+			assertEquals(5, db.getParentCollectionID(6));
+			assertTrue(db.hasPackedSpectra(2));
+
+			// a dump with a chunk missing doesn't touch the database
+			new File(dir, "AtomMembership.0.gz").delete();
+			db.createEmptyCollection("ATOFMS", 0, "Kept", "", "");
+			List<String> collections = tableRows("Collections");
+			assertFalse(db.importDatabase(dir, null));
+			assertEquals(collections, tableRows("Collections"));
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+		db.closeConnection();
+	}
+
+	public void testImportDatabaseAtomIDs() throws SQLException, IOException {
+		db.openConnection();
+		db.addAtom(30, 2);
+		File dir = Files.createTempDirectory("dump").toFile();
+		try {
+			assertTrue(db.exportDatabase(dir, null));
+			Statement stmt = db.getCon().createStatement();
+			stmt.executeUpdate("DELETE FROM AtomMembership WHERE AtomID = 30");
+			stmt.close();
+			// reserves a block that atom 30 falls in
+			assertEquals(22, db.getNextID());
+
+			// the import brings atom 30 back, so the block has to go
+			assertTrue(db.importDatabase(dir, null));
+			assertEquals(31, db.getNextID());
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+		db.closeConnection();
+	}
+
+	private List<String> tableRows(String table) throws SQLException {
+		List<String> rows = new ArrayList<String>();
+		Statement stmt = db.getCon().createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT * FROM " + table);
+		int columns = rs.getMetaData().getColumnCount();
+		while (rs.next()) {
+			StringBuilder row = new StringBuilder();
+			for (int i = 1; i <= columns; i++) {
+				Object value = rs.getObject(i);
+				row.append(value instanceof byte[] ? Arrays.toString((byte[]) value) : String.valueOf(value));
+				row.append('|');
+			}
+			rows.add(row.toString());
+		}
+		rs.close();
+		stmt.close();
+		Collections.sort(rows);
+		return rows;
+	}
+
+	public void testBackupRestore() throws IOException {
+		db.openConnection();
+		File dir = Files.createTempDirectory("backup").toFile();
+		File file = new File(dir, "snapshot.sqlite");
+		try {
+			final int[] steps = {0, -1};
+			String result = db.backupDatabase(file.getPath(), new Database.BackupObserver() {
+				public boolean progress(int remainingPages, int pageCount) {
+					steps[0]++;
+					steps[1] = remainingPages;
+					return true;
+				}
+			});
+			assertTrue(result, result.contains("successfully"));
+			assertTrue(steps[0] > 0);
+			assertEquals(0, steps[1]);
+			assertTrue(file.length() > 0);
+			assertFalse(new File(file.getPath() + ".partial").exists());
+
+			String name = null;
+			for (HashMap<String, String> loc : db.getBackupLocations()) {
+				if (loc.get("path").equals(file.getAbsolutePath())) {
+					name = loc.get("name");
+					assertNotNull(loc.get("created"));
+				}
+			}
+			assertNotNull(name);
+			assertTrue(name, name.startsWith("snapshot"));
+
+			// a cancelled backup leaves nothing behind
+			File cancelled = new File(dir, "cancelled.sqlite");
+			result = db.backupDatabase(cancelled.getPath(), new Database.BackupObserver() {
+				public boolean progress(int remainingPages, int pageCount) {
+					return false;
+				}
+			});
+			assertEquals("Backup cancelled.", result);
+			assertFalse(cancelled.exists());
+			assertFalse(new File(cancelled.getPath() + ".partial").exists());
+
+			int newID = db.createEmptyCollection("ATOFMS", 0, "After backup", "", "");
+			result = db.restoreDatabase(name);
+			assertTrue(result, result.contains("successfully"));
+			try {
+				db.getCollection(newID);
+				fail("collection made after the backup should be gone");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			assertEquals(5, db.getCollectionSize(2));
+			assertEquals(5, db.getParentCollectionID(6));
+
+			assertTrue(db.removeBackupFile(name, true));
+			assertFalse(file.exists());
+			for (HashMap<String, String> loc : db.getBackupLocations())
+				assertFalse(loc.get("name").equals(name));
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+		db.closeConnection();
+	}
+
+	public void testReadConnections() throws SQLException {
+		db.openConnection();
+		Statement stmt = db.getCon().createStatement();
+		ResultSet rs = stmt.executeQuery("PRAGMA journal_mode");
+		assertTrue(rs.next());
+		assertEquals("wal", rs.getString(1).toLowerCase());
+		rs.close();
+		stmt.close();
+
+		// reads come from a pool of read-only connections...
+		Connection read = db.getReadConnection();
+		assertNotSame(db.getCon(), read);
+		try {
+			read.createStatement().executeUpdate("DELETE FROM AtomMembership");
+			fail("read connection should be read-only");
+		} catch (SQLException e) {
+			// expected
+		}
+		db.releaseReadConnection(read);
+		assertSame(read, db.getReadConnection());
+		db.releaseReadConnection(read);
+
+		// ...except in the middle of a transaction, which they need to see
+		db.getCon().setAutoCommit(false);
+		assertSame(db.getCon(), db.getReadConnection());
+		db.getCon().rollback();
+		db.getCon().setAutoCommit(true);
+
+		// a cursor part way through doesn't hold up writes
+		stmt = db.getCon().createStatement();
+		rs = stmt.executeQuery("SELECT COUNT(DISTINCT AtomID) FROM ATOFMSAtomInfoSparse " +
+				"WHERE AtomID IN (SELECT AtomID FROM InternalAtomOrder WHERE CollectionID = 2)");
+		rs.next();
+		int expected = rs.getInt(1);
+		rs.close();
+		stmt.close();
+		BPLOnlyCursor curs = db.getBPLOnlyCursor(db.getCollection(2));
+		assertTrue(curs.next());
+		curs.getCurrent();
+		int newID = db.createEmptyCollection("ATOFMS", 0, "During", "", "");
+		assertEquals("During", db.getCollection(newID).getName());
+		int count = 1;
+		while (curs.next()) {
+			curs.getCurrent();
+			count++;
+		}
+		assertEquals(expected, count);
+		curs.close();
+		db.closeConnection();
+	}
+
+	private Map<Integer, BinnedPeakList> readPeakLists(CollectionCursor curs) {
+		Map<Integer, BinnedPeakList> lists = new LinkedHashMap<Integer, BinnedPeakList>();
+		while (curs.next()) {
+			ParticleInfo info = curs.getCurrent();
+			lists.put(info.getID(), info.getBinnedList());
+		}
+		curs.close();
+		return lists;
+	}
+
+	private void assertSamePeakLists(Map<Integer, BinnedPeakList> expected, Map<Integer, BinnedPeakList> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (int atomID : expected.keySet())
+			assertTrue(expected.get(atomID).comparePeakLists(actual.get(atomID)));
+	}
+
+	public void testPackedSpectra() throws SQLException {
+		db.openConnection();
+		Collection c = db.getCollection(2);
+		ArrayList<String> list = new ArrayList<String>();
+		list.add("ATOFMSAtomInfoSparse.PeakArea");
+		ClusterInformation cInfo = new ClusterInformation(list,
+				"ATOFMSAtomInfoSparse.PeakLocation", null, false, true);
+
+		assertFalse(db.hasPackedSpectra(2));
+		Map<Integer, BinnedPeakList> bplRows = readPeakLists(db.getBPLOnlyCursor(c));
+		Map<Integer, BinnedPeakList> clusteringRows = readPeakLists(db.getClusteringCursor(c, cInfo));
+
+		assertEquals(5, db.packSpectra(c));
+		assertTrue(db.hasPackedSpectra(2));
+		assertFalse(db.hasPackedSpectra(3));
+		// nothing left to pack the second time
+		assertEquals(0, db.packSpectra(c));
+
+		// the cursors read the packed copies now, and get the same answers
+		assertSamePeakLists(bplRows, readPeakLists(db.getBPLOnlyCursor(c)));
+		// (ArrayCursor can only read the rows through a scrollable result
+		// set, which SQLite doesn't have, so it's checked against BPLOnlyCursor)
+		assertSamePeakLists(bplRows, readPeakLists(db.getArrayCursor(c)));
+		assertSamePeakLists(clusteringRows, readPeakLists(db.getClusteringCursor(c, cInfo)));
+		db.closeConnection();
+	}
+
 	public void testGetMemoryBinnedCursor() {
 		db.openConnection();
 		Collection c = db.getCollection(2);
@@ -2351,6 +2745,252 @@ public class DatabaseTest extends TestCase {
 		db.closeConnection();
 	}
 
+	public void testCollectionCache() throws SQLException {
+		db.openConnection();
+
+		assertEquals("Two", db.getCollectionName(3));
+		assertEquals(5, db.getParentCollectionID(6));
+		int size = db.getCollectionSize(2);
+
+		// changes made through the database show up right away
+		assertTrue(db.renameCollection(db.getCollection(3), "Renamed"));
+		assertEquals("Renamed", db.getCollectionName(3));
+		int newID = db.createEmptyCollection("ATOFMS", 3, "New", "new", "");
+		assertEquals(newID, db.getImmediateSubCollections(db.getCollection(3)).get(0).intValue());
+		assertEquals(3, db.getParentCollectionID(newID));
+		assertTrue(db.moveCollection(db.getCollection(newID), db.getCollection(2)));
+		assertEquals(2, db.getParentCollectionID(newID));
+		assertTrue(db.getImmediateSubCollections(db.getCollection(3)).isEmpty());
+		assertTrue(db.recursiveDelete(db.getCollection(newID)));
+		assertFalse(db.getImmediateSubCollections(db.getCollection(2)).contains(newID));
+
+		// so do new atoms, however they are written
+		Statement stmt = db.getCon().createStatement();
+		stmt.executeUpdate("INSERT INTO InternalAtomOrder VALUES (5000, 2)");
+		assertEquals(size + 1, db.getCollectionSize(2));
+
+		// other changes need the cache cleared
+		stmt.executeUpdate("UPDATE Collections SET Name = 'Sneaky' WHERE CollectionID = 3");
+		stmt.close();
+		assertEquals("Renamed", db.getCollectionName(3));
+		db.clearCache();
+		assertEquals("Sneaky", db.getCollectionName(3));
+
+		db.closeConnection();
+	}
+
+	public void testCollectionClosure() throws SQLException {
+		db.openConnection();
+
+		assertEquals(new HashSet<Integer>(Arrays.asList(6)), db.getAllDescendantCollections(5, false));
+		assertEquals(Arrays.asList(5, 0), db.getAllAncestorCollections(6));
+
+		int newID = db.createEmptyCollection("Datatype2", 6, "New", "new", "");
+		assertEquals(Arrays.asList(6, 5, 0), db.getAllAncestorCollections(newID));
+		assertEquals(new HashSet<Integer>(Arrays.asList(5, 6, newID)), db.getAllDescendantCollections(5, true));
+
+		// moving a subtree moves all the paths through it
+		assertTrue(db.moveCollection(db.getCollection(6), db.getCollection(4)));
+		assertTrue(db.getAllDescendantCollections(5, false).isEmpty());
+		assertEquals(Arrays.asList(6, 4, 0), db.getAllAncestorCollections(newID));
+
+		assertTrue(db.recursiveDelete(db.getCollection(6)));
+		assertTrue(db.getAllDescendantCollections(4, false).isEmpty());
+		assertTrue(db.getAllAncestorCollections(newID).isEmpty());
+
+		// a database from before the closure table gets one built for it
+		Statement stmt = db.getCon().createStatement();
+		stmt.executeUpdate("DROP TRIGGER CollectionClosureInsert");
+		stmt.executeUpdate("DROP TRIGGER CollectionClosureDelete");
+		stmt.executeUpdate("DROP TRIGGER CollectionClosureUpdate");
+		stmt.executeUpdate("DROP TABLE CollectionClosure");
+		stmt.close();
+		db.closeConnection();
+		db.openConnection();
+		assertEquals(Arrays.asList(5, 0), db.getAllAncestorCollections(
+				db.createEmptyCollection("Datatype2", 5, "Again", "again", "")));
+		assertEquals(new HashSet<Integer>(Arrays.asList(2, 3, 4, 5)),
+				new HashSet<Integer>(db.getImmediateSubCollections(db.getCollection(0))));
+
+		db.closeConnection();
+	}
+
+	public void testCollectionClosureRollsBack() throws SQLException {
+		db.openConnection();
+		Statement stmt = db.getCon().createStatement();
+		stmt.executeUpdate("DROP TRIGGER CollectionClosureInsert");
+		stmt.executeUpdate("DROP TRIGGER CollectionClosureDelete");
+		stmt.executeUpdate("DROP TRIGGER CollectionClosureUpdate");
+		stmt.executeUpdate("DROP TABLE CollectionClosure");
+		// takes the name of the closure's index, so building it fails part way
+		stmt.executeUpdate("CREATE TABLE CollectionClosureDescendants (x INT)");
+		stmt.close();
+		db.closeConnection();
+		db.openConnection();
+		try {
+			db.ensureCollectionClosure();
+			fail("building the closure table should have failed");
+		} catch (RuntimeException e) {
+			// expected
+		}
+		assertTrue(db.getCon().getAutoCommit());
+		stmt = db.getCon().createStatement();
+		ResultSet rs = stmt.executeQuery(
+				"SELECT name FROM sqlite_master WHERE name = 'CollectionClosure'");
+		assertFalse(rs.next());
+		rs.close();
+		stmt.close();
+		db.closeConnection();
+	}
+
+	private String timeRangePlan() throws SQLException {
+		Statement stmt = db.getCon().createStatement();
+		ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT AtomID FROM ATOFMSAtomInfoDense\n" +
+				"WHERE " + Database.timeEpochOf("Time") + " >= " + Database.timeEpochOf("'2003-09-02 17:30:00'") + "\n" +
+				"ORDER BY " + Database.timeEpochOf("Time") + ", AtomID");
+		String plan = "";
+		while (rs.next())
+			plan += rs.getString(4) + "\n";
+		rs.close();
+		stmt.close();
+		return plan;
+	}
+
+	public void testTimeIndexes() throws Exception {
+		db.openConnection();
+		VersionChecker vc = new VersionChecker(db);
+		assertTrue(vc.isDatabaseCurrent());
+		assertTrue(timeRangePlan().contains("ATOFMSAtomInfoDenseTime"));
+		assertFalse(timeRangePlan().contains("TEMP B-TREE"));
+
+		// the index holds the wall-clock time as UTC milliseconds
+		SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Statement stmt = db.getCon().createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT " + Database.timeEpochOf("Time") +
+				" FROM ATOFMSAtomInfoDense WHERE AtomID = 1");
+		assertTrue(rs.next());
+		assertEquals(utc.parse("2003-09-02 17:30:38").getTime(), rs.getLong(1));
+		rs.close();
+
+		// a database from before the indexes is upgraded in place
+		stmt.executeUpdate("DROP INDEX ATOFMSAtomInfoDenseTime");
+		stmt.executeUpdate("UPDATE DBInfo SET Value = 'Sept2006.1' WHERE Name = 'Version'");
+		stmt.close();
+		vc = new VersionChecker(db);
+		assertFalse(vc.isDatabaseCurrent());
+		assertFalse(timeRangePlan().contains("ATOFMSAtomInfoDenseTime"));
+		assertTrue(vc.upgradeDatabase());
+		assertTrue(new VersionChecker(db).isDatabaseCurrent());
+		assertTrue(timeRangePlan().contains("ATOFMSAtomInfoDenseTime"));
+
+		db.closeConnection();
+	}
+
+	private Set<Integer> internalAtoms(int collectionID) throws SQLException {
+		Set<Integer> atoms = new HashSet<Integer>();
+		Statement stmt = db.getCon().createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT AtomID FROM InternalAtomOrder WHERE CollectionID = " + collectionID);
+		while (rs.next())
+			atoms.add(rs.getInt(1));
+		rs.close();
+		stmt.close();
+		return atoms;
+	}
+
+	public void testInternalAtomOrderDeltas() throws SQLException {
+		db.openConnection();
+		Set<Integer> five = internalAtoms(5);
+		Set<Integer> six = internalAtoms(6);
+		Set<Integer> two = internalAtoms(2);
+
+		// moving 6 out from under 5 takes its atoms out of 5 and puts them in 2
+		assertTrue(db.moveCollection(db.getCollection(6), db.getCollection(2)));
+		Set<Integer> expected = new HashSet<Integer>(five);
+		expected.removeAll(six);
+		assertEquals(expected, internalAtoms(5));
+		expected = new HashSet<Integer>(two);
+		expected.addAll(six);
+		assertEquals(expected, internalAtoms(2));
+		assertTrue(db.getCon().getAutoCommit());
+
+		// moving an atom takes it out of the old chain only where nothing
+		// else still holds it
+		int atomID = six.iterator().next();
+		assertTrue(db.moveAtom(atomID, 6, 3));
+		assertFalse(internalAtoms(6).contains(atomID));
+		assertFalse(internalAtoms(2).contains(atomID));
+		assertTrue(internalAtoms(3).contains(atomID));
+
+		// a new collection's atoms reach all its ancestors, on the same connection
+		Connection con = db.getCon();
+		int newID = db.createEmptyCollection("Datatype2", 6, "New", "new", "");
+		Statement stmt = con.createStatement();
+		stmt.executeUpdate("INSERT INTO AtomMembership VALUES (" + newID + ", " + atomID + ")");
+		stmt.executeUpdate("INSERT INTO InternalAtomOrder VALUES (" + atomID + ", " + newID + ")");
+		stmt.close();
+		db.propagateNewCollection(db.getCollection(newID));
+		assertSame(con, db.getCon());
+		assertTrue(internalAtoms(6).contains(atomID));
+		assertTrue(internalAtoms(2).contains(atomID));
+
+		// updateInternalAtomOrder only changes the rows that are out of date
+		stmt = con.createStatement();
+		stmt.executeUpdate("DELETE FROM InternalAtomOrder WHERE CollectionID = 2 AND AtomID = " + atomID);
+		stmt.executeUpdate("INSERT INTO InternalAtomOrder VALUES (1000, 2)");
+		stmt.close();
+		db.updateInternalAtomOrder(db.getCollection(2));
+		assertTrue(internalAtoms(2).contains(atomID));
+		assertFalse(internalAtoms(2).contains(1000));
+		db.closeConnection();
+	}
+
+	public void testParticleTablePages() throws SQLException {
+		db.openConnection();
+		// a collection of 2500 atoms, with AtomIDs going up in threes
+		int collID = db.createEmptyCollection("ATOFMS", 0, "Big", "", "");
+		Statement stmt = db.getCon().createStatement();
+		stmt.executeUpdate("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < 2500)\n" +
+				"INSERT INTO ATOFMSAtomInfoDense SELECT 1000 + 3 * i, '2003-09-02 17:30:38', 1, 0.5, 1, 'p' || i FROM n");
+		stmt.executeUpdate("INSERT INTO AtomMembership SELECT " + collID + ", AtomID FROM ATOFMSAtomInfoDense WHERE AtomID > 1000");
+		stmt.executeUpdate("INSERT INTO InternalAtomOrder SELECT AtomID, " + collID + " FROM ATOFMSAtomInfoDense WHERE AtomID > 1000");
+		stmt.close();
+		Collection c = db.getCollection(collID);
+		Vector<Vector<Object>> rows = new Vector<Vector<Object>>();
+
+		// jumping straight to the last, partial, page
+		db.updateParticleTable(c, rows, 2001, 3000);
+		assertEquals(500, rows.size());
+		assertEquals(1000 + 3 * 2001, rows.get(0).get(0));
+		assertEquals("p2500", rows.get(499).get(5));
+
+		db.updateParticleTable(c, rows, 1001, 2000);
+		assertEquals(1000, rows.size());
+		assertEquals(1000 + 3 * 1001, rows.get(0).get(0));
+		assertEquals(1000 + 3 * 2000, rows.get(999).get(0));
+
+		// a range that doesn't start on a page boundary
+		db.updateParticleTable(c, rows, 1500, 1509);
+		assertEquals(10, rows.size());
+		assertEquals(1000 + 3 * 1500, rows.get(0).get(0));
+
+		// a prefetched page is the same as one read when it's asked for...
+		db.prefetchParticleTable(c, 1, 1000);
+		db.updateParticleTable(c, rows, 1, 1000);
+		assertEquals(1000, rows.size());
+		assertEquals(1003, rows.get(0).get(0));
+		assertEquals("p1000", rows.get(999).get(5));
+
+		// ...unless the database changes first
+		db.prefetchParticleTable(c, 1, 1000);
+		stmt = db.getCon().createStatement();
+		stmt.executeUpdate("DELETE FROM InternalAtomOrder WHERE AtomID = 1003");
+		stmt.close();
+		db.updateParticleTable(c, rows, 1, 1000);
+		assertEquals(1006, rows.get(0).get(0));
+		db.closeConnection();
+	}
+
 	/**
 	 * author jtbigwoo
 	 */
@@ -0,0 +1,44 @@
+package edu.carleton.enchilada.database;
+
+import junit.framework.TestCase;
+
+public class PackedSpectrumTest extends TestCase {
+
+	public void testRoundTrip() {
+		PackedSpectrum.Writer writer = new PackedSpectrum.Writer();
+		writer.add(-300, 70000, 0.25f, 12);
+		writer.add(-30, 15, 0.006f, 1);
+		writer.add(45, 0, 1f, -5);
+		writer.add(400, Integer.MAX_VALUE, Float.MIN_VALUE, 123456);
+		byte[] packed = writer.toBytes();
+		assertEquals(4, PackedSpectrum.count(packed));
+
+		PackedSpectrum.Reader reader = new PackedSpectrum.Reader().reset(packed);
+		int[][] expected = {{-300, 70000, 12}, {-30, 15, 1}, {45, 0, -5}, {400, Integer.MAX_VALUE, 123456}};
+		float[] relAreas = {0.25f, 0.006f, 1f, Float.MIN_VALUE};
+		for (int i = 0; i < expected.length; i++) {
+			assertTrue(reader.next());
+			assertEquals(expected[i][0], reader.location);
+			assertEquals(expected[i][1], reader.area);
+			assertEquals(relAreas[i], reader.relArea);
+			assertEquals(expected[i][2], reader.height);
+		}
+		assertFalse(reader.next());
+
+		// the same writer, reused
+		writer.clear();
+		assertEquals(0, PackedSpectrum.count(writer.toBytes()));
+		assertFalse(reader.reset(writer.toBytes()).next());
+		assertFalse(reader.reset(null).next());
+	}
+
+	public void testFractionalLocation() {
+		PackedSpectrum.Writer writer = new PackedSpectrum.Writer();
+		writer.add(30, 1, 1f, 1);
+		writer.add(30.5, 1, 1f, 1);
+		assertNull(writer.toBytes());
+		writer.clear();
+		writer.add(30, 1, 1f, 1);
+		assertNotNull(writer.toBytes());
+	}
+}
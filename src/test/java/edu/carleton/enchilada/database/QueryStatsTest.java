@@ -0,0 +1,122 @@
+package edu.carleton.enchilada.database;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class QueryStatsTest extends TestCase {
+	private long slowMillis;
+
+	protected void setUp() {
+		slowMillis = QueryStats.getSlowMillis();
+		QueryStats.reset();
+		QueryStats.setEnabled(true);
+	}
+
+	protected void tearDown() {
+		QueryStats.setEnabled(false);
+		QueryStats.setSlowMillis(slowMillis);
+		QueryStats.reset();
+	}
+
+	public void testShapeOf() {
+		assertEquals("SELECT AtomID FROM InternalAtomOrder WHERE CollectionID = ?",
+				QueryStats.shapeOf("SELECT AtomID\n  FROM InternalAtomOrder WHERE CollectionID = 42;\n"));
+		assertEquals("SELECT Name FROM Collections WHERE Name = ? AND Comment <> ?",
+				QueryStats.shapeOf("SELECT Name FROM Collections WHERE Name = 'it''s' AND Comment <> ''"));
+		assertEquals("DELETE FROM AtomMembership WHERE AtomID IN (?...)",
+				QueryStats.shapeOf("DELETE FROM AtomMembership WHERE AtomID IN (1, 2,3 , 4)"));
+		assertEquals("INSERT INTO t VALUES (?...)",
+				QueryStats.shapeOf("INSERT INTO t VALUES (?, ?, ?)"));
+		// numbers in names and quoted names stay
+		assertEquals("SELECT Area2 FROM [Table 7] WHERE x > ?",
+				QueryStats.shapeOf("SELECT Area2 FROM [Table 7] WHERE x > 1.5e3"));
+	}
+
+	public void testRecording() throws SQLException {
+		QueryStats.setSlowMillis(0);
+		Connection con = QueryStats.wrap(DriverManager.getConnection("jdbc:sqlite::memory:"));
+		try {
+			Statement stmt = con.createStatement();
+			stmt.executeUpdate("CREATE TABLE t (id INTEGER PRIMARY KEY, v TEXT)");
+			PreparedStatement insert = con.prepareStatement("INSERT INTO t VALUES (?, ?)");
+			for (int i = 0; i < 10; i++) {
+				insert.setInt(1, i);
+				insert.setString(2, "v" + i);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			insert.close();
+			for (int id = 3; id < 5; id++) {
+				ResultSet rs = stmt.executeQuery("SELECT v FROM t WHERE id >= " + id);
+				while (rs.next())
+					;
+				rs.close();
+			}
+			stmt.close();
+
+			QueryStats.Shape batch = null, select = null;
+			for (QueryStats.Shape s : QueryStats.getShapes()) {
+				if (s.getSQL().equals("INSERT INTO t VALUES (?...)"))
+					batch = s;
+				else if (s.getSQL().equals("SELECT v FROM t WHERE id >= ?"))
+					select = s;
+			}
+			assertEquals(1, batch.getCount());
+			assertEquals(10, batch.getRows());
+			assertEquals(2, select.getCount());
+			assertEquals(7 + 6, select.getRows());
+			assertTrue(select.getPercentileMillis(0.5) <= select.getMaxMillis());
+
+			// with a threshold of 0 everything is slow, and queries get a plan
+			QueryStats.SlowStatement last = QueryStats.getSlowStatements().get(0);
+			assertEquals("SELECT v FROM t WHERE id >= 4", last.getSQL());
+			assertEquals(6, last.getRows());
+			assertTrue(last.getPlan(), last.getPlan().contains("SEARCH"));
+		} finally {
+			con.close();
+		}
+	}
+
+	public void testDisabled() throws SQLException {
+		QueryStats.setEnabled(false);
+		Connection con = QueryStats.wrap(DriverManager.getConnection("jdbc:sqlite::memory:"));
+		try {
+			// the driver's own statement, not a timing proxy
+			Statement stmt = con.createStatement();
+			assertFalse(java.lang.reflect.Proxy.isProxyClass(stmt.getClass()));
+			stmt.execute("CREATE TABLE t (id INTEGER PRIMARY KEY)");
+			stmt.close();
+			assertTrue(QueryStats.getShapes().isEmpty());
+		} finally {
+			con.close();
+		}
+	}
+
+	public void testDump() throws Exception {
+		QueryStats.setSlowMillis(0);
+		Connection con = QueryStats.wrap(DriverManager.getConnection("jdbc:sqlite::memory:"));
+		Statement stmt = con.createStatement();
+		stmt.execute("CREATE TABLE t (id INTEGER PRIMARY KEY)");
+		stmt.execute("SELECT * FROM t WHERE id = 5");
+		stmt.close();
+		con.close();
+
+		File file = File.createTempFile("querystats", ".txt");
+		try {
+			QueryStats.dump(file);
+			String text = new String(Files.readAllBytes(file.toPath()));
+			assertTrue(text.contains("SELECT * FROM t WHERE id = ?"));
+			assertTrue(text.contains("SELECT * FROM t WHERE id = 5"));
+		} finally {
+			file.delete();
+		}
+	}
+}
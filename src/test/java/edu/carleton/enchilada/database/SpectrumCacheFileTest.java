@@ -0,0 +1,139 @@
+package edu.carleton.enchilada.database;
+
+import edu.carleton.enchilada.ATOFMS.ParticleInfo;
+import edu.carleton.enchilada.analysis.BinnedPeakList;
+import edu.carleton.enchilada.collection.Collection;
+import junit.framework.TestCase;
+
+import java.sql.Statement;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SpectrumCacheFileTest extends TestCase {
+	Database db;
+
+	protected void setUp() throws Exception {
+		new CreateTestDatabase();
+		db = Database.getDatabase("TestDB");
+		db.openConnection();
+	}
+
+	protected void tearDown() throws Exception {
+		db.closeConnection();
+	}
+
+	public void testMatchesDatabase() throws Exception {
+		Collection c = db.getCollection(2);
+		Map<Integer, BinnedPeakList> expected = new LinkedHashMap<Integer, BinnedPeakList>();
+		Database.BPLOnlyCursor bpl = db.getBPLOnlyCursor(c);
+		while (bpl.next()) {
+			ParticleInfo info = bpl.getCurrent();
+			expected.put(info.getID(), info.getBinnedList());
+		}
+		bpl.close();
+
+		SpectrumCacheFile cache = SpectrumCacheFile.get(db, c);
+		assertTrue(cache.getFile().exists());
+		assertEquals(db.getCollectionSize(2), cache.getNumAtoms());
+
+		SpectrumCacheFile.Cursor curs = db.getSpectrumCacheCursor(c);
+		int count = 0;
+		while (curs.next()) {
+			ParticleInfo info = curs.getCurrent();
+			BinnedPeakList peaks = expected.get(info.getID());
+			if (peaks == null)
+				assertEquals(0, info.getBinnedList().length());
+			else
+				assertTrue(peaks.comparePeakLists(info.getBinnedList()));
+			assertTrue(info.getBinnedList().comparePeakLists(curs.getPeakListfromAtomID(info.getID())));
+			count++;
+		}
+		assertEquals(cache.getNumAtoms(), count);
+		assertNull(curs.getPeakListfromAtomID(1000));
+		curs.close();
+	}
+
+	public void testSharedAndInvalidated() throws Exception {
+		Collection c = db.getCollection(2);
+		SpectrumCacheFile first = SpectrumCacheFile.get(db, c);
+		assertSame(first, SpectrumCacheFile.get(db, c));
+
+		// two cursors on the one file don't disturb each other
+		SpectrumCacheFile.Cursor a = first.cursor();
+		SpectrumCacheFile.Cursor b = first.cursor();
+		assertTrue(a.next());
+		assertTrue(a.next());
+		assertTrue(b.next());
+		assertEquals(first.getAtomID(0), b.getCurrent().getID());
+		assertEquals(first.getAtomID(1), a.getCurrent().getID());
+
+		// moving an atom in changes InternalAtomOrder, so the file is rebuilt
+		assertTrue(db.moveAtom(6, 3, 2));
+		SpectrumCacheFile second = SpectrumCacheFile.get(db, c);
+		assertNotSame(first, second);
+		assertEquals(first.getNumAtoms() + 1, second.getNumAtoms());
+		assertTrue(second.indexOf(6) >= 0);
+		assertFalse(first.getFile().exists());
+
+		// moving it back brings the old signature back, but not the old
+		// cache, whose file is gone
+		assertTrue(db.moveAtom(6, 2, 3));
+		SpectrumCacheFile third = SpectrumCacheFile.get(db, c);
+		assertNotSame(first, third);
+		assertTrue(third.getFile().exists());
+		assertEquals(first.getNumAtoms(), third.getNumAtoms());
+	}
+
+	public void testSameCountAndSums() throws Exception {
+		Collection c = db.getCollection(2);
+		Statement stmt = db.getCon().createStatement();
+		int x = SpectrumCacheFile.get(db, c).getAtomID(0);
+		stmt.executeUpdate("UPDATE InternalAtomOrder SET AtomID = 100000 " +
+				"WHERE CollectionID = 2 AND AtomID = " + x);
+		SpectrumCacheFile first = SpectrumCacheFile.get(db, c);
+		int y = first.getAtomID(0);
+		stmt.executeUpdate("UPDATE InternalAtomOrder SET AtomID = 100010 " +
+				"WHERE CollectionID = 2 AND AtomID = " + y);
+		first = SpectrumCacheFile.get(db, c);
+
+		// find two other AtomIDs with the same sum, and the same sum of
+		// (AtomID * 40503) % 65521, as 100000 and 100010
+		int d = 1;
+		while (d == 10 || oldHash(100000 + d) + oldHash(100010 - d) !=
+				oldHash(100000) + oldHash(100010))
+			d++;
+		stmt.executeUpdate("UPDATE InternalAtomOrder SET AtomID = " + (100000 + d) +
+				" WHERE CollectionID = 2 AND AtomID = 100000");
+		stmt.executeUpdate("UPDATE InternalAtomOrder SET AtomID = " + (100010 - d) +
+				" WHERE CollectionID = 2 AND AtomID = 100010");
+		stmt.close();
+
+		SpectrumCacheFile second = SpectrumCacheFile.get(db, c);
+		assertNotSame(first, second);
+		assertEquals(first.getNumAtoms(), second.getNumAtoms());
+		assertTrue(second.indexOf(100000 + d) >= 0);
+		assertTrue(second.indexOf(100000) < 0);
+	}
+
+	private static long oldHash(long atomID) {
+		return (atomID * 40503) % 65521;
+	}
+
+	public void testOtherDatatype() throws Exception {
+		int[] ids = db.createEmptyCollectionAndDataset("AMS", 0, "cache", "",
+				"'data', 'time', 'mz'");
+		Collection c = db.getCollection(ids[0]);
+		AMSBulkInserter ins = new AMSBulkInserter(db, c, ids[1]);
+		int atomID = ins.addItem(new Date(1000000000000L),
+				new double[] {1, 2, 3}, new double[] {4, 5, 6}, 3);
+		ins.close();
+
+		SpectrumCacheFile cache = SpectrumCacheFile.get(db, c);
+		assertEquals(1, cache.getNumAtoms());
+		assertEquals(3, cache.getNumPeaks());
+		BinnedPeakList peaks = cache.cursor().getPeakListfromAtomID(atomID);
+		assertEquals(3, peaks.length());
+		assertEquals(5f, peaks.getAreaAt(2));
+	}
+}